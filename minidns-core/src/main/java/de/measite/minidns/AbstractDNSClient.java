@@ -12,15 +12,29 @@ package de.measite.minidns;
 
 import de.measite.minidns.Record.CLASS;
 import de.measite.minidns.Record.TYPE;
-import de.measite.minidns.cache.LRUCache;
+import de.measite.minidns.cache.ConcurrentLRUCache;
 import de.measite.minidns.source.DNSDataSource;
 import de.measite.minidns.source.NetworkDataSource;
+import de.measite.minidns.util.MiniDNSFuture;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,7 +44,7 @@ import java.util.logging.Logger;
  */
 public abstract class AbstractDNSClient {
 
-    protected static final LRUCache DEFAULT_CACHE = new LRUCache(1024);
+    protected static final ConcurrentLRUCache DEFAULT_CACHE = new ConcurrentLRUCache(1024);
 
     protected static final Logger LOGGER = Logger.getLogger(AbstractDNSClient.class.getName());
 
@@ -48,6 +62,89 @@ public abstract class AbstractDNSClient {
 
     protected DNSDataSource dataSource = new NetworkDataSource();
 
+    /**
+     * The round trip times and failures of the upstream servers, used to prefer fast servers.
+     */
+    protected InfrastructureCache infrastructureCache = new InfrastructureCache();
+
+    /**
+     * The upstream queries currently in flight, which identical concurrent queries wait for.
+     */
+    private final ConcurrentHashMap<InFlightQueryKey, MiniDNSFuture<DNSMessage>> inFlightQueries = new ConcurrentHashMap<>();
+
+    private volatile boolean queryCoalescing = true;
+
+    private final AtomicLong upstreamQueries = new AtomicLong();
+
+    private final AtomicLong coalescedQueries = new AtomicLong();
+
+    private final AtomicLong staleResponses = new AtomicLong();
+
+    /**
+     * The time in milliseconds after which a stale response is served while the upstream query continues.
+     */
+    private volatile int clientResponseTimeout = 1800;
+
+    /**
+     * The number of threads refreshing cache entries in the background.
+     */
+    private static final int PREFETCH_THREADS = 2;
+
+    /**
+     * The number of prefetches waiting for a thread, further prefetches are dropped.
+     */
+    private static final int PREFETCH_QUEUE_SIZE = 64;
+
+    private static final ThreadFactory PREFETCH_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MiniDNS prefetch " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Lazily created by {@link #prefetch(DNSMessage, InetAddress, int)}.
+     */
+    private ThreadPoolExecutor prefetchExecutor;
+
+    /**
+     * The maximum number of prefetches started per second.
+     */
+    private volatile int prefetchRateLimit = 10;
+
+    private long prefetchWindowStart;
+
+    private int prefetchWindowCount;
+
+    /**
+     * The number of threads running blocking resolutions for {@link #resolveInBackground(Callable)}.
+     */
+    private static final int RESOLVER_THREADS = 8;
+
+    private static final ThreadFactory RESOLVER_THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger threadCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "MiniDNS resolver " + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    /**
+     * Lazily created by {@link #resolveInBackground(Callable)}.
+     */
+    private ThreadPoolExecutor resolverExecutor;
+
+    private final AtomicLong prefetches = new AtomicLong();
+
+    private final AtomicLong droppedPrefetches = new AtomicLong();
+
     /**
      * Create a new DNS client with the given DNS cache.
      *
@@ -130,42 +227,401 @@ public abstract class AbstractDNSClient {
      */
     protected abstract DNSMessage query(DNSMessage.Builder query) throws IOException;
 
+    /**
+     * Query the DNS system without blocking the calling thread, provided the client and the
+     * {@link #setDataSource(DNSDataSource) data source} support asynchronous queries.
+     *
+     * @param q The question to ask.
+     * @return The future response, which may be completed with <code>null</code>.
+     */
+    public MiniDNSFuture<DNSMessage> queryAsync(Question q) {
+        DNSMessage.Builder query = buildMessage(q);
+        return queryAsync(query);
+    }
+
+    /**
+     * Send a query request to the DNS system without waiting for the response. This default implementation performs
+     * the blocking {@link #query(DNSMessage.Builder)} {@link #resolveInBackground(Callable) in the background}, clients
+     * override this if they can resolve asynchronously.
+     *
+     * @param query The query to send to the server.
+     * @return The future response.
+     */
+    protected MiniDNSFuture<DNSMessage> queryAsync(final DNSMessage.Builder query) {
+        return resolveInBackground(new Callable<DNSMessage>() {
+            @Override
+            public DNSMessage call() throws IOException {
+                return query(query);
+            }
+        });
+    }
+
+    /**
+     * Run a blocking resolution on a thread of this client, so that the calling thread does not wait for it. This is
+     * meant for resolution logic written as sequential blocking steps, like iterative resolution or DNSSEC validation,
+     * which occupies one of at most {@value #RESOLVER_THREADS} threads for its whole duration. Further resolutions wait
+     * for a free thread. A resolution is skipped if its future is cancelled before it started.
+     *
+     * @param resolution the blocking resolution.
+     * @param <V> the type of the result.
+     * @return the future result of the resolution.
+     */
+    protected final <V> MiniDNSFuture<V> resolveInBackground(final Callable<V> resolution) {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            if (resolverExecutor == null) {
+                resolverExecutor = new ThreadPoolExecutor(RESOLVER_THREADS, RESOLVER_THREADS, 30, TimeUnit.SECONDS,
+                        new LinkedBlockingQueue<Runnable>(), RESOLVER_THREAD_FACTORY);
+                resolverExecutor.allowCoreThreadTimeOut(true);
+            }
+            executor = resolverExecutor;
+        }
+
+        final MiniDNSFuture<V> future = new MiniDNSFuture<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    future.setResult(resolution.call());
+                } catch (IOException e) {
+                    future.setException(e);
+                } catch (Exception e) {
+                    future.setException(new IOException(e));
+                }
+            }
+        });
+        return future;
+    }
+
     public final DNSMessage query(Question q, InetAddress server, int port) throws IOException {
         DNSMessage query = getQueryFor(q);
         return query(query, server, port);
     }
 
     public final DNSMessage query(DNSMessage requestMessage, InetAddress address, int port) throws IOException {
+        return queryAsync(requestMessage, address, port).getOrThrow();
+    }
+
+    /**
+     * Query a nameserver without waiting for the response. Cached responses are returned as completed futures, and
+     * identical concurrent queries share one upstream query if {@link #setQueryCoalescing(boolean) query coalescing}
+     * is enabled. Cancelling the returned future does not affect other queries waiting for the same upstream query.
+     * <p>
+     * If the cache is a {@link StaleDNSCache} holding an expired response, and the upstream query fails or does not
+     * complete within the {@link #setClientResponseTimeout(int) client response timeout}, the stale response is
+     * returned, while the upstream query continues to refresh the cache in the background (RFC 8767).
+     * </p>
+     * <p>
+     * If the cache is a {@link PrefetchDNSCache} and reports that a cached response needs to be prefetched, the query
+     * is repeated in the background to refresh the cache before the response expires.
+     * </p>
+     *
+     * @param requestMessage The query message.
+     * @param address The DNS server address.
+     * @param port The DNS server port.
+     * @return The future response.
+     */
+    public final MiniDNSFuture<DNSMessage> queryAsync(DNSMessage requestMessage, InetAddress address, int port) {
         // See if we have the answer to this question already cached
         DNSMessage responseMessage = (cache == null) ? null : cache.get(requestMessage);
         if (responseMessage != null) {
-            return responseMessage;
+            if (cache instanceof PrefetchDNSCache && requestMessage.getQuestion() != null
+                    && ((PrefetchDNSCache) cache).needsPrefetch(requestMessage.asCacheKey())) {
+                prefetch(requestMessage, address, port);
+            }
+            return MiniDNSFuture.from(responseMessage);
+        }
+
+        MiniDNSFuture<DNSMessage> future = queryCoalesced(requestMessage, address, port);
+        if (cache instanceof StaleDNSCache && requestMessage.getQuestion() != null) {
+            return withStaleFallback((StaleDNSCache) cache, requestMessage.asCacheKey(), future);
         }
+        return future;
+    }
 
+    private MiniDNSFuture<DNSMessage> queryCoalesced(DNSMessage requestMessage, InetAddress address, int port) {
         final Question q = requestMessage.getQuestion();
+        if (!queryCoalescing || q == null || address == null) {
+            return queryUpstream(requestMessage, address, port);
+        }
 
-        final Level TRACE_LOG_LEVEL = Level.FINE;
-        LOGGER.log(TRACE_LOG_LEVEL, "Asking {0} on {1} for {2} with:\n{3}", new Object[] { address, port, q, requestMessage });
+        final InFlightQueryKey key = new InFlightQueryKey(requestMessage.asCacheKey(), address, port);
+        final MiniDNSFuture<DNSMessage> inFlightQuery = new MiniDNSFuture<>();
+        MiniDNSFuture<DNSMessage> leader = inFlightQueries.putIfAbsent(key, inFlightQuery);
+        if (leader != null) {
+            coalescedQueries.incrementAndGet();
+            LOGGER.log(Level.FINE, "Waiting for the identical query in flight to {0} on {1} for {2}", new Object[] { address, port, q });
+            return new MiniDNSFuture<DNSMessage>().completeWith(leader);
+        }
 
+        // Registered first, so the query is no longer in flight once the waiting queries are completed.
+        inFlightQuery.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+            @Override
+            public void onResult(DNSMessage result) {
+                inFlightQueries.remove(key, inFlightQuery);
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                inFlightQueries.remove(key, inFlightQuery);
+            }
+        });
         try {
-            responseMessage = dataSource.query(requestMessage, address, port);
-        } catch (IOException e) {
-            LOGGER.log(TRACE_LOG_LEVEL, "IOException {0} on {1} while resolving {2}: {3}", new Object[] { address, port, q, e});
+            inFlightQuery.completeWith(queryUpstream(requestMessage, address, port));
+        } catch (RuntimeException e) {
+            inFlightQuery.setException(new IOException(e));
             throw e;
         }
-        if (responseMessage != null) {
-            LOGGER.log(TRACE_LOG_LEVEL, "Response from {0} on {1} for {2}:\n{3}", new Object[] { address, port, q, responseMessage });
+        return new MiniDNSFuture<DNSMessage>().completeWith(inFlightQuery);
+    }
+
+    private MiniDNSFuture<DNSMessage> withStaleFallback(final StaleDNSCache staleCache, final CacheKey key,
+            MiniDNSFuture<DNSMessage> future) {
+        final DNSMessage staleResponse = staleCache.getStale(key);
+        if (staleResponse == null) {
+            return future;
+        }
+
+        final MiniDNSFuture<DNSMessage> result = new MiniDNSFuture<>();
+        // Never completed with a result, only used to time out.
+        final MiniDNSFuture<Void> clientResponseTimer = new MiniDNSFuture<Void>().setTimeout(clientResponseTimeout);
+        clientResponseTimer.addCallback(new MiniDNSFuture.Callback<Void>() {
+            @Override
+            public void onResult(Void nothing) {
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                if (exception instanceof SocketTimeoutException) {
+                    completeWithStale(result, staleResponse, key);
+                }
+            }
+        });
+        future.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+            @Override
+            public void onResult(DNSMessage response) {
+                clientResponseTimer.cancel(false);
+                result.setResult(response);
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                clientResponseTimer.cancel(false);
+                completeWithStale(result, staleResponse, key);
+            }
+        });
+        return result;
+    }
+
+    private void completeWithStale(MiniDNSFuture<DNSMessage> result, DNSMessage staleResponse, CacheKey key) {
+        // Counted first, so the count is up to date once the caller sees the stale response.
+        staleResponses.incrementAndGet();
+        if (result.setResult(staleResponse)) {
+            LOGGER.log(Level.FINE, "Serving stale response for {0}", key);
         } else {
-            // TODO When should this ever happen?
-            LOGGER.log(Level.SEVERE, "NULL response from " + address + " on " + port + " for " + q);
+            staleResponses.decrementAndGet();
         }
+    }
+
+    private void prefetch(final DNSMessage requestMessage, final InetAddress address, final int port) {
+        ThreadPoolExecutor executor;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            if (now - prefetchWindowStart >= 1000) {
+                prefetchWindowStart = now;
+                prefetchWindowCount = 0;
+            }
+            if (prefetchWindowCount >= prefetchRateLimit) {
+                droppedPrefetches.incrementAndGet();
+                return;
+            }
+            prefetchWindowCount++;
 
-        if (responseMessage == null) return null;
+            if (prefetchExecutor == null) {
+                prefetchExecutor = new ThreadPoolExecutor(PREFETCH_THREADS, PREFETCH_THREADS, 30, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(PREFETCH_QUEUE_SIZE), PREFETCH_THREAD_FACTORY);
+                prefetchExecutor.allowCoreThreadTimeOut(true);
+            }
+            executor = prefetchExecutor;
+        }
 
-        if (cache != null && isResponseCacheable(q, responseMessage)) {
-            cache.put(requestMessage.asNormalizedVersion(), responseMessage);
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    // The response is cached by the upstream query, the waiting query keeps the thread busy until then.
+                    MiniDNSFuture<DNSMessage> future = queryCoalesced(requestMessage, address, port);
+                    try {
+                        future.getOrThrow();
+                    } catch (IOException e) {
+                        LOGGER.log(Level.FINE, "Prefetch of " + requestMessage.getQuestion() + " failed", e);
+                    }
+                }
+            });
+            prefetches.incrementAndGet();
+        } catch (RejectedExecutionException e) {
+            droppedPrefetches.incrementAndGet();
         }
-        return responseMessage;
+    }
+
+    private MiniDNSFuture<DNSMessage> queryUpstream(final DNSMessage requestMessage, final InetAddress address, final int port) {
+        final Question q = requestMessage.getQuestion();
+        upstreamQueries.incrementAndGet();
+
+        final Level TRACE_LOG_LEVEL = Level.FINE;
+        LOGGER.log(TRACE_LOG_LEVEL, "Asking {0} on {1} for {2} with:\n{3}", new Object[] { address, port, q, requestMessage });
+
+        final InfrastructureCache infrastructureCache = address != null ? this.infrastructureCache : null;
+        final long start = System.nanoTime();
+        MiniDNSFuture<DNSMessage> future = dataSource.queryAsync(requestMessage, address, port);
+        // Registered before the future is handed out, so the response is cached before anyone sees it.
+        future.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+            @Override
+            public void onResult(DNSMessage responseMessage) {
+                if (infrastructureCache != null) {
+                    infrastructureCache.recordResponse(address, (System.nanoTime() - start) / 1000000);
+                }
+                if (responseMessage != null) {
+                    LOGGER.log(TRACE_LOG_LEVEL, "Response from {0} on {1} for {2}:\n{3}", new Object[] { address, port, q, responseMessage });
+                } else {
+                    // TODO When should this ever happen?
+                    LOGGER.log(Level.SEVERE, "NULL response from " + address + " on " + port + " for " + q);
+                }
+
+                if (responseMessage == null) return;
+
+                if (cache != null && isResponseCacheable(q, responseMessage)) {
+                    cache.put(requestMessage.asNormalizedVersion(), responseMessage);
+                }
+            }
+
+            @Override
+            public void onException(IOException e) {
+                LOGGER.log(TRACE_LOG_LEVEL, "IOException {0} on {1} while resolving {2}: {3}", new Object[] { address, port, q, e});
+                // A cancelled query says nothing about the server.
+                boolean cancelled = e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException);
+                if (infrastructureCache != null && !cancelled) {
+                    infrastructureCache.recordFailure(address);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Check if identical concurrent queries are coalesced.
+     *
+     * @return <code>true</code> if identical concurrent queries are coalesced.
+     * @see #setQueryCoalescing(boolean)
+     */
+    public boolean isQueryCoalescing() {
+        return queryCoalescing;
+    }
+
+    /**
+     * Set whether identical concurrent queries are coalesced. If enabled, which is the default, a query which asks the
+     * same server the same question with the same flags as a query in flight is not sent, but receives the response
+     * of the query in flight. Note that the response carries the message ID of the query in flight.
+     *
+     * @param queryCoalescing <code>true</code> to coalesce identical concurrent queries.
+     */
+    public void setQueryCoalescing(boolean queryCoalescing) {
+        this.queryCoalescing = queryCoalescing;
+    }
+
+    /**
+     * Get the number of queries sent to upstream servers.
+     *
+     * @return the number of upstream queries.
+     */
+    public long getUpstreamQueryCount() {
+        return upstreamQueries.get();
+    }
+
+    /**
+     * Get the number of queries which were not sent to an upstream server, because they received the response of an
+     * identical query in flight.
+     *
+     * @return the number of saved upstream queries.
+     * @see #setQueryCoalescing(boolean)
+     */
+    public long getCoalescedQueryCount() {
+        return coalescedQueries.get();
+    }
+
+    /**
+     * Get the number of stale responses served because the upstream query failed or was too slow.
+     *
+     * @return the number of stale responses.
+     * @see StaleDNSCache
+     */
+    public long getStaleResponseCount() {
+        return staleResponses.get();
+    }
+
+    /**
+     * Get the number of prefetches started to refresh cache entries before they expire.
+     *
+     * @return the number of prefetches.
+     * @see PrefetchDNSCache
+     */
+    public long getPrefetchCount() {
+        return prefetches.get();
+    }
+
+    /**
+     * Get the number of prefetches dropped because of the {@link #setPrefetchRateLimit(int) rate limit} or because
+     * too many prefetches were waiting.
+     *
+     * @return the number of dropped prefetches.
+     */
+    public long getDroppedPrefetchCount() {
+        return droppedPrefetches.get();
+    }
+
+    /**
+     * Get the maximum number of prefetches started per second.
+     *
+     * @return the prefetch rate limit.
+     */
+    public int getPrefetchRateLimit() {
+        return prefetchRateLimit;
+    }
+
+    /**
+     * Set the maximum number of prefetches started per second. Prefetches exceeding the limit are dropped, the cache
+     * entry then expires as usual. The default is 10.
+     *
+     * @param prefetchRateLimit the prefetch rate limit, 0 disables prefetching.
+     */
+    public void setPrefetchRateLimit(int prefetchRateLimit) {
+        this.prefetchRateLimit = prefetchRateLimit;
+    }
+
+    /**
+     * Get the client response timeout.
+     *
+     * @return the client response timeout in milliseconds.
+     * @see #setClientResponseTimeout(int)
+     */
+    public int getClientResponseTimeout() {
+        return clientResponseTimeout;
+    }
+
+    /**
+     * Set the time after which a stale response is returned if the upstream query has not completed yet. Only applies
+     * if the cache is a {@link StaleDNSCache} holding an expired response for the query. The default is 1.8 seconds,
+     * as recommended by RFC 8767 § 5. Data sources which do not query asynchronously, like {@link NetworkDataSource},
+     * complete the upstream query before the timer starts, so the stale response is only served if the upstream query
+     * failed.
+     *
+     * @param clientResponseTimeout the client response timeout in milliseconds.
+     */
+    public void setClientResponseTimeout(int clientResponseTimeout) {
+        this.clientResponseTimeout = clientResponseTimeout;
     }
 
     /**
@@ -181,7 +637,14 @@ public abstract class AbstractDNSClient {
                 return true;
             }
         }
-        return false;
+        // Negative responses (NXDOMAIN or NODATA) may be cached if they carry the SOA record, see RFC 2308 § 5.
+        switch (dnsMessage.responseCode) {
+        case NO_ERROR:
+        case NX_DOMAIN:
+            return dnsMessage.getNegativeTtl() >= 0;
+        default:
+            return false;
+        }
     }
 
     /**
@@ -300,6 +763,45 @@ public abstract class AbstractDNSClient {
         this.dataSource = dataSource;
     }
 
+    /**
+     * Get the infrastructure cache which tracks the round trip times of the upstream servers.
+     *
+     * @return the infrastructure cache or <code>null</code>.
+     */
+    public InfrastructureCache getInfrastructureCache() {
+        return infrastructureCache;
+    }
+
+    /**
+     * Set the infrastructure cache used to order upstream servers by their round trip time. The cache may be shared
+     * between clients, <code>null</code> disables the tracking and queries the servers in their configured order.
+     * <p>
+     * The {@link NetworkDataSource} keeps a separate cache for its retransmission timeouts, which only holds the round
+     * trip times of UDP queries answered without retransmission. The two are not shared, because every query would be
+     * recorded by both.
+     * </p>
+     *
+     * @param infrastructureCache the infrastructure cache or <code>null</code>.
+     */
+    public void setInfrastructureCache(InfrastructureCache infrastructureCache) {
+        this.infrastructureCache = infrastructureCache;
+    }
+
+    /**
+     * Order candidate servers by the {@link #setInfrastructureCache(InfrastructureCache) infrastructure cache}, fastest
+     * first.
+     *
+     * @param servers the candidate servers.
+     * @return the ordered servers.
+     */
+    protected List<InetAddress> orderServers(List<InetAddress> servers) {
+        InfrastructureCache infrastructureCache = this.infrastructureCache;
+        if (infrastructureCache == null) {
+            return servers;
+        }
+        return infrastructureCache.order(servers);
+    }
+
     /**
      * Get the cache used by this DNS client.
      *
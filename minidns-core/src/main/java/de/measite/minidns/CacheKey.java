@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+
+/**
+ * An immutable key for DNS caches. A key consists of the question of a query and the flags of the query which
+ * influence the response: recursion desired (RD), checking disabled (CD) and DNSSEC OK (DO). Unlike {@link DNSMessage},
+ * computing the hash code of a key and comparing keys does not require serializing the query.
+ */
+public final class CacheKey {
+
+    public final DNSName name;
+
+    public final TYPE type;
+
+    public final CLASS clazz;
+
+    public final boolean recursionDesired;
+
+    public final boolean checkingDisabled;
+
+    public final boolean dnssecOk;
+
+    private final int hashCode;
+
+    public CacheKey(Question question, boolean recursionDesired, boolean checkingDisabled, boolean dnssecOk) {
+        this(question.name, question.type, question.clazz, recursionDesired, checkingDisabled, dnssecOk);
+    }
+
+    public CacheKey(DNSName name, TYPE type, CLASS clazz, boolean recursionDesired, boolean checkingDisabled, boolean dnssecOk) {
+        this.name = name;
+        this.type = type;
+        this.clazz = clazz;
+        this.recursionDesired = recursionDesired;
+        this.checkingDisabled = checkingDisabled;
+        this.dnssecOk = dnssecOk;
+
+        int hashCode = name.hashCode();
+        hashCode = 31 * hashCode + type.hashCode();
+        hashCode = 31 * hashCode + clazz.hashCode();
+        hashCode = 31 * hashCode + (recursionDesired ? 1 : 0);
+        hashCode = 31 * hashCode + (checkingDisabled ? 1 : 0);
+        hashCode = 31 * hashCode + (dnssecOk ? 1 : 0);
+        this.hashCode = hashCode;
+    }
+
+    /**
+     * Create the cache key for the given query.
+     *
+     * @param query the query message, which must contain a question.
+     * @return the cache key.
+     */
+    public static CacheKey from(DNSMessage query) {
+        Record optRecord = query.getOptPseudoRecord();
+        boolean dnssecOk = optRecord != null && (optRecord.ttl & EDNS.FLAG_DNSSEC_OK) > 0;
+        return new CacheKey(query.getQuestion(), query.recursionDesired, query.checkingDisabled, dnssecOk);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (other == this) {
+            return true;
+        }
+        if (!(other instanceof CacheKey)) {
+            return false;
+        }
+        CacheKey otherKey = (CacheKey) other;
+        return hashCode == otherKey.hashCode
+                && type == otherKey.type
+                && clazz == otherKey.clazz
+                && recursionDesired == otherKey.recursionDesired
+                && checkingDisabled == otherKey.checkingDisabled
+                && dnssecOk == otherKey.dnssecOk
+                && name.equals(otherKey.name);
+    }
+
+    @Override
+    public String toString() {
+        return name + ".\t" + clazz + '\t' + type
+                + (recursionDesired ? " rd" : "") + (checkingDisabled ? " cd" : "") + (dnssecOk ? " do" : "");
+    }
+}
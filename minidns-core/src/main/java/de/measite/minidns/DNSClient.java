@@ -15,14 +15,20 @@ import de.measite.minidns.dnsserverlookup.AndroidUsingReflection;
 import de.measite.minidns.dnsserverlookup.DNSServerLookupMechanism;
 import de.measite.minidns.dnsserverlookup.HardcodedDNSServerAddresses;
 import de.measite.minidns.dnsserverlookup.UnixUsingEtcResolvConf;
+import de.measite.minidns.source.DNSDataSource;
+import de.measite.minidns.util.MiniDNSFuture;
 import de.measite.minidns.util.MultipleIoException;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 /**
@@ -40,11 +46,59 @@ public class DNSClient extends AbstractDNSClient {
         addDnsServerLookupMechanism(UnixUsingEtcResolvConf.INSTANCE);
     }
 
-    private final Set<String> nonRaServers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>(4));
+    private final Set<InetAddress> nonRaServers = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>(4));
 
     private boolean askForDnssec = false;
     private boolean disableResultFilter = false;
 
+    /**
+     * How a query is spread over the configured DNS servers.
+     */
+    public enum QueryStrategy {
+        /**
+         * Ask the servers one after another, the next server is only asked if the previous one failed.
+         */
+        SEQUENTIAL,
+
+        /**
+         * Ask the next server as well if the previous server did not respond within its usual latency, i.e. the 95th
+         * percentile of its round trip times. Requires an {@link DNSDataSource#isAsynchronous() asynchronous} data
+         * source.
+         */
+        HEDGED,
+
+        /**
+         * Ask several servers at once. Requires an {@link DNSDataSource#isAsynchronous() asynchronous} data source.
+         */
+        RACE,
+    }
+
+    private static final double MAX_HEDGE_TOKENS = 10;
+
+    private static Timer hedgeTimer;
+
+    private volatile QueryStrategy queryStrategy = QueryStrategy.SEQUENTIAL;
+
+    /**
+     * Set once the warning about a query strategy without effect has been logged.
+     */
+    private volatile boolean blockingDataSourceWarned;
+
+    private int raceWidth = 2;
+
+    private int hedgeDelay = 200;
+
+    private double hedgeBudget = 0.1;
+
+    /**
+     * The number of additional queries which may be sent. Guarded by hedgeBudgetLock.
+     */
+    private double hedgeTokens = MAX_HEDGE_TOKENS;
+
+    private final Object hedgeBudgetLock = new Object();
+
+    private final AtomicLong hedgedQueries = new AtomicLong();
+
     /**
      * Create a new DNS client using the global default cache.
      */
@@ -76,52 +130,17 @@ public class DNSClient extends AbstractDNSClient {
             return responseMessage;
         }
 
-        String dnsServer[] = findDNS();
-        List<IOException> ioExceptions = new ArrayList<>(dnsServer.length);
-        for (String dns : dnsServer) {
-            if (nonRaServers.contains(dns)) {
-                LOGGER.finer("Skipping " + dns + " because it was marked as \"recursion not available\"");
-                continue;
-            }
+        if (queryStrategy != QueryStrategy.SEQUENTIAL) {
+            return queryServersAsync(q).getOrThrow();
+        }
 
+        List<IOException> ioExceptions = new ArrayList<>();
+        for (InetAddress dns : getDnsServers(ioExceptions)) {
             try {
                 responseMessage = query(q, dns);
-                if (responseMessage == null) {
-                    continue;
-                }
-
-                if (!responseMessage.recursionAvailable) {
-                    boolean newRaServer = nonRaServers.add(dns);
-                    if (newRaServer) {
-                        LOGGER.warning("The DNS server "
-                                + dns
-                                + " returned a response without the \"recursion available\" (RA) flag set. This likely indicates a misconfiguration because the server is not suitable for DNS resolution");
-                    }
-                    continue;
-                }
-
-                if (disableResultFilter) {
+                if (isUsableResponse(q, dns, responseMessage)) {
                     return responseMessage;
                 }
-
-                switch (responseMessage.responseCode) {
-                case NO_ERROR:
-                case NX_DOMAIN:
-                    break;
-                default:
-                    String warning = "Response from " + dns + " asked for " + q.getQuestion() + " with error code: "
-                            + responseMessage.responseCode + '.';
-                    if (!LOGGER.isLoggable(Level.FINE)) {
-                        // Only append the responseMessage is log level is not fine. If it is fine or higher, the
-                        // response has already been logged.
-                        warning += "\n" + responseMessage;
-                    }
-                    LOGGER.warning(warning);
-                    // TODO Create new IOException and add to ioExceptions.
-                    continue;
-                }
-
-                return responseMessage;
             } catch (IOException ioe) {
                 ioExceptions.add(ioe);
             }
@@ -131,6 +150,108 @@ public class DNSClient extends AbstractDNSClient {
         return null;
     }
 
+    /**
+     * Query the configured DNS servers according to the {@link #setQueryStrategy(QueryStrategy) query strategy}
+     * without blocking the calling thread. If the
+     * {@link #setDataSource(de.measite.minidns.source.DNSDataSource) data source} does not support asynchronous
+     * queries, the servers are queried {@link #resolveInBackground(java.util.concurrent.Callable) in the background}.
+     *
+     * @param queryBuilder The query to send.
+     * @return The future response.
+     */
+    @Override
+    protected MiniDNSFuture<DNSMessage> queryAsync(DNSMessage.Builder queryBuilder) {
+        DNSMessage q = newQuestion(queryBuilder).build();
+        DNSMessage responseMessage = (cache == null) ? null : cache.get(q);
+        if (responseMessage != null) {
+            return MiniDNSFuture.from(responseMessage);
+        }
+
+        if (!dataSource.isAsynchronous()) {
+            return super.queryAsync(queryBuilder);
+        }
+        return queryServersAsync(q);
+    }
+
+    private MiniDNSFuture<DNSMessage> queryServersAsync(DNSMessage q) {
+        List<IOException> ioExceptions = new ArrayList<>();
+        List<InetAddress> dnsServers = getDnsServers(ioExceptions);
+        return new ServerQuery(q, dnsServers, ioExceptions).start();
+    }
+
+    /**
+     * Get the addresses of the configured DNS servers which offer recursion, fastest first. Subclasses may override
+     * this to use other servers than the ones {@link #findDNS() configured on the system}.
+     *
+     * @param ioExceptions the list to add the exceptions for invalid server addresses to.
+     * @return the addresses of the DNS servers.
+     */
+    protected List<InetAddress> getDnsServers(List<IOException> ioExceptions) {
+        String dnsServer[] = findDNS();
+        List<InetAddress> dnsServers = new ArrayList<>(dnsServer.length);
+        for (String dns : dnsServer) {
+            InetAddress address;
+            try {
+                address = InetAddress.getByName(dns);
+            } catch (IOException ioe) {
+                ioExceptions.add(ioe);
+                continue;
+            }
+            if (nonRaServers.contains(address)) {
+                LOGGER.finer("Skipping " + dns + " because it was marked as \"recursion not available\"");
+                continue;
+            }
+            dnsServers.add(address);
+        }
+        return orderServers(dnsServers);
+    }
+
+    /**
+     * Check if a response of a DNS server can be returned to the caller, or if the next server should be asked.
+     * Servers which do not offer recursion are remembered and skipped by later queries.
+     *
+     * @param q The query.
+     * @param dns The DNS server.
+     * @param responseMessage The response, may be <code>null</code>.
+     * @return <code>true</code> if the response can be returned.
+     */
+    private boolean isUsableResponse(DNSMessage q, InetAddress dns, DNSMessage responseMessage) {
+        if (responseMessage == null) {
+            return false;
+        }
+
+        if (!responseMessage.recursionAvailable) {
+            boolean newRaServer = nonRaServers.add(dns);
+            if (newRaServer) {
+                LOGGER.warning("The DNS server "
+                        + dns.getHostAddress()
+                        + " returned a response without the \"recursion available\" (RA) flag set. This likely indicates a misconfiguration because the server is not suitable for DNS resolution");
+            }
+            return false;
+        }
+
+        if (disableResultFilter) {
+            return true;
+        }
+
+        switch (responseMessage.responseCode) {
+        case NO_ERROR:
+        case NX_DOMAIN:
+            return true;
+        default:
+            String warning = "Response from " + dns.getHostAddress() + " asked for " + q.getQuestion() + " with error code: "
+                    + responseMessage.responseCode + '.';
+            if (!LOGGER.isLoggable(Level.FINE)) {
+                // Only append the responseMessage is log level is not fine. If it is fine or higher, the
+                // response has already been logged.
+                warning += "\n" + responseMessage;
+            }
+            LOGGER.warning(warning);
+            // TODO Create new IOException and add to ioExceptions.
+            return false;
+        }
+    }
+
     /**
      * Retrieve a list of currently configured DNS servers.
      *
@@ -168,6 +289,306 @@ public class DNSClient extends AbstractDNSClient {
         this.askForDnssec = askForDnssec;
     }
 
+    public QueryStrategy getQueryStrategy() {
+        return queryStrategy;
+    }
+
+    /**
+     * Set how queries are spread over the configured DNS servers. With {@link QueryStrategy#HEDGED} and
+     * {@link QueryStrategy#RACE} the first usable response wins and the queries to the other servers are cancelled.
+     * The additional queries are limited by the {@link #setHedgeBudget(double) hedge budget}.
+     * <p>
+     * Both strategies require an {@link DNSDataSource#isAsynchronous() asynchronous} data source, like
+     * {@link de.measite.minidns.source.MultiplexedNetworkDataSource}. With a blocking data source, like the default
+     * {@link de.measite.minidns.source.NetworkDataSource}, every server is only asked once the previous one answered or
+     * timed out, so they behave like {@link QueryStrategy#SEQUENTIAL} and a warning is logged.
+     * </p>
+     *
+     * @param queryStrategy the query strategy.
+     */
+    public void setQueryStrategy(QueryStrategy queryStrategy) {
+        if (queryStrategy == null) {
+            throw new IllegalArgumentException();
+        }
+        this.queryStrategy = queryStrategy;
+    }
+
+    public int getRaceWidth() {
+        return raceWidth;
+    }
+
+    /**
+     * Set the number of servers asked at once with {@link QueryStrategy#RACE}.
+     *
+     * @param raceWidth the number of servers.
+     */
+    public void setRaceWidth(int raceWidth) {
+        if (raceWidth < 1) {
+            throw new IllegalArgumentException("Race width must be at least one");
+        }
+        this.raceWidth = raceWidth;
+    }
+
+    public int getHedgeDelay() {
+        return hedgeDelay;
+    }
+
+    /**
+     * Set the delay after which the next server is asked with {@link QueryStrategy#HEDGED}, if the round trip times of
+     * the server are not known yet.
+     *
+     * @param hedgeDelay the delay in milliseconds.
+     */
+    public void setHedgeDelay(int hedgeDelay) {
+        if (hedgeDelay <= 0) {
+            throw new IllegalArgumentException("Hedge delay must be greater than zero");
+        }
+        this.hedgeDelay = hedgeDelay;
+    }
+
+    public double getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    /**
+     * Set the number of additional queries allowed per query. With the default of 0.1 at most one in ten queries,
+     * after a burst of up to ten, is hedged or raced.
+     *
+     * @param hedgeBudget the number of additional queries per query.
+     */
+    public void setHedgeBudget(double hedgeBudget) {
+        if (hedgeBudget < 0) {
+            throw new IllegalArgumentException("Hedge budget must not be negative");
+        }
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    /**
+     * Get the number of additional queries sent because of hedging or racing.
+     *
+     * @return the number of additional queries.
+     */
+    public long getHedgedQueryCount() {
+        return hedgedQueries.get();
+    }
+
+    private void earnHedgeToken() {
+        synchronized (hedgeBudgetLock) {
+            hedgeTokens = Math.min(hedgeTokens + hedgeBudget, MAX_HEDGE_TOKENS);
+        }
+    }
+
+    private boolean acquireHedgeToken() {
+        synchronized (hedgeBudgetLock) {
+            if (hedgeTokens < 1) {
+                return false;
+            }
+            hedgeTokens--;
+        }
+        hedgedQueries.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Get the time after which the next server is asked with {@link QueryStrategy#HEDGED}.
+     *
+     * @param server the server asked last.
+     * @return the delay in milliseconds.
+     */
+    protected int getHedgeDelay(InetAddress server) {
+        InfrastructureCache infrastructureCache = this.infrastructureCache;
+        long delay = infrastructureCache == null ? -1 : infrastructureCache.getRttP95(server);
+        if (delay < 0) {
+            return hedgeDelay;
+        }
+        return (int) Math.max(delay, 1);
+    }
+
+    private static synchronized Timer getHedgeTimer() {
+        if (hedgeTimer == null) {
+            hedgeTimer = new Timer("MiniDNS hedged queries", true);
+        }
+        return hedgeTimer;
+    }
+
+    /**
+     * A query to the configured DNS servers. Servers are asked one after another, additional servers are asked early
+     * depending on the query strategy.
+     */
+    private final class ServerQuery {
+        private final DNSMessage q;
+        private final List<InetAddress> dnsServers;
+        private final List<IOException> ioExceptions;
+        private final MiniDNSFuture<DNSMessage> future = new MiniDNSFuture<>();
+        private final List<MiniDNSFuture<DNSMessage>> attempts = new ArrayList<>();
+        private final QueryStrategy strategy = queryStrategy;
+
+        /**
+         * The index of the next server to ask. Guarded by this.
+         */
+        private int next;
+
+        /**
+         * The number of servers asked which did not answer yet. Guarded by this.
+         */
+        private int outstanding;
+
+        private ServerQuery(DNSMessage q, List<InetAddress> dnsServers, List<IOException> ioExceptions) {
+            this.q = q;
+            this.dnsServers = dnsServers;
+            this.ioExceptions = ioExceptions;
+        }
+
+        private MiniDNSFuture<DNSMessage> start() {
+            if (strategy != QueryStrategy.SEQUENTIAL) {
+                earnHedgeToken();
+                if (!dataSource.isAsynchronous() && !blockingDataSourceWarned) {
+                    blockingDataSourceWarned = true;
+                    LOGGER.warning("Query strategy " + strategy + " has no effect with the blocking data source "
+                            + dataSource.getClass().getName() + ", servers are asked sequentially");
+                }
+            }
+            future.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+                @Override
+                public void onResult(DNSMessage result) {
+                    cancelAttempts();
+                }
+
+                @Override
+                public void onException(IOException exception) {
+                    cancelAttempts();
+                }
+            });
+
+            if (!askNext(false)) {
+                finishIfExhausted();
+                return future;
+            }
+            if (strategy == QueryStrategy.RACE) {
+                for (int i = 1; i < raceWidth; i++) {
+                    if (!askNext(true)) {
+                        break;
+                    }
+                }
+            }
+            return future;
+        }
+
+        /**
+         * Ask the next server.
+         *
+         * @param additional whether the query is additional to the queries in flight and needs a hedge token.
+         * @return <code>true</code> if a server was asked.
+         */
+        private boolean askNext(boolean additional) {
+            final InetAddress dns;
+            synchronized (this) {
+                if (future.isDone() || next == dnsServers.size()) {
+                    return false;
+                }
+                if (additional && !acquireHedgeToken()) {
+                    return false;
+                }
+                dns = dnsServers.get(next++);
+                outstanding++;
+            }
+
+            MiniDNSFuture<DNSMessage> attempt = queryAsync(q, dns, 53);
+            synchronized (this) {
+                attempts.add(attempt);
+            }
+            if (future.isDone()) {
+                attempt.cancel(false);
+            }
+            attempt.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+                @Override
+                public void onResult(DNSMessage responseMessage) {
+                    if (isUsableResponse(q, dns, responseMessage)) {
+                        future.setResult(responseMessage);
+                    } else {
+                        attemptFailed();
+                    }
+                }
+
+                @Override
+                public void onException(IOException ioe) {
+                    synchronized (ServerQuery.this) {
+                        ioExceptions.add(ioe);
+                    }
+                    attemptFailed();
+                }
+            });
+
+            if (strategy == QueryStrategy.HEDGED && !attempt.isDone()) {
+                scheduleHedge(getHedgeDelay(dns));
+            }
+            return true;
+        }
+
+        private void scheduleHedge(int delay) {
+            final int expectedNext;
+            synchronized (this) {
+                if (next == dnsServers.size()) {
+                    return;
+                }
+                expectedNext = next;
+            }
+            getHedgeTimer().schedule(new TimerTask() {
+                @Override
+                public void run() {
+                    synchronized (ServerQuery.this) {
+                        if (next != expectedNext) {
+                            // The next server was already asked because the previous one failed.
+                            return;
+                        }
+                    }
+                    try {
+                        askNext(true);
+                    } catch (RuntimeException e) {
+                        // Must not escape, as it would cancel the timer shared by all queries.
+                        LOGGER.log(Level.WARNING, "Exception while hedging the query for " + q.getQuestion(), e);
+                    }
+                }
+            }, delay);
+        }
+
+        private void attemptFailed() {
+            boolean idle;
+            synchronized (this) {
+                outstanding--;
+                idle = outstanding == 0;
+            }
+            if (idle && !askNext(false)) {
+                finishIfExhausted();
+            }
+        }
+
+        private void finishIfExhausted() {
+            IOException exception;
+            synchronized (this) {
+                if (outstanding > 0 || next < dnsServers.size()) {
+                    return;
+                }
+                exception = ioExceptions.isEmpty() ? null : MultipleIoException.toIOException(new ArrayList<>(ioExceptions));
+            }
+            if (exception == null) {
+                future.setResult(null);
+            } else {
+                future.setException(exception);
+            }
+        }
+
+        private void cancelAttempts() {
+            List<MiniDNSFuture<DNSMessage>> attempts;
+            synchronized (this) {
+                attempts = new ArrayList<>(this.attempts);
+            }
+            for (MiniDNSFuture<DNSMessage> attempt : attempts) {
+                attempt.cancel(false);
+            }
+        }
+    }
+
     public boolean isDisableResultFilter() {
         return disableResultFilter;
     }
@@ -12,23 +12,21 @@ package de.measite.minidns;
 
 import de.measite.minidns.Record.TYPE;
 import de.measite.minidns.record.Data;
+import de.measite.minidns.record.SOA;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -37,7 +35,7 @@ import java.util.logging.Logger;
  * A DNS message as defined by RFC 1035. The message consists of a header and
  * 4 sections: question, answer, nameserver and addition resource record
  * section.
- * A message can either be parsed ({@link #DNSMessage(byte[])}) or serialized
+ * A message can either be parsed ({@link #DNSMessage(byte[])}, {@link #parse(java.nio.ByteBuffer)}) or serialized
  * ({@link DNSMessage#toArray()}).
  * 
  * @see <a href="https://www.ietf.org/rfc/rfc1035.txt">RFC 1035</a>
@@ -79,11 +77,16 @@ public class DNSMessage {
         /**
          * Reverse lookup table for response codes.
          */
-        private final static Map<Integer, RESPONSE_CODE> INVERSE_LUT = new HashMap<>(RESPONSE_CODE.values().length);
+        private final static RESPONSE_CODE[] INVERSE_LUT;
 
         static {
+            int maxValue = 0;
             for (RESPONSE_CODE responseCode : RESPONSE_CODE.values()) {
-                INVERSE_LUT.put((int) responseCode.value, responseCode);
+                maxValue = Math.max(maxValue, responseCode.value);
+            }
+            INVERSE_LUT = new RESPONSE_CODE[maxValue + 1];
+            for (RESPONSE_CODE responseCode : RESPONSE_CODE.values()) {
+                INVERSE_LUT[responseCode.value] = responseCode;
             }
         }
 
@@ -121,7 +124,10 @@ public class DNSMessage {
             if (value < 0 || value > 65535) {
                 throw new IllegalArgumentException();
             }
-            return INVERSE_LUT.get(value);
+            if (value >= INVERSE_LUT.length) {
+                return null;
+            }
+            return INVERSE_LUT[value];
         }
 
     }
@@ -198,6 +204,15 @@ public class DNSMessage {
 
     }
 
+    /**
+     * The sections of a DNS message holding resource records.
+     */
+    public static enum SECTION {
+        ANSWER,
+        AUTHORITY,
+        ADDITIONAL,
+    }
+
     /**
      * The DNS message id.
      */
@@ -378,43 +393,180 @@ public class DNSMessage {
      * @throws IOException On read errors.
      */
     public DNSMessage(byte data[]) throws IOException {
-        ByteArrayInputStream bis = new ByteArrayInputStream(data);
-        DataInputStream dis = new DataInputStream(bis);
-        id = dis.readUnsignedShort();
-        int header = dis.readUnsignedShort();
-        qr = ((header >> 15) & 1) == 1;
-        opcode = OPCODE.getOpcode((header >> 11) & 0xf);
-        authoritativeAnswer = ((header >> 10) & 1) == 1;
-        truncated = ((header >> 9) & 1) == 1;
-        recursionDesired = ((header >> 8) & 1) == 1;
-        recursionAvailable = ((header >> 7) & 1) == 1;
-        authenticData = ((header >> 5) & 1) == 1;
-        checkingDisabled = ((header >> 4) & 1) == 1;
-        responseCode = RESPONSE_CODE.getResponseCode(header & 0xf);
-        receiveTimestamp = System.currentTimeMillis();
-        int questionCount = dis.readUnsignedShort();
-        int answerCount = dis.readUnsignedShort();
-        int nameserverCount = dis.readUnsignedShort();
-        int additionalResourceRecordCount = dis.readUnsignedShort();
-        questions = new ArrayList<>(questionCount);
-        for (int i = 0; i < questionCount; i++) {
-            questions.add(new Question(dis, data));
-        }
-        answerSection = new ArrayList<>(answerCount);
-        for (int i = 0; i < answerCount; i++) {
-            answerSection.add(new Record(dis, data));
-        }
-        authoritySection = new ArrayList<>(nameserverCount);
-        for (int i = 0; i < nameserverCount; i++) {
-            authoritySection.add(new Record(dis, data));
-        }
-        additionalSection = new ArrayList<>(additionalResourceRecordCount);
-        for (int i = 0; i < additionalResourceRecordCount; i++) {
-            additionalSection.add(new Record(dis, data));
+        this(ByteBuffer.wrap(data), null);
+    }
+
+    /**
+     * Build a DNS Message based on a binary DNS message held in the given buffer. Index 0 of the buffer must be the
+     * first byte of the message, as name compression pointers are resolved relative to it.
+     * <p>
+     * If <code>lazyData</code> is not <code>null</code>, then the records of the answer, authority and additional
+     * section are only indexed and will be decoded once they are accessed.
+     * </p>
+     *
+     * @param buffer The buffer holding the DNS message.
+     * @param lazyData The message data backing the buffer, which must not be modified afterwards, or <code>null</code>.
+     * @throws IOException On read errors.
+     */
+    private DNSMessage(ByteBuffer buffer, byte[] lazyData) throws IOException {
+        try {
+            id = buffer.getShort() & 0xffff;
+            int header = buffer.getShort() & 0xffff;
+            qr = ((header >> 15) & 1) == 1;
+            opcode = OPCODE.getOpcode((header >> 11) & 0xf);
+            authoritativeAnswer = ((header >> 10) & 1) == 1;
+            truncated = ((header >> 9) & 1) == 1;
+            recursionDesired = ((header >> 8) & 1) == 1;
+            recursionAvailable = ((header >> 7) & 1) == 1;
+            authenticData = ((header >> 5) & 1) == 1;
+            checkingDisabled = ((header >> 4) & 1) == 1;
+            responseCode = RESPONSE_CODE.getResponseCode(header & 0xf);
+            receiveTimestamp = System.currentTimeMillis();
+            int questionCount = buffer.getShort() & 0xffff;
+            int answerCount = buffer.getShort() & 0xffff;
+            int nameserverCount = buffer.getShort() & 0xffff;
+            int additionalResourceRecordCount = buffer.getShort() & 0xffff;
+            // Decode every name of the message only once, pointers to an already decoded name reuse that instance.
+            DNSName.OffsetTable names = new DNSName.OffsetTable();
+            questions = new ArrayList<>(questionCount);
+            for (int i = 0; i < questionCount; i++) {
+                questions.add(new Question(buffer, names));
+            }
+            if (lazyData != null) {
+                answerSection = LazyRecordList.index(lazyData, buffer, answerCount);
+                authoritySection = LazyRecordList.index(lazyData, buffer, nameserverCount);
+                LazyRecordList lazyAdditionalSection = LazyRecordList.index(lazyData, buffer, additionalResourceRecordCount);
+                additionalSection = lazyAdditionalSection;
+                optRrPosition = getOptRrPosition(lazyAdditionalSection);
+                return;
+            }
+            answerSection = new ArrayList<>(answerCount);
+            for (int i = 0; i < answerCount; i++) {
+                answerSection.add(new Record(buffer, names));
+            }
+            authoritySection = new ArrayList<>(nameserverCount);
+            for (int i = 0; i < nameserverCount; i++) {
+                authoritySection.add(new Record(buffer, names));
+            }
+            additionalSection = new ArrayList<>(additionalResourceRecordCount);
+            for (int i = 0; i < additionalResourceRecordCount; i++) {
+                additionalSection.add(new Record(buffer, names));
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed DNS message", e);
         }
         optRrPosition = getOptRrPosition(additionalSection);
     }
 
+    /**
+     * Parse a DNS message from the remaining bytes of the given buffer, which may be a heap or a direct buffer. The
+     * message is decoded directly from the buffer, without intermediate streams or copies. The position of the given
+     * buffer is not modified.
+     *
+     * @param buffer The buffer holding the DNS message between its position and its limit.
+     * @return the parsed DNS message.
+     * @throws IOException On read errors.
+     */
+    public static DNSMessage parse(ByteBuffer buffer) throws IOException {
+        return new DNSMessage(buffer.slice(), null);
+    }
+
+    /**
+     * Visit the DNS message held in the remaining bytes of the given buffer without creating a {@link DNSMessage}. The
+     * resource records are delivered to the given handler directly from the wire format, their payloads are only
+     * decoded if the handler asks for it. If the handler is a {@link DNSMessageVisitor}, then it is also notified
+     * about the header and the questions of the message. The position of the given buffer is not modified.
+     *
+     * @param buffer The buffer holding the DNS message between its position and its limit.
+     * @param handler The handler for the records of the message.
+     * @throws IOException On read errors.
+     */
+    public static void visit(ByteBuffer buffer, RecordHandler handler) throws IOException {
+        ByteBuffer message = buffer.slice();
+        DNSMessageVisitor visitor = handler instanceof DNSMessageVisitor ? (DNSMessageVisitor) handler : null;
+        try {
+            int id = message.getShort() & 0xffff;
+            int header = message.getShort() & 0xffff;
+            int questionCount = message.getShort() & 0xffff;
+            int[] recordCounts = new int[] {
+                    message.getShort() & 0xffff,
+                    message.getShort() & 0xffff,
+                    message.getShort() & 0xffff,
+            };
+            if (visitor != null) {
+                visitor.onHeader(builderFromHeader(id, header).build());
+            }
+
+            DNSName.OffsetTable names = new DNSName.OffsetTable();
+            for (int i = 0; i < questionCount; i++) {
+                if (visitor != null) {
+                    visitor.onQuestion(new Question(message, names));
+                } else {
+                    message.position(DNSName.skip(message, message.position()) + 4);
+                }
+            }
+
+            RawPayload payload = new RawPayload(message, names);
+            for (SECTION section : SECTION.values()) {
+                for (int i = 0; i < recordCounts[section.ordinal()]; i++) {
+                    int recordOffset = message.position();
+                    DNSName name = DNSName.parse(message, names);
+                    TYPE type = TYPE.getType(message.getShort() & 0xffff);
+                    Record.CLASS clazz = Record.CLASS.getClass(message.getShort() & 0x7fff);
+                    long ttl = message.getInt() & 0xffffffffL;
+                    int payloadLength = message.getShort() & 0xffff;
+                    int payloadOffset = message.position();
+                    if (payloadOffset + payloadLength > message.limit()) {
+                        throw new IOException("Record exceeds the message length");
+                    }
+                    payload.set(recordOffset, payloadOffset, payloadLength, type);
+                    if (!handler.onRecord(section, name, type, clazz, ttl, payload)) {
+                        return;
+                    }
+                    message.position(payloadOffset + payloadLength);
+                }
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed DNS message", e);
+        }
+    }
+
+    private static Builder builderFromHeader(int id, int header) {
+        Builder builder = builder();
+        builder.setId(id);
+        builder.setQrFlag(((header >> 15) & 1) == 1);
+        builder.setOpcode(OPCODE.getOpcode((header >> 11) & 0xf));
+        builder.setAuthoritativeAnswer(((header >> 10) & 1) == 1);
+        builder.setTruncated(((header >> 9) & 1) == 1);
+        builder.setRecursionDesired(((header >> 8) & 1) == 1);
+        builder.setRecursionAvailable(((header >> 7) & 1) == 1);
+        builder.setAuthenticData(((header >> 5) & 1) == 1);
+        builder.setCheckingDisabled(((header >> 4) & 1) == 1);
+        builder.setResponseCode(RESPONSE_CODE.getResponseCode(header & 0xf));
+        builder.setReceiveTimestamp(System.currentTimeMillis());
+        return builder;
+    }
+
+    /**
+     * Parse a DNS message from the remaining bytes of the given buffer, but only decode the header and the question
+     * section. The records of the answer, authority and additional section are indexed by their offset and decoded
+     * into {@link Record}s when they are first accessed. This is useful if only some sections of the message, usually
+     * the answer section, are going to be inspected.
+     * <p>
+     * The message bytes are copied once, so the given buffer may be reused afterwards. The position of the given buffer
+     * is not modified.
+     * </p>
+     *
+     * @param buffer The buffer holding the DNS message between its position and its limit.
+     * @return the parsed DNS message.
+     * @throws IOException On read errors.
+     */
+    public static DNSMessage parseLazily(ByteBuffer buffer) throws IOException {
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return new DNSMessage(ByteBuffer.wrap(data), data);
+    }
+
     /**
      * Constructs an normalized version of the given DNSMessage by setting the id to '0'.
      *
@@ -439,6 +591,15 @@ public class DNSMessage {
         optRrPosition = message.optRrPosition;
     }
 
+    private static int getOptRrPosition(LazyRecordList additionalSection) {
+        for (int i = 0; i < additionalSection.size(); i++) {
+            if (additionalSection.getType(i) == Record.TYPE.OPT) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
     private static int getOptRrPosition(List<Record> additionalSection) {
         int optRrPosition = -1;
         for (int i = 0; i < additionalSection.size(); i++) {
@@ -452,7 +613,7 @@ public class DNSMessage {
     }
 
     /**
-     * Generate a binary dns packet out of this message.
+     * Generate a binary dns packet out of this message. Domain names are compressed as defined in RFC 1035 § 4.1.4.
      *
      * @return byte[] the binary representation.
      * @throws IOException Should never happen.
@@ -461,6 +622,72 @@ public class DNSMessage {
         return serialize().clone();
     }
 
+    /**
+     * Generate a binary dns packet out of this message.
+     *
+     * @param compress <code>true</code> to use domain name compression, <code>false</code> to write all domain names in
+     *        full.
+     * @return byte[] the binary representation.
+     * @throws IOException Should never happen.
+     */
+    public byte[] toArray(boolean compress) throws IOException {
+        if (compress) {
+            return toArray();
+        }
+        byte[] bytes = new byte[uncompressedSize()];
+        writeUncompressed(ByteBuffer.wrap(bytes));
+        return bytes;
+    }
+
+    /**
+     * Write the binary dns packet of this message at the current position of the buffer. Domain names are compressed
+     * as defined in RFC 1035 § 4.1.4, which yields the same bytes as {@link #toArray()}. The message is encoded straight
+     * into the buffer, no intermediate arrays are allocated.
+     *
+     * @param buffer the buffer to write to.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        writeTo(buffer, true);
+    }
+
+    /**
+     * Write the binary dns packet of this message at the current position of the buffer. The message is encoded
+     * straight into the buffer, no intermediate arrays are allocated. {@link #size(boolean) size(false)} is an upper
+     * bound of the space required with and without compression.
+     *
+     * @param buffer the buffer to write to.
+     * @param compress <code>true</code> to use domain name compression, <code>false</code> to write all domain names in
+     *        full.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer, boolean compress) {
+        if (!compress) {
+            writeUncompressed(buffer);
+        } else if (byteCache != null) {
+            buffer.put(byteCache);
+        } else {
+            DNSName.CompressionTable compressionTable = COMPRESSION_TABLE.get();
+            compressionTable.reset();
+            writeCompressed(buffer, compressionTable);
+        }
+    }
+
+    /**
+     * The size of the binary representation of this message. The compressed size is only known once the message has
+     * been serialized, so it serializes the message on the first call. Use <code>size(false)</code>, which does not
+     * allocate, as an upper bound for buffers.
+     *
+     * @param compress <code>true</code> for the size with domain name compression.
+     * @return the size in bytes.
+     */
+    public int size(boolean compress) {
+        if (compress) {
+            return serialize().length;
+        }
+        return uncompressedSize();
+    }
+
     public DatagramPacket asDatagram(InetAddress address, int port) {
         byte[] bytes = serialize();
         return new DatagramPacket(bytes, bytes.length, address, port);
@@ -472,66 +699,107 @@ public class DNSMessage {
         dataOutputStream.write(bytes);
     }
 
+    /**
+     * Per thread compression table, reset before every message written to a buffer.
+     */
+    private static final ThreadLocal<DNSName.CompressionTable> COMPRESSION_TABLE = new ThreadLocal<DNSName.CompressionTable>() {
+        @Override
+        protected DNSName.CompressionTable initialValue() {
+            return new DNSName.CompressionTable();
+        }
+    };
+
     private byte[] byteCache;
 
     private byte[] serialize() {
-        if (byteCache != null) {
-            return byteCache;
+        if (byteCache == null) {
+            byteCache = serializeCompressed();
         }
+        return byteCache;
+    }
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(512);
-        DataOutputStream dos = new DataOutputStream(baos);
-        int header = calculateHeaderBitmap();
-        try {
-            dos.writeShort((short) id);
-            dos.writeShort((short) header);
-            if (questions == null) {
-                dos.writeShort(0);
-            } else {
-                dos.writeShort((short) questions.size());
-            }
-            if (answerSection == null) {
-                dos.writeShort(0);
-            } else {
-                dos.writeShort((short) answerSection.size());
-            }
-            if (authoritySection == null) {
-                dos.writeShort(0);
-            } else {
-                dos.writeShort((short) authoritySection.size());
-            }
-            if (additionalSection == null) {
-                dos.writeShort(0);
-            } else {
-                dos.writeShort((short) additionalSection.size());
-            }
-            if (questions != null) {
-                for (Question question : questions) {
-                    dos.write(question.toByteArray());
-                }
-            }
-            if (answerSection != null) {
-                for (Record answer : answerSection) {
-                    dos.write(answer.toByteArray());
-                }
+    private byte[] serializeCompressed() {
+        ByteBuffer buffer = ByteBuffer.allocate(uncompressedSize());
+        writeCompressed(buffer, new DNSName.CompressionTable());
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private void writeCompressed(ByteBuffer buffer, DNSName.CompressionTable compressionTable) {
+        int messageStart = buffer.position();
+        buffer.putShort((short) id);
+        buffer.putShort((short) calculateHeaderBitmap());
+        buffer.putShort((short) (questions == null ? 0 : questions.size()));
+        buffer.putShort((short) (answerSection == null ? 0 : answerSection.size()));
+        buffer.putShort((short) (authoritySection == null ? 0 : authoritySection.size()));
+        buffer.putShort((short) (additionalSection == null ? 0 : additionalSection.size()));
+        if (questions != null) {
+            for (Question question : questions) {
+                question.writeTo(buffer, compressionTable, messageStart);
             }
-            if (authoritySection != null) {
-                for (Record nameserverRecord : authoritySection) {
-                    dos.write(nameserverRecord.toByteArray());
-                }
+        }
+        writeSection(buffer, answerSection, compressionTable, messageStart);
+        writeSection(buffer, authoritySection, compressionTable, messageStart);
+        writeSection(buffer, additionalSection, compressionTable, messageStart);
+    }
+
+    private static void writeSection(ByteBuffer buffer, List<Record> section, DNSName.CompressionTable compressionTable,
+            int messageStart) {
+        if (section == null) {
+            return;
+        }
+        for (int i = 0; i < section.size(); i++) {
+            section.get(i).writeTo(buffer, compressionTable, messageStart);
+        }
+    }
+
+    /**
+     * The size of the uncompressed message, which is an upper bound of the size of the compressed message.
+     */
+    private int uncompressedSize() {
+        int size = 12;
+        if (questions != null) {
+            for (Question question : questions) {
+                size += question.size();
             }
-            if (additionalSection != null) {
-                for (Record additionalResourceRecord : additionalSection) {
-                    dos.write(additionalResourceRecord.toByteArray());
-                }
+        }
+        return size + sectionSize(answerSection) + sectionSize(authoritySection) + sectionSize(additionalSection);
+    }
+
+    private static int sectionSize(List<Record> section) {
+        if (section == null) {
+            return 0;
+        }
+        int size = 0;
+        for (Record record : section) {
+            size += record.size();
+        }
+        return size;
+    }
+
+    private void writeUncompressed(ByteBuffer buffer) {
+        buffer.putShort((short) id);
+        buffer.putShort((short) calculateHeaderBitmap());
+        buffer.putShort((short) (questions == null ? 0 : questions.size()));
+        buffer.putShort((short) (answerSection == null ? 0 : answerSection.size()));
+        buffer.putShort((short) (authoritySection == null ? 0 : authoritySection.size()));
+        buffer.putShort((short) (additionalSection == null ? 0 : additionalSection.size()));
+        if (questions != null) {
+            for (Question question : questions) {
+                question.writeTo(buffer);
             }
-            dos.flush();
-        } catch (IOException e) {
-            // Should never happen.
-            throw new AssertionError(e);
         }
-        byteCache = baos.toByteArray();
-        return byteCache;
+        writeSection(buffer, answerSection);
+        writeSection(buffer, authoritySection);
+        writeSection(buffer, additionalSection);
+    }
+
+    private static void writeSection(ByteBuffer buffer, List<Record> section) {
+        if (section == null) {
+            return;
+        }
+        for (Record record : section) {
+            record.writeTo(buffer);
+        }
     }
 
     int calculateHeaderBitmap() {
@@ -762,6 +1030,22 @@ public class DNSMessage {
         return terminalOutputCache;
     }
 
+    /**
+     * Get the TTL for caching this message as a negative response (NXDOMAIN or NODATA). As specified in RFC 2308 § 5,
+     * this is the minimum of the TTL of the SOA record in the authority section and the minimum field of the SOA.
+     *
+     * @return the negative TTL in seconds, or -1 if the authority section contains no SOA record.
+     */
+    public long getNegativeTtl() {
+        for (Record record : authoritySection) {
+            if (record.type == TYPE.SOA) {
+                SOA soa = (SOA) record.payloadData;
+                return Math.min(record.ttl, soa.minimum);
+            }
+        }
+        return -1;
+    }
+
     public <D extends Data> Set<D> getAnswersFor(Question q) {
         if (responseCode != RESPONSE_CODE.NO_ERROR) return null;
 
@@ -789,6 +1073,21 @@ public class DNSMessage {
 
     private DNSMessage normalizedVersionCache;
 
+    private transient CacheKey cacheKey;
+
+    /**
+     * Get the cache key of this query message.
+     *
+     * @return the cache key.
+     * @see CacheKey#from(DNSMessage)
+     */
+    public CacheKey asCacheKey() {
+        if (cacheKey == null) {
+            cacheKey = CacheKey.from(this);
+        }
+        return cacheKey;
+    }
+
     public DNSMessage asNormalizedVersion() {
         if (normalizedVersionCache == null) {
             normalizedVersionCache = new DNSMessage(this);
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+/**
+ * Visitor for DNS messages in wire format. Extends a {@link RecordHandler} with callbacks for the header and the
+ * questions of the message, the default implementations of these callbacks do nothing.
+ *
+ * @see DNSMessage#visit(java.nio.ByteBuffer, RecordHandler)
+ */
+public abstract class DNSMessageVisitor implements RecordHandler {
+
+    /**
+     * Handle the header of the message.
+     *
+     * @param header a DNS message holding the header fields, all its sections are empty.
+     */
+    public void onHeader(DNSMessage header) {
+    }
+
+    /**
+     * Handle a question of the message.
+     *
+     * @param question the question.
+     */
+    public void onQuestion(Question question) {
+    }
+}
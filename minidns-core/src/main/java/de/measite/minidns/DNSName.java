@@ -15,33 +15,54 @@ import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.lang.ref.WeakReference;
 import java.net.IDN;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashSet;
 import java.util.Locale;
+import java.util.Map;
+import java.util.WeakHashMap;
 
+/**
+ * A DNS name. The name is kept in its canonical, i.e. lowercase, wire format, all operations on the labels of the name
+ * work on the wire format. The ACE and IDN representations are only created when requested.
+ */
 public class DNSName implements CharSequence, Serializable, Comparable<DNSName> {
 
     /**
      * 
      */
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
+
+    public static final int MAX_LABELS = 128;
 
     /**
-     * @see <a href="https://www.ietf.org/rfc/rfc3490.txt">RFC 3490 § 3.1 1.</a>
+     * The maximum length of a label, see RFC 1035 § 2.3.4.
      */
-    private static final String LABEL_SEP_REGEX = "[.\u3002\uFF0E\uFF61]";
+    public static final int MAX_LABEL_LENGTH = 63;
 
-    public static final int MAX_LABELS = 128;
+    /**
+     * The maximum length of a domain name in its wire format, including the length octets and the terminating root
+     * label, see RFC 1035 § 2.3.4.
+     */
+    public static final int MAX_NAME_LENGTH = 255;
 
-    public static final DNSName EMPTY = new DNSName("", false);
+    public static final DNSName EMPTY = new DNSName(new byte[] { 0 });
 
     /**
-     * The DNS name in ASCII Compatible Encoding (ACE).
+     * The DNS name in its lowercase wire format, including the terminating root label.
      */
-    public final String ace;
+    private final byte[] bytes;
 
-    private transient byte[] bytes;
+    /**
+     * The offsets of the labels within {@link #bytes}, in wire order.
+     */
+    private transient int[] labelOffsets;
+
+    /**
+     * The DNS name in ASCII Compatible Encoding (ACE).
+     */
+    private transient String ace;
 
     private transient String idn;
 
@@ -49,97 +70,194 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
 
     private transient String hostpart;
 
+    private transient int hashCode;
+
+    private transient DNSName parent;
+
     /**
-     * The labels in <b>reverse</b> order.
+     * The pool of interned names, or <code>null</code> if interning is disabled.
      */
-    private transient String[] labels;
-
-    private transient int hashCode;
+    private static volatile Map<DNSName, WeakReference<DNSName>> internPool;
 
-    private int size = -1;
+    private DNSName(byte[] bytes) {
+        this.bytes = bytes;
+    }
 
-    private DNSName(String name) {
-        this(name, false);
+    private DNSName(byte[] bytes, String ace) {
+        this.bytes = bytes;
+        this.ace = ace;
     }
 
-    private DNSName(String name, boolean inIdnForm) {
-        if (inIdnForm) {
-            ace = IDN.toASCII(name);
+    /**
+     * Enable or disable the interning of DNS names. If enabled, all names created by {@link #from(String)} or parsed
+     * from a DNS message are the canonical instances of a global pool, so that equal names held by different messages,
+     * e.g. in a cache, share a single instance. The pool only holds weak references, names which are no longer
+     * referenced elsewhere are removed from the pool by the garbage collector.
+     *
+     * @param enabled <code>true</code> to enable interning.
+     */
+    public static void setInterning(boolean enabled) {
+        if (enabled) {
+            synchronized (DNSName.class) {
+                if (internPool == null) {
+                    internPool = new WeakHashMap<>();
+                }
+            }
         } else {
-            ace = name.toLowerCase(Locale.US);
+            internPool = null;
         }
     }
 
-    private DNSName(String[] labels) {
-        this.labels = labels;
+    /**
+     * Check whether the interning of DNS names is enabled.
+     *
+     * @return <code>true</code> if interning is enabled.
+     * @see #setInterning(boolean)
+     */
+    public static boolean isInterning() {
+        return internPool != null;
+    }
+
+    /**
+     * Get the canonical instance of this name from the pool, similar to {@link String#intern()}. If interning is
+     * disabled, then this name is returned.
+     *
+     * @return the canonical instance of this name.
+     */
+    public DNSName intern() {
+        return canonicalize(this);
+    }
 
-        int size = 0;
-        for (String label : labels) {
-            size += label.length() + 1;
+    private Object readResolve() {
+        return canonicalize(this);
+    }
+
+    private static DNSName canonicalize(DNSName name) {
+        if (name.isRootLabel()) {
+            return EMPTY;
         }
-        StringBuilder sb = new StringBuilder(size);
-        for (int i = labels.length - 1; i >= 0; i--) {
-            sb.append(labels[i]).append('.');
+        Map<DNSName, WeakReference<DNSName>> pool = internPool;
+        if (pool == null) {
+            return name;
         }
-        sb.setLength(sb.length() - 1);
-        ace = sb.toString();
+        synchronized (pool) {
+            WeakReference<DNSName> reference = pool.get(name);
+            if (reference != null) {
+                DNSName canonical = reference.get();
+                if (canonical != null) {
+                    return canonical;
+                }
+            }
+            pool.put(name, new WeakReference<>(name));
+        }
+        return name;
     }
 
     public void writeToStream(OutputStream os) throws IOException {
-        setBytesIfRequired();
         os.write(bytes);
     }
 
+    /**
+     * Write the uncompressed wire format of this name at the current position of the buffer.
+     *
+     * @param buffer the buffer to write to.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(bytes);
+    }
+
+    /**
+     * Write this domain name at the current position of the buffer using message compression as defined in RFC 1035
+     * § 4.1.4. If a suffix of this name has already been written to the message, then a pointer to it is emitted
+     * instead of its labels. The offsets of all newly written suffixes are added to the compression table. Suffixes
+     * are looked up in the message already written to the buffer.
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @param compressionTable the offsets of the domain names already written to the message.
+     * @param messageStart the position of the first byte of the message within the buffer.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer, CompressionTable compressionTable, int messageStart) {
+        setLabelOffsetsIfRequired();
+        for (int labelOffset : labelOffsets) {
+            int hash = hashSuffix(labelOffset);
+            int pointer = compressionTable.get(buffer, messageStart, bytes, labelOffset, hash);
+            if (pointer >= 0) {
+                buffer.putShort((short) (0xc000 | pointer));
+                return;
+            }
+            int offset = buffer.position() - messageStart;
+            // Compression pointers are only 14 bits wide.
+            if (offset <= 0x3fff) {
+                compressionTable.put(hash, offset);
+            }
+            buffer.put(bytes, labelOffset, (bytes[labelOffset] & 0xff) + 1);
+        }
+        buffer.put((byte) 0);
+    }
+
+    private int hashSuffix(int labelOffset) {
+        int hash = 1;
+        for (int i = labelOffset; i < bytes.length; i++) {
+            hash = 31 * hash + bytes[i];
+        }
+        return hash;
+    }
+
     /**
      * Serialize a domain name under IDN rules.
      *
      * @return The binary domain name representation.
      */
     public byte[] getBytes() {
-        setBytesIfRequired();
         return bytes.clone();
     }
 
-    private void setBytesIfRequired() {
-        if (bytes != null)
-            return;
+    private void setLabelOffsetsIfRequired() {
+        if (labelOffsets != null) return;
 
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(64);
-        setLabelsIfRequired();
-        for (int i = labels.length - 1; i >= 0; i--) {
-            byte[] buffer = labels[i].getBytes();
-            baos.write(buffer.length);
-            baos.write(buffer, 0, buffer.length);
+        int labelCount = 0;
+        for (int offset = 0; bytes[offset] != 0; offset += (bytes[offset] & 0xff) + 1) {
+            labelCount++;
         }
-
-        baos.write(0);
-        bytes = baos.toByteArray();
+        int[] offsets = new int[labelCount];
+        for (int i = 0, offset = 0; i < labelCount; i++, offset += (bytes[offset] & 0xff) + 1) {
+            offsets[i] = offset;
+        }
+        labelOffsets = offsets;
     }
 
-    private void setLabelsIfRequired() {
-        if (labels != null) return;
+    /**
+     * The DNS name in ASCII Compatible Encoding (ACE), i.e. the textual representation of the labels in wire format.
+     *
+     * @return the DNS name in ACE.
+     */
+    public String asAce() {
+        if (ace != null)
+            return ace;
 
         if (isRootLabel()) {
-            labels = new String[0];
-            return;
+            ace = "";
+            return ace;
         }
-
-        labels = ace.split(LABEL_SEP_REGEX, MAX_LABELS);
-
-        // Reverse the labels, so that 'foo, example, org' becomes 'org, example, foo'.
-        for (int i = 0; i < labels.length / 2; i++) {
-            String t = labels[i];
-            int j = labels.length - i - 1;
-            labels[i] = labels[j];
-            labels[j] = t;
+        char[] chars = new char[bytes.length - 2];
+        for (int i = 1; i < bytes.length - 1; i++) {
+            chars[i - 1] = (char) (bytes[i] & 0xff);
+        }
+        // Replace the length octets of the labels, but the first one, by the label separator.
+        for (int offset = (bytes[0] & 0xff) + 1; bytes[offset] != 0; offset += (bytes[offset] & 0xff) + 1) {
+            chars[offset - 1] = '.';
         }
+        ace = new String(chars);
+        return ace;
     }
 
     public String asIdn() {
         if (idn != null)
             return idn;
 
-        idn = IDN.toUnicode(ace);
+        idn = IDN.toUnicode(asAce());
         return idn;
     }
 
@@ -166,44 +284,41 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
     private void setHostnameAndDomainpartIfRequired() {
         if (hostpart != null) return;
 
-        String[] parts = ace.split(LABEL_SEP_REGEX, 2);
-        hostpart = parts[0];
-        if (parts.length > 1) {
-            domainpart = parts[1];
+        String ace = asAce();
+        int hostpartLength = bytes[0] & 0xff;
+        hostpart = ace.substring(0, hostpartLength);
+        if (hostpartLength < ace.length()) {
+            domainpart = ace.substring(hostpartLength + 1);
         } else {
             domainpart = "";
         }
     }
 
     public int size() {
-        if (size < 0) {
-            if (isRootLabel()) {
-                size = 1;
-            } else {
-                size = ace.length() + 2;
-            }
-        }
-        return size;
+        return bytes.length;
     }
 
     @Override
     public int length() {
-        return ace.length();
+        if (isRootLabel()) {
+            return 0;
+        }
+        return bytes.length - 2;
     }
 
     @Override
     public char charAt(int index) {
-        return ace.charAt(index);
+        return asAce().charAt(index);
     }
 
     @Override
     public CharSequence subSequence(int start, int end) {
-        return ace.subSequence(start, end);
+        return asAce().subSequence(start, end);
     }
 
     @Override
     public String toString() {
-        return ace;
+        return asAce();
     }
 
     public static DNSName from(CharSequence name) {
@@ -211,17 +326,47 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
     }
 
     public static DNSName from(String name) {
-        return new DNSName(name, true);
+        String ace = IDN.toASCII(name).toLowerCase(Locale.US);
+        if (ace.endsWith(".")) {
+            ace = ace.substring(0, ace.length() - 1);
+        }
+        if (ace.isEmpty()) {
+            return EMPTY;
+        }
+
+        if (ace.length() + 2 > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Invalid name length " + (ace.length() + 2) + " of '" + name + "'");
+        }
+        byte[] bytes = new byte[ace.length() + 2];
+        int labelOffset = 0;
+        for (int i = 0; i <= ace.length(); i++) {
+            if (i < ace.length() && ace.charAt(i) != '.') {
+                bytes[i + 1] = (byte) ace.charAt(i);
+                continue;
+            }
+            int labelLength = i - labelOffset;
+            if (labelLength == 0 || labelLength > MAX_LABEL_LENGTH) {
+                throw new IllegalArgumentException("Invalid label length " + labelLength + " in '" + name + "'");
+            }
+            bytes[labelOffset] = (byte) labelLength;
+            labelOffset = i + 1;
+        }
+        return canonicalize(new DNSName(bytes, ace));
     }
 
     public static DNSName from(DNSName left, DNSName right) {
-        left.setLabelsIfRequired();
-        right.setLabelsIfRequired();
+        if (left.isRootLabel()) {
+            return right;
+        }
 
-        String[] labels = new String[left.labels.length + right.labels.length];
-        System.arraycopy(right.labels, 0, labels, 0, right.labels.length);
-        System.arraycopy(left.labels, 0, labels, right.labels.length, left.labels.length);
-        return new DNSName(labels);
+        int length = left.bytes.length - 1 + right.bytes.length;
+        if (length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Invalid name length " + length + " of '" + left + '.' + right + "'");
+        }
+        byte[] bytes = new byte[length];
+        System.arraycopy(left.bytes, 0, bytes, 0, left.bytes.length - 1);
+        System.arraycopy(right.bytes, 0, bytes, left.bytes.length - 1, right.bytes.length);
+        return canonicalize(new DNSName(bytes));
     }
 
     /**
@@ -232,73 +377,257 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
      * @param data The raw data (for cross references).
      * @return The domain name string.
      * @throws IOException Should never happen.
+     * @throws IllegalStateException on cycles, invalid labels or names longer than {@link #MAX_NAME_LENGTH}.
      */
     public static DNSName parse(DataInputStream dis, byte data[])
             throws IOException {
+        ByteArrayOutputStream prefix = null;
         int c = dis.readUnsignedByte();
-        if ((c & 0xc0) == 0xc0) {
-            c = ((c & 0x3f) << 8) + dis.readUnsignedByte();
-            HashSet<Integer> jumps = new HashSet<Integer>();
-            jumps.add(c);
-            return parse(data, c, jumps);
+        while (c != 0 && (c & 0xc0) != 0xc0) {
+            checkLabelLength(c);
+            if (prefix == null) {
+                prefix = new ByteArrayOutputStream(64);
+            } else if (prefix.size() + c + 2 > MAX_NAME_LENGTH) {
+                throw new IllegalStateException("Name too long.");
+            }
+            byte[] label = new byte[c];
+            dis.readFully(label);
+            prefix.write(c);
+            prefix.write(label, 0, c);
+            c = dis.readUnsignedByte();
         }
-        if (c == 0) {
+
+        DNSName suffix = DNSName.EMPTY;
+        if (c != 0) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            buffer.position(((c & 0x3f) << 8) + dis.readUnsignedByte());
+            suffix = parse(buffer);
+        }
+        if (prefix == null) {
+            return suffix;
+        }
+        if (prefix.size() + suffix.bytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalStateException("Name too long.");
+        }
+
+        byte[] bytes = new byte[prefix.size() + suffix.bytes.length];
+        System.arraycopy(prefix.toByteArray(), 0, bytes, 0, prefix.size());
+        System.arraycopy(suffix.bytes, 0, bytes, prefix.size(), suffix.bytes.length);
+        for (int i = 0; i < prefix.size(); i++) {
+            bytes[i] = toLowerCase(bytes[i]);
+        }
+        return canonicalize(new DNSName(bytes));
+    }
+
+    /**
+     * Parse a domain name starting at the current position of the buffer and moving the buffer position past this
+     * domain name (even if cross references occur). Compression pointers are resolved as absolute offsets into the
+     * buffer, i.e. index 0 of the buffer must be the first byte of the DNS message.
+     * <p>
+     * The name is copied in a single pass directly from the buffer into its wire format, no strings are created.
+     * </p>
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @return the domain name.
+     * @throws IllegalStateException on cycles, invalid labels or names longer than {@link #MAX_NAME_LENGTH}.
+     */
+    public static DNSName parse(ByteBuffer buffer) throws IllegalStateException {
+        // First pass: determine the length of the name and the end of the name in the buffer.
+        int offset = buffer.position();
+        int end = -1;
+        int jumps = 0;
+        int length = 1;
+        while (true) {
+            int c = buffer.get(offset) & 0xff;
+            if ((c & 0xc0) == 0xc0) {
+                if (end < 0) {
+                    end = offset + 2;
+                }
+                // Every jump is either followed by a label or by another jump, so a legit name can never contain
+                // more jumps than labels.
+                if (++jumps > MAX_LABELS) {
+                    throw new IllegalStateException("Cyclic offsets detected.");
+                }
+                offset = ((c & 0x3f) << 8) + (buffer.get(offset + 1) & 0xff);
+                continue;
+            }
+            if (c == 0) {
+                if (end < 0) {
+                    end = offset + 1;
+                }
+                break;
+            }
+            checkLabelLength(c);
+            length += c + 1;
+            if (length > MAX_NAME_LENGTH) {
+                throw new IllegalStateException("Name too long.");
+            }
+            offset += c + 1;
+        }
+
+        if (length == 1) {
+            buffer.position(end);
             return DNSName.EMPTY;
         }
-        byte b[] = new byte[c];
-        dis.readFully(b);
-        String s = IDN.toUnicode(new String(b));
-        DNSName t = parse(dis, data);
-        if (t.length() > 0) {
-            s = s + "." + t;
+
+        // Second pass: copy the labels, the first pass already verified the jumps.
+        byte[] bytes = new byte[length];
+        offset = buffer.position();
+        int i = 0;
+        while (i < length - 1) {
+            int c = buffer.get(offset) & 0xff;
+            if ((c & 0xc0) == 0xc0) {
+                offset = ((c & 0x3f) << 8) + (buffer.get(offset + 1) & 0xff);
+                continue;
+            }
+            bytes[i++] = (byte) c;
+            for (int j = offset + 1; j <= offset + c; j++) {
+                bytes[i++] = toLowerCase(buffer.get(j));
+            }
+            offset += c + 1;
         }
-        return new DNSName(s);
+        buffer.position(end);
+        return canonicalize(new DNSName(bytes));
     }
 
     /**
-     * Parse a domain name starting at the given offset.
+     * Parse a domain name like {@link #parse(ByteBuffer)}, but look up and record the names decoded at every label
+     * and pointer offset in the given table. If the table is shared by all names of a DNS message, then every label
+     * sequence of the message is only decoded once, and names referring to the same suffix share the instances.
      *
-     * @param data   The raw data.
-     * @param offset The offset.
-     * @param jumps  The list of jumps (by now).
-     * @return The parsed domain name.
-     * @throws IllegalStateException on cycles.
+     * @param buffer the buffer holding the DNS message.
+     * @param names the names already decoded from the message, or <code>null</code>.
+     * @return the domain name.
+     * @throws IllegalStateException on cycles, invalid labels or names longer than {@link #MAX_NAME_LENGTH}.
      */
-    private static DNSName parse(byte data[], int offset, HashSet<Integer> jumps)
-            throws IllegalStateException {
-        int c = data[offset] & 0xff;
+    public static DNSName parse(ByteBuffer buffer, OffsetTable names) throws IllegalStateException {
+        if (names == null) {
+            return parse(buffer);
+        }
+        int offset = buffer.position();
+        DNSName name = parse(buffer, offset, names, 0, 0);
+        buffer.position(skip(buffer, offset));
+        return name;
+    }
+
+    private static DNSName parse(ByteBuffer buffer, int offset, OffsetTable names, int labels, int jumps) {
+        DNSName name = names.get(offset);
+        if (name != null) {
+            return name;
+        }
+        int c = buffer.get(offset) & 0xff;
         if ((c & 0xc0) == 0xc0) {
-            c = ((c & 0x3f) << 8) + (data[offset + 1] & 0xff);
-            if (jumps.contains(c)) {
+            if (jumps >= MAX_LABELS) {
                 throw new IllegalStateException("Cyclic offsets detected.");
             }
-            jumps.add(c);
-            return parse(data, c, jumps);
+            int target = ((c & 0x3f) << 8) + (buffer.get(offset + 1) & 0xff);
+            name = parse(buffer, target, names, labels, jumps + 1);
+        } else if (c == 0) {
+            return EMPTY;
+        } else {
+            if (labels >= MAX_LABELS) {
+                throw new IllegalStateException("Too many labels.");
+            }
+            checkLabelLength(c);
+            DNSName suffix = parse(buffer, offset + c + 1, names, labels + 1, jumps);
+            if (c + 1 + suffix.bytes.length > MAX_NAME_LENGTH) {
+                throw new IllegalStateException("Name too long.");
+            }
+            byte[] bytes = new byte[c + 1 + suffix.bytes.length];
+            bytes[0] = (byte) c;
+            for (int i = 1; i <= c; i++) {
+                bytes[i] = toLowerCase(buffer.get(offset + i));
+            }
+            System.arraycopy(suffix.bytes, 0, bytes, c + 1, suffix.bytes.length);
+            name = new DNSName(bytes);
+            name.parent = suffix;
+            name = canonicalize(name);
         }
-        if (c == 0) {
-            return DNSName.EMPTY;
+        names.put(offset, name);
+        return name;
+    }
+
+    /**
+     * Check the length octet of a label. The extended label types 01 and 10 are not supported, so the length may be at
+     * most {@link #MAX_LABEL_LENGTH}.
+     */
+    private static void checkLabelLength(int c) {
+        if (c > MAX_LABEL_LENGTH) {
+            throw new IllegalStateException("Invalid label length " + c + ".");
+        }
+    }
+
+    private static byte toLowerCase(byte b) {
+        if (b >= 'A' && b <= 'Z') {
+            return (byte) (b + ('a' - 'A'));
         }
-        String s = new String(data, offset + 1, c);
-        DNSName t = parse(data, offset + 1 + c, jumps);
-        if (t.length() > 0) {
-            s = s + "." + t;
+        return b;
+    }
+
+    /**
+     * Skip the domain name at the given offset of the buffer without decoding it.
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @param offset the offset of the domain name.
+     * @return the offset of the first byte after the domain name.
+     */
+    static int skip(ByteBuffer buffer, int offset) {
+        while (true) {
+            int c = buffer.get(offset) & 0xff;
+            if ((c & 0xc0) == 0xc0) {
+                return offset + 2;
+            }
+            if (c == 0) {
+                return offset + 1;
+            }
+            offset += c + 1;
         }
-        return new DNSName(s);
     }
 
+    /**
+     * Compare this name with the given name in the order of their ACE representations. The comparison is performed on
+     * the wire format, where every length octet but the first one takes the place of a label separator.
+     */
     @Override
     public int compareTo(DNSName other) {
-        return ace.compareTo(other.ace);
+        byte[] otherBytes = other.bytes;
+        int end = bytes.length - 1;
+        int otherEnd = otherBytes.length - 1;
+        int i = Math.min(1, end);
+        int j = Math.min(1, otherEnd);
+        int nextLabel = (bytes[0] & 0xff) + 1;
+        int otherNextLabel = (otherBytes[0] & 0xff) + 1;
+        while (i < end && j < otherEnd) {
+            int c;
+            if (i == nextLabel) {
+                c = '.';
+                nextLabel += (bytes[i] & 0xff) + 1;
+            } else {
+                c = bytes[i] & 0xff;
+            }
+            int otherC;
+            if (j == otherNextLabel) {
+                otherC = '.';
+                otherNextLabel += (otherBytes[j] & 0xff) + 1;
+            } else {
+                otherC = otherBytes[j] & 0xff;
+            }
+            if (c != otherC) {
+                return c - otherC;
+            }
+            i++;
+            j++;
+        }
+        return (end - i) - (otherEnd - j);
     }
 
     @Override
     public boolean equals(Object other) {
+        if (other == this) return true;
         if (other == null) return false;
 
         if (other instanceof DNSName) {
             DNSName otherDnsName = (DNSName) other;
-            setBytesIfRequired();
-            otherDnsName.setBytesIfRequired();
             return Arrays.equals(bytes, otherDnsName.bytes);
         }
 
@@ -307,38 +636,31 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
 
     @Override
     public int hashCode() {
-        if (hashCode == 0 && !isRootLabel()) {
-            setBytesIfRequired();
+        if (hashCode == 0) {
             hashCode = Arrays.hashCode(bytes);
         }
         return hashCode;
     }
 
     public boolean isDirectChildOf(DNSName parent) {
-        setLabelsIfRequired();
-        parent.setLabelsIfRequired();
-        int parentLabelsCount = parent.labels.length;
-
-        if (labels.length - 1 != parentLabelsCount)
-            return false;
-
-        for (int i = 0; i < parent.labels.length; i++) {
-            if (!labels[i].equals(parent.labels[i]))
-                return false;
-        }
-
-        return true;
+        return getLabelCount() == parent.getLabelCount() + 1 && isChildOf(parent);
     }
 
     public boolean isChildOf(DNSName parent) {
-        setLabelsIfRequired();
-        parent.setLabelsIfRequired();
+        int suffixOffset = bytes.length - parent.bytes.length;
+        if (suffixOffset < 0)
+            return false;
 
-        if (labels.length < parent.labels.length)
+        // The parent must start at a label boundary of this name.
+        int offset = 0;
+        while (offset < suffixOffset) {
+            offset += (bytes[offset] & 0xff) + 1;
+        }
+        if (offset != suffixOffset)
             return false;
 
-        for (int i = 0; i < parent.labels.length; i++) {
-            if (!labels[i].equals(parent.labels[i]))
+        for (int i = 0; i < parent.bytes.length; i++) {
+            if (bytes[suffixOffset + i] != parent.bytes[i])
                 return false;
         }
 
@@ -346,18 +668,18 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
     }
 
     public int getLabelCount() {
-        setLabelsIfRequired();
-        return labels.length;
+        setLabelOffsetsIfRequired();
+        return labelOffsets.length;
     }
 
     public DNSName stripToLabels(int labelCount) {
-        setLabelsIfRequired();
+        setLabelOffsetsIfRequired();
 
-        if (labelCount > labels.length) {
+        if (labelCount > labelOffsets.length) {
             throw new IllegalArgumentException();
         }
 
-        if (labelCount == labels.length) {
+        if (labelCount == labelOffsets.length) {
             return this;
         }
 
@@ -365,12 +687,8 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
             return EMPTY;
         }
 
-        String[] stripedLabels = new String[labelCount];
-        for (int i = 0; i < labelCount; i++) {
-            stripedLabels[i] = labels[i];
-        }
-
-        return new DNSName(stripedLabels);
+        int offset = labelOffsets[labelOffsets.length - labelCount];
+        return canonicalize(new DNSName(Arrays.copyOfRange(bytes, offset, bytes.length)));
     }
 
     /**
@@ -386,10 +704,166 @@ public class DNSName implements CharSequence, Serializable, Comparable<DNSName>
      */
     public DNSName getParent() {
         if (isRootLabel()) return EMPTY;
-        return stripToLabels(getLabelCount() - 1);
+        if (parent == null) {
+            parent = canonicalize(new DNSName(Arrays.copyOfRange(bytes, (bytes[0] & 0xff) + 1, bytes.length)));
+        }
+        return parent;
     }
 
     public boolean isRootLabel() {
-        return ace.isEmpty() || ace.equals(".");
+        return bytes.length == 1;
+    }
+
+    /**
+     * A table of the domain names decoded from a DNS message, indexed by their offset within the message. Used to
+     * decode every name of a message only once when parsing it, see {@link DNSName#parse(ByteBuffer, OffsetTable)}.
+     * This class is not thread-safe.
+     */
+    public static final class OffsetTable {
+
+        private int[] offsets = new int[32];
+
+        private DNSName[] names = new DNSName[32];
+
+        private int size;
+
+        DNSName get(int offset) {
+            int mask = names.length - 1;
+            for (int i = offset & mask; names[i] != null; i = (i + 1) & mask) {
+                if (offsets[i] == offset) {
+                    return names[i];
+                }
+            }
+            return null;
+        }
+
+        void put(int offset, DNSName name) {
+            if (2 * (size + 1) > names.length) {
+                int[] oldOffsets = offsets;
+                DNSName[] oldNames = names;
+                offsets = new int[oldNames.length * 2];
+                names = new DNSName[oldNames.length * 2];
+                size = 0;
+                for (int i = 0; i < oldNames.length; i++) {
+                    if (oldNames[i] != null) {
+                        put(oldOffsets[i], oldNames[i]);
+                    }
+                }
+            }
+            int mask = names.length - 1;
+            int i = offset & mask;
+            while (names[i] != null) {
+                if (offsets[i] == offset) {
+                    names[i] = name;
+                    return;
+                }
+                i = (i + 1) & mask;
+            }
+            offsets[i] = offset;
+            names[i] = name;
+            size++;
+        }
+
+        /**
+         * Get the number of names in this table.
+         *
+         * @return the number of names.
+         */
+        public int size() {
+            return size;
+        }
+    }
+
+    /**
+     * A table of the offsets of the domain names written to a DNS message, used for message compression by
+     * {@link DNSName#writeTo(ByteBuffer, CompressionTable, int)}. Only the hashes and offsets of the names are stored,
+     * the names itself are compared against the message written so far. A table can be {@link #reset() reset} and
+     * reused for the next message. This class is not thread-safe.
+     */
+    public static final class CompressionTable {
+
+        private int[] hashes = new int[32];
+
+        /**
+         * The offsets of the names plus one, so that 0 marks an empty slot.
+         */
+        private int[] offsets = new int[32];
+
+        private int size;
+
+        /**
+         * Remove all names, keeping the allocated capacity.
+         */
+        public void reset() {
+            if (size > 0) {
+                Arrays.fill(offsets, 0);
+                size = 0;
+            }
+        }
+
+        /**
+         * Get the offset of the given name suffix within the message, or -1 if it has not been written yet.
+         */
+        int get(ByteBuffer buffer, int messageStart, byte[] name, int labelOffset, int hash) {
+            int mask = offsets.length - 1;
+            for (int i = hash & mask; offsets[i] != 0; i = (i + 1) & mask) {
+                if (hashes[i] == hash && matches(buffer, messageStart, offsets[i] - 1, name, labelOffset)) {
+                    return offsets[i] - 1;
+                }
+            }
+            return -1;
+        }
+
+        void put(int hash, int offset) {
+            if (2 * (size + 1) > offsets.length) {
+                int[] oldHashes = hashes;
+                int[] oldOffsets = offsets;
+                hashes = new int[oldOffsets.length * 2];
+                offsets = new int[oldOffsets.length * 2];
+                size = 0;
+                for (int i = 0; i < oldOffsets.length; i++) {
+                    if (oldOffsets[i] != 0) {
+                        put(oldHashes[i], oldOffsets[i] - 1);
+                    }
+                }
+            }
+            int mask = offsets.length - 1;
+            int i = hash & mask;
+            while (offsets[i] != 0) {
+                i = (i + 1) & mask;
+            }
+            hashes[i] = hash;
+            offsets[i] = offset + 1;
+            size++;
+        }
+
+        /**
+         * Compare the name written at the given offset of the message, following compression pointers, with the
+         * suffix of the given name.
+         */
+        private static boolean matches(ByteBuffer buffer, int messageStart, int offset, byte[] name, int labelOffset) {
+            int position = messageStart + offset;
+            int i = labelOffset;
+            while (true) {
+                int c = buffer.get(position) & 0xff;
+                if ((c & 0xc0) == 0xc0) {
+                    position = messageStart + (((c & 0x3f) << 8) | (buffer.get(position + 1) & 0xff));
+                    continue;
+                }
+                if (c != (name[i] & 0xff)) {
+                    return false;
+                }
+                if (c == 0) {
+                    return true;
+                }
+                for (int j = 1; j <= c; j++) {
+                    if (buffer.get(position + j) != name[i + j]) {
+                        return false;
+                    }
+                }
+                position += c + 1;
+                i += c + 1;
+            }
+        }
     }
 }
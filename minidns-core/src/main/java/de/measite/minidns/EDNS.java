@@ -20,6 +20,7 @@ import java.util.Map;
 import de.measite.minidns.Record.TYPE;
 import de.measite.minidns.edns.EDNSOption;
 import de.measite.minidns.edns.NSID;
+import de.measite.minidns.edns.TcpKeepalive;
 import de.measite.minidns.edns.UnknownEDNSOption;
 import de.measite.minidns.record.OPT;
 
@@ -44,6 +45,7 @@ public class EDNS {
     public enum OptionCode {
         UNKNOWN(-1, UnknownEDNSOption.class),
         NSID(3, NSID.class),
+        TCP_KEEPALIVE(11, TcpKeepalive.class),
         ;
 
         private static Map<Integer, OptionCode> INVERSE_LUT = new HashMap<>(OptionCode.values().length);
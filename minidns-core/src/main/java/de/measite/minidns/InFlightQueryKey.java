@@ -0,0 +1,44 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import java.net.InetAddress;
+
+/**
+ * Identifies a query to an upstream server, which identical concurrent queries wait for instead of sending the query
+ * again. Queries are identical if they ask the same server the same question with the same flags.
+ */
+final class InFlightQueryKey {
+
+    private final CacheKey cacheKey;
+    private final InetAddress address;
+    private final int port;
+
+    InFlightQueryKey(CacheKey cacheKey, InetAddress address, int port) {
+        this.cacheKey = cacheKey;
+        this.address = address;
+        this.port = port;
+    }
+
+    @Override
+    public int hashCode() {
+        return (cacheKey.hashCode() * 31 + address.hashCode()) * 31 + port;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof InFlightQueryKey)) {
+            return false;
+        }
+        InFlightQueryKey otherKey = (InFlightQueryKey) other;
+        return port == otherKey.port && address.equals(otherKey.address) && cacheKey.equals(otherKey.cacheKey);
+    }
+}
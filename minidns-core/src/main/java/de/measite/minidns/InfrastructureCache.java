@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+/**
+ * Per server statistics used to prefer fast and reliable DNS servers, similar to the SRTT of BIND. For every server
+ * the smoothed round trip time (SRTT) and its variance are tracked as described in RFC 6298, and every failed query
+ * doubles the SRTT of the server.
+ * <p>
+ * Candidate servers are ordered by their SRTT. The SRTT of a server decays while the server is not queried, so slow
+ * or failed servers are probed again after a while and recovered servers regain their traffic. Servers without
+ * statistics are treated as fast, so they are probed before known servers.
+ * </p>
+ */
+public class InfrastructureCache {
+
+    /**
+     * The SRTT a server starts with after its first failed query, in milliseconds.
+     */
+    private static final double FAILURE_SRTT = 1000;
+
+    /**
+     * The upper bound of the SRTT, in milliseconds.
+     */
+    private static final double MAX_SRTT = 30000;
+
+    private final Map<InetAddress, ServerStats> stats;
+
+    private long decayHalfLife = 60000;
+
+    /**
+     * Create a new infrastructure cache for up to 1024 servers.
+     */
+    public InfrastructureCache() {
+        this(1024);
+    }
+
+    /**
+     * Create a new infrastructure cache.
+     *
+     * @param capacity the number of servers to keep statistics for, the least recently used servers are evicted.
+     */
+    @SuppressWarnings("serial")
+    public InfrastructureCache(final int capacity) {
+        stats = new LinkedHashMap<InetAddress, ServerStats>(Math.max(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Entry<InetAddress, ServerStats> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Get the time after which the SRTT of a server which is not queried has decayed to half of its value.
+     *
+     * @return the half-life in milliseconds.
+     */
+    public long getDecayHalfLife() {
+        return decayHalfLife;
+    }
+
+    public void setDecayHalfLife(long decayHalfLife) {
+        if (decayHalfLife <= 0) {
+            throw new IllegalArgumentException("Decay half-life must be greater than zero");
+        }
+        this.decayHalfLife = decayHalfLife;
+    }
+
+    /**
+     * Record the round trip time of a query which was answered by the server.
+     *
+     * @param server the server.
+     * @param rttMillis the round trip time in milliseconds.
+     */
+    public synchronized void recordResponse(InetAddress server, long rttMillis) {
+        long now = currentTimeMillis();
+        ServerStats serverStats = stats.get(server);
+        if (serverStats == null) {
+            serverStats = new ServerStats();
+            serverStats.srtt = rttMillis;
+            serverStats.rttvar = rttMillis / 2d;
+            stats.put(server, serverStats);
+        } else {
+            double srtt = serverStats.decayedSrtt(now, decayHalfLife);
+            serverStats.rttvar = 0.75 * serverStats.rttvar + 0.25 * Math.abs(srtt - rttMillis);
+            serverStats.srtt = 0.875 * srtt + 0.125 * rttMillis;
+        }
+        serverStats.failures = 0;
+        serverStats.updated = now;
+    }
+
+    /**
+     * Record a query to the server which failed or timed out.
+     *
+     * @param server the server.
+     */
+    public synchronized void recordFailure(InetAddress server) {
+        long now = currentTimeMillis();
+        ServerStats serverStats = stats.get(server);
+        if (serverStats == null) {
+            serverStats = new ServerStats();
+            serverStats.srtt = FAILURE_SRTT;
+            serverStats.rttvar = FAILURE_SRTT / 2;
+            stats.put(server, serverStats);
+        } else {
+            double srtt = serverStats.decayedSrtt(now, decayHalfLife);
+            serverStats.srtt = Math.min(Math.max(2 * srtt, FAILURE_SRTT), MAX_SRTT);
+        }
+        serverStats.failures++;
+        serverStats.updated = now;
+    }
+
+    /**
+     * Get the current SRTT of a server, including the decay since the server was last queried.
+     *
+     * @param server the server.
+     * @return the SRTT in milliseconds, or <code>-1</code> if there are no statistics for the server.
+     */
+    public synchronized long getSrtt(InetAddress server) {
+        ServerStats serverStats = stats.get(server);
+        if (serverStats == null) {
+            return -1;
+        }
+        return Math.round(serverStats.decayedSrtt(currentTimeMillis(), decayHalfLife));
+    }
+
+    /**
+     * Get the round trip time variance of a server.
+     *
+     * @param server the server.
+     * @return the variance in milliseconds, or <code>-1</code> if there are no statistics for the server.
+     */
+    public synchronized long getRttVariance(InetAddress server) {
+        ServerStats serverStats = stats.get(server);
+        if (serverStats == null) {
+            return -1;
+        }
+        return Math.round(serverStats.rttvar);
+    }
+
+    /**
+     * Get the retransmission timeout for a server as defined by RFC 6298, i.e. the SRTT plus four times the variance.
+     * Unlike {@link #getSrtt(InetAddress)} this does not decay, as a timeout below the actual round trip time causes
+     * spurious retransmissions.
+     *
+     * @param server the server.
+     * @return the retransmission timeout in milliseconds, or <code>-1</code> if there are no statistics for the server.
+     */
+    public synchronized long getRto(InetAddress server) {
+        ServerStats serverStats = stats.get(server);
+        if (serverStats == null) {
+            return -1;
+        }
+        return Math.round(serverStats.srtt + 4 * serverStats.rttvar);
+    }
+
+    /**
+     * Get an estimate of the 95th percentile of the round trip times of a server, i.e. the SRTT plus twice the
+     * variance.
+     *
+     * @param server the server.
+     * @return the estimate in milliseconds, or <code>-1</code> if there are no statistics for the server.
+     */
+    public synchronized long getRttP95(InetAddress server) {
+        ServerStats serverStats = stats.get(server);
+        if (serverStats == null) {
+            return -1;
+        }
+        return Math.round(serverStats.srtt + 2 * serverStats.rttvar);
+    }
+
+    /**
+     * Get the number of consecutive failed queries to a server.
+     *
+     * @param server the server.
+     * @return the number of failures since the last response of the server.
+     */
+    public synchronized int getFailureCount(InetAddress server) {
+        ServerStats serverStats = stats.get(server);
+        return serverStats == null ? 0 : serverStats.failures;
+    }
+
+    /**
+     * Order servers by their SRTT, fastest first. Servers with the same SRTT, in particular servers without
+     * statistics, keep their relative order.
+     *
+     * @param servers the candidate servers.
+     * @return a new list with the ordered servers.
+     */
+    public List<InetAddress> order(Collection<InetAddress> servers) {
+        List<InetAddress> ordered = new ArrayList<>(servers);
+        if (ordered.size() < 2) {
+            return ordered;
+        }
+
+        final Map<InetAddress, Double> scores = new HashMap<>(ordered.size() * 2);
+        synchronized (this) {
+            long now = currentTimeMillis();
+            for (InetAddress server : ordered) {
+                ServerStats serverStats = stats.get(server);
+                scores.put(server, serverStats == null ? 0 : serverStats.decayedSrtt(now, decayHalfLife));
+            }
+        }
+        Collections.sort(ordered, new Comparator<InetAddress>() {
+            @Override
+            public int compare(InetAddress first, InetAddress second) {
+                return Double.compare(scores.get(first), scores.get(second));
+            }
+        });
+        return ordered;
+    }
+
+    /**
+     * Remove all statistics.
+     */
+    public synchronized void clear() {
+        stats.clear();
+    }
+
+    long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    private static final class ServerStats {
+        private double srtt;
+        private double rttvar;
+        private int failures;
+        private long updated;
+
+        private double decayedSrtt(long now, long halfLife) {
+            long elapsed = now - updated;
+            if (elapsed <= 0) {
+                return srtt;
+            }
+            return srtt * Math.pow(0.5, (double) elapsed / halfLife);
+        }
+    }
+}
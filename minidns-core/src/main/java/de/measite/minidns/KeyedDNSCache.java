@@ -0,0 +1,33 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+/**
+ * A {@link DNSCache} which can also be accessed by the {@link CacheKey} of a query, so that callers holding a key do not
+ * need the query message. All caches of MiniDNS implement this interface.
+ */
+public interface KeyedDNSCache extends DNSCache {
+
+    /**
+     * Add an an dns answer/response for a given cache key.
+     * @param key The cache key of the query.
+     * @param message The dns message.
+     */
+    void put(CacheKey key, DNSMessage message);
+
+    /**
+     * Request a cached dns response.
+     * @param key The cache key of the query.
+     * @return The dns message.
+     */
+    DNSMessage get(CacheKey key);
+
+}
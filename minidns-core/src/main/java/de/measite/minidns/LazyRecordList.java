@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import de.measite.minidns.Record.TYPE;
+
+/**
+ * An unmodifiable list of the records of a DNS message section, which only knows the offsets of the records within the
+ * message and decodes a {@link Record} the first time it is accessed.
+ */
+final class LazyRecordList extends AbstractList<Record> implements RandomAccess {
+
+    /**
+     * The full message data, used as backing store for all decodes.
+     */
+    private final byte[] data;
+
+    /**
+     * The offsets of the records within the message.
+     */
+    private final int[] offsets;
+
+    /**
+     * The offsets of the type field of the records within the message.
+     */
+    private final int[] typeOffsets;
+
+    private final AtomicReferenceArray<Record> records;
+
+    private LazyRecordList(byte[] data, int[] offsets, int[] typeOffsets) {
+        this.data = data;
+        this.offsets = offsets;
+        this.typeOffsets = typeOffsets;
+        this.records = new AtomicReferenceArray<>(offsets.length);
+    }
+
+    /**
+     * Index the given number of records, starting at the current position of the buffer, and move the buffer position
+     * past the last record. Only the record framing is read, the records itself are decoded on demand.
+     *
+     * @param data the full message data.
+     * @param buffer a buffer wrapping the message data.
+     * @param count the number of records in the section.
+     * @return the lazy record list.
+     * @throws IOException if the records exceed the message.
+     */
+    static LazyRecordList index(byte[] data, ByteBuffer buffer, int count) throws IOException {
+        int[] offsets = new int[count];
+        int[] typeOffsets = new int[count];
+        int offset = buffer.position();
+        for (int i = 0; i < count; i++) {
+            offsets[i] = offset;
+            offset = DNSName.skip(buffer, offset);
+            typeOffsets[i] = offset;
+            int payloadLength = buffer.getShort(offset + 8) & 0xffff;
+            offset += 10 + payloadLength;
+            if (offset > buffer.limit()) {
+                throw new IOException("Record exceeds the message length");
+            }
+        }
+        buffer.position(offset);
+        return new LazyRecordList(data, offsets, typeOffsets);
+    }
+
+    /**
+     * Get the type of the record at the given index without decoding the record.
+     *
+     * @param index the index of the record.
+     * @return the type of the record.
+     */
+    TYPE getType(int index) {
+        int offset = typeOffsets[index];
+        return TYPE.getType(((data[offset] & 0xff) << 8) | (data[offset + 1] & 0xff));
+    }
+
+    @Override
+    public Record get(int index) {
+        Record record = records.get(index);
+        if (record != null) {
+            return record;
+        }
+
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.position(offsets[index]);
+        try {
+            record = new Record(buffer);
+        } catch (IOException | BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IllegalStateException("Could not decode record " + index + " of the section", e);
+        }
+        // Another thread may have decoded the record in the meantime, always return the published instance.
+        records.compareAndSet(index, null, record);
+        return records.get(index);
+    }
+
+    @Override
+    public int size() {
+        return offsets.length;
+    }
+}
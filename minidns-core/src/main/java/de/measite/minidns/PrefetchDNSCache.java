@@ -0,0 +1,28 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+/**
+ * A {@link KeyedDNSCache} which tracks how often its entries are requested, so that popular entries can be refreshed in
+ * the background shortly before they expire, instead of letting one unlucky request pay for the upstream query.
+ */
+public interface PrefetchDNSCache extends KeyedDNSCache {
+
+    /**
+     * Check if the cached response for a key should be refreshed ahead of its expiry, because it was requested
+     * frequently and is about to expire. Returns <code>true</code> at most once per cached response, the caller is
+     * expected to query the upstream server and put the fresh response into the cache.
+     * @param key The cache key of the query, which just was a cache hit.
+     * @return <code>true</code> if the response should be refreshed.
+     */
+    boolean needsPrefetch(CacheKey key);
+
+}
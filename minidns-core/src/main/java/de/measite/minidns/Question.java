@@ -14,6 +14,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import de.measite.minidns.Record.CLASS;
@@ -121,6 +122,60 @@ public class Question {
         unicastQuery = false;
     }
 
+    /**
+     * Parse a dns question from the current position of the buffer.
+     * @param buffer The buffer holding the DNS message, index 0 must be the first byte of the message.
+     */
+    public Question(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * Parse a dns question from the current position of the buffer.
+     * @param buffer The buffer holding the DNS message, index 0 must be the first byte of the message.
+     * @param names The names already decoded from the message, or <code>null</code>.
+     */
+    public Question(ByteBuffer buffer, DNSName.OffsetTable names) {
+        name = DNSName.parse(buffer, names);
+        type = TYPE.getType(buffer.getShort() & 0xffff);
+        clazz = CLASS.getClass(buffer.getShort() & 0xffff);
+        unicastQuery = false;
+    }
+
+    /**
+     * Write this question at the current position of the buffer holding a DNS message, compressing the question name.
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @param compressionTable the offsets of the domain names already written to the message.
+     * @param messageStart the position of the first byte of the message within the buffer.
+     */
+    void writeTo(ByteBuffer buffer, DNSName.CompressionTable compressionTable, int messageStart) {
+        name.writeTo(buffer, compressionTable, messageStart);
+        buffer.putShort((short) type.getValue());
+        buffer.putShort((short) (clazz.getValue() | (unicastQuery ? (1 << 15) : 0)));
+    }
+
+    /**
+     * Write this question at the current position of the buffer.
+     *
+     * @param buffer the buffer to write to.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        name.writeTo(buffer);
+        buffer.putShort((short) type.getValue());
+        buffer.putShort((short) (clazz.getValue() | (unicastQuery ? (1 << 15) : 0)));
+    }
+
+    /**
+     * The size of the binary representation of this question.
+     *
+     * @return the size in bytes.
+     */
+    public int size() {
+        return name.size() + 4;
+    }
+
     /**
      * Generate a binary paket for this dns question.
      * @return The dns question.
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.Data;
+
+/**
+ * The undecoded payload (RDATA) of a resource record, as delivered to a {@link RecordHandler}. The payload can be
+ * inspected as raw bytes or decoded on demand with the regular {@link Record} parsers.
+ * <p>
+ * Instances are reused while visiting a message and are only valid during the {@link RecordHandler#onRecord} call
+ * they are passed to.
+ * </p>
+ */
+public final class RawPayload {
+
+    private final ByteBuffer message;
+
+    private final DNSName.OffsetTable names;
+
+    private int recordOffset;
+
+    private int offset;
+
+    private int length;
+
+    private TYPE type;
+
+    RawPayload(ByteBuffer message, DNSName.OffsetTable names) {
+        this.message = message;
+        this.names = names;
+    }
+
+    void set(int recordOffset, int offset, int length, TYPE type) {
+        this.recordOffset = recordOffset;
+        this.offset = offset;
+        this.length = length;
+        this.type = type;
+    }
+
+    /**
+     * The type of the record holding this payload.
+     *
+     * @return the record type.
+     */
+    public TYPE getType() {
+        return type;
+    }
+
+    /**
+     * The length of the payload in bytes.
+     *
+     * @return the payload length.
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Get a read-only view of the payload bytes. Note that domain names within the payload may be compressed, i.e.
+     * point to other parts of the message, use {@link #decode()} to get the payload with its names resolved.
+     *
+     * @return the payload bytes.
+     */
+    public ByteBuffer slice() {
+        ByteBuffer slice = message.asReadOnlyBuffer();
+        slice.limit(offset + length);
+        slice.position(offset);
+        return slice.slice();
+    }
+
+    /**
+     * Decode the payload.
+     *
+     * @return the decoded payload.
+     * @throws IOException if the payload is malformed.
+     */
+    public Data decode() throws IOException {
+        return toRecord().payloadData;
+    }
+
+    /**
+     * Decode the full record holding this payload.
+     *
+     * @return the decoded record.
+     * @throws IOException if the record is malformed.
+     */
+    public Record toRecord() throws IOException {
+        ByteBuffer buffer = message.duplicate();
+        buffer.position(recordOffset);
+        try {
+            return new Record(buffer, names);
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            throw new IOException("Malformed " + type + " record", e);
+        }
+    }
+}
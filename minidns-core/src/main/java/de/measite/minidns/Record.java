@@ -24,6 +24,8 @@ import de.measite.minidns.record.NSEC3;
 import de.measite.minidns.record.NSEC3PARAM;
 import de.measite.minidns.record.OPENPGPKEY;
 import de.measite.minidns.record.OPT;
+import de.measite.minidns.record.PayloadParser;
+import de.measite.minidns.record.PayloadParserRegistry;
 import de.measite.minidns.record.PTR;
 import de.measite.minidns.record.RRSIG;
 import de.measite.minidns.record.SOA;
@@ -36,6 +38,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -113,6 +116,8 @@ public class Record {
         CDNSKEY(60),
         OPENPGPKEY(61, OPENPGPKEY.class),
         CSYNC(62),
+        SVCB(64),
+        HTTPS(65),
         SPF(99),
         UINFO(100),
         UID(101),
@@ -145,16 +150,39 @@ public class Record {
         private final Class<?> dataClass;
 
         /**
-         * Internal lookup table to map values to types.
+         * Internal lookup table to map values to types, indexed by the type value.
          */
-        private final static Map<Integer, TYPE> INVERSE_LUT = new HashMap<>();
+        private final static TYPE[] INVERSE_LUT;
+
+        /**
+         * Internal lookup table to map values of the private use range to types, indexed by the type value minus
+         * {@link #PRIVATE_USE_START}.
+         */
+        private final static TYPE[] PRIVATE_USE_INVERSE_LUT;
+
+        private final static int PRIVATE_USE_START = 32768;
 
         private final static Map<Class<?>, TYPE> DATA_LUT = new HashMap<>();
 
         static {
-            // Initialize the reverse lookup table.
-            for(TYPE t: TYPE.values()) {
-                INVERSE_LUT.put(t.getValue(), t);
+            int maxValue = 0;
+            int maxPrivateUseValue = PRIVATE_USE_START - 1;
+            for (TYPE t : TYPE.values()) {
+                if (t.value >= PRIVATE_USE_START) {
+                    maxPrivateUseValue = Math.max(maxPrivateUseValue, t.value);
+                } else {
+                    maxValue = Math.max(maxValue, t.value);
+                }
+            }
+            // Initialize the reverse lookup tables.
+            INVERSE_LUT = new TYPE[maxValue + 1];
+            PRIVATE_USE_INVERSE_LUT = new TYPE[maxPrivateUseValue - PRIVATE_USE_START + 1];
+            for (TYPE t : TYPE.values()) {
+                if (t.value >= PRIVATE_USE_START) {
+                    PRIVATE_USE_INVERSE_LUT[t.value - PRIVATE_USE_START] = t;
+                } else if (t.value >= 0) {
+                    INVERSE_LUT[t.value] = t;
+                }
                 if (t.dataClass != null) {
                     DATA_LUT.put(t.dataClass, t);
                 }
@@ -207,7 +235,12 @@ public class Record {
          * @return The symbolic tpye.
          */
         public static TYPE getType(int value) {
-            TYPE type = INVERSE_LUT.get(value);
+            TYPE type = null;
+            if (value >= 0 && value < INVERSE_LUT.length) {
+                type = INVERSE_LUT[value];
+            } else if (value >= PRIVATE_USE_START && value - PRIVATE_USE_START < PRIVATE_USE_INVERSE_LUT.length) {
+                type = PRIVATE_USE_INVERSE_LUT[value - PRIVATE_USE_START];
+            }
             if (type == null) return UNKNOWN;
             return type;
         }
@@ -240,13 +273,12 @@ public class Record {
          * Internal reverse lookup table to map binary class values to symbolic
          * names.
          */
-        private final static HashMap<Integer, CLASS> INVERSE_LUT =
-                                            new HashMap<Integer, CLASS>();
+        private final static CLASS[] INVERSE_LUT = new CLASS[256];
 
         static {
             // Initialize the interal reverse lookup table.
             for(CLASS c: CLASS.values()) {
-                INVERSE_LUT.put(c.getValue(), c);
+                INVERSE_LUT[c.getValue()] = c;
             }
         }
 
@@ -277,7 +309,10 @@ public class Record {
          * @return The symbolic class instance.
          */
         public static CLASS getClass(int value) {
-            return INVERSE_LUT.get(value);
+            if (value < 0 || value >= INVERSE_LUT.length) {
+                return null;
+            }
+            return INVERSE_LUT[value];
         }
 
     }
@@ -402,6 +437,47 @@ public class Record {
         }
     }
 
+    /**
+     * Parse a given record from the current position of the buffer. The buffer holds the full message data, index 0
+     * must be the first byte of the message, so that name compression pointers can be resolved. The buffer position is
+     * moved past this record.
+     *
+     * @param buffer The buffer holding the DNS message, positioned at the first record byte.
+     * @throws IOException In case of malformed replies.
+     */
+    public Record(ByteBuffer buffer) throws IOException {
+        this(buffer, null);
+    }
+
+    /**
+     * Parse a given record from the current position of the buffer, like {@link #Record(ByteBuffer)}, and share the
+     * decoded domain names with the other records of the message.
+     *
+     * @param buffer The buffer holding the DNS message, positioned at the first record byte.
+     * @param names The names already decoded from the message, or <code>null</code>.
+     * @throws IOException In case of malformed replies.
+     */
+    public Record(ByteBuffer buffer, DNSName.OffsetTable names) throws IOException {
+        this.name = DNSName.parse(buffer, names);
+        int typeValue = buffer.getShort() & 0xffff;
+        this.type = TYPE.getType(typeValue);
+        this.clazzValue = buffer.getShort() & 0xffff;
+        this.clazz = CLASS.getClass(clazzValue & 0x7fff);
+        this.unicastQuery = (clazzValue & 0x8000) > 0;
+        this.ttl = buffer.getInt() & 0xffffffffL;
+        int payloadLength = buffer.getShort() & 0xffff;
+        int payloadEnd = buffer.position() + payloadLength;
+        PayloadParser<?> parser = PayloadParserRegistry.get(typeValue);
+        if (parser != null) {
+            this.payloadData = parser.parse(buffer, payloadLength, names);
+        } else {
+            this.payloadData = UNKNOWN.parse(buffer, payloadLength, type);
+        }
+        if (buffer.position() != payloadEnd) {
+            throw new IOException("Malformed " + type + " record payload of " + name + ", expected " + payloadLength + " bytes");
+        }
+    }
+
     public Record(DNSName name, TYPE type, CLASS clazz, long ttl, Data payloadData, boolean unicastQuery) {
         this.name = name;
         this.type = type;
@@ -448,6 +524,62 @@ public class Record {
         payloadData.toOutputStream(dos);
     }
 
+    /**
+     * Write this record at the current position of the buffer.
+     *
+     * @param buffer the buffer to write to.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        if (payloadData == null) {
+            throw new IllegalStateException("Empty Record has no byte representation");
+        }
+
+        name.writeTo(buffer);
+        buffer.putShort((short) type.getValue());
+        buffer.putShort((short) clazzValue);
+        buffer.putInt((int) ttl);
+
+        buffer.putShort((short) payloadData.length());
+        payloadData.writeTo(buffer);
+    }
+
+    /**
+     * The size of the binary representation of this record.
+     *
+     * @return the size in bytes.
+     */
+    public int size() {
+        if (payloadData == null) {
+            throw new IllegalStateException("Empty Record has no byte representation");
+        }
+        return name.size() + 10 + payloadData.length();
+    }
+
+    /**
+     * Write this record at the current position of the buffer holding a DNS message, compressing the owner name and,
+     * if the record type allows it, the domain names within the payload.
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @param compressionTable the offsets of the domain names already written to the message.
+     * @param messageStart the position of the first byte of the message within the buffer.
+     */
+    void writeTo(ByteBuffer buffer, DNSName.CompressionTable compressionTable, int messageStart) {
+        if (payloadData == null) {
+            throw new IllegalStateException("Empty Record has no byte representation");
+        }
+
+        name.writeTo(buffer, compressionTable, messageStart);
+        buffer.putShort((short) type.getValue());
+        buffer.putShort((short) clazzValue);
+        buffer.putInt((int) ttl);
+
+        int lengthPosition = buffer.position();
+        buffer.putShort((short) 0);
+        payloadData.writeTo(buffer, compressionTable, messageStart);
+        buffer.putShort(lengthPosition, (short) (buffer.position() - lengthPosition - 2));
+    }
+
     private byte[] bytes;
 
     public byte[] toByteArray() {
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import java.io.IOException;
+
+import de.measite.minidns.DNSMessage.SECTION;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+
+/**
+ * Handler for the resource records of a DNS message, which are delivered directly from the wire format without
+ * creating {@link Record} instances.
+ *
+ * @see DNSMessage#visit(java.nio.ByteBuffer, RecordHandler)
+ */
+public interface RecordHandler {
+
+    /**
+     * Handle a resource record of the message.
+     *
+     * @param section the section of the message holding the record.
+     * @param name the owner name of the record.
+     * @param type the type of the record.
+     * @param clazz the class of the record.
+     * @param ttl the time to live of the record.
+     * @param payload the undecoded payload of the record, only valid during this call.
+     * @return <code>true</code> to continue with the next record, <code>false</code> to stop visiting the message.
+     * @throws IOException if the payload is malformed.
+     */
+    boolean onRecord(SECTION section, DNSName name, TYPE type, CLASS clazz, long ttl, RawPayload payload)
+            throws IOException;
+}
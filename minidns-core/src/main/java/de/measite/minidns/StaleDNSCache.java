@@ -0,0 +1,32 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+/**
+ * A {@link KeyedDNSCache} which keeps expired responses for a while, so that they can be served if the upstream servers
+ * are unreachable or slow, as described in RFC 8767 "Serving Stale Data to Improve DNS Resiliency".
+ */
+public interface StaleDNSCache extends KeyedDNSCache {
+
+    /**
+     * The TTL of the records of stale responses in seconds, as recommended by RFC 8767 § 4.
+     */
+    long STALE_TTL = 30;
+
+    /**
+     * Request a cached dns response, which may have expired, but not longer ago than the stale window of the cache.
+     * The records of an expired response carry a TTL of {@link #STALE_TTL}.
+     * @param key The cache key of the query.
+     * @return The dns message or <code>null</code>.
+     */
+    DNSMessage getStale(CacheKey key);
+
+}
@@ -0,0 +1,570 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.cache;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.measite.minidns.CacheKey;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.PrefetchDNSCache;
+import de.measite.minidns.StaleDNSCache;
+
+/**
+ * A DNSCache with approximate LRU eviction, which can be used by many threads concurrently.
+ * <p>
+ * The entries are kept in a {@link ConcurrentHashMap}, so lookups never block. Instead of reordering the LRU list on
+ * every hit, which would require a global lock, hits are recorded in small lossy per thread stripe buffers. The
+ * buffers are replayed against the LRU list by whichever thread acquires the eviction lock without waiting, which
+ * happens on every write and whenever a read buffer runs full. Reads may be dropped when a buffer is full, so the
+ * eviction order is only approximately LRU, which is sufficient for a cache.
+ * </p>
+ * <p>
+ * Like with {@link LRUCache}, responses are cached per query, so a cached NXDOMAIN response only answers queries for
+ * the same name, type and class, not for other types of the name as RFC 2308 § 5 allows. {@link RRsetCache} caches
+ * NXDOMAIN per name.
+ * </p>
+ * <p>
+ * If {@link #setPrefetch(int, int) prefetching} is enabled, entries which are requested frequently are reported by
+ * {@link #needsPrefetch(CacheKey)} once they enter the last part of their lifetime, so that the DNS client can
+ * refresh them in the background, like the prefetch option of Unbound.
+ * </p>
+ */
+public class ConcurrentLRUCache implements StaleDNSCache, PrefetchDNSCache {
+
+    /**
+     * The capacity of a single read buffer, must be a power of two.
+     */
+    private static final int READ_BUFFER_SIZE = 32;
+
+    private final StripedCounter missCount = new StripedCounter();
+
+    private final StripedCounter expireCount = new StripedCounter();
+
+    private final StripedCounter hitCount = new StripedCounter();
+
+    private final StripedCounter negativeHitCount = new StripedCounter();
+
+    private final StripedCounter staleHitCount = new StripedCounter();
+
+    private final StripedCounter prefetchHitCount = new StripedCounter();
+
+    private final StripedCounter wastedPrefetchCount = new StripedCounter();
+
+    /**
+     * The capacity of this cache.
+     */
+    private final int capacity;
+
+    /**
+     * The upper bound of the ttl in seconds. All longer TTLs will be capped by this ttl.
+     */
+    private final long maxTTL;
+
+    /**
+     * The upper bound of the ttl of negative responses, defaults to 3 hours as recommended by RFC 2308 § 5.
+     */
+    private volatile long maxNegativeTTL = 10800;
+
+    /**
+     * How long expired responses are kept to be served stale in seconds, 0 disables serving stale responses.
+     */
+    private volatile long staleWindow = 0L;
+
+    /**
+     * The last part of the lifetime of an entry in percent, in which it is prefetched. 0 disables prefetching.
+     */
+    private volatile int prefetchPercent = 0;
+
+    /**
+     * The number of hits an entry needs to be prefetched.
+     */
+    private volatile int prefetchMinHits = 2;
+
+    private static final AtomicIntegerFieldUpdater<Node> PREFETCHED = AtomicIntegerFieldUpdater.newUpdater(Node.class,
+            "prefetched");
+
+    private final ConcurrentHashMap<CacheKey, Node> data;
+
+    private final ReadBuffer[] readBuffers = new ReadBuffer[StripedCounter.STRIPES];
+
+    /**
+     * Nodes which have been added to or removed from the map, but not yet to or from the LRU list.
+     */
+    private final Queue<Node> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Guards the LRU list and the drain of the buffers.
+     */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /**
+     * The least recently used node. Guarded by {@link #evictionLock}.
+     */
+    private Node head;
+
+    /**
+     * The most recently used node. Guarded by {@link #evictionLock}.
+     */
+    private Node tail;
+
+    /**
+     * The number of nodes in the LRU list. Guarded by {@link #evictionLock}.
+     */
+    private int linkedCount;
+
+    /**
+     * Create a new ConcurrentLRUCache with given capacity and upper bound ttl.
+     * @param capacity The internal capacity.
+     * @param maxTTL The upper bound for any ttl in seconds.
+     */
+    public ConcurrentLRUCache(int capacity, long maxTTL) {
+        this.capacity = capacity;
+        this.maxTTL = maxTTL;
+        data = new ConcurrentHashMap<>(Math.max(capacity + (capacity + 3) / 4 + 2, 11), 0.75f,
+                StripedCounter.STRIPES);
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer();
+        }
+    }
+
+    /**
+     * Create a new ConcurrentLRUCache with given capacity.
+     * @param capacity The capacity of this cache.
+     */
+    public ConcurrentLRUCache(int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void put(DNSMessage q, DNSMessage message) {
+        put(q.asCacheKey(), message);
+    }
+
+    @Override
+    public DNSMessage get(DNSMessage q) {
+        return get(q.asCacheKey());
+    }
+
+    @Override
+    public void put(CacheKey q, DNSMessage message) {
+        if (message.receiveTimestamp <= 0L) {
+            return;
+        }
+
+        Node node = new Node(q, message, LRUCache.expiresAt(message, maxTTL, maxNegativeTTL));
+        Node replaced = data.put(q, node);
+        if (replaced != null) {
+            node.fromPrefetch = replaced.prefetched != 0;
+            retire(replaced);
+            writeBuffer.add(replaced);
+        }
+        writeBuffer.add(node);
+        tryDrain();
+    }
+
+    @Override
+    public DNSMessage get(CacheKey q) {
+        Node node = data.get(q);
+        if (node == null) {
+            missCount.increment();
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (node.expires < now) {
+            missCount.increment();
+            expireCount.increment();
+            if (!LRUCache.isStale(node.message, node.expires, staleWindow, now) && data.remove(q, node)) {
+                retire(node);
+                writeBuffer.add(node);
+                tryDrain();
+            }
+            return null;
+        }
+
+        if (node.negative) {
+            negativeHitCount.increment();
+        } else {
+            hitCount.increment();
+        }
+        int hits = node.hits;
+        if (hits < prefetchMinHits) {
+            // Racy, the access frequency is approximate. Popular entries stop writing once they qualify.
+            node.hits = hits + 1;
+        }
+        if (hits == 0 && node.fromPrefetch) {
+            prefetchHitCount.increment();
+        }
+        if (!readBuffers[StripedCounter.probe() & (readBuffers.length - 1)].offer(node)) {
+            tryDrain();
+        }
+        return node.message;
+    }
+
+    @Override
+    public DNSMessage getStale(CacheKey q) {
+        Node node = data.get(q);
+        if (node == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        if (node.expires >= now) {
+            return node.message;
+        }
+        if (!LRUCache.isStale(node.message, node.expires, staleWindow, now)) {
+            return null;
+        }
+        staleHitCount.increment();
+        return LRUCache.asStaleResponse(node.message, now);
+    }
+
+    @Override
+    public boolean needsPrefetch(CacheKey q) {
+        int prefetchPercent = this.prefetchPercent;
+        if (prefetchPercent <= 0) {
+            return false;
+        }
+        Node node = data.get(q);
+        if (node == null || node.hits < prefetchMinHits) {
+            return false;
+        }
+        long remaining = node.expires - System.currentTimeMillis();
+        long lifetime = node.expires - node.message.receiveTimestamp;
+        if (remaining <= 0 || remaining * 100 > lifetime * prefetchPercent) {
+            return false;
+        }
+        return PREFETCHED.compareAndSet(node, 0, 1);
+    }
+
+    /**
+     * Clear all entries in this cache.
+     */
+    public void clear() {
+        evictionLock.lock();
+        try {
+            for (Node node : data.values()) {
+                if (data.remove(node.key, node)) {
+                    retire(node);
+                }
+            }
+            drainBuffers();
+            for (Node node = head; node != null;) {
+                Node next = node.next;
+                if (node.retired) {
+                    unlink(node);
+                }
+                node = next;
+            }
+            missCount.reset();
+            hitCount.reset();
+            negativeHitCount.reset();
+            staleHitCount.reset();
+            prefetchHitCount.reset();
+            wastedPrefetchCount.reset();
+            expireCount.reset();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Set the upper bound of the ttl of negative responses (NXDOMAIN or NODATA). Only affects responses cached
+     * afterwards.
+     *
+     * @param maxNegativeTTL the upper bound in seconds.
+     */
+    public void setMaxNegativeTTL(long maxNegativeTTL) {
+        this.maxNegativeTTL = maxNegativeTTL;
+    }
+
+    /**
+     * Set how long expired responses are kept, so that they can be served stale by {@link #getStale(CacheKey)}.
+     * RFC 8767 § 5 suggests a value between one and three days.
+     *
+     * @param staleWindow the stale window in seconds, 0 disables serving stale responses.
+     */
+    public void setStaleWindow(long staleWindow) {
+        this.staleWindow = staleWindow;
+    }
+
+    /**
+     * Enable prefetching of popular entries. An entry is reported by {@link #needsPrefetch(CacheKey)} once it had at
+     * least the given number of hits and is requested within the given last part of its lifetime. Unbound prefetches
+     * in the last 10 percent.
+     *
+     * @param ttlPercent the last part of the lifetime of an entry in percent, 0 disables prefetching.
+     * @param minHits the number of hits an entry needs to be prefetched.
+     */
+    public void setPrefetch(int ttlPercent, int minHits) {
+        this.prefetchMinHits = minHits;
+        this.prefetchPercent = ttlPercent;
+    }
+
+    /**
+     * Get the number of entries in this cache. This may briefly exceed the capacity while other threads modify the
+     * cache.
+     * @return The number of entries.
+     */
+    public int size() {
+        return data.size();
+    }
+
+    /**
+     * Get the miss count of this cache which is the number of fruitless
+     * get calls since this cache was last resetted.
+     * @return The number of cache misses.
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * The number of expires (cache hits that have had a ttl to low to be
+     * retrieved).
+     * @return The expire count.
+     */
+    public long getExpireCount() {
+        return expireCount.sum();
+    }
+
+    /**
+     * The cache hit count (all sucessful calls to get).
+     * @return The hit count.
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * The cache hit count of negative responses (NXDOMAIN or NODATA), which are not included in the hit count.
+     * @return The negative hit count.
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount.sum();
+    }
+
+    /**
+     * The number of expired responses served stale.
+     * @return The stale hit count.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount.sum();
+    }
+
+    /**
+     * The number of prefetched responses which were requested at least once.
+     * @return The prefetch hit count.
+     */
+    public long getPrefetchHitCount() {
+        return prefetchHitCount.sum();
+    }
+
+    /**
+     * The number of prefetched responses which expired, were replaced or evicted without being requested.
+     * @return The wasted prefetch count.
+     */
+    public long getWastedPrefetchCount() {
+        return wastedPrefetchCount.sum();
+    }
+
+    /**
+     * Drain the buffers if the eviction lock is available. If another thread holds the lock, it will see the writes
+     * of this thread once it released the lock.
+     */
+    private void tryDrain() {
+        while (evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+            if (writeBuffer.isEmpty()) {
+                return;
+            }
+        }
+    }
+
+    private void drainBuffers() {
+        for (ReadBuffer readBuffer : readBuffers) {
+            readBuffer.drain(this);
+        }
+
+        Node node;
+        while ((node = writeBuffer.poll()) != null) {
+            if (node.retired) {
+                unlink(node);
+            } else if (!node.linked) {
+                link(node);
+            }
+        }
+
+        while (linkedCount > capacity) {
+            Node victim = head;
+            unlink(victim);
+            if (data.remove(victim.key, victim)) {
+                retire(victim);
+            }
+        }
+    }
+
+    private void retire(Node node) {
+        node.retired = true;
+        if (node.fromPrefetch && node.hits == 0) {
+            wastedPrefetchCount.increment();
+        }
+    }
+
+    private void onAccess(Node node) {
+        if (!node.linked || node == tail) {
+            return;
+        }
+        unlink(node);
+        link(node);
+    }
+
+    private void link(Node node) {
+        node.prev = tail;
+        node.next = null;
+        if (tail == null) {
+            head = node;
+        } else {
+            tail.next = node;
+        }
+        tail = node;
+        node.linked = true;
+        linkedCount++;
+    }
+
+    private void unlink(Node node) {
+        if (!node.linked) {
+            return;
+        }
+        if (node.prev == null) {
+            head = node.next;
+        } else {
+            node.prev.next = node.next;
+        }
+        if (node.next == null) {
+            tail = node.prev;
+        } else {
+            node.next.prev = node.prev;
+        }
+        node.prev = null;
+        node.next = null;
+        node.linked = false;
+        linkedCount--;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentLRUCache{usage=" + data.size() + "/" + capacity + ", hits=" + getHitCount()
+                + ", negativeHits=" + getNegativeHitCount() + ", staleHits=" + getStaleHitCount()
+                + ", prefetchHits=" + getPrefetchHitCount() + ", wastedPrefetches=" + getWastedPrefetchCount()
+                + ", misses=" + getMissCount()
+                + ", expires=" + getExpireCount() + "}";
+    }
+
+    private static final class Node {
+        private final CacheKey key;
+        private final DNSMessage message;
+        private final boolean negative;
+
+        /**
+         * The point in time in milliseconds at which this node expires.
+         */
+        private final long expires;
+
+        /**
+         * Set once the node has been removed from the map.
+         */
+        private volatile boolean retired;
+
+        /**
+         * The number of hits, only counted up to the number of hits required for prefetching.
+         */
+        private volatile int hits;
+
+        /**
+         * 1 once the node has been reported by {@link ConcurrentLRUCache#needsPrefetch(CacheKey)}. Not private, as
+         * the field updater can not access private fields of nested classes before Java 11.
+         */
+        volatile int prefetched;
+
+        /**
+         * Whether this node replaced a node which was reported for prefetching.
+         */
+        private volatile boolean fromPrefetch;
+
+        // Guarded by the eviction lock.
+        private boolean linked;
+        private Node prev;
+        private Node next;
+
+        private Node(CacheKey key, DNSMessage message, long expires) {
+            this.key = key;
+            this.message = message;
+            this.negative = LRUCache.isNegative(message);
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * A bounded buffer of recent reads. Any thread may offer a read, only the holder of the eviction lock drains it.
+     * Reads offered while the buffer is full or while another thread is offering are dropped.
+     */
+    private static final class ReadBuffer {
+        private final AtomicReferenceArray<Node> buffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+        private final AtomicLong writeCount = new AtomicLong();
+
+        // Only written by the holder of the eviction lock.
+        private volatile long readCount;
+
+        /**
+         * Record a read.
+         *
+         * @param node the node which was read.
+         * @return false if the buffer is full and should be drained.
+         */
+        private boolean offer(Node node) {
+            long tail = writeCount.get();
+            if (tail - readCount >= READ_BUFFER_SIZE) {
+                return false;
+            }
+            if (writeCount.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & (READ_BUFFER_SIZE - 1)), node);
+            }
+            return true;
+        }
+
+        private void drain(ConcurrentLRUCache cache) {
+            long head = readCount;
+            long tail = writeCount.get();
+            for (; head < tail; head++) {
+                int index = (int) (head & (READ_BUFFER_SIZE - 1));
+                Node node = buffer.get(index);
+                if (node == null) {
+                    // The slot has been claimed, but the node is not yet published.
+                    break;
+                }
+                buffer.lazySet(index, null);
+                cache.onAccess(node);
+            }
+            readCount = head;
+        }
+    }
+}
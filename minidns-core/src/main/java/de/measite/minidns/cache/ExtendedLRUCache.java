@@ -16,7 +16,9 @@ import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 
+import de.measite.minidns.CacheKey;
 import de.measite.minidns.DNSMessage;
+import de.measite.minidns.DNSMessage.RESPONSE_CODE;
 import de.measite.minidns.Question;
 import de.measite.minidns.Record;
 
@@ -36,38 +38,43 @@ public class ExtendedLRUCache extends LRUCache {
     @Override
     public void put(DNSMessage q, DNSMessage message) {
         super.put(q, message);
-        Map<DNSMessage, List<Record>> extraCaches = new HashMap<>(message.additionalSection.size());
+        if (message.responseCode != RESPONSE_CODE.NO_ERROR) {
+            // The gathered records would be served with the error response code.
+            return;
+        }
+        Map<CacheKey, List<Record>> extraCaches = new HashMap<>(message.additionalSection.size());
 
-        gather(extraCaches, q, message.answerSection);
-        gather(extraCaches, q, message.authoritySection);
-        gather(extraCaches, q, message.additionalSection);
+        CacheKey key = q.asCacheKey();
+        gather(extraCaches, q, key, message.answerSection);
+        gather(extraCaches, q, key, message.authoritySection);
+        gather(extraCaches, q, key, message.additionalSection);
 
-        for (Entry<DNSMessage, List<Record>> entry : extraCaches.entrySet()) {
+        for (Entry<CacheKey, List<Record>> entry : extraCaches.entrySet()) {
             DNSMessage answer = message.asBuilder().addAnswers(entry.getValue()).build();
-            DNSMessage question = entry.getKey();
-            super.put(question, answer);
+            super.put(entry.getKey(), answer);
         }
     }
 
-    private final void gather(Map<DNSMessage, List<Record>> extraCaches, DNSMessage q, List<Record> records) {
+    private final void gather(Map<CacheKey, List<Record>> extraCaches, DNSMessage q, CacheKey key, List<Record> records) {
         for (Record extraRecord : records) {
             if (!shouldGather(extraRecord, q.getQuestion()))
                 continue;
 
-            DNSMessage.Builder additionalRecordQuestionBuilder = extraRecord.getQuestionMessage();
-            if (additionalRecordQuestionBuilder == null)
+            Question extraQuestion = extraRecord.getQuestion();
+            if (extraQuestion == null)
                 continue;
 
-            DNSMessage additionalRecordQuestion = additionalRecordQuestionBuilder.build();
-            if (additionalRecordQuestion.equals(q)) {
+            // The extra records were received with the flags of the original query.
+            CacheKey additionalRecordKey = new CacheKey(extraQuestion, key.recursionDesired, key.checkingDisabled, key.dnssecOk);
+            if (additionalRecordKey.equals(key)) {
                 // No need to cache the additional question if it is the same as the original question.
                 continue;
             }
 
-            List<Record> additionalRecords = extraCaches.get(additionalRecordQuestion);
+            List<Record> additionalRecords = extraCaches.get(additionalRecordKey);
             if (additionalRecords == null) {
                  additionalRecords = new LinkedList<>();
-                 extraCaches.put(additionalRecordQuestion, additionalRecords);
+                 extraCaches.put(additionalRecordKey, additionalRecords);
             }
             additionalRecords.add(extraRecord);
         }
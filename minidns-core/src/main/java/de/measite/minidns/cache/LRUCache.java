@@ -10,17 +10,32 @@
  */
 package de.measite.minidns.cache;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map.Entry;
 
-import de.measite.minidns.DNSCache;
+import de.measite.minidns.CacheKey;
 import de.measite.minidns.DNSMessage;
+import de.measite.minidns.DNSMessage.RESPONSE_CODE;
+import de.measite.minidns.DNSName;
+import de.measite.minidns.Question;
 import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.StaleDNSCache;
+import de.measite.minidns.record.CNAME;
 
 /**
  * LRU based DNSCache backed by a LinkedHashMap.
+ * <p>
+ * Responses are cached per query, that is per name, type and class. This includes negative responses, so a cached
+ * NXDOMAIN response only answers the query it was received for. Queries for other types of the same name still go
+ * upstream, although RFC 2308 § 5 allows to answer them from the cached NXDOMAIN. Use {@link RRsetCache} to cache
+ * NXDOMAIN per name.
+ * </p>
  */
-public class LRUCache implements DNSCache {
+public class LRUCache implements StaleDNSCache {
 
     /**
      * Internal miss count.
@@ -37,20 +52,40 @@ public class LRUCache implements DNSCache {
      */
     protected long hitCount = 0L;
 
+    /**
+     * Internal hit count of negative responses (NXDOMAIN or NODATA).
+     */
+    protected long negativeHitCount = 0L;
+
+    /**
+     * Internal hit count of stale responses.
+     */
+    protected long staleHitCount = 0L;
+
     /**
      * The internal capacity of the backend cache.
      */
     protected int capacity;
 
     /**
-     * The upper bound of the ttl. All longer TTLs will be capped by this ttl.
+     * The upper bound of the ttl in seconds. All longer TTLs will be capped by this ttl.
      */
     protected long maxTTL;
 
+    /**
+     * The upper bound of the ttl of negative responses, defaults to 3 hours as recommended by RFC 2308 § 5.
+     */
+    protected long maxNegativeTTL = 10800;
+
+    /**
+     * How long expired responses are kept to be served stale in seconds, 0 disables serving stale responses.
+     */
+    protected long staleWindow = 0L;
+
     /**
      * The backend cache.
      */
-    protected LinkedHashMap<DNSMessage, DNSMessage> backend;
+    protected LinkedHashMap<CacheKey, DNSMessage> backend;
 
     /**
      * Create a new LRUCache with given capacity and upper bound ttl.
@@ -61,12 +96,12 @@ public class LRUCache implements DNSCache {
     public LRUCache(final int capacity, final long maxTTL) {
         this.capacity = capacity;
         this.maxTTL = maxTTL;
-        backend = new LinkedHashMap<DNSMessage, DNSMessage>(
+        backend = new LinkedHashMap<CacheKey, DNSMessage>(
                 Math.min(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true)
             {
                 @Override
                 protected boolean removeEldestEntry(
-                        Entry<DNSMessage, DNSMessage> eldest) {
+                        Entry<CacheKey, DNSMessage> eldest) {
                     return size() > capacity;
                 }
             };
@@ -81,7 +116,17 @@ public class LRUCache implements DNSCache {
     }
 
     @Override
-    public synchronized void put(DNSMessage q, DNSMessage message) {
+    public void put(DNSMessage q, DNSMessage message) {
+        put(q.asCacheKey(), message);
+    }
+
+    @Override
+    public DNSMessage get(DNSMessage q) {
+        return get(q.asCacheKey());
+    }
+
+    @Override
+    public synchronized void put(CacheKey q, DNSMessage message) {
         if (message.receiveTimestamp <= 0L) {
             return;
         }
@@ -89,30 +134,164 @@ public class LRUCache implements DNSCache {
     }
 
     @Override
-    public synchronized DNSMessage get(DNSMessage q) {
+    public synchronized DNSMessage get(CacheKey q) {
         DNSMessage message = backend.get(q);
         if (message == null) {
             missCount++;
             return null;
         }
 
-        long ttl = maxTTL;
-        // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
-        // shortest TTL to be the effective one.
-        for (Record r : message.answerSection) {
-            ttl = Math.min(ttl, r.ttl);
-        }
-        if (message.receiveTimestamp + ttl < System.currentTimeMillis()) {
+        long now = System.currentTimeMillis();
+        long expires = expiresAt(message, maxTTL, maxNegativeTTL);
+        if (expires < now) {
             missCount++;
             expireCount++;
-            backend.remove(q);
+            if (!isStale(message, expires, staleWindow, now)) {
+                backend.remove(q);
+            }
             return null;
+        } else if (isNegative(message)) {
+            negativeHitCount++;
+            return message;
         } else {
             hitCount++;
             return message;
         }
     }
 
+    @Override
+    public synchronized DNSMessage getStale(CacheKey q) {
+        DNSMessage message = backend.get(q);
+        if (message == null) {
+            return null;
+        }
+
+        long now = System.currentTimeMillis();
+        long expires = expiresAt(message, maxTTL, maxNegativeTTL);
+        if (expires >= now) {
+            return message;
+        }
+        if (!isStale(message, expires, staleWindow, now)) {
+            return null;
+        }
+        staleHitCount++;
+        return asStaleResponse(message, now);
+    }
+
+    /**
+     * Set how long expired responses are kept, so that they can be served stale by {@link #getStale(CacheKey)}.
+     * RFC 8767 § 5 suggests a value between one and three days.
+     *
+     * @param staleWindow the stale window in seconds, 0 disables serving stale responses.
+     */
+    public synchronized void setStaleWindow(long staleWindow) {
+        this.staleWindow = staleWindow;
+    }
+
+    /**
+     * Set the upper bound of the ttl of negative responses (NXDOMAIN or NODATA).
+     *
+     * @param maxNegativeTTL the upper bound in seconds.
+     */
+    public synchronized void setMaxNegativeTTL(long maxNegativeTTL) {
+        this.maxNegativeTTL = maxNegativeTTL;
+    }
+
+    /**
+     * Get the point in time at which a cached response expires.
+     *
+     * @param message the response.
+     * @param maxTTL the upper bound of the ttl in seconds.
+     * @param maxNegativeTTL the upper bound of the ttl of negative responses in seconds.
+     * @return the point in time in milliseconds.
+     */
+    static long expiresAt(DNSMessage message, long maxTTL, long maxNegativeTTL) {
+        if (message.responseCode != RESPONSE_CODE.NO_ERROR && message.responseCode != RESPONSE_CODE.NX_DOMAIN) {
+            return message.receiveTimestamp;
+        }
+
+        long ttl = maxTTL;
+        // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
+        // shortest TTL to be the effective one.
+        for (Record r : message.answerSection) {
+            ttl = Math.min(ttl, r.ttl);
+        }
+        if (isNegative(message)) {
+            long negativeTtl = message.getNegativeTtl();
+            if (negativeTtl < 0) {
+                // RFC 2308 § 5: Negative responses without SOA records should not be cached.
+                return message.receiveTimestamp;
+            }
+            ttl = Math.min(ttl, Math.min(negativeTtl, maxNegativeTTL));
+        }
+        ttl = Math.min(ttl, (Long.MAX_VALUE - message.receiveTimestamp) / 1000);
+        return message.receiveTimestamp + ttl * 1000;
+    }
+
+    /**
+     * Check if an expired response may still be served stale. Responses which were never fresh are not.
+     */
+    static boolean isStale(DNSMessage message, long expires, long staleWindow, long now) {
+        return expires > message.receiveTimestamp && (now - expires) / 1000 < staleWindow;
+    }
+
+    /**
+     * Copy a response, setting the TTL of the answer and authority records to {@link StaleDNSCache#STALE_TTL}.
+     */
+    static DNSMessage asStaleResponse(DNSMessage message, long now) {
+        return message.asBuilder()
+                .setAnswers(withStaleTtl(message.answerSection))
+                .setNameserverRecords(withStaleTtl(message.authoritySection))
+                .setReceiveTimestamp(now)
+                .build();
+    }
+
+    private static List<Record> withStaleTtl(List<Record> records) {
+        List<Record> result = new ArrayList<>(records.size());
+        for (Record r : records) {
+            result.add(new Record(r.name, r.type, r.clazz, STALE_TTL, r.payloadData, r.isUnicastQuery()));
+        }
+        return result;
+    }
+
+    /**
+     * Check if a response is negative as defined in RFC 2308 § 1: NXDOMAIN, or NODATA if no record of the answer
+     * section answers the question. The CNAME chain of the question name is followed, so a chain whose last name has
+     * no records of the requested type is NODATA as well (RFC 2308 § 2.2).
+     */
+    static boolean isNegative(DNSMessage message) {
+        if (message.responseCode == RESPONSE_CODE.NX_DOMAIN) {
+            return true;
+        }
+        if (message.questions.isEmpty()) {
+            return message.answerSection.isEmpty();
+        }
+
+        Question question = message.getQuestion();
+        DNSName name = question.name;
+        // Every name of the chain needs its own CNAME record, so a chain can never be longer than the answer section.
+        for (int i = 0; i <= message.answerSection.size(); i++) {
+            DNSName canonicalName = null;
+            for (Record record : message.answerSection) {
+                if (!record.name.equals(name) || (record.clazz != question.clazz && question.clazz != CLASS.ANY)) {
+                    continue;
+                }
+                if (record.type == question.type || question.type == TYPE.ANY) {
+                    return false;
+                }
+                if (record.type == TYPE.CNAME) {
+                    canonicalName = ((CNAME) record.payloadData).name;
+                }
+            }
+            if (canonicalName == null) {
+                return true;
+            }
+            name = canonicalName;
+        }
+        // The CNAME chain is cyclic.
+        return true;
+    }
+
     /**
      * Clear all entries in this cache.
      */
@@ -120,6 +299,8 @@ public class LRUCache implements DNSCache {
         backend.clear();
         missCount = 0L;
         hitCount = 0L;
+        negativeHitCount = 0L;
+        staleHitCount = 0L;
         expireCount = 0L;
     }
 
@@ -149,8 +330,24 @@ public class LRUCache implements DNSCache {
         return hitCount;
     }
 
+    /**
+     * The cache hit count of negative responses (NXDOMAIN or NODATA), which are not included in the hit count.
+     * @return The negative hit count.
+     */
+    public long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /**
+     * The number of expired responses served stale.
+     * @return The stale hit count.
+     */
+    public long getStaleHitCount() {
+        return staleHitCount;
+    }
+
     @Override
     public String toString() {
-        return "LRUCache{usage=" + backend.size() + "/" + capacity + ", hits=" + hitCount + ", misses=" + missCount + ", expires=" + expireCount + "}";
+        return "LRUCache{usage=" + backend.size() + "/" + capacity + ", hits=" + hitCount + ", negativeHits=" + negativeHitCount + ", staleHits=" + staleHitCount + ", misses=" + missCount + ", expires=" + expireCount + "}";
     }
 }
@@ -0,0 +1,573 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.cache;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import de.measite.minidns.CacheKey;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.KeyedDNSCache;
+import de.measite.minidns.Record.TYPE;
+
+/**
+ * A DNSCache which keeps the responses in wire format outside of the Java heap, so that caching millions of responses
+ * does not increase the heap usage and the garbage collection pauses.
+ * <p>
+ * The responses are appended to fixed size slabs, which are direct {@link ByteBuffer}s by default. Subclasses can
+ * override {@link #allocateSlab(int, int)} to map the slabs from a file instead. The entries are found by an open
+ * addressing hash table of primitive arrays, which is the only per entry state on the heap. The capacity is bounded in
+ * bytes. Once all slabs are full, the slab whose entries expire first is evicted as a whole, which prefers slabs
+ * holding only expired entries.
+ * </p>
+ * <p>
+ * A response is only decoded into a {@link DNSMessage} on a hit. {@link #getWireFormat(CacheKey)} returns the response
+ * bytes without decoding them, e.g. to forward them to a client. In both cases the TTLs of the records are decreased by
+ * the time the response has been in the cache.
+ * </p>
+ * <p>
+ * Like with {@link LRUCache}, responses are cached per query, so a cached NXDOMAIN response only answers queries for
+ * the same name, type and class, not for other types of the name as RFC 2308 § 5 allows.
+ * </p>
+ */
+public class OffHeapDNSCache implements KeyedDNSCache {
+
+    /**
+     * The default slab size of 1 MiB.
+     */
+    public static final int DEFAULT_SLAB_SIZE = 1024 * 1024;
+
+    /**
+     * The size of the fixed fields of an entry: hash (4), key length (2), expires (8), receive timestamp (8) and
+     * response length (4). The key and the response follow the key length and the response length.
+     */
+    private static final int ENTRY_HEADER_SIZE = 26;
+
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+
+    private static final long EMPTY = 0L;
+
+    private static final long DELETED = -1L;
+
+    /**
+     * Internal miss count.
+     */
+    protected long missCount = 0L;
+
+    /**
+     * Internal expire count (subset of misses that was caused by expire).
+     */
+    protected long expireCount = 0L;
+
+    /**
+     * Internal hit count.
+     */
+    protected long hitCount = 0L;
+
+    /**
+     * Internal count of entries which were evicted before they expired.
+     */
+    protected long evictionCount = 0L;
+
+    /**
+     * The upper bound of the ttl in seconds. All longer TTLs will be capped by this ttl.
+     */
+    protected long maxTTL = Long.MAX_VALUE;
+
+    /**
+     * The upper bound of the ttl of negative responses, defaults to 3 hours as recommended by RFC 2308 § 5.
+     */
+    protected long maxNegativeTTL = 10800;
+
+    private final int slabSize;
+
+    /**
+     * The slabs, allocated once they are first written to.
+     */
+    private final ByteBuffer[] slabs;
+
+    /**
+     * The number of bytes written to each slab.
+     */
+    private final int[] slabFill;
+
+    /**
+     * The latest expiry time of the entries of each slab.
+     */
+    private final long[] slabExpires;
+
+    private int currentSlab;
+
+    /**
+     * The hashes of the keys of the index slots.
+     */
+    private int[] indexHashes = new int[INITIAL_INDEX_CAPACITY];
+
+    /**
+     * The locations of the entries of the index slots, see {@link #location(int, int)}, or {@link #EMPTY} or
+     * {@link #DELETED}.
+     */
+    private long[] indexLocations = new long[INITIAL_INDEX_CAPACITY];
+
+    private int size;
+
+    private int deletedSlots;
+
+    /**
+     * Create a new off-heap cache using slabs of {@link #DEFAULT_SLAB_SIZE}.
+     *
+     * @param capacity the capacity in bytes.
+     */
+    public OffHeapDNSCache(long capacity) {
+        this(capacity, DEFAULT_SLAB_SIZE);
+    }
+
+    /**
+     * Create a new off-heap cache. No response larger than a slab is cached.
+     *
+     * @param capacity the capacity in bytes, rounded down to a multiple of the slab size but at least one slab.
+     * @param slabSize the size of a slab in bytes.
+     */
+    public OffHeapDNSCache(long capacity, int slabSize) {
+        if (slabSize <= ENTRY_HEADER_SIZE) {
+            throw new IllegalArgumentException("Slab size too small: " + slabSize);
+        }
+        long slabCount = Math.max(1, capacity / slabSize);
+        if (slabCount > Integer.MAX_VALUE - 1) {
+            throw new IllegalArgumentException("Too many slabs: " + slabCount);
+        }
+        this.slabSize = slabSize;
+        this.slabs = new ByteBuffer[(int) slabCount];
+        this.slabFill = new int[slabs.length];
+        this.slabExpires = new long[slabs.length];
+    }
+
+    /**
+     * Allocate the storage of a slab. The default implementation allocates a direct buffer, subclasses may map a
+     * region of a file instead, e.g. using {@link java.nio.channels.FileChannel#map}. The cache does not persist its
+     * index, so the slab contents are not reused after a restart.
+     *
+     * @param index the index of the slab.
+     * @param size the size of the slab in bytes.
+     * @return the slab storage with a capacity of at least size bytes.
+     */
+    protected ByteBuffer allocateSlab(int index, int size) {
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    @Override
+    public void put(DNSMessage q, DNSMessage message) {
+        put(q.asCacheKey(), message);
+    }
+
+    @Override
+    public DNSMessage get(DNSMessage q) {
+        return get(q.asCacheKey());
+    }
+
+    @Override
+    public void put(CacheKey q, DNSMessage message) {
+        long expires = LRUCache.expiresAt(message, maxTTL, maxNegativeTTL);
+        if (expires <= System.currentTimeMillis()) {
+            return;
+        }
+        byte[] key = keyBytes(q);
+        byte[] data;
+        try {
+            data = message.toArray();
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+        int entrySize = ENTRY_HEADER_SIZE + key.length + data.length;
+        if (entrySize > slabSize) {
+            return;
+        }
+        int hash = hash(q);
+
+        synchronized (this) {
+            int slot = find(hash, key);
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+            if (slabFill[currentSlab] + entrySize > slabSize) {
+                nextSlab();
+            }
+            if (slabs[currentSlab] == null) {
+                slabs[currentSlab] = allocateSlab(currentSlab, slabSize);
+            }
+
+            int offset = slabFill[currentSlab];
+            ByteBuffer slab = slabs[currentSlab].duplicate();
+            slab.position(offset);
+            slab.putInt(hash);
+            slab.putShort((short) key.length);
+            slab.put(key);
+            slab.putLong(expires);
+            slab.putLong(message.receiveTimestamp);
+            slab.putInt(data.length);
+            slab.put(data);
+            slabFill[currentSlab] = slab.position();
+            slabExpires[currentSlab] = Math.max(slabExpires[currentSlab], expires);
+            insert(hash, location(currentSlab, offset));
+        }
+    }
+
+    @Override
+    public DNSMessage get(CacheKey q) {
+        byte[] data = getWireFormat(q);
+        if (data == null) {
+            return null;
+        }
+        try {
+            return new DNSMessage(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not decode the cached response for " + q, e);
+        }
+    }
+
+    /**
+     * Request a cached response in wire format, without decoding it. The TTLs of the records are decreased by the time
+     * the response has been in the cache. The message ID is the one of the cached response.
+     *
+     * @param q the cache key of the query.
+     * @return the response bytes, or <code>null</code> if no response is cached.
+     */
+    public byte[] getWireFormat(CacheKey q) {
+        byte[] key = keyBytes(q);
+        int hash = hash(q);
+        long now = System.currentTimeMillis();
+        long receiveTimestamp;
+        byte[] data;
+
+        synchronized (this) {
+            int slot = find(hash, key);
+            if (slot < 0) {
+                missCount++;
+                return null;
+            }
+            long location = indexLocations[slot];
+            ByteBuffer slab = slabs[slabOf(location)].duplicate();
+            slab.position(offsetOf(location) + 6 + key.length);
+            if (slab.getLong() <= now) {
+                removeSlot(slot);
+                expireCount++;
+                missCount++;
+                return null;
+            }
+            receiveTimestamp = slab.getLong();
+            data = new byte[slab.getInt()];
+            slab.get(data);
+            hitCount++;
+        }
+
+        decreaseTtls(data, (now - receiveTimestamp) / 1000);
+        return data;
+    }
+
+    /**
+     * Clear all entries in this cache. The slabs are kept for reuse.
+     */
+    public synchronized void clear() {
+        Arrays.fill(slabFill, 0);
+        Arrays.fill(slabExpires, 0L);
+        currentSlab = 0;
+        indexHashes = new int[INITIAL_INDEX_CAPACITY];
+        indexLocations = new long[INITIAL_INDEX_CAPACITY];
+        size = 0;
+        deletedSlots = 0;
+        missCount = 0L;
+        hitCount = 0L;
+        expireCount = 0L;
+        evictionCount = 0L;
+    }
+
+    /**
+     * Set the upper bound of the ttl in seconds. All longer TTLs will be capped by this ttl.
+     *
+     * @param maxTTL the maximum ttl in seconds.
+     */
+    public synchronized void setMaxTTL(long maxTTL) {
+        this.maxTTL = maxTTL;
+    }
+
+    /**
+     * Set the upper bound of the ttl of negative responses in seconds.
+     *
+     * @param maxNegativeTTL the maximum negative ttl in seconds.
+     */
+    public synchronized void setMaxNegativeTTL(long maxNegativeTTL) {
+        this.maxNegativeTTL = maxNegativeTTL;
+    }
+
+    /**
+     * Get the number of entries in this cache, including expired entries which have not been removed yet.
+     *
+     * @return the number of entries.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Get the number of bytes written to the slabs, including the space of removed entries which is reclaimed once
+     * their slab is evicted.
+     *
+     * @return the used bytes.
+     */
+    public synchronized long getUsedBytes() {
+        long usedBytes = 0;
+        for (int fill : slabFill) {
+            usedBytes += fill;
+        }
+        return usedBytes;
+    }
+
+    /**
+     * Get the capacity of this cache.
+     *
+     * @return the capacity in bytes.
+     */
+    public long getCapacity() {
+        return (long) slabs.length * slabSize;
+    }
+
+    /**
+     * Get the number of cache misses.
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * Get the number of expired entries (subset of misses).
+     * @return The expire count.
+     */
+    public synchronized long getExpireCount() {
+        return expireCount;
+    }
+
+    /**
+     * The number of cache hits.
+     * @return The hit count.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * The number of entries which were evicted to make room for new entries before they expired.
+     * @return The eviction count.
+     */
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "OffHeapDNSCache{usage=" + size + " entries, " + getUsedBytes() + "/" + getCapacity() + " bytes"
+                + ", hits=" + hitCount + ", misses=" + missCount + ", expires=" + expireCount
+                + ", evictions=" + evictionCount + "}";
+    }
+
+    /**
+     * Make the next slab the current one. An empty slab is preferred, otherwise the slab whose entries expire first is
+     * evicted.
+     */
+    private void nextSlab() {
+        int next = -1;
+        for (int i = 0; i < slabs.length; i++) {
+            if (i == currentSlab && slabs.length > 1) {
+                continue;
+            }
+            if (slabFill[i] == 0) {
+                next = i;
+                break;
+            }
+            if (next == -1 || slabExpires[i] < slabExpires[next]) {
+                next = i;
+            }
+        }
+        if (slabFill[next] > 0) {
+            evictSlab(next);
+        }
+        currentSlab = next;
+    }
+
+    private void evictSlab(int index) {
+        ByteBuffer slab = slabs[index];
+        long now = System.currentTimeMillis();
+        int offset = 0;
+        while (offset < slabFill[index]) {
+            int keyLength = slab.getShort(offset + 4);
+            int expiresOffset = offset + 6 + keyLength;
+            int slot = findLocation(slab.getInt(offset), location(index, offset));
+            if (slot >= 0) {
+                removeSlot(slot);
+                if (slab.getLong(expiresOffset) > now) {
+                    evictionCount++;
+                }
+            }
+            offset = expiresOffset + 20 + slab.getInt(expiresOffset + 16);
+        }
+        slabFill[index] = 0;
+        slabExpires[index] = 0L;
+    }
+
+    private int find(int hash, byte[] key) {
+        int mask = indexLocations.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            long location = indexLocations[i];
+            if (location == EMPTY) {
+                return -1;
+            }
+            if (location != DELETED && indexHashes[i] == hash && keyEquals(location, key)) {
+                return i;
+            }
+        }
+    }
+
+    private int findLocation(int hash, long location) {
+        int mask = indexLocations.length - 1;
+        for (int i = hash & mask;; i = (i + 1) & mask) {
+            if (indexLocations[i] == EMPTY) {
+                return -1;
+            }
+            if (indexLocations[i] == location) {
+                return i;
+            }
+        }
+    }
+
+    private boolean keyEquals(long location, byte[] key) {
+        ByteBuffer slab = slabs[slabOf(location)];
+        int offset = offsetOf(location);
+        if (slab.getShort(offset + 4) != key.length) {
+            return false;
+        }
+        offset += 6;
+        for (int i = 0; i < key.length; i++) {
+            if (slab.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void insert(int hash, long location) {
+        // Keep the load factor including deleted slots below 3/4, so that probing always ends at an empty slot.
+        if ((size + deletedSlots + 1) * 4L > indexLocations.length * 3L) {
+            rehash((size + 1) * 2L > indexLocations.length ? indexLocations.length * 2 : indexLocations.length);
+        }
+        int mask = indexLocations.length - 1;
+        int i = hash & mask;
+        while (indexLocations[i] != EMPTY && indexLocations[i] != DELETED) {
+            i = (i + 1) & mask;
+        }
+        if (indexLocations[i] == DELETED) {
+            deletedSlots--;
+        }
+        indexHashes[i] = hash;
+        indexLocations[i] = location;
+        size++;
+    }
+
+    private void removeSlot(int slot) {
+        indexLocations[slot] = DELETED;
+        deletedSlots++;
+        size--;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldHashes = indexHashes;
+        long[] oldLocations = indexLocations;
+        indexHashes = new int[capacity];
+        indexLocations = new long[capacity];
+        size = 0;
+        deletedSlots = 0;
+        for (int i = 0; i < oldLocations.length; i++) {
+            if (oldLocations[i] != EMPTY && oldLocations[i] != DELETED) {
+                insert(oldHashes[i], oldLocations[i]);
+            }
+        }
+    }
+
+    /**
+     * Encode the location of an entry, which is never {@link #EMPTY} or {@link #DELETED}.
+     */
+    private static long location(int slab, int offset) {
+        return ((long) (slab + 1) << 32) | offset;
+    }
+
+    private static int slabOf(long location) {
+        return (int) (location >>> 32) - 1;
+    }
+
+    private static int offsetOf(long location) {
+        return (int) location;
+    }
+
+    private static int hash(CacheKey q) {
+        int hash = q.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Serialize the key as the name, the type, the class and the flags, which compares like {@link CacheKey#equals}.
+     */
+    private static byte[] keyBytes(CacheKey q) {
+        ByteBuffer key = ByteBuffer.allocate(q.name.size() + 5);
+        q.name.writeTo(key);
+        key.putShort((short) q.type.getValue());
+        key.putShort((short) q.clazz.getValue());
+        key.put((byte) ((q.recursionDesired ? 1 : 0) | (q.checkingDisabled ? 2 : 0) | (q.dnssecOk ? 4 : 0)));
+        return key.array();
+    }
+
+    /**
+     * Decrease the TTLs of all records of the given response, but the OPT pseudo record, whose TTL field holds flags.
+     */
+    private static void decreaseTtls(byte[] data, long seconds) {
+        if (seconds <= 0) {
+            return;
+        }
+        ByteBuffer message = ByteBuffer.wrap(data);
+        int questionCount = message.getShort(4) & 0xffff;
+        int recordCount = (message.getShort(6) & 0xffff) + (message.getShort(8) & 0xffff)
+                + (message.getShort(10) & 0xffff);
+        int offset = 12;
+        for (int i = 0; i < questionCount; i++) {
+            offset = skipName(data, offset) + 4;
+        }
+        for (int i = 0; i < recordCount; i++) {
+            offset = skipName(data, offset);
+            if ((message.getShort(offset) & 0xffff) != TYPE.OPT.getValue()) {
+                long ttl = message.getInt(offset + 4) & 0xffffffffL;
+                message.putInt(offset + 4, (int) Math.max(0, ttl - seconds));
+            }
+            offset += 10 + (message.getShort(offset + 8) & 0xffff);
+        }
+    }
+
+    private static int skipName(byte[] data, int offset) {
+        while (true) {
+            int c = data[offset] & 0xff;
+            if ((c & 0xc0) == 0xc0) {
+                return offset + 2;
+            }
+            if (c == 0) {
+                return offset + 1;
+            }
+            offset += c + 1;
+        }
+    }
+}
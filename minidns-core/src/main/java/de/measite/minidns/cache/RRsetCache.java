@@ -0,0 +1,653 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.cache;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import de.measite.minidns.CacheKey;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.DNSMessage.RESPONSE_CODE;
+import de.measite.minidns.DNSMessage.SECTION;
+import de.measite.minidns.DNSName;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.StaleDNSCache;
+import de.measite.minidns.record.CNAME;
+import de.measite.minidns.record.RRSIG;
+
+/**
+ * A DNSCache storing individual RRsets instead of whole response messages. Responses are split into their RRsets,
+ * which are ranked by the credibility of their origin as described in RFC 2181 § 5.4.1. A cached RRset is only replaced
+ * by an RRset of at least the same credibility, unless it has expired. On lookup, the answer is assembled from the
+ * cached RRsets, following CNAME chains, with the TTLs decremented by the time the RRsets have spent in the cache.
+ * <p>
+ * Like {@link ExtendedLRUCache}, records from the authority and additional sections are only cached if they belong to
+ * the zone of the question. RRsets received with the DNSSEC OK flag are kept apart from the others, so that answers
+ * to DNSSEC queries always carry the signatures the resolver received along with the records.
+ * </p>
+ * <p>
+ * Negative responses are cached as described in RFC 2308, NXDOMAIN per name and NODATA per name and type, with the
+ * ttl taken from the SOA record of the authority section and capped by {@link #setMaxNegativeTTL(long)}.
+ * </p>
+ */
+public class RRsetCache implements StaleDNSCache {
+
+    /**
+     * The credibility of cached data, in ascending order. See RFC 2181 § 5.4.1.
+     */
+    public enum Credibility {
+        /**
+         * Data from the additional section, and data from the authority section of a non-authoritative answer.
+         */
+        ADDITIONAL,
+
+        /**
+         * Data from the answer section of a non-authoritative answer.
+         */
+        ANSWER,
+
+        /**
+         * Data from the authority section of an authoritative answer.
+         */
+        AUTHORITATIVE_AUTHORITY,
+
+        /**
+         * Data from the answer section of an authoritative answer.
+         */
+        AUTHORITATIVE_ANSWER,
+    }
+
+    /**
+     * The maximum number of CNAME records followed when assembling an answer.
+     */
+    private static final int MAX_CNAME_CHAIN_LENGTH = 8;
+
+    /**
+     * Internal miss count.
+     */
+    protected long missCount = 0L;
+
+    /**
+     * Internal expire count (subset of misses that was caused by expire).
+     */
+    protected long expireCount = 0L;
+
+    /**
+     * Internal hit count.
+     */
+    protected long hitCount = 0L;
+
+    /**
+     * Internal hit count of negative responses (NXDOMAIN or NODATA).
+     */
+    protected long negativeHitCount = 0L;
+
+    /**
+     * Internal hit count of answers assembled from expired RRsets.
+     */
+    protected long staleHitCount = 0L;
+
+    /**
+     * The maximum number of RRsets in this cache.
+     */
+    protected final int capacity;
+
+    /**
+     * The upper bound of the ttl in seconds. All longer TTLs will be capped by this ttl.
+     */
+    protected final long maxTTL;
+
+    /**
+     * The upper bound of the ttl of negative responses in seconds, defaults to 3 hours as recommended by RFC 2308 § 5.
+     */
+    protected long maxNegativeTTL = 10800;
+
+    /**
+     * How long expired RRsets are kept to be served stale in seconds, 0 disables serving stale answers.
+     */
+    protected long staleWindow = 0L;
+
+    /**
+     * The backend cache.
+     */
+    private final LinkedHashMap<RRsetKey, RRset> backend;
+
+    /**
+     * Create a new RRsetCache with given capacity and upper bound ttl.
+     * @param capacity The maximum number of RRsets.
+     * @param maxTTL The upper bound for any ttl in seconds.
+     */
+    @SuppressWarnings("serial")
+    public RRsetCache(final int capacity, final long maxTTL) {
+        this.capacity = capacity;
+        this.maxTTL = maxTTL;
+        backend = new LinkedHashMap<RRsetKey, RRset>(Math.max(capacity + (capacity + 3) / 4 + 2, 11), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Entry<RRsetKey, RRset> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Create a new RRsetCache with given capacity.
+     * @param capacity The maximum number of RRsets.
+     */
+    public RRsetCache(final int capacity) {
+        this(capacity, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void put(DNSMessage q, DNSMessage message) {
+        put(q.asCacheKey(), message);
+    }
+
+    @Override
+    public DNSMessage get(DNSMessage q) {
+        return get(q.asCacheKey());
+    }
+
+    @Override
+    public void put(CacheKey q, DNSMessage message) {
+        boolean nxDomain = message.responseCode == RESPONSE_CODE.NX_DOMAIN;
+        if (message.receiveTimestamp <= 0L || message.truncated
+                || (message.responseCode != RESPONSE_CODE.NO_ERROR && !nxDomain)) {
+            return;
+        }
+
+        Question question = new Question(q.name, q.type, q.clazz);
+        Map<RRsetKey, RRset> rrsets = new HashMap<>();
+        gather(rrsets, question, q.dnssecOk, message, SECTION.ANSWER, message.answerSection);
+        gather(rrsets, question, q.dnssecOk, message, SECTION.AUTHORITY, message.authoritySection);
+        gather(rrsets, question, q.dnssecOk, message, SECTION.ADDITIONAL, message.additionalSection);
+
+        RRset negative = gatherNegative(rrsets, q, message);
+        if (negative != null) {
+            rrsets.put(negative.key, negative);
+        }
+
+        long now = message.receiveTimestamp;
+        synchronized (this) {
+            for (RRset rrset : rrsets.values()) {
+                if (!rrset.isNegative() && !rrset.hasData()) {
+                    // Only signatures, the covered records were not cached.
+                    continue;
+                }
+                RRset cached = backend.get(rrset.key);
+                if (cached == null || cached.isExpired(System.currentTimeMillis())
+                        || rrset.credibility.compareTo(cached.credibility) >= 0) {
+                    rrset.seal(now, maxTTL);
+                    backend.put(rrset.key, rrset);
+                    if (!rrset.isNegative()) {
+                        // The name exists (again).
+                        backend.remove(new RRsetKey(rrset.key.name, TYPE.ANY, rrset.key.clazz, rrset.key.dnssecOk));
+                    }
+                }
+            }
+        }
+    }
+
+    private void gather(Map<RRsetKey, RRset> rrsets, Question question, boolean dnssecOk, DNSMessage message,
+            SECTION section, List<Record> records) {
+        Credibility credibility = getCredibility(message, section);
+        for (Record record : records) {
+            if (record.type == TYPE.OPT || !shouldCache(record, question, section)) {
+                continue;
+            }
+
+            TYPE type = record.type;
+            if (type == TYPE.RRSIG) {
+                // Signatures are stored along with the RRset they cover.
+                type = ((RRSIG) record.payloadData).typeCovered;
+            }
+            RRsetKey key = new RRsetKey(record.name, type, record.clazz, dnssecOk);
+
+            RRset rrset = rrsets.get(key);
+            if (rrset == null) {
+                rrset = new RRset(key, credibility, message.authenticData);
+                rrsets.put(key, rrset);
+            } else if (rrset.credibility != credibility) {
+                // The same RRset may appear in more than one section, the most credible section wins.
+                if (rrset.credibility.compareTo(credibility) > 0) {
+                    continue;
+                }
+                rrset = new RRset(key, credibility, message.authenticData);
+                rrsets.put(key, rrset);
+            }
+            if (!rrset.records.contains(record)) {
+                rrset.records.add(record);
+            }
+        }
+    }
+
+    /**
+     * Create the negative cache entry of a NXDOMAIN or NODATA response, as described in RFC 2308. NXDOMAIN is cached
+     * per name, NODATA per name and type, in both cases for the name at the end of the CNAME chain of the answer.
+     */
+    private RRset gatherNegative(Map<RRsetKey, RRset> rrsets, CacheKey q, DNSMessage message) {
+        long negativeTtl = message.getNegativeTtl();
+        if (negativeTtl < 0) {
+            // RFC 2308 § 5: Negative responses without SOA records should not be cached.
+            return null;
+        }
+
+        DNSName name = q.name;
+        for (int i = 0; i < MAX_CNAME_CHAIN_LENGTH && q.type != TYPE.CNAME; i++) {
+            RRset cname = rrsets.get(new RRsetKey(name, TYPE.CNAME, q.clazz, q.dnssecOk));
+            if (cname == null || cname.getCanonicalName() == null) {
+                break;
+            }
+            name = cname.getCanonicalName();
+        }
+
+        RRsetKey key;
+        if (message.responseCode == RESPONSE_CODE.NX_DOMAIN) {
+            key = new RRsetKey(name, TYPE.ANY, q.clazz, q.dnssecOk);
+        } else if (q.type != TYPE.ANY && !rrsets.containsKey(new RRsetKey(name, q.type, q.clazz, q.dnssecOk))) {
+            key = new RRsetKey(name, q.type, q.clazz, q.dnssecOk);
+        } else {
+            return null;
+        }
+
+        RRset negative = new RRset(key, getCredibility(message, SECTION.ANSWER), message.authenticData);
+        negative.authority = new ArrayList<>(message.authoritySection.size());
+        for (Record record : message.authoritySection) {
+            if (record.type != TYPE.OPT) {
+                negative.authority.add(record);
+            }
+        }
+        negative.negativeTtl = Math.min(negativeTtl, maxNegativeTTL);
+        return negative;
+    }
+
+    @Override
+    public synchronized DNSMessage get(CacheKey q) {
+        return assemble(q, false);
+    }
+
+    @Override
+    public synchronized DNSMessage getStale(CacheKey q) {
+        return assemble(q, true);
+    }
+
+    private DNSMessage assemble(CacheKey q, boolean allowStale) {
+        long now = System.currentTimeMillis();
+        List<Record> answers = new ArrayList<>();
+        boolean authenticData = true;
+        boolean stale = false;
+        DNSName name = q.name;
+        for (int i = 0; i <= MAX_CNAME_CHAIN_LENGTH; i++) {
+            RRset nxDomain = lookup(name, TYPE.ANY, q.clazz, q.dnssecOk, now, allowStale);
+            if (nxDomain != null) {
+                countHit(true, stale || nxDomain.isExpired(now));
+                return buildResponse(q, RESPONSE_CODE.NX_DOMAIN, authenticData && nxDomain.authenticData, answers,
+                        nxDomain.getAuthority(now), now);
+            }
+            if (q.type == TYPE.ANY) {
+                // The answer to ANY is never assembled from the cached RRsets.
+                break;
+            }
+
+            RRset rrset = lookup(name, q.type, q.clazz, q.dnssecOk, now, allowStale);
+            boolean cname = false;
+            if (rrset == null && q.type != TYPE.CNAME) {
+                rrset = lookup(name, TYPE.CNAME, q.clazz, q.dnssecOk, now, allowStale);
+                cname = true;
+                if (rrset != null && rrset.isNegative()) {
+                    // NODATA for CNAME, says nothing about the type we are looking for.
+                    rrset = null;
+                }
+            }
+            if (rrset == null) {
+                break;
+            }
+
+            authenticData &= rrset.authenticData;
+            stale |= rrset.isExpired(now);
+            if (rrset.isNegative()) {
+                countHit(true, stale);
+                return buildResponse(q, RESPONSE_CODE.NO_ERROR, authenticData, answers, rrset.getAuthority(now), now);
+            }
+            rrset.addRecordsTo(answers, now);
+            if (!cname) {
+                countHit(false, stale);
+                return buildResponse(q, RESPONSE_CODE.NO_ERROR, authenticData, answers,
+                        Collections.<Record>emptyList(), now);
+            }
+            name = rrset.getCanonicalName();
+            if (name == null) {
+                break;
+            }
+        }
+
+        // Not cached, or a CNAME chain which is too long or a loop.
+        if (!allowStale) {
+            missCount++;
+        }
+        return null;
+    }
+
+    private void countHit(boolean negative, boolean stale) {
+        if (stale) {
+            staleHitCount++;
+        } else if (negative) {
+            negativeHitCount++;
+        } else {
+            hitCount++;
+        }
+    }
+
+    private static DNSMessage buildResponse(CacheKey q, RESPONSE_CODE responseCode, boolean authenticData,
+            List<Record> answers, List<Record> authority, long now) {
+        return DNSMessage.builder()
+                .setQrFlag(true)
+                .setResponseCode(responseCode)
+                .setRecursionDesired(q.recursionDesired)
+                .setRecursionAvailable(true)
+                .setCheckingDisabled(q.checkingDisabled)
+                .setAuthenticData(authenticData)
+                .setReceiveTimestamp(now)
+                .addQuestion(new Question(q.name, q.type, q.clazz))
+                .addAnswers(answers)
+                .setNameserverRecords(authority)
+                .build();
+    }
+
+    private RRset lookup(DNSName name, TYPE type, CLASS clazz, boolean dnssecOk, long now, boolean allowStale) {
+        RRsetKey key = new RRsetKey(name, type, clazz, dnssecOk);
+        RRset rrset = backend.get(key);
+        if (rrset == null) {
+            return null;
+        }
+        if (rrset.isExpired(now)) {
+            if (rrset.isStale(now, staleWindow)) {
+                // Kept to be served stale.
+                if (allowStale) {
+                    return rrset;
+                }
+                expireCount++;
+                return null;
+            }
+            if (!allowStale) {
+                expireCount++;
+            }
+            backend.remove(key);
+            return null;
+        }
+        return rrset;
+    }
+
+    /**
+     * Get the credibility of the records of the given section of a response.
+     *
+     * @param message the response.
+     * @param section the section of the response.
+     * @return the credibility of the records of the section.
+     */
+    protected Credibility getCredibility(DNSMessage message, SECTION section) {
+        switch (section) {
+        case ANSWER:
+            return message.authoritativeAnswer ? Credibility.AUTHORITATIVE_ANSWER : Credibility.ANSWER;
+        case AUTHORITY:
+            return message.authoritativeAnswer ? Credibility.AUTHORITATIVE_AUTHORITY : Credibility.ADDITIONAL;
+        default:
+            return Credibility.ADDITIONAL;
+        }
+    }
+
+    /**
+     * Whether a record of a response should be cached. By default all records of the answer section are cached, and
+     * records of the other sections if they belong to the zone of the question.
+     *
+     * @param record the record.
+     * @param question the question of the query.
+     * @param section the section of the response containing the record.
+     * @return true if the record should be cached.
+     */
+    protected boolean shouldCache(Record record, Question question, SECTION section) {
+        return section == SECTION.ANSWER || record.name.isChildOf(question.name);
+    }
+
+    /**
+     * Clear all entries in this cache.
+     */
+    public synchronized void clear() {
+        backend.clear();
+        missCount = 0L;
+        hitCount = 0L;
+        negativeHitCount = 0L;
+        staleHitCount = 0L;
+        expireCount = 0L;
+    }
+
+    /**
+     * Get the number of RRsets in this cache.
+     * @return The number of RRsets.
+     */
+    public synchronized int size() {
+        return backend.size();
+    }
+
+    /**
+     * Get the miss count of this cache which is the number of fruitless
+     * get calls since this cache was last resetted.
+     * @return The number of cache misses.
+     */
+    public synchronized long getMissCount() {
+        return missCount;
+    }
+
+    /**
+     * The number of expired RRsets encountered while assembling answers.
+     * @return The expire count.
+     */
+    public synchronized long getExpireCount() {
+        return expireCount;
+    }
+
+    /**
+     * The cache hit count (all sucessful calls to get).
+     * @return The hit count.
+     */
+    public synchronized long getHitCount() {
+        return hitCount;
+    }
+
+    /**
+     * The cache hit count of negative responses (NXDOMAIN or NODATA), which are not included in the hit count.
+     * @return The negative hit count.
+     */
+    public synchronized long getNegativeHitCount() {
+        return negativeHitCount;
+    }
+
+    /**
+     * The number of answers assembled from expired RRsets, which are not included in the other hit counts.
+     * @return The stale hit count.
+     */
+    public synchronized long getStaleHitCount() {
+        return staleHitCount;
+    }
+
+    /**
+     * Set how long expired RRsets are kept, so that they can be served stale by {@link #getStale(CacheKey)}.
+     * RFC 8767 § 5 suggests a value between one and three days.
+     *
+     * @param staleWindow the stale window in seconds, 0 disables serving stale answers.
+     */
+    public synchronized void setStaleWindow(long staleWindow) {
+        this.staleWindow = staleWindow;
+    }
+
+    /**
+     * Set the upper bound of the ttl of negative responses (NXDOMAIN or NODATA).
+     *
+     * @param maxNegativeTTL the upper bound in seconds.
+     */
+    public synchronized void setMaxNegativeTTL(long maxNegativeTTL) {
+        this.maxNegativeTTL = maxNegativeTTL;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RRsetCache{usage=" + backend.size() + "/" + capacity + ", hits=" + hitCount
+                + ", negativeHits=" + negativeHitCount + ", staleHits=" + staleHitCount
+                + ", misses=" + missCount + ", expires=" + expireCount + "}";
+    }
+
+    private static final class RRsetKey {
+        private final DNSName name;
+        private final TYPE type;
+        private final CLASS clazz;
+        private final boolean dnssecOk;
+        private final int hashCode;
+
+        private RRsetKey(DNSName name, TYPE type, CLASS clazz, boolean dnssecOk) {
+            this.name = name;
+            this.type = type;
+            this.clazz = clazz;
+            this.dnssecOk = dnssecOk;
+
+            int hashCode = name.hashCode();
+            hashCode = 31 * hashCode + type.hashCode();
+            hashCode = 31 * hashCode + clazz.hashCode();
+            hashCode = 31 * hashCode + (dnssecOk ? 1 : 0);
+            this.hashCode = hashCode;
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof RRsetKey)) {
+                return false;
+            }
+            RRsetKey otherKey = (RRsetKey) other;
+            return hashCode == otherKey.hashCode && type == otherKey.type && clazz == otherKey.clazz
+                    && dnssecOk == otherKey.dnssecOk && name.equals(otherKey.name);
+        }
+    }
+
+    private static final class RRset {
+        private final RRsetKey key;
+        private final Credibility credibility;
+        private final boolean authenticData;
+        private List<Record> records = new ArrayList<>(2);
+
+        /**
+         * The authority section of a negative response, <code>null</code> for RRsets holding records.
+         */
+        private List<Record> authority;
+
+        /**
+         * The ttl of a negative response in seconds.
+         */
+        private long negativeTtl;
+
+        /**
+         * The point in time in milliseconds at which this RRset expires.
+         */
+        private long expires;
+
+        /**
+         * The point in time in milliseconds at which this RRset was received.
+         */
+        private long received;
+
+        private RRset(RRsetKey key, Credibility credibility, boolean authenticData) {
+            this.key = key;
+            this.credibility = credibility;
+            this.authenticData = authenticData;
+        }
+
+        private void seal(long receiveTimestamp, long maxTTL) {
+            received = receiveTimestamp;
+            long ttl = maxTTL;
+            if (isNegative()) {
+                ttl = negativeTtl;
+                authority = Collections.unmodifiableList(authority);
+            }
+            // RFC 2181 § 5.2 says that all TTLs in a RRSet should be equal, if this isn't the case, then we assume the
+            // shortest TTL to be the effective one.
+            for (Record record : records) {
+                ttl = Math.min(ttl, record.ttl);
+            }
+            expires = receiveTimestamp + Math.min(ttl, Long.MAX_VALUE / 1000 - receiveTimestamp / 1000) * 1000;
+            records = Collections.unmodifiableList(records);
+        }
+
+        private boolean isNegative() {
+            return authority != null;
+        }
+
+        private List<Record> getAuthority(long now) {
+            List<Record> result = new ArrayList<>(authority.size());
+            addWithRemainingTtl(authority, result, now);
+            return result;
+        }
+
+        private boolean isExpired(long now) {
+            return expires <= now;
+        }
+
+        /**
+         * Check if an expired RRset may still be served stale. RRsets which were never fresh are not.
+         */
+        private boolean isStale(long now, long staleWindow) {
+            return expires > received && (now - expires) / 1000 < staleWindow;
+        }
+
+        private void addRecordsTo(List<Record> answers, long now) {
+            addWithRemainingTtl(records, answers, now);
+        }
+
+        private void addWithRemainingTtl(List<Record> records, List<Record> result, long now) {
+            long remainingTtl = isExpired(now) ? STALE_TTL : (expires - now) / 1000;
+            for (Record record : records) {
+                if (record.ttl == remainingTtl) {
+                    result.add(record);
+                    continue;
+                }
+                result.add(new Record(record.name, record.type, record.clazz, remainingTtl, record.payloadData,
+                        record.isUnicastQuery()));
+            }
+        }
+
+        private DNSName getCanonicalName() {
+            for (Record record : records) {
+                if (record.type == TYPE.CNAME) {
+                    return ((CNAME) record.payloadData).name;
+                }
+            }
+            return null;
+        }
+
+        private boolean hasData() {
+            for (Record record : records) {
+                if (record.type != TYPE.RRSIG) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
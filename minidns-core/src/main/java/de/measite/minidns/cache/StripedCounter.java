@@ -0,0 +1,69 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.cache;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter spreading its increments over several cells, so that threads incrementing it concurrently do not contend
+ * on the same cache line. Only {@link #sum()} has to visit all cells.
+ */
+final class StripedCounter {
+
+    /**
+     * The number of stripes, the smallest power of two not less than the number of available processors.
+     */
+    static final int STRIPES = ceilingPowerOfTwo(Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The distance between two cells in longs, keeps every cell on its own cache line.
+     */
+    private static final int PADDING = 8;
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    void increment() {
+        cells.getAndIncrement((probe() & (STRIPES - 1)) * PADDING);
+    }
+
+    long sum() {
+        long sum = 0L;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    void reset() {
+        for (int i = 0; i < STRIPES; i++) {
+            cells.set(i * PADDING, 0L);
+        }
+    }
+
+    /**
+     * Get a well distributed hash of the current thread, used to select a stripe.
+     *
+     * @return the hash of the current thread.
+     */
+    static int probe() {
+        long id = Thread.currentThread().getId();
+        int hash = (int) (id ^ (id >>> 32)) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    private static int ceilingPowerOfTwo(int value) {
+        int result = 1;
+        while (result < value && result < (1 << 16)) {
+            result <<= 1;
+        }
+        return result;
+    }
+}
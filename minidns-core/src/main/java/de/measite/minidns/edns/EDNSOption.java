@@ -72,6 +72,9 @@ public abstract class EDNSOption {
         case NSID:
             res = new NSID(optionData);
             break;
+        case TCP_KEEPALIVE:
+            res = new TcpKeepalive(optionData);
+            break;
         default:
             res = new UnknownEDNSOption(intOptionCode, optionData);
             break;
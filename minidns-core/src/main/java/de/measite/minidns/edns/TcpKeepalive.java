@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.edns;
+
+import de.measite.minidns.EDNS.OptionCode;
+
+/**
+ * The edns-tcp-keepalive option.
+ *
+ * @see <a href="https://tools.ietf.org/html/rfc7828">RFC 7828 - The edns-tcp-keepalive EDNS0 Option</a>
+ */
+public class TcpKeepalive extends EDNSOption {
+
+    /**
+     * The option without timeout, as sent by clients to signal that they want to keep the connection open.
+     */
+    public static final TcpKeepalive REQUEST = new TcpKeepalive();
+
+    private TcpKeepalive() {
+        this(new byte[0]);
+    }
+
+    public TcpKeepalive(byte[] payload) {
+        super(payload);
+    }
+
+    /**
+     * Create a new keepalive option as sent by servers.
+     *
+     * @param timeout the idle timeout in units of 100 milliseconds.
+     */
+    public TcpKeepalive(int timeout) {
+        this(new byte[] { (byte) (timeout >> 8), (byte) timeout });
+    }
+
+    /**
+     * Check if this option carries a timeout.
+     *
+     * @return <code>true</code> if a timeout is set.
+     */
+    public boolean hasTimeout() {
+        return optionData.length == 2;
+    }
+
+    /**
+     * Get the idle timeout of the server.
+     *
+     * @return the timeout in milliseconds, or -1 if the option carries no timeout.
+     */
+    public int getTimeoutMillis() {
+        if (!hasTimeout()) {
+            return -1;
+        }
+        return (((optionData[0] & 0xff) << 8) | (optionData[1] & 0xff)) * 100;
+    }
+
+    @Override
+    public OptionCode getOptionCode() {
+        return OptionCode.TCP_KEEPALIVE;
+    }
+
+    @Override
+    protected CharSequence toStringInternal() {
+        String res = OptionCode.TCP_KEEPALIVE + ": ";
+        if (hasTimeout()) {
+            res += getTimeoutMillis() + "ms";
+        }
+        return res;
+    }
+
+    @Override
+    protected CharSequence asTerminalOutputInternal() {
+        if (!hasTimeout()) {
+            return "";
+        }
+        return getTimeoutMillis() + "ms";
+    }
+
+}
@@ -12,6 +12,7 @@ package de.measite.minidns.record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.measite.minidns.Record.TYPE;
 
@@ -46,6 +47,12 @@ public class A extends InternetAddressRR {
         return new A(ip);
     }
 
+    public static A parse(ByteBuffer buffer) {
+        byte[] ip = new byte[4];
+        buffer.get(ip);
+        return new A(ip);
+    }
+
     @Override
     public String toString() {
         return Integer.toString(ip[0] & 0xff) + "." +
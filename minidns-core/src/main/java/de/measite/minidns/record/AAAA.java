@@ -12,6 +12,7 @@ package de.measite.minidns.record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.measite.minidns.Record.TYPE;
 
@@ -39,6 +40,12 @@ public class AAAA extends InternetAddressRR {
         return new AAAA(ip);
     }
 
+    public static AAAA parse(ByteBuffer buffer) {
+        byte[] ip = new byte[16];
+        buffer.get(ip);
+        return new AAAA(ip);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
@@ -16,6 +16,7 @@ import de.measite.minidns.Record.TYPE;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * CNAME payload (pointer to another domain / address).
@@ -29,11 +30,21 @@ public class CNAME extends Data {
         name.writeToStream(dos);
     }
 
+    @Override
+    public void writeTo(ByteBuffer buffer, DNSName.CompressionTable compressionTable, int messageStart) {
+        name.writeTo(buffer, compressionTable, messageStart);
+    }
+
     public static CNAME parse(DataInputStream dis, byte[] data) throws IOException {
         DNSName name = DNSName.parse(dis, data);
         return new CNAME(name);
     }
 
+    public static CNAME parse(ByteBuffer buffer, DNSName.OffsetTable names) {
+        DNSName name = DNSName.parse(buffer, names);
+        return new CNAME(name);
+    }
+
     public CNAME(String name) {
         this(DNSName.from(name));
     }
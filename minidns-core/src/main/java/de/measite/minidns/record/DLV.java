@@ -16,6 +16,7 @@ import de.measite.minidns.Record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * DLV record payload.
@@ -28,6 +29,11 @@ public class DLV extends DS {
         return new DLV(ds.keyTag, ds.algorithm, ds.digestType, ds.digest);
     }
 
+    public static DLV parse(ByteBuffer buffer, int length) throws IOException {
+        DS ds = DS.parse(buffer, length);
+        return new DLV(ds.keyTag, ds.algorithm, ds.digestType, ds.digest);
+    }
+
     public DLV(int keyTag, byte algorithm, byte digestType, byte[] digest) {
         super(keyTag, algorithm, digestType, digest);
     }
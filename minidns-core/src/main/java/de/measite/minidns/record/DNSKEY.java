@@ -17,6 +17,7 @@ import de.measite.minidns.util.Base64;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -83,11 +84,20 @@ public class DNSKEY extends Data {
         short flags = dis.readShort();
         byte protocol = dis.readByte();
         byte algorithm = dis.readByte();
-        byte[] key = new byte[length - 4];
+        byte[] key = new byte[remainingLength(length, 4)];
         dis.readFully(key);
         return new DNSKEY(flags, protocol, algorithm, key);
     }
 
+    public static DNSKEY parse(ByteBuffer buffer, int length) throws IOException {
+        short flags = buffer.getShort();
+        byte protocol = buffer.get();
+        byte algorithm = buffer.get();
+        byte[] key = new byte[remainingLength(length, 4)];
+        buffer.get(key);
+        return new DNSKEY(flags, protocol, algorithm, key);
+    }
+
     private DNSKEY(short flags, byte protocol, SignatureAlgorithm algorithm, byte algorithmByte, byte[] key) {
         this.flags = flags;
         this.protocol = protocol;
@@ -18,6 +18,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -67,11 +68,20 @@ public class DS extends Data {
         int keyTag = dis.readUnsignedShort();
         byte algorithm = dis.readByte();
         byte digestType = dis.readByte();
-        byte[] digest = new byte[length - 4];
+        byte[] digest = new byte[remainingLength(length, 4)];
         if (dis.read(digest) != digest.length) throw new IOException();
         return new DS(keyTag, algorithm, digestType, digest);
     }
 
+    public static DS parse(ByteBuffer buffer, int length) throws IOException {
+        int keyTag = buffer.getShort() & 0xffff;
+        byte algorithm = buffer.get();
+        byte digestType = buffer.get();
+        byte[] digest = new byte[remainingLength(length, 4)];
+        buffer.get(digest);
+        return new DS(keyTag, algorithm, digestType, digest);
+    }
+
     private DS(int keyTag, SignatureAlgorithm algorithm, byte algorithmByte, DigestAlgorithm digestType, byte digestTypeByte, byte[] digest) {
         this.keyTag = keyTag;
 
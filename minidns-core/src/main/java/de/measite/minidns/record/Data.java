@@ -13,8 +13,10 @@ package de.measite.minidns.record;
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
+import de.measite.minidns.DNSName;
 import de.measite.minidns.Record.TYPE;
 
 /**
@@ -22,7 +24,22 @@ import de.measite.minidns.Record.TYPE;
  */
 public abstract class Data {
 
-    Data() {
+    protected Data() {
+    }
+
+    /**
+     * Get the length of the variable size remainder of a payload, after its leading fields have been read.
+     *
+     * @param length the length of the payload.
+     * @param consumed the number of bytes of the payload already read.
+     * @return the number of remaining bytes.
+     * @throws IOException if the payload is shorter than the fields already read.
+     */
+    protected static int remainingLength(int length, int consumed) throws IOException {
+        if (consumed > length) {
+            throw new IOException("Payload of " + length + " bytes is too short, expected at least " + consumed + " bytes");
+        }
+        return length - consumed;
     }
 
     /**
@@ -71,6 +88,32 @@ public abstract class Data {
         dos.write(bytes);
     }
 
+    /**
+     * Write the binary representation of this payload at the current position of the buffer. The binary
+     * representation is only computed once, subsequent writes do not allocate.
+     *
+     * @param buffer the buffer to write to.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer) {
+        setBytes();
+        buffer.put(bytes);
+    }
+
+    /**
+     * Write the binary representation of this payload at the current position of the buffer as part of a DNS message,
+     * compressing the contained domain names where allowed. Per RFC 3597 § 4 only the well-known types of RFC 1035 may
+     * use compression, so the default implementation writes the uncompressed payload.
+     *
+     * @param buffer the buffer holding the DNS message.
+     * @param compressionTable the offsets of the domain names already written to the message.
+     * @param messageStart the position of the first byte of the message within the buffer.
+     * @throws java.nio.BufferOverflowException if there is insufficient space in the buffer.
+     */
+    public void writeTo(ByteBuffer buffer, DNSName.CompressionTable compressionTable, int messageStart) {
+        writeTo(buffer);
+    }
+
     public final byte[] toByteArray() {
         setBytes();
         return bytes.clone();
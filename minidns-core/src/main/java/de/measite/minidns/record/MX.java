@@ -13,6 +13,7 @@ package de.measite.minidns.record;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.measite.minidns.DNSName;
 import de.measite.minidns.Record.TYPE;
@@ -40,6 +41,12 @@ public class MX extends Data {
         return new MX(priority, name);
     }
 
+    public static MX parse(ByteBuffer buffer, DNSName.OffsetTable names) {
+        int priority = buffer.getShort() & 0xffff;
+        DNSName name = DNSName.parse(buffer, names);
+        return new MX(priority, name);
+    }
+
     public MX(int priority, String name) {
         this(priority, DNSName.from(name));
     }
@@ -55,6 +62,12 @@ public class MX extends Data {
         name.writeToStream(dos);
     }
 
+    @Override
+    public void writeTo(ByteBuffer buffer, DNSName.CompressionTable compressionTable, int messageStart) {
+        buffer.putShort((short) priority);
+        name.writeTo(buffer, compressionTable, messageStart);
+    }
+
     @Override
     public String toString() {
         return priority + " " + name + '.';
@@ -12,6 +12,7 @@ package de.measite.minidns.record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.measite.minidns.DNSName;
 import de.measite.minidns.Record.TYPE;
@@ -26,6 +27,11 @@ public class NS extends CNAME {
         return new NS(cname.name);
     }
 
+    public static NS parse(ByteBuffer buffer, DNSName.OffsetTable names) {
+        DNSName name = DNSName.parse(buffer, names);
+        return new NS(name);
+    }
+
     public NS(DNSName name) {
         super(name);
     }
@@ -18,6 +18,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -42,12 +43,22 @@ public class NSEC extends Data {
     public static NSEC parse(DataInputStream dis, byte[] data, int length) throws IOException {
         DNSName next = DNSName.parse(dis, data);
 
-        byte[] typeBitmap = new byte[length - next.size()];
+        byte[] typeBitmap = new byte[remainingLength(length, next.size())];
         if (dis.read(typeBitmap) != typeBitmap.length) throw new IOException();
         TYPE[] types = readTypeBitMap(typeBitmap);
         return new NSEC(next, types);
     }
 
+    public static NSEC parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+        int start = buffer.position();
+        DNSName next = DNSName.parse(buffer, names);
+
+        byte[] typeBitmap = new byte[remainingLength(length, buffer.position() - start)];
+        buffer.get(typeBitmap);
+        TYPE[] types = readTypeBitMap(typeBitmap);
+        return new NSEC(next, types);
+    }
+
     public NSEC(String next, TYPE[] types) {
         this(DNSName.from(next), types);
     }
@@ -17,6 +17,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -113,12 +114,28 @@ public class NSEC3 extends Data {
         int hashLength = dis.readUnsignedByte();
         byte[] nextHashed = new byte[hashLength];
         if (dis.read(nextHashed) != nextHashed.length) throw new IOException();
-        byte[] typeBitmap = new byte[length - (6 + saltLength + hashLength)];
+        byte[] typeBitmap = new byte[remainingLength(length, 6 + saltLength + hashLength)];
         if (dis.read(typeBitmap) != typeBitmap.length) throw new IOException();
         TYPE[] types = NSEC.readTypeBitMap(typeBitmap);
         return new NSEC3(hashAlgorithm, flags, iterations, salt, nextHashed, types);
     }
 
+    public static NSEC3 parse(ByteBuffer buffer, int length) throws IOException {
+        byte hashAlgorithm = buffer.get();
+        byte flags = buffer.get();
+        int iterations = buffer.getShort() & 0xffff;
+        int saltLength = buffer.get() & 0xff;
+        byte[] salt = new byte[saltLength];
+        buffer.get(salt);
+        int hashLength = buffer.get() & 0xff;
+        byte[] nextHashed = new byte[hashLength];
+        buffer.get(nextHashed);
+        byte[] typeBitmap = new byte[remainingLength(length, 6 + saltLength + hashLength)];
+        buffer.get(typeBitmap);
+        TYPE[] types = NSEC.readTypeBitMap(typeBitmap);
+        return new NSEC3(hashAlgorithm, flags, iterations, salt, nextHashed, types);
+    }
+
     private NSEC3(HashAlgorithm hashAlgorithm, byte hashAlgorithmByte, byte flags, int iterations, byte[] salt, byte[] nextHashed, TYPE[] types) {
         assert hashAlgorithmByte == (hashAlgorithm != null ? hashAlgorithm.value : hashAlgorithmByte);
         this.hashAlgorithmByte = hashAlgorithmByte;
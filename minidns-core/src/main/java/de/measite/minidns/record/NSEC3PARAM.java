@@ -17,6 +17,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 
 /**
  * NSEC3PARAM record payload.
@@ -57,6 +58,16 @@ public class NSEC3PARAM extends Data {
         return new NSEC3PARAM(hashAlgorithm, flags, iterations, salt);
     }
 
+    public static NSEC3PARAM parse(ByteBuffer buffer) {
+        byte hashAlgorithm = buffer.get();
+        byte flags = buffer.get();
+        int iterations = buffer.getShort() & 0xffff;
+        int saltLength = buffer.get() & 0xff;
+        byte[] salt = new byte[saltLength];
+        buffer.get(salt);
+        return new NSEC3PARAM(hashAlgorithm, flags, iterations, salt);
+    }
+
     private NSEC3PARAM(HashAlgorithm hashAlgorithm, byte hashAlgorithmByte, byte flags, int iterations, byte[] salt) {
         assert hashAlgorithmByte == (hashAlgorithm != null ? hashAlgorithm.value : hashAlgorithmByte);
         this.hashAlgorithmByte = hashAlgorithmByte;
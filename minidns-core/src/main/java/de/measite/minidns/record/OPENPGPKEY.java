@@ -16,6 +16,7 @@ import de.measite.minidns.util.Base64;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 public class OPENPGPKEY extends Data {
 
@@ -27,6 +28,12 @@ public class OPENPGPKEY extends Data {
         return new OPENPGPKEY(publicKeyPacket);
     }
 
+    public static OPENPGPKEY parse(ByteBuffer buffer, int length) {
+        byte[] publicKeyPacket = new byte[length];
+        buffer.get(publicKeyPacket);
+        return new OPENPGPKEY(publicKeyPacket);
+    }
+
     OPENPGPKEY(byte[] publicKeyPacket) {
         this.publicKeyPacket = publicKeyPacket;
     }
@@ -16,6 +16,7 @@ import de.measite.minidns.edns.EDNSOption;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -57,6 +58,25 @@ public class OPT extends Data {
         return new OPT(variablePart);
     }
 
+    public static OPT parse(ByteBuffer buffer, int payloadLength) {
+        List<EDNSOption> variablePart;
+        if (payloadLength == 0) {
+            variablePart = Collections.emptyList();
+        } else {
+            int payloadEnd = buffer.position() + payloadLength;
+            variablePart = new ArrayList<>(4);
+            while (buffer.position() < payloadEnd) {
+                int optionCode = buffer.getShort() & 0xffff;
+                int optionLength = buffer.getShort() & 0xffff;
+                byte[] optionData = new byte[optionLength];
+                buffer.get(optionData);
+                EDNSOption ednsOption = EDNSOption.parse(optionCode, optionData);
+                variablePart.add(ednsOption);
+            }
+        }
+        return new OPT(variablePart);
+    }
+
     @Override
     public TYPE getType() {
         return TYPE.OPT;
@@ -12,6 +12,7 @@ package de.measite.minidns.record;
 
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.measite.minidns.DNSName;
 import de.measite.minidns.Record.TYPE;
@@ -26,6 +27,11 @@ public class PTR extends CNAME {
         return new PTR(cname.name);
     }
 
+    public static PTR parse(ByteBuffer buffer, DNSName.OffsetTable names) {
+        DNSName name = DNSName.parse(buffer, names);
+        return new PTR(name);
+    }
+
     PTR(String name) {
         this(DNSName.from(name));
     }
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.measite.minidns.DNSName;
+
+/**
+ * Parser for the payload (RDATA) of a resource record type.
+ *
+ * @param <D> the payload type.
+ * @see PayloadParserRegistry
+ */
+public interface PayloadParser<D extends Data> {
+
+    /**
+     * Parse the payload at the current position of the buffer and move the buffer position past the payload.
+     *
+     * @param buffer the buffer holding the DNS message, index 0 is the first byte of the message.
+     * @param length the length of the payload in bytes.
+     * @param names the names already decoded from the message, or <code>null</code>.
+     * @return the payload.
+     * @throws IOException if the payload is malformed.
+     */
+    D parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException;
+
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.record;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.measite.minidns.DNSName;
+import de.measite.minidns.Record.TYPE;
+
+/**
+ * The registry of the {@link PayloadParser}s used to decode resource records. The parsers are looked up by the type
+ * value of the record in a dense, two level table. Parsers for additional types, or replacements for the built-in
+ * parsers, can be registered at any time.
+ */
+public final class PayloadParserRegistry {
+
+    private static final int PAGE_SIZE = 256;
+
+    /**
+     * The parsers, split into pages of {@value #PAGE_SIZE} type values. Pages are never modified once published, a
+     * registration creates copies of the affected page and of the page table.
+     */
+    private static volatile PayloadParser<?>[][] pages = new PayloadParser<?>[0x10000 / PAGE_SIZE][];
+
+    static {
+        register(TYPE.A, new PayloadParser<A>() {
+            @Override
+            public A parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return A.parse(buffer);
+            }
+        });
+        register(TYPE.NS, new PayloadParser<NS>() {
+            @Override
+            public NS parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return NS.parse(buffer, names);
+            }
+        });
+        register(TYPE.CNAME, new PayloadParser<CNAME>() {
+            @Override
+            public CNAME parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return CNAME.parse(buffer, names);
+            }
+        });
+        register(TYPE.SOA, new PayloadParser<SOA>() {
+            @Override
+            public SOA parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return SOA.parse(buffer, names);
+            }
+        });
+        register(TYPE.PTR, new PayloadParser<PTR>() {
+            @Override
+            public PTR parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return PTR.parse(buffer, names);
+            }
+        });
+        register(TYPE.MX, new PayloadParser<MX>() {
+            @Override
+            public MX parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return MX.parse(buffer, names);
+            }
+        });
+        register(TYPE.TXT, new PayloadParser<TXT>() {
+            @Override
+            public TXT parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return TXT.parse(buffer, length);
+            }
+        });
+        register(TYPE.AAAA, new PayloadParser<AAAA>() {
+            @Override
+            public AAAA parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return AAAA.parse(buffer);
+            }
+        });
+        register(TYPE.SRV, new PayloadParser<SRV>() {
+            @Override
+            public SRV parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return SRV.parse(buffer, names);
+            }
+        });
+        register(TYPE.OPT, new PayloadParser<OPT>() {
+            @Override
+            public OPT parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return OPT.parse(buffer, length);
+            }
+        });
+        register(TYPE.DS, new PayloadParser<DS>() {
+            @Override
+            public DS parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+                return DS.parse(buffer, length);
+            }
+        });
+        register(TYPE.RRSIG, new PayloadParser<RRSIG>() {
+            @Override
+            public RRSIG parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+                return RRSIG.parse(buffer, length, names);
+            }
+        });
+        register(TYPE.NSEC, new PayloadParser<NSEC>() {
+            @Override
+            public NSEC parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+                return NSEC.parse(buffer, length, names);
+            }
+        });
+        register(TYPE.DNSKEY, new PayloadParser<DNSKEY>() {
+            @Override
+            public DNSKEY parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+                return DNSKEY.parse(buffer, length);
+            }
+        });
+        register(TYPE.NSEC3, new PayloadParser<NSEC3>() {
+            @Override
+            public NSEC3 parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+                return NSEC3.parse(buffer, length);
+            }
+        });
+        register(TYPE.NSEC3PARAM, new PayloadParser<NSEC3PARAM>() {
+            @Override
+            public NSEC3PARAM parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return NSEC3PARAM.parse(buffer);
+            }
+        });
+        register(TYPE.TLSA, new PayloadParser<TLSA>() {
+            @Override
+            public TLSA parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+                return TLSA.parse(buffer, length);
+            }
+        });
+        register(TYPE.OPENPGPKEY, new PayloadParser<OPENPGPKEY>() {
+            @Override
+            public OPENPGPKEY parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+                return OPENPGPKEY.parse(buffer, length);
+            }
+        });
+        register(TYPE.DLV, new PayloadParser<DLV>() {
+            @Override
+            public DLV parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+                return DLV.parse(buffer, length);
+            }
+        });
+    }
+
+    private PayloadParserRegistry() {
+    }
+
+    /**
+     * Register the parser for the given record type, replacing any previously registered parser.
+     *
+     * @param type the record type.
+     * @param parser the parser, or <code>null</code> to remove the parser for the type.
+     */
+    public static void register(TYPE type, PayloadParser<?> parser) {
+        if (type == TYPE.UNKNOWN) {
+            throw new IllegalArgumentException("Can not register a parser for unknown types");
+        }
+        int value = type.getValue();
+        synchronized (PayloadParserRegistry.class) {
+            PayloadParser<?>[][] newPages = pages.clone();
+            PayloadParser<?>[] page = newPages[value / PAGE_SIZE];
+            page = page == null ? new PayloadParser<?>[PAGE_SIZE] : page.clone();
+            page[value % PAGE_SIZE] = parser;
+            newPages[value / PAGE_SIZE] = page;
+            pages = newPages;
+        }
+    }
+
+    /**
+     * Get the parser for the given record type value.
+     *
+     * @param value the record type value.
+     * @return the parser or <code>null</code> if the type has no registered parser.
+     */
+    public static PayloadParser<?> get(int value) {
+        if (value < 0 || value > 0xffff) {
+            return null;
+        }
+        PayloadParser<?>[] page = pages[value / PAGE_SIZE];
+        if (page == null) {
+            return null;
+        }
+        return page[value % PAGE_SIZE];
+    }
+}
@@ -18,6 +18,7 @@ import de.measite.minidns.util.Base64;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.TimeZone;
@@ -86,13 +87,29 @@ public class RRSIG extends Data {
         Date signatureInception = new Date((dis.readInt() & 0xFFFFFFFFL) * 1000);
         int keyTag = dis.readUnsignedShort();
         DNSName signerName = DNSName.parse(dis, data);
-        int sigSize = length - signerName.size() - 18;
+        int sigSize = remainingLength(length, signerName.size() + 18);
         byte[] signature = new byte[sigSize];
         if (dis.read(signature) != signature.length) throw new IOException();
         return new RRSIG(typeCovered, null, algorithm, labels, originalTtl, signatureExpiration, signatureInception, keyTag, signerName,
                 signature);
     }
 
+    public static RRSIG parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) throws IOException {
+        int start = buffer.position();
+        TYPE typeCovered = TYPE.getType(buffer.getShort() & 0xffff);
+        byte algorithm = buffer.get();
+        byte labels = buffer.get();
+        long originalTtl = buffer.getInt() & 0xFFFFFFFFL;
+        Date signatureExpiration = new Date((buffer.getInt() & 0xFFFFFFFFL) * 1000);
+        Date signatureInception = new Date((buffer.getInt() & 0xFFFFFFFFL) * 1000);
+        int keyTag = buffer.getShort() & 0xffff;
+        DNSName signerName = DNSName.parse(buffer, names);
+        byte[] signature = new byte[remainingLength(length, buffer.position() - start)];
+        buffer.get(signature);
+        return new RRSIG(typeCovered, null, algorithm, labels, originalTtl, signatureExpiration, signatureInception, keyTag, signerName,
+                signature);
+    }
+
     private  RRSIG(TYPE typeCovered, SignatureAlgorithm algorithm, byte algorithmByte, byte labels, long originalTtl, Date signatureExpiration, 
             Date signatureInception, int keyTag, DNSName signerName, byte[] signature) {
         this.typeCovered = typeCovered;
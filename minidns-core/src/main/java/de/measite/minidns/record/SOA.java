@@ -16,6 +16,7 @@ import de.measite.minidns.Record.TYPE;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * SOA (start of authority) record payload.
@@ -71,6 +72,17 @@ public class SOA extends Data {
         return new SOA(mname, rname, serial, refresh, retry, expire, minimum);
     }
 
+    public static SOA parse(ByteBuffer buffer, DNSName.OffsetTable names) {
+        DNSName mname = DNSName.parse(buffer, names);
+        DNSName rname = DNSName.parse(buffer, names);
+        long serial = buffer.getInt() & 0xFFFFFFFFL;
+        int refresh = buffer.getInt();
+        int retry = buffer.getInt();
+        int expire = buffer.getInt();
+        long minimum = buffer.getInt() & 0xFFFFFFFFL;
+        return new SOA(mname, rname, serial, refresh, retry, expire, minimum);
+    }
+
     public SOA(String mname, String rname, long serial, int refresh, int retry, int expire, long minimum) {
         this(DNSName.from(mname), DNSName.from(rname), serial, refresh, retry, expire, minimum);
     }
@@ -101,6 +113,17 @@ public class SOA extends Data {
         dos.writeInt((int) minimum);
     }
 
+    @Override
+    public void writeTo(ByteBuffer buffer, DNSName.CompressionTable compressionTable, int messageStart) {
+        mname.writeTo(buffer, compressionTable, messageStart);
+        rname.writeTo(buffer, compressionTable, messageStart);
+        buffer.putInt((int) serial);
+        buffer.putInt(refresh);
+        buffer.putInt(retry);
+        buffer.putInt(expire);
+        buffer.putInt((int) minimum);
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder()
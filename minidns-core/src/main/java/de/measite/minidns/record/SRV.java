@@ -13,6 +13,7 @@ package de.measite.minidns.record;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.measite.minidns.DNSName;
 import de.measite.minidns.Record.TYPE;
@@ -53,6 +54,14 @@ public class SRV extends Data {
         return new SRV(priority, weight, port, name);
     }
 
+    public static SRV parse(ByteBuffer buffer, DNSName.OffsetTable names) {
+        int priority = buffer.getShort() & 0xffff;
+        int weight = buffer.getShort() & 0xffff;
+        int port = buffer.getShort() & 0xffff;
+        DNSName name = DNSName.parse(buffer, names);
+        return new SRV(priority, weight, port, name);
+    }
+
     public SRV(int priority, int weight, int port, String name) {
         this(priority, weight, port, DNSName.from(name));
     }
@@ -16,6 +16,7 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.math.BigInteger;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 public class TLSA extends Data {
@@ -58,11 +59,20 @@ public class TLSA extends Data {
         byte certUsage = dis.readByte();
         byte selector = dis.readByte();
         byte matchingType = dis.readByte();
-        byte[] certificateAssociation = new byte[length - 3];
+        byte[] certificateAssociation = new byte[remainingLength(length, 3)];
         if (dis.read(certificateAssociation) != certificateAssociation.length) throw new IOException();
         return new TLSA(certUsage, selector, matchingType, certificateAssociation);
     }
 
+    public static TLSA parse(ByteBuffer buffer, int length) throws IOException {
+        byte certUsage = buffer.get();
+        byte selector = buffer.get();
+        byte matchingType = buffer.get();
+        byte[] certificateAssociation = new byte[remainingLength(length, 3)];
+        buffer.get(certificateAssociation);
+        return new TLSA(certUsage, selector, matchingType, certificateAssociation);
+    }
+
     TLSA(byte certUsage, byte selector, byte matchingType, byte[] certificateAssociation) {
         this.certUsage = certUsage;
         this.selector = selector;
@@ -13,6 +13,7 @@ package de.measite.minidns.record;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import de.measite.minidns.Record.TYPE;
 
@@ -21,10 +22,9 @@ public class UNKNOWN extends Data {
     private final TYPE type;
     private final byte[] data;
 
-    private UNKNOWN(DataInputStream dis, int payloadLength, TYPE type) throws IOException {
+    private UNKNOWN(byte[] data, TYPE type) {
         this.type = type;
-        this.data = new byte[payloadLength];
-        dis.readFully(data);
+        this.data = data;
     }
 
     @Override
@@ -39,7 +39,15 @@ public class UNKNOWN extends Data {
 
     public static UNKNOWN parse(DataInputStream dis, int payloadLength, TYPE type)
             throws IOException {
-        return new UNKNOWN(dis, payloadLength, type);
+        byte[] data = new byte[payloadLength];
+        dis.readFully(data);
+        return new UNKNOWN(data, type);
+    }
+
+    public static UNKNOWN parse(ByteBuffer buffer, int payloadLength, TYPE type) {
+        byte[] data = new byte[payloadLength];
+        buffer.get(data);
+        return new UNKNOWN(data, type);
     }
 
 }
@@ -11,6 +11,7 @@
 package de.measite.minidns.source;
 
 import de.measite.minidns.DNSMessage;
+import de.measite.minidns.util.MiniDNSFuture;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -18,6 +19,33 @@ import java.net.InetAddress;
 public abstract class DNSDataSource {
     public abstract DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException;
 
+    /**
+     * Send a query without waiting for the response. Data sources which can not query asynchronously perform the query
+     * in the calling thread and return a completed future, which is what this default implementation does.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @return the future response.
+     */
+    public MiniDNSFuture<DNSMessage> queryAsync(DNSMessage message, InetAddress address, int port) {
+        try {
+            return MiniDNSFuture.from(query(message, address, port));
+        } catch (IOException e) {
+            return MiniDNSFuture.failed(e);
+        }
+    }
+
+    /**
+     * Whether {@link #queryAsync(DNSMessage, InetAddress, int)} returns before the response is received. This is
+     * <code>false</code> for data sources using the default implementation, which blocks until the query completed.
+     *
+     * @return <code>true</code> if queries are sent asynchronously.
+     */
+    public boolean isAsynchronous() {
+        return false;
+    }
+
     protected int udpPayloadSize = 1024;
 
     /**
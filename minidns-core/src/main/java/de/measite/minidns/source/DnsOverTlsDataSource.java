@@ -0,0 +1,218 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.DNSName;
+import de.measite.minidns.util.MiniDNSFuture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * A data source which sends all queries over TLS, as specified in RFC 7858 - DNS over TLS.
+ * <p>
+ * Connections are kept open and queries are pipelined over them, see {@link TcpConnectionPool}. All connections are
+ * created with the same {@link SSLSocketFactory}, whose session cache allows new connections to a server to resume the
+ * TLS session of an earlier connection instead of doing a full handshake.
+ * </p>
+ * <p>
+ * The server is authenticated as described in RFC 8310: if an authentication domain name is set, the certificate of
+ * the server has to carry it as subject alternative name, otherwise the certificate has to carry the IP address of the
+ * server. Queries to the standard DNS port 53 are sent to the DNS over TLS port 853 instead.
+ * </p>
+ */
+public class DnsOverTlsDataSource extends DNSDataSource implements Closeable {
+
+    public static final int DEFAULT_PORT = 853;
+
+    private final SSLSocketFactory sslSocketFactory;
+
+    private final TcpConnectionPool connectionPool = new TcpConnectionPool() {
+        @Override
+        protected Socket connect(InetSocketAddress server, int timeout) throws IOException {
+            return connectTls(super.connect(server, timeout), server);
+        }
+    };
+
+    private String authenticationName;
+
+    private HostnameVerifier hostnameVerifier;
+
+    /**
+     * Create a new DNS over TLS data source using the default {@link SSLSocketFactory}.
+     */
+    public DnsOverTlsDataSource() {
+        this((SSLSocketFactory) SSLSocketFactory.getDefault());
+    }
+
+    /**
+     * Create a new DNS over TLS data source.
+     *
+     * @param sslSocketFactory the factory for the TLS connections, which determines the trusted certificates and the
+     *        TLS session cache.
+     */
+    public DnsOverTlsDataSource(SSLSocketFactory sslSocketFactory) {
+        this.sslSocketFactory = sslSocketFactory;
+    }
+
+    public String getAuthenticationName() {
+        return authenticationName;
+    }
+
+    /**
+     * Set the authentication domain name which the certificates of the servers have to carry.
+     *
+     * @param authenticationName the authentication domain name, or <code>null</code> to authenticate the servers by
+     *        their IP address.
+     */
+    public void setAuthenticationName(String authenticationName) {
+        this.authenticationName = authenticationName;
+    }
+
+    /**
+     * Set a verifier replacing the built-in authentication of the servers. The verifier is called with the
+     * authentication domain name, or with the IP address of the server if no authentication domain name is set.
+     *
+     * @param hostnameVerifier the verifier, or <code>null</code> to use the built-in authentication.
+     */
+    public void setHostnameVerifier(HostnameVerifier hostnameVerifier) {
+        this.hostnameVerifier = hostnameVerifier;
+    }
+
+    /**
+     * Get the pool of TLS connections, e.g. to configure the idle timeout.
+     *
+     * @return the connection pool.
+     */
+    public TcpConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    @Override
+    public DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException {
+        if (port == 53) {
+            port = DEFAULT_PORT;
+        }
+        return connectionPool.query(message, address, port, timeout);
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    @Override
+    public MiniDNSFuture<DNSMessage> queryAsync(DNSMessage message, InetAddress address, int port) {
+        if (port == 53) {
+            port = DEFAULT_PORT;
+        }
+        return connectionPool.queryAsync(message, address, port, timeout);
+    }
+
+    private Socket connectTls(Socket socket, InetSocketAddress server) throws IOException {
+        String peerName = authenticationName != null ? authenticationName : server.getAddress().getHostAddress();
+        SSLSocket sslSocket;
+        try {
+            // The peer name and port also key the TLS session cache of the factory.
+            sslSocket = (SSLSocket) sslSocketFactory.createSocket(socket, peerName, server.getPort(), true);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        try {
+            sslSocket.setSoTimeout(timeout);
+            sslSocket.startHandshake();
+            SSLSession session = sslSocket.getSession();
+            boolean verified;
+            if (hostnameVerifier != null) {
+                verified = hostnameVerifier.verify(peerName, session);
+            } else {
+                verified = verify(session, server.getAddress());
+            }
+            if (!verified) {
+                throw new SSLPeerUnverifiedException("Could not authenticate " + peerName + " at " + server);
+            }
+        } catch (IOException e) {
+            sslSocket.close();
+            throw e;
+        }
+        return sslSocket;
+    }
+
+    private boolean verify(SSLSession session, InetAddress address) throws IOException {
+        Certificate[] certificates = session.getPeerCertificates();
+        if (certificates.length == 0 || !(certificates[0] instanceof X509Certificate)) {
+            return false;
+        }
+        Collection<List<?>> subjectAltNames;
+        try {
+            subjectAltNames = ((X509Certificate) certificates[0]).getSubjectAlternativeNames();
+        } catch (CertificateParsingException e) {
+            throw new SSLPeerUnverifiedException(e.getMessage());
+        }
+        if (subjectAltNames == null) {
+            return false;
+        }
+
+        DNSName name = authenticationName != null ? DNSName.from(authenticationName) : null;
+        for (List<?> subjectAltName : subjectAltNames) {
+            int type = (Integer) subjectAltName.get(0);
+            // Only dNSName (2) and iPAddress (7) are relevant. Other types like otherName are DER encoded byte arrays.
+            if (type != 2 && type != 7) {
+                continue;
+            }
+            String value = (String) subjectAltName.get(1);
+            if (name != null && type == 2 && matches(name, value)) {
+                return true;
+            }
+            // Parsing an IP address literal does not cause a lookup.
+            if (name == null && type == 7 && InetAddress.getByName(value).equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(DNSName name, String pattern) {
+        try {
+            if (pattern.startsWith("*.")) {
+                DNSName domain = DNSName.from(pattern.substring(2));
+                return domain.getLabelCount() > 1 && domain.equals(name.getParent());
+            }
+            return DNSName.from(pattern).equals(name);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Close all connections.
+     */
+    @Override
+    public void close() {
+        connectionPool.close();
+    }
+}
@@ -0,0 +1,519 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.util.MiniDNSFuture;
+import de.measite.minidns.util.MultipleIoException;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.logging.Level;
+
+/**
+ * A network data source which multiplexes all UDP queries over a small pool of sockets. Every socket is bound to a
+ * random port and may have up to 65536 queries in flight, one per DNS message ID. A single event loop thread receives
+ * the responses of all sockets and completes the futures of the queries, so
+ * {@link #queryAsync(DNSMessage, InetAddress, int) asynchronous queries} do not occupy a thread while they are in
+ * flight.
+ * <p>
+ * Responses are only accepted if they come from the queried server, carry the ID of a query in flight on the socket
+ * and repeat the question of the query. Other datagrams are dropped, the query keeps waiting for its response until it
+ * times out. Like with {@link NetworkDataSource}, unanswered queries are retransmitted with exponential backoff and
+ * truncated responses are retried over TCP.
+ * </p>
+ */
+public class MultiplexedNetworkDataSource extends NetworkDataSource implements Closeable {
+
+    private static final int ID_SPACE = 1 << 16;
+
+    private static final int MAX_ID_ATTEMPTS = 64;
+
+    private static final int MAX_BIND_ATTEMPTS = 16;
+
+    private final int socketCount;
+
+    private final Random random = new SecureRandom();
+
+    private final AtomicInteger nextSocket = new AtomicInteger();
+
+    private Selector selector;
+
+    private DatagramChannel[] channels;
+
+    /**
+     * The queries in flight, indexed by the socket index and the DNS message ID used on the wire.
+     */
+    private AtomicReferenceArray<PendingQuery> inFlight;
+
+    private Thread eventLoop;
+
+    private Timer retransmissionTimer;
+
+    /**
+     * The pool used for asynchronous TCP queries if no {@link #setTcpConnectionPool(TcpConnectionPool) pool} is set.
+     */
+    private TcpConnectionPool fallbackConnectionPool;
+
+    private volatile boolean closed;
+
+    /**
+     * Create a new multiplexed data source using four sockets.
+     */
+    public MultiplexedNetworkDataSource() {
+        this(4);
+    }
+
+    /**
+     * Create a new multiplexed data source.
+     *
+     * @param socketCount the number of UDP sockets to spread the queries over.
+     */
+    public MultiplexedNetworkDataSource(int socketCount) {
+        if (socketCount <= 0) {
+            throw new IllegalArgumentException("Socket count must be greater than zero");
+        }
+        this.socketCount = socketCount;
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    /**
+     * Send a query without blocking the calling thread. The query is sent over UDP and retried over TCP if the
+     * response is truncated or no response arrives. TCP queries use the {@link #setTcpConnectionPool(TcpConnectionPool)
+     * connection pool} if one is set, otherwise a pool owned by this data source.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @return the future response.
+     */
+    @Override
+    public MiniDNSFuture<DNSMessage> queryAsync(final DNSMessage message, final InetAddress address, final int port) {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final MiniDNSFuture<DNSMessage> future = new MiniDNSFuture<>();
+        final MiniDNSFuture<DNSMessage> udpFuture = queryUdpAsync(message, address, port);
+        udpFuture.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+            @Override
+            public void onResult(DNSMessage response) {
+                if (!response.truncated || future.isDone()) {
+                    future.setResult(response);
+                    return;
+                }
+                LOGGER.log(Level.FINE, "Fallback to TCP because response is truncated");
+                future.completeWith(queryTcpAsync(message, address, port, deadline));
+            }
+
+            @Override
+            public void onException(final IOException udpException) {
+                if (future.isDone()) {
+                    return;
+                }
+                LOGGER.log(Level.FINE, "Fallback to TCP because {0}", udpException);
+                queryTcpAsync(message, address, port, deadline).addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+                    @Override
+                    public void onResult(DNSMessage response) {
+                        future.setResult(response);
+                    }
+
+                    @Override
+                    public void onException(IOException tcpException) {
+                        future.setException(MultipleIoException.toIOException(Arrays.asList(udpException, tcpException)));
+                    }
+                });
+            }
+        });
+        future.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+            @Override
+            public void onResult(DNSMessage result) {
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                // Release the message ID right away if the caller cancelled the query.
+                udpFuture.cancel(false);
+            }
+        });
+        return future;
+    }
+
+    @Override
+    protected DNSMessage queryUdp(DNSMessage message, InetAddress address, int port) throws IOException {
+        return queryUdpAsync(message, address, port).getOrThrow();
+    }
+
+    /**
+     * Send a query over UDP without waiting for the response. The future fails with a
+     * {@link java.net.SocketTimeoutException} if no response arrives within the {@link #getTimeout() timeout}, and
+     * cancelling the future releases the message ID of the query.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @return the future response.
+     */
+    protected MiniDNSFuture<DNSMessage> queryUdpAsync(DNSMessage message, InetAddress address, int port) {
+        final PendingQuery pending = new PendingQuery(new InetSocketAddress(address, port), message);
+        final int socket;
+        try {
+            ensureStarted();
+            socket = claimId(pending);
+        } catch (IOException e) {
+            return MiniDNSFuture.failed(e);
+        }
+
+        ByteBuffer query = udpSendBuffer(message.size(false));
+        message.writeTo(query);
+        query.flip();
+        query.putShort(0, (short) pending.wireId);
+        final long sent = System.nanoTime();
+        try {
+            send(socket, query, pending.server);
+        } catch (IOException e) {
+            inFlight.compareAndSet(slot(socket, pending.wireId), pending, null);
+            return MiniDNSFuture.failed(e);
+        }
+
+        final int rto = getRto(address);
+        final Retransmission retransmission = new Retransmission(pending, socket, 1, rto);
+        pending.future.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+            @Override
+            public void onResult(DNSMessage result) {
+                if (!pending.retransmitted) {
+                    recordRtt(pending.server.getAddress(), System.nanoTime() - sent);
+                }
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                // The query timed out or was cancelled, release the ID so that a late response is dropped.
+                inFlight.compareAndSet(slot(socket, pending.wireId), pending, null);
+                if (exception instanceof SocketTimeoutException) {
+                    recordTimeout(pending.server.getAddress());
+                }
+            }
+        });
+        schedule(retransmission, rto);
+        return pending.future.setTimeout(timeout);
+    }
+
+    private void send(int socket, ByteBuffer datagram, InetSocketAddress server) throws IOException {
+        if (channels[socket].send(datagram, server) == 0) {
+            throw new IOException("Socket send buffer is full");
+        }
+    }
+
+    private void schedule(TimerTask task, int delay) {
+        try {
+            retransmissionTimer.schedule(task, delay);
+        } catch (IllegalStateException e) {
+            // The timer was cancelled because the data source was closed, which fails the query.
+        }
+    }
+
+    /**
+     * Retransmits a query which was not answered within the retransmission timeout, or fails the query once all
+     * retransmissions are used up.
+     */
+    private final class Retransmission extends TimerTask {
+        private final PendingQuery pending;
+        private final int socket;
+        private final int transmission;
+        private final int rto;
+
+        private Retransmission(PendingQuery pending, int socket, int transmission, int rto) {
+            this.pending = pending;
+            this.socket = socket;
+            this.transmission = transmission;
+            this.rto = rto;
+        }
+
+        @Override
+        public void run() {
+            try {
+                retransmit();
+            } catch (RuntimeException e) {
+                // Must not escape, as it would cancel the retransmission timer of all queries.
+                pending.future.setException(new IOException("Could not retransmit the query to " + pending.server, e));
+            }
+        }
+
+        private void retransmit() {
+            if (pending.future.isDone()) {
+                return;
+            }
+            if (transmission > udpRetransmissions) {
+                pending.future.setException(new SocketTimeoutException("No response from " + pending.server + " after "
+                        + transmission + " transmissions"));
+                return;
+            }
+
+            ByteBuffer query = udpSendBuffer(pending.message.size(false));
+            pending.message.writeTo(query);
+            query.flip();
+            query.putShort(0, (short) pending.wireId);
+            pending.retransmitted = true;
+            try {
+                send(socket, query, pending.server);
+            } catch (IOException e) {
+                pending.future.setException(e);
+                return;
+            }
+            int nextRto = Math.min(2 * rto, maxRto);
+            LOGGER.log(Level.FINE, "Retransmitted query to {0}, next timeout {1}ms", new Object[] { pending.server, nextRto });
+            schedule(new Retransmission(pending, socket, transmission + 1, nextRto), nextRto);
+        }
+    }
+
+    private MiniDNSFuture<DNSMessage> queryTcpAsync(DNSMessage message, InetAddress address, int port, long deadline) {
+        int remaining;
+        try {
+            remaining = remainingMillis(deadline);
+        } catch (SocketTimeoutException e) {
+            return MiniDNSFuture.failed(e);
+        }
+        TcpConnectionPool pool = tcpConnectionPool;
+        if (pool == null) {
+            synchronized (this) {
+                if (fallbackConnectionPool == null) {
+                    fallbackConnectionPool = new TcpConnectionPool();
+                }
+                pool = fallbackConnectionPool;
+            }
+        }
+        return pool.queryAsync(message, address, port, remaining);
+    }
+
+    /**
+     * Register the query in the in flight table of a socket. The ID of the message is kept if it is free on one of the
+     * sockets, otherwise a random free ID is used on the wire and the ID of the response is rewritten to the ID of the
+     * message.
+     *
+     * @param pending the query.
+     * @return the index of the socket the query was registered with.
+     * @throws IOException if no free ID was found.
+     */
+    private int claimId(PendingQuery pending) throws IOException {
+        int start = (nextSocket.getAndIncrement() & Integer.MAX_VALUE) % socketCount;
+        for (int i = 0; i < socketCount; i++) {
+            int socket = (start + i) % socketCount;
+            if (inFlight.compareAndSet(slot(socket, pending.message.id), null, pending)) {
+                return socket;
+            }
+        }
+        for (int i = 0; i < MAX_ID_ATTEMPTS; i++) {
+            int id = random.nextInt(ID_SPACE);
+            if (inFlight.compareAndSet(slot(start, id), null, pending)) {
+                pending.wireId = id;
+                return start;
+            }
+        }
+        throw new IOException("No free message ID for the query");
+    }
+
+    private static int slot(int socket, int id) {
+        return socket * ID_SPACE + id;
+    }
+
+    private synchronized void ensureStarted() throws IOException {
+        if (closed) {
+            throw new IOException("Data source is closed");
+        }
+        if (eventLoop != null) {
+            return;
+        }
+
+        selector = Selector.open();
+        channels = new DatagramChannel[socketCount];
+        try {
+            for (int i = 0; i < socketCount; i++) {
+                channels[i] = openChannel();
+                channels[i].register(selector, SelectionKey.OP_READ, i);
+            }
+        } catch (IOException e) {
+            closeChannels();
+            throw e;
+        }
+        inFlight = new AtomicReferenceArray<>(socketCount * ID_SPACE);
+
+        eventLoop = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                loop();
+            }
+        }, "MiniDNS UDP multiplexer");
+        eventLoop.setDaemon(true);
+        eventLoop.start();
+        retransmissionTimer = new Timer("MiniDNS UDP retransmissions", true);
+    }
+
+    /**
+     * Open a non-blocking channel bound to a random port, falling back to an ephemeral port chosen by the operating
+     * system if the random ports are taken.
+     *
+     * @return the channel.
+     * @throws IOException if the channel could not be opened.
+     */
+    private DatagramChannel openChannel() throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            for (int i = 0; i < MAX_BIND_ATTEMPTS; i++) {
+                int port = 1024 + random.nextInt(ID_SPACE - 1024);
+                try {
+                    channel.socket().bind(new InetSocketAddress(port));
+                    return channel;
+                } catch (IOException e) {
+                    LOGGER.log(Level.FINEST, "Could not bind to port " + port, e);
+                }
+            }
+            channel.socket().bind(null);
+            return channel;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    private void loop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(ID_SPACE);
+        while (!closed) {
+            try {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    DatagramChannel channel = (DatagramChannel) key.channel();
+                    int socket = (Integer) key.attachment();
+                    SocketAddress from;
+                    while ((from = receive(channel, buffer)) != null) {
+                        buffer.flip();
+                        dispatch(socket, from, buffer);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                if (!closed) {
+                    LOGGER.log(Level.WARNING, "Exception in the UDP multiplexer event loop", e);
+                }
+            }
+        }
+    }
+
+    private static SocketAddress receive(DatagramChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        return channel.receive(buffer);
+    }
+
+    /**
+     * Hand a received datagram to the query it answers. Datagrams which do not answer a query in flight are dropped.
+     *
+     * @param socket the index of the socket the datagram was received on.
+     * @param from the sender of the datagram.
+     * @param datagram the datagram.
+     */
+    private void dispatch(int socket, SocketAddress from, ByteBuffer datagram) {
+        if (datagram.remaining() < 12) {
+            return;
+        }
+        int wireId = datagram.getShort(0) & 0xffff;
+        PendingQuery pending = inFlight.get(slot(socket, wireId));
+        if (pending == null || !pending.server.equals(from)) {
+            LOGGER.log(Level.FINE, "Dropping unexpected datagram from {0} with ID {1}", new Object[] { from, wireId });
+            return;
+        }
+
+        datagram.putShort(0, (short) pending.message.id);
+        DNSMessage response;
+        try {
+            response = parse(datagram);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.log(Level.FINE, "Dropping malformed datagram from " + from, e);
+            return;
+        }
+        if (!pending.isAnsweredBy(response)) {
+            LOGGER.log(Level.FINE, "Dropping datagram from {0} with ID {1} for question {2}",
+                    new Object[] { from, wireId, response.getQuestion() });
+            return;
+        }
+
+        if (inFlight.compareAndSet(slot(socket, wireId), pending, null)) {
+            pending.future.setResult(response);
+        }
+    }
+
+    /**
+     * Stop the event loop and close all sockets. Queries in flight fail with an {@link IOException}.
+     */
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (fallbackConnectionPool != null) {
+            fallbackConnectionPool.close();
+        }
+        if (eventLoop == null) {
+            return;
+        }
+        selector.wakeup();
+        retransmissionTimer.cancel();
+        closeChannels();
+        for (int i = 0; i < inFlight.length(); i++) {
+            PendingQuery pending = inFlight.getAndSet(i, null);
+            if (pending != null) {
+                pending.future.setException(new IOException("Data source was closed"));
+            }
+        }
+    }
+
+    private void closeChannels() {
+        for (DatagramChannel channel : channels) {
+            if (channel == null) {
+                continue;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not close channel", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.FINE, "Could not close selector", e);
+        }
+    }
+}
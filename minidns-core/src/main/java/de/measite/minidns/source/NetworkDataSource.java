@@ -11,6 +11,7 @@
 package de.measite.minidns.source;
 
 import de.measite.minidns.DNSMessage;
+import de.measite.minidns.InfrastructureCache;
 import de.measite.minidns.MiniDNSException;
 import de.measite.minidns.util.MultipleIoException;
 
@@ -20,9 +21,14 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -30,7 +36,209 @@ public class NetworkDataSource extends DNSDataSource {
 
     protected static final Logger LOGGER = Logger.getLogger(NetworkDataSource.class.getName());
 
+    /**
+     * Whether responses are parsed lazily.
+     */
+    protected boolean lazyParsing;
+
+    /**
+     * Check whether responses are parsed lazily.
+     *
+     * @return <code>true</code> if responses are parsed lazily.
+     * @see #setLazyParsing(boolean)
+     */
+    public boolean isLazyParsing() {
+        return lazyParsing;
+    }
+
+    /**
+     * Set whether responses are parsed lazily. If enabled, only the header and the question section of a response are
+     * decoded when it is received, the records are decoded once they are accessed.
+     *
+     * @param lazyParsing <code>true</code> to parse responses lazily.
+     * @see DNSMessage#parseLazily(ByteBuffer)
+     */
+    public void setLazyParsing(boolean lazyParsing) {
+        this.lazyParsing = lazyParsing;
+    }
+
+    /**
+     * The pool of persistent TCP connections, or <code>null</code> to use a new connection per TCP query.
+     */
+    protected TcpConnectionPool tcpConnectionPool;
+
+    public TcpConnectionPool getTcpConnectionPool() {
+        return tcpConnectionPool;
+    }
+
+    /**
+     * Set the pool of persistent TCP connections used for TCP queries. If no pool is set, a new connection is opened
+     * for every TCP query.
+     *
+     * @param tcpConnectionPool the pool, or <code>null</code>.
+     */
+    public void setTcpConnectionPool(TcpConnectionPool tcpConnectionPool) {
+        this.tcpConnectionPool = tcpConnectionPool;
+    }
+
+    /**
+     * The round trip times of the servers, used to compute the retransmission timeouts. This is deliberately not the
+     * {@link de.measite.minidns.AbstractDNSClient#getInfrastructureCache() cache of the client}, see
+     * {@link #setInfrastructureCache(InfrastructureCache)}.
+     */
+    protected InfrastructureCache infrastructureCache = new InfrastructureCache();
+
+    /**
+     * The number of times a UDP query is retransmitted before the query falls back to TCP.
+     */
+    protected int udpRetransmissions = 2;
+
+    protected int initialRto = 500;
+
+    protected int minRto = 100;
+
+    protected int maxRto = 2000;
+
+    /**
+     * The deadline of the query which the current thread falls back to TCP for, see
+     * {@link #queryTcp(DNSMessage, InetAddress, int)}.
+     */
+    private final ThreadLocal<Long> queryDeadline = new ThreadLocal<>();
+
+    public InfrastructureCache getInfrastructureCache() {
+        return infrastructureCache;
+    }
+
+    /**
+     * Set the infrastructure cache used to compute the retransmission timeout of a server. Only UDP queries which were
+     * answered without retransmission contribute round trip times, as in Karn's algorithm. If no cache is set, the
+     * {@link #setInitialRto(int) initial retransmission timeout} is used for all servers.
+     * <p>
+     * Do not pass the {@link de.measite.minidns.AbstractDNSClient#getInfrastructureCache() infrastructure cache of a
+     * client} here. The client records the duration of every upstream query including retransmissions and the fallback
+     * to TCP, and a failure for every query which failed. Sharing one cache would record each query twice, and the
+     * durations of retransmitted queries would inflate the retransmission timeout, which Karn's algorithm avoids.
+     * </p>
+     *
+     * @param infrastructureCache the infrastructure cache, or <code>null</code>.
+     */
+    public void setInfrastructureCache(InfrastructureCache infrastructureCache) {
+        this.infrastructureCache = infrastructureCache;
+    }
+
+    public int getUdpRetransmissions() {
+        return udpRetransmissions;
+    }
+
+    /**
+     * Set how often a UDP query is retransmitted if no response arrives within the retransmission timeout. The
+     * timeout doubles with every retransmission. The {@link #setTimeout(int) timeout} limits the total time spent on a
+     * query, including the fallback to TCP.
+     *
+     * @param udpRetransmissions the number of retransmissions, zero disables retransmission.
+     */
+    public void setUdpRetransmissions(int udpRetransmissions) {
+        if (udpRetransmissions < 0) {
+            throw new IllegalArgumentException("UDP retransmissions must not be negative");
+        }
+        this.udpRetransmissions = udpRetransmissions;
+    }
+
+    public int getInitialRto() {
+        return initialRto;
+    }
+
+    /**
+     * Set the retransmission timeout used for servers without known round trip time.
+     *
+     * @param initialRto the initial retransmission timeout in milliseconds.
+     */
+    public void setInitialRto(int initialRto) {
+        if (initialRto <= 0) {
+            throw new IllegalArgumentException("Initial RTO must be greater than zero");
+        }
+        this.initialRto = initialRto;
+    }
+
+    public int getMinRto() {
+        return minRto;
+    }
+
+    public int getMaxRto() {
+        return maxRto;
+    }
+
+    /**
+     * Set the bounds of the retransmission timeout.
+     *
+     * @param minRto the lower bound in milliseconds.
+     * @param maxRto the upper bound in milliseconds.
+     */
+    public void setRtoBounds(int minRto, int maxRto) {
+        if (minRto <= 0 || maxRto < minRto) {
+            throw new IllegalArgumentException("RTO bounds must be positive and ordered");
+        }
+        this.minRto = minRto;
+        this.maxRto = maxRto;
+    }
+
+    /**
+     * Get the retransmission timeout for a UDP query to a server, computed from the round trip times of the server.
+     *
+     * @param server the server.
+     * @return the retransmission timeout in milliseconds.
+     */
+    protected int getRto(InetAddress server) {
+        InfrastructureCache infrastructureCache = this.infrastructureCache;
+        long rto = infrastructureCache == null ? -1 : infrastructureCache.getRto(server);
+        if (rto < 0) {
+            rto = initialRto;
+        }
+        return (int) Math.min(Math.max(rto, minRto), maxRto);
+    }
+
+    /**
+     * Record the round trip time of a UDP query which was answered without retransmission.
+     *
+     * @param server the server.
+     * @param rttNanos the round trip time in nanoseconds.
+     */
+    protected final void recordRtt(InetAddress server, long rttNanos) {
+        InfrastructureCache infrastructureCache = this.infrastructureCache;
+        if (infrastructureCache != null) {
+            infrastructureCache.recordResponse(server, TimeUnit.NANOSECONDS.toMillis(rttNanos));
+        }
+    }
+
+    /**
+     * Record a UDP query which was not answered despite all retransmissions, which doubles the retransmission timeout
+     * of the server.
+     *
+     * @param server the server.
+     */
+    protected final void recordTimeout(InetAddress server) {
+        InfrastructureCache infrastructureCache = this.infrastructureCache;
+        if (infrastructureCache != null) {
+            infrastructureCache.recordFailure(server);
+        }
+    }
+
+    /**
+     * Parse a response, honoring the {@link #setLazyParsing(boolean) lazy parsing} setting.
+     *
+     * @param buffer the buffer holding the response.
+     * @return the parsed response.
+     * @throws IOException if the response could not be parsed.
+     */
+    protected final DNSMessage parse(ByteBuffer buffer) throws IOException {
+        if (lazyParsing) {
+            return DNSMessage.parseLazily(buffer);
+        }
+        return DNSMessage.parse(buffer);
+    }
+
     public DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
         List<IOException> ioExceptions = new ArrayList<>(2);
         DNSMessage dnsMessage = null;
         try {
@@ -47,45 +255,179 @@ public class NetworkDataSource extends DNSDataSource {
         LOGGER.log(Level.FINE, "Fallback to TCP because {0}", new Object[] { dnsMessage != null ? "response is truncated" : ioExceptions.get(0) });
 
         try {
+            queryDeadline.set(deadline);
             dnsMessage = queryTcp(message, address, port);
         } catch (IOException e) {
             ioExceptions.add(e);
             MultipleIoException.throwIfRequired(ioExceptions);
+        } finally {
+            queryDeadline.remove();
         }
 
         return dnsMessage;
     }
 
+    /**
+     * Per thread buffer used to send UDP queries. The buffer is direct, so that the datagram channel does not need to
+     * copy the query into a temporary direct buffer of its own, and is grown if a query exceeds its capacity.
+     */
+    private static final ThreadLocal<ByteBuffer> UDP_SEND_BUFFER = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(512);
+        }
+    };
+
+    /**
+     * Per thread buffer used to receive UDP responses. The responses are decoded before the buffer is reused, so
+     * the buffer is grown if the UDP payload size exceeds its length.
+     */
+    private static final ThreadLocal<byte[]> UDP_RECEIVE_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[512];
+        }
+    };
+
+    static ByteBuffer udpSendBuffer(int size) {
+        ByteBuffer buffer = UDP_SEND_BUFFER.get();
+        if (buffer.capacity() < size) {
+            buffer = ByteBuffer.allocateDirect(size);
+            UDP_SEND_BUFFER.set(buffer);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static byte[] udpReceiveBuffer(int size) {
+        byte[] buffer = UDP_RECEIVE_BUFFER.get();
+        if (buffer.length < size) {
+            buffer = new byte[size];
+            UDP_RECEIVE_BUFFER.set(buffer);
+        }
+        return buffer;
+    }
+
+    /**
+     * Get the time left until the deadline of a query.
+     *
+     * @param deadline the deadline as returned by {@link System#nanoTime()}.
+     * @return the remaining time in milliseconds.
+     * @throws SocketTimeoutException if the deadline has passed.
+     */
+    protected static int remainingMillis(long deadline) throws SocketTimeoutException {
+        long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("Query deadline elapsed");
+        }
+        return (int) remaining;
+    }
+
+    /**
+     * Send a query over UDP. If no response arrives within the {@link #getRto(InetAddress) retransmission timeout},
+     * the query is retransmitted up to {@link #setUdpRetransmissions(int) a few times}, doubling the retransmission
+     * timeout every time. A response to any of the transmissions is accepted.
+     * <p>
+     * The query is encoded into a per thread buffer, but every query opens its own channel, so that it is sent from a
+     * fresh random source port, which makes spoofing responses harder. Use {@link MultiplexedNetworkDataSource} to
+     * send queries over long lived sockets.
+     * </p>
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @return the response.
+     * @throws IOException if no response arrived or the response was invalid.
+     */
     protected DNSMessage queryUdp(DNSMessage message, InetAddress address, int port) throws IOException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        ByteBuffer query = udpSendBuffer(message.size(false));
+        message.writeTo(query);
+        query.flip();
+        byte[] buffer = udpReceiveBuffer(udpPayloadSize);
+
         // TODO Use a try-with-resource statement here once miniDNS minimum
         // required Android API level is >= 19
-        DatagramSocket socket = null;
-        DatagramPacket packet = message.asDatagram(address, port);
-        byte[] buffer = new byte[udpPayloadSize];
+        DatagramChannel channel = null;
         try {
-            socket = new DatagramSocket();
-            socket.setSoTimeout(timeout);
-            socket.send(packet);
-            packet = new DatagramPacket(buffer, buffer.length);
-            socket.receive(packet);
-            DNSMessage dnsMessage = new DNSMessage(packet.getData());
+            channel = DatagramChannel.open();
+            // Receive through the socket adaptor of the channel, as only the adaptor honors the timeout.
+            DatagramSocket socket = channel.socket();
+            InetSocketAddress server = new InetSocketAddress(address, port);
+            DatagramPacket packet = new DatagramPacket(buffer, udpPayloadSize);
+            int rto = getRto(address);
+            for (int transmission = 0; ; transmission++) {
+                long sent = System.nanoTime();
+                query.rewind();
+                channel.send(query, server);
+                int remaining;
+                try {
+                    remaining = remainingMillis(deadline);
+                    socket.setSoTimeout(Math.min(rto, remaining));
+                    socket.receive(packet);
+                } catch (SocketTimeoutException e) {
+                    if (transmission < udpRetransmissions && System.nanoTime() < deadline) {
+                        rto = Math.min(2 * rto, maxRto);
+                        LOGGER.log(Level.FINE, "Retransmitting query to {0} with a timeout of {1}ms", new Object[] { server, rto });
+                        continue;
+                    }
+                    recordTimeout(address);
+                    throw e;
+                }
+                if (transmission == 0) {
+                    recordRtt(address, System.nanoTime() - sent);
+                }
+                break;
+            }
+            DNSMessage dnsMessage = parse(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()));
             if (dnsMessage.id != message.id) {
                 throw new MiniDNSException.IdMismatch(message, dnsMessage);
             }
             return dnsMessage;
         } finally {
-            if (socket != null) {
-                socket.close();
+            if (channel != null) {
+                channel.close();
             }
         }
     }
 
+    /**
+     * Send a query over TCP. This is the method {@link #query(DNSMessage, InetAddress, int)} falls back to, subclasses
+     * may override it to observe or replace the TCP queries. When called from the fallback, the query only gets the
+     * time left until the deadline of the whole query, otherwise the full {@link #getTimeout() timeout}.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @return the response.
+     * @throws IOException if the query failed or timed out.
+     */
     protected DNSMessage queryTcp(DNSMessage message, InetAddress address, int port) throws IOException {
+        Long deadline = queryDeadline.get();
+        return queryTcp(message, address, port, deadline != null ? remainingMillis(deadline) : timeout);
+    }
+
+    /**
+     * Send a query over TCP with the given timeout.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @param timeout the time left for the query in milliseconds.
+     * @return the response.
+     * @throws IOException if the query failed or timed out.
+     */
+    protected DNSMessage queryTcp(DNSMessage message, InetAddress address, int port, int timeout) throws IOException {
+        if (tcpConnectionPool != null) {
+            return tcpConnectionPool.query(message, address, port, timeout);
+        }
+
         // TODO Use a try-with-resource statement here once miniDNS minimum
         // required Android API level is >= 19
         Socket socket = null;
         try {
-            socket = new Socket(address, port);
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(address, port), timeout);
             socket.setSoTimeout(timeout);
             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
             message.writeTo(dos);
@@ -93,11 +435,8 @@ public class NetworkDataSource extends DNSDataSource {
             DataInputStream dis = new DataInputStream(socket.getInputStream());
             int length = dis.readUnsignedShort();
             byte[] data = new byte[length];
-            int read = 0;
-            while (read < length) {
-                read += dis.read(data, read, length-read);
-            }
-            DNSMessage dnsMessage = new DNSMessage(data);
+            dis.readFully(data);
+            DNSMessage dnsMessage = parse(ByteBuffer.wrap(data));
             if (dnsMessage.id != message.id) {
                 throw new MiniDNSException.IdMismatch(message, dnsMessage);
             }
@@ -0,0 +1,56 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.util.MiniDNSFuture;
+
+import java.net.InetSocketAddress;
+
+/**
+ * A query in flight on a shared connection or socket, whose future is completed by the thread receiving the responses.
+ */
+final class PendingQuery {
+
+    final InetSocketAddress server;
+
+    final DNSMessage message;
+
+    /**
+     * The DNS message ID used on the wire, which differs from the ID of the message if that ID was already in flight.
+     */
+    int wireId;
+
+    final MiniDNSFuture<DNSMessage> future = new MiniDNSFuture<>();
+
+    /**
+     * Whether the query was sent more than once, in which case its round trip time is ambiguous.
+     */
+    volatile boolean retransmitted;
+
+    PendingQuery(InetSocketAddress server, DNSMessage message) {
+        this.server = server;
+        this.message = message;
+        this.wireId = message.id;
+    }
+
+    /**
+     * Check if the given response repeats the question of the query.
+     *
+     * @param response the response.
+     * @return <code>true</code> if the response answers the question of the query.
+     */
+    boolean isAnsweredBy(DNSMessage response) {
+        Question question = message.getQuestion();
+        return question == null || question.equals(response.getQuestion());
+    }
+}
@@ -0,0 +1,392 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.EDNS;
+import de.measite.minidns.edns.TcpKeepalive;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent TCP connection to a DNS server, which pipelines queries as described in RFC 7766 § 6.2.1.1. Responses
+ * may arrive in any order and are matched to the queries by their message ID. A reader thread per connection receives
+ * the responses and closes the connection once it was idle for the idle timeout, which the server may change with the
+ * edns-tcp-keepalive option.
+ * <p>
+ * The connection is established by the reader thread, so that opening a connection never blocks the caller. Queries
+ * sent before the connection is established are queued and written once it is.
+ * </p>
+ */
+final class TcpConnection implements Runnable {
+
+    private static final Logger LOGGER = Logger.getLogger(TcpConnection.class.getName());
+
+    private static final int MAX_ID_ATTEMPTS = 64;
+
+    private final TcpConnectionPool pool;
+
+    final InetSocketAddress server;
+
+    private final int connectTimeout;
+
+    private final int idleTimeout;
+
+    private final Random random;
+
+    /**
+     * Serializes the writes to the connection. Acquired before the monitor of this connection if both are needed.
+     */
+    private final Object writeLock = new Object();
+
+    private Socket socket;
+
+    private DataOutputStream out;
+
+    private DataInputStream in;
+
+    /**
+     * The queries sent before the connection was established, or <code>null</code> once it is established. Guarded by
+     * this.
+     */
+    private List<PendingQuery> backlog = new ArrayList<>();
+
+    /**
+     * The queries in flight, by the DNS message ID used on the wire. Guarded by this.
+     */
+    private final Map<Integer, PendingQuery> inFlight = new HashMap<>();
+
+    /**
+     * Whether the connection accepts no further queries and is closed once the queries in flight are answered.
+     * Guarded by this.
+     */
+    private boolean draining;
+
+    private boolean closed;
+
+    TcpConnection(TcpConnectionPool pool, InetSocketAddress server, int connectTimeout, int idleTimeout, Random random) {
+        this.pool = pool;
+        this.server = server;
+        this.connectTimeout = connectTimeout;
+        this.idleTimeout = idleTimeout;
+        this.random = random;
+
+        Thread reader = new Thread(this, "MiniDNS TCP connection to " + server);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /**
+     * The number of queries in flight on this connection.
+     *
+     * @return the number of queries in flight.
+     */
+    synchronized int load() {
+        return inFlight.size();
+    }
+
+    /**
+     * Check if the connection accepts new queries.
+     *
+     * @return <code>true</code> if the connection accepts new queries.
+     */
+    synchronized boolean isUsable() {
+        return !draining && !closed;
+    }
+
+    /**
+     * Send a query on this connection, or queue it if the connection is not yet established. The response is delivered
+     * through the future of the query.
+     *
+     * @param pending the query.
+     * @param maxInFlight the maximum number of queries in flight on this connection.
+     * @return <code>false</code> if the connection no longer accepts queries, already carries the maximum number of
+     *         queries or no free message ID was found.
+     * @throws IOException if the query could not be sent.
+     */
+    boolean send(PendingQuery pending, int maxInFlight) throws IOException {
+        synchronized (writeLock) {
+            synchronized (this) {
+                if (draining || closed || inFlight.size() >= maxInFlight) {
+                    return false;
+                }
+                pending.wireId = pending.message.id;
+                for (int i = 0; inFlight.containsKey(pending.wireId); i++) {
+                    if (i == MAX_ID_ATTEMPTS) {
+                        return false;
+                    }
+                    pending.wireId = random.nextInt(1 << 16);
+                }
+                inFlight.put(pending.wireId, pending);
+                if (backlog != null) {
+                    backlog.add(pending);
+                    return true;
+                }
+            }
+
+            try {
+                write(pending);
+                out.flush();
+            } catch (IOException e) {
+                close(e);
+                throw e;
+            }
+        }
+        return true;
+    }
+
+    private void write(PendingQuery pending) throws IOException {
+        assert Thread.holdsLock(writeLock);
+        byte[] query = pending.message.toArray();
+        query[0] = (byte) (pending.wireId >> 8);
+        query[1] = (byte) pending.wireId;
+        out.writeShort(query.length);
+        out.write(query);
+    }
+
+    /**
+     * Establish the connection and write the queries sent in the meantime.
+     *
+     * @return <code>false</code> if the connection was closed while it was established.
+     * @throws IOException if the connection could not be established.
+     */
+    private boolean connect() throws IOException {
+        Socket socket = pool.connect(server, connectTimeout);
+        synchronized (writeLock) {
+            List<PendingQuery> queued;
+            synchronized (this) {
+                if (closed) {
+                    socket.close();
+                    return false;
+                }
+                this.socket = socket;
+                socket.setSoTimeout(idleTimeout);
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                queued = backlog;
+                backlog = null;
+            }
+            for (PendingQuery pending : queued) {
+                synchronized (this) {
+                    if (inFlight.get(pending.wireId) != pending) {
+                        // The caller gave up in the meantime.
+                        continue;
+                    }
+                }
+                write(pending);
+            }
+            out.flush();
+        }
+        return true;
+    }
+
+    /**
+     * Remove a query whose caller gave up waiting for the response.
+     *
+     * @param pending the query.
+     * @return <code>true</code> if the query was still in flight.
+     */
+    synchronized boolean remove(PendingQuery pending) {
+        return inFlight.remove(pending.wireId) == pending;
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!connect()) {
+                return;
+            }
+            byte[] prefix = new byte[2];
+            while (true) {
+                if (!read(prefix)) {
+                    return;
+                }
+                byte[] data = new byte[((prefix[0] & 0xff) << 8) | (prefix[1] & 0xff)];
+                if (!read(data)) {
+                    return;
+                }
+                dispatch(data);
+                if (closeIfDrained()) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            close(e);
+        } catch (RuntimeException e) {
+            // Close the connection, so that it is not handed out by the pool without a reader.
+            close(new IOException("Reader of the connection to " + server + " failed", e));
+            throw e;
+        }
+    }
+
+    /**
+     * Read the next length prefix or response. The read resumes after socket timeouts, so that the bytes read before
+     * a timeout are kept and the framing stays intact. The connection is closed once a timeout occurs while no queries
+     * are in flight.
+     *
+     * @param buffer the buffer to fill.
+     * @return <code>false</code> if the connection was closed because it was idle.
+     * @throws IOException if the connection failed or was closed by the server.
+     */
+    private boolean read(byte[] buffer) throws IOException {
+        int offset = 0;
+        while (offset < buffer.length) {
+            int count;
+            try {
+                count = in.read(buffer, offset, buffer.length - offset);
+            } catch (SocketTimeoutException e) {
+                if (closeIfIdle()) {
+                    return false;
+                }
+                continue;
+            }
+            if (count < 0) {
+                throw new EOFException("Connection closed by " + server);
+            }
+            offset += count;
+        }
+        return true;
+    }
+
+    private void dispatch(byte[] data) throws IOException {
+        if (data.length < 12) {
+            throw new IOException("Response from " + server + " is too short");
+        }
+        int wireId = ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+        PendingQuery pending;
+        synchronized (this) {
+            pending = inFlight.get(wireId);
+        }
+        if (pending == null) {
+            LOGGER.log(Level.FINE, "Dropping response from {0} with ID {1} without query", new Object[] { server, wireId });
+            return;
+        }
+
+        data[0] = (byte) (pending.message.id >> 8);
+        data[1] = (byte) pending.message.id;
+        DNSMessage response;
+        try {
+            response = DNSMessage.parse(ByteBuffer.wrap(data));
+        } catch (IOException | RuntimeException e) {
+            if (remove(pending)) {
+                pending.future.setException(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
+            return;
+        }
+        if (!pending.isAnsweredBy(response)) {
+            LOGGER.log(Level.FINE, "Dropping response from {0} with ID {1} for question {2}",
+                    new Object[] { server, wireId, response.getQuestion() });
+            return;
+        }
+        applyKeepalive(response);
+        if (remove(pending)) {
+            pending.future.setResult(response);
+        }
+    }
+
+    /**
+     * Apply the idle timeout the server signals with the edns-tcp-keepalive option. A timeout of zero asks the client
+     * to close the connection, so the connection is drained.
+     *
+     * @param response the response.
+     * @throws IOException if the socket timeout could not be changed.
+     */
+    private void applyKeepalive(DNSMessage response) throws IOException {
+        EDNS edns = response.getEdns();
+        if (edns == null) {
+            return;
+        }
+        TcpKeepalive keepalive = edns.getEdnsOption(EDNS.OptionCode.TCP_KEEPALIVE);
+        if (keepalive == null || !keepalive.hasTimeout()) {
+            return;
+        }
+        int timeout = keepalive.getTimeoutMillis();
+        if (timeout == 0) {
+            drain();
+        } else {
+            socket.setSoTimeout(timeout);
+        }
+    }
+
+    /**
+     * Stop accepting queries on this connection. The connection is closed once the queries in flight are answered.
+     */
+    synchronized void drain() {
+        draining = true;
+    }
+
+    private boolean closeIfIdle() {
+        synchronized (this) {
+            if (!inFlight.isEmpty()) {
+                return false;
+            }
+            draining = true;
+        }
+        close(null);
+        return true;
+    }
+
+    private boolean closeIfDrained() {
+        synchronized (this) {
+            if (!draining || !inFlight.isEmpty()) {
+                return false;
+            }
+        }
+        close(null);
+        return true;
+    }
+
+    /**
+     * Close the connection and fail all queries in flight.
+     *
+     * @param cause the cause, or <code>null</code> for a graceful close.
+     */
+    void close(IOException cause) {
+        List<PendingQuery> failed;
+        Socket socket;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            failed = new ArrayList<>(inFlight.values());
+            inFlight.clear();
+            socket = this.socket;
+        }
+        pool.remove(this);
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                LOGGER.log(Level.FINE, "Could not close connection to " + server, e);
+            }
+        }
+        for (PendingQuery pending : failed) {
+            pending.future.setException(cause != null ? cause : new IOException("Connection to " + server + " was closed"));
+        }
+    }
+}
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.EDNS;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.edns.EDNSOption;
+import de.measite.minidns.edns.TcpKeepalive;
+import de.measite.minidns.record.OPT;
+import de.measite.minidns.util.MiniDNSFuture;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A pool of persistent TCP connections to DNS servers, as recommended by RFC 7766. Queries to the same server are
+ * pipelined over up to {@link #setMaxConnectionsPerServer(int) a few} connections, new connections are only opened
+ * once the existing connections carry {@link #setMaxPipelinedQueries(int) many} queries in flight.
+ * <p>
+ * A connection never carries more than the maximum number of pipelined queries. Once all connections to a server
+ * are at this limit, further queries fail right away with an {@link IOException} instead of being queued, so that a
+ * slow server cannot make the queries pile up.
+ * </p>
+ * <p>
+ * Queries which carry EDNS are sent with the edns-tcp-keepalive option of RFC 7828, connections honor the idle timeout
+ * signaled by the server. If the server signals a timeout of zero, the connection stops accepting queries and is
+ * closed once its queries in flight are answered.
+ * </p>
+ *
+ * @see NetworkDataSource#setTcpConnectionPool(TcpConnectionPool)
+ */
+public class TcpConnectionPool implements Closeable {
+
+    private final Map<InetSocketAddress, List<TcpConnection>> connections = new HashMap<>();
+
+    private final Random random = new SecureRandom();
+
+    private int maxConnectionsPerServer = 2;
+
+    private int maxPipelinedQueries = 64;
+
+    private int idleTimeout = 10000;
+
+    private boolean closed;
+
+    public int getMaxConnectionsPerServer() {
+        return maxConnectionsPerServer;
+    }
+
+    public void setMaxConnectionsPerServer(int maxConnectionsPerServer) {
+        if (maxConnectionsPerServer <= 0) {
+            throw new IllegalArgumentException("Max connections per server must be greater than zero");
+        }
+        this.maxConnectionsPerServer = maxConnectionsPerServer;
+    }
+
+    public int getMaxPipelinedQueries() {
+        return maxPipelinedQueries;
+    }
+
+    public void setMaxPipelinedQueries(int maxPipelinedQueries) {
+        if (maxPipelinedQueries <= 0) {
+            throw new IllegalArgumentException("Max pipelined queries must be greater than zero");
+        }
+        this.maxPipelinedQueries = maxPipelinedQueries;
+    }
+
+    /**
+     * Get the time after which an idle connection is closed, unless the server signaled another timeout.
+     *
+     * @return the idle timeout in milliseconds.
+     */
+    public int getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(int idleTimeout) {
+        if (idleTimeout <= 0) {
+            throw new IllegalArgumentException("Idle timeout must be greater than zero");
+        }
+        this.idleTimeout = idleTimeout;
+    }
+
+    /**
+     * Send a query over a pooled connection and wait for the response.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @param timeout the timeout in milliseconds.
+     * @return the response.
+     * @throws IOException if the query failed or timed out.
+     */
+    public DNSMessage query(DNSMessage message, InetAddress address, int port, int timeout) throws IOException {
+        return queryAsync(message, address, port, timeout).getOrThrow();
+    }
+
+    /**
+     * Send a query over a pooled connection without waiting for the response. New connections are established in the
+     * background, the timeout includes the time needed to establish the connection.
+     *
+     * @param message the query.
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @param timeout the timeout in milliseconds.
+     * @return the future response.
+     */
+    public MiniDNSFuture<DNSMessage> queryAsync(DNSMessage message, InetAddress address, int port, int timeout) {
+        InetSocketAddress server = new InetSocketAddress(address, port);
+        final PendingQuery pending = new PendingQuery(server, withKeepalive(message));
+        final TcpConnection connection;
+        try {
+            connection = send(pending, timeout);
+        } catch (IOException e) {
+            return MiniDNSFuture.failed(e);
+        }
+
+        pending.future.addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+            @Override
+            public void onResult(DNSMessage result) {
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                // The query timed out or was cancelled, a late response is dropped.
+                connection.remove(pending);
+            }
+        });
+        return pending.future.setTimeout(timeout);
+    }
+
+    /**
+     * The number of open connections to the given server.
+     *
+     * @param address the address of the server.
+     * @param port the port of the server.
+     * @return the number of open connections.
+     */
+    public synchronized int getConnectionCount(InetAddress address, int port) {
+        List<TcpConnection> serverConnections = connections.get(new InetSocketAddress(address, port));
+        return serverConnections == null ? 0 : serverConnections.size();
+    }
+
+    /**
+     * Send a query on the least loaded connection to its server.
+     *
+     * @param pending the query.
+     * @param timeout the connect timeout in milliseconds.
+     * @return the connection the query was sent on.
+     * @throws IOException if the query could not be sent or all connections to the server are at their limit.
+     */
+    private TcpConnection send(PendingQuery pending, int timeout) throws IOException {
+        // A connection may fill up, start draining or close between acquiring and sending it, then try another one.
+        for (int attempt = 0; attempt <= maxConnectionsPerServer; attempt++) {
+            TcpConnection connection = acquire(pending.server, timeout);
+            if (connection == null) {
+                break;
+            }
+            if (connection.send(pending, maxPipelinedQueries)) {
+                return connection;
+            }
+        }
+        throw new IOException("Too many queries in flight to " + pending.server);
+    }
+
+    /**
+     * Get the least loaded usable connection to a server which accepts another query, opening a new connection if
+     * there is none and the server has less than the maximum number of connections.
+     *
+     * @param server the server.
+     * @param timeout the connect timeout in milliseconds.
+     * @return the connection, or <code>null</code> if all usable connections to the server carry the maximum number of
+     *         queries.
+     * @throws IOException if the pool is closed.
+     */
+    private synchronized TcpConnection acquire(InetSocketAddress server, int timeout) throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool is closed");
+        }
+        List<TcpConnection> serverConnections = connections.get(server);
+        if (serverConnections == null) {
+            serverConnections = new ArrayList<>(maxConnectionsPerServer);
+            connections.put(server, serverConnections);
+        }
+
+        TcpConnection leastLoaded = null;
+        int leastLoad = Integer.MAX_VALUE;
+        int usable = 0;
+        for (TcpConnection connection : serverConnections) {
+            if (!connection.isUsable()) {
+                // Draining connections are closed soon and do not count towards the limit.
+                continue;
+            }
+            usable++;
+            int load = connection.load();
+            if (load < leastLoad) {
+                leastLoaded = connection;
+                leastLoad = load;
+            }
+        }
+        if (leastLoaded != null && leastLoad < maxPipelinedQueries) {
+            return leastLoaded;
+        }
+        if (usable >= maxConnectionsPerServer) {
+            return null;
+        }
+
+        TcpConnection connection = new TcpConnection(this, server, timeout, idleTimeout, random);
+        serverConnections.add(connection);
+        return connection;
+    }
+
+    /**
+     * Open a new connection to a server. Subclasses may override this to wrap the connection, e.g. in TLS. This is
+     * invoked by the reader thread of the new connection.
+     *
+     * @param server the server.
+     * @param timeout the connect timeout in milliseconds.
+     * @return the connected socket.
+     * @throws IOException if the connection could not be established.
+     */
+    protected Socket connect(InetSocketAddress server, int timeout) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(server, timeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+
+    synchronized void remove(TcpConnection connection) {
+        List<TcpConnection> serverConnections = connections.get(connection.server);
+        if (serverConnections == null) {
+            return;
+        }
+        serverConnections.remove(connection);
+        if (serverConnections.isEmpty()) {
+            connections.remove(connection.server);
+        }
+    }
+
+    /**
+     * Add the edns-tcp-keepalive option to a query which carries EDNS.
+     *
+     * @param message the query.
+     * @return the query with the option.
+     */
+    private static DNSMessage withKeepalive(DNSMessage message) {
+        EDNS edns = message.getEdns();
+        if (edns == null || edns.getEdnsOption(EDNS.OptionCode.TCP_KEEPALIVE) != null) {
+            return message;
+        }
+
+        List<EDNSOption> options = new ArrayList<>(edns.variablePart.size() + 1);
+        options.addAll(edns.variablePart);
+        options.add(TcpKeepalive.REQUEST);
+        List<Record> additionalSection = new ArrayList<>(message.additionalSection.size());
+        for (Record record : message.additionalSection) {
+            if (record.type == TYPE.OPT) {
+                record = new Record(record.name, TYPE.OPT, record.clazzValue, record.ttl, new OPT(options));
+            }
+            additionalSection.add(record);
+        }
+        return message.asBuilder().setAdditionalResourceRecords(additionalSection).build();
+    }
+
+    /**
+     * Close all connections. Queries in flight fail with an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        List<TcpConnection> all = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (List<TcpConnection> serverConnections : connections.values()) {
+                all.addAll(serverConnections);
+            }
+        }
+        for (TcpConnection connection : all) {
+            connection.close(null);
+        }
+    }
+}
@@ -0,0 +1,327 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The result of an asynchronous operation, which is completed exactly once with either a result or an
+ * {@link IOException}. Callbacks are invoked by the thread completing the future, or by the thread adding the callback
+ * if the future is already completed, so they should not block. A {@link RuntimeException} thrown by a callback is
+ * logged and does not affect the other callbacks or the completing thread, which may be an internal thread of MiniDNS.
+ *
+ * @param <V> the type of the result.
+ */
+public class MiniDNSFuture<V> implements Future<V> {
+
+    /**
+     * A callback which is informed once a future is completed.
+     *
+     * @param <V> the type of the result.
+     */
+    public interface Callback<V> {
+
+        void onResult(V result);
+
+        /**
+         * Invoked if the future failed, timed out or was cancelled.
+         *
+         * @param exception the exception, a {@link SocketTimeoutException} if the future timed out or an
+         *        {@link InterruptedIOException} if it was cancelled.
+         */
+        void onException(IOException exception);
+    }
+
+    /**
+     * Timer shared by all futures for their timeouts.
+     */
+    private static final Timer TIMER = new Timer("MiniDNS future timeouts", true);
+
+    private static final Logger LOGGER = Logger.getLogger(MiniDNSFuture.class.getName());
+
+    private boolean done;
+
+    private boolean cancelled;
+
+    private V result;
+
+    private IOException exception;
+
+    private List<Callback<? super V>> callbacks;
+
+    private TimerTask timeoutTask;
+
+    /**
+     * Create a future which is already completed with the given result.
+     *
+     * @param result the result.
+     * @param <V> the type of the result.
+     * @return the future.
+     */
+    public static <V> MiniDNSFuture<V> from(V result) {
+        MiniDNSFuture<V> future = new MiniDNSFuture<>();
+        future.setResult(result);
+        return future;
+    }
+
+    /**
+     * Create a future which already failed with the given exception.
+     *
+     * @param exception the exception.
+     * @param <V> the type of the result.
+     * @return the future.
+     */
+    public static <V> MiniDNSFuture<V> failed(IOException exception) {
+        MiniDNSFuture<V> future = new MiniDNSFuture<>();
+        future.setException(exception);
+        return future;
+    }
+
+    /**
+     * Complete this future with a result.
+     *
+     * @param result the result.
+     * @return <code>false</code> if the future was already completed.
+     */
+    public boolean setResult(V result) {
+        List<Callback<? super V>> callbacks;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.result = result;
+            callbacks = complete();
+        }
+        for (Callback<? super V> callback : callbacks) {
+            notifyResult(callback, result);
+        }
+        return true;
+    }
+
+    /**
+     * Complete this future with an exception.
+     *
+     * @param exception the exception.
+     * @return <code>false</code> if the future was already completed.
+     */
+    public boolean setException(IOException exception) {
+        List<Callback<? super V>> callbacks;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            this.exception = exception;
+            callbacks = complete();
+        }
+        for (Callback<? super V> callback : callbacks) {
+            notifyException(callback, exception);
+        }
+        return true;
+    }
+
+    private List<Callback<? super V>> complete() {
+        assert Thread.holdsLock(this);
+        done = true;
+        notifyAll();
+        if (timeoutTask != null) {
+            timeoutTask.cancel();
+            timeoutTask = null;
+        }
+        List<Callback<? super V>> callbacks = this.callbacks;
+        this.callbacks = null;
+        if (callbacks == null) {
+            return new ArrayList<>(0);
+        }
+        return callbacks;
+    }
+
+    /**
+     * Add a callback, which is invoked right away if this future is already completed.
+     *
+     * @param callback the callback.
+     * @return this future.
+     */
+    public MiniDNSFuture<V> addCallback(Callback<? super V> callback) {
+        synchronized (this) {
+            if (!done) {
+                if (callbacks == null) {
+                    callbacks = new ArrayList<>(2);
+                }
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        if (exception != null) {
+            notifyException(callback, exception);
+        } else {
+            notifyResult(callback, result);
+        }
+        return this;
+    }
+
+    private static <V> void notifyResult(Callback<? super V> callback, V result) {
+        try {
+            callback.onResult(result);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Exception in callback " + callback, e);
+        }
+    }
+
+    private static void notifyException(Callback<?> callback, IOException exception) {
+        try {
+            callback.onException(exception);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Exception in callback " + callback, e);
+        }
+    }
+
+    /**
+     * Complete this future with the outcome of another future once that future is completed.
+     *
+     * @param source the future to take the result or exception from.
+     * @return this future.
+     */
+    public MiniDNSFuture<V> completeWith(MiniDNSFuture<? extends V> source) {
+        source.addCallback(new Callback<V>() {
+            @Override
+            public void onResult(V result) {
+                setResult(result);
+            }
+
+            @Override
+            public void onException(IOException exception) {
+                setException(exception);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Fail this future with a {@link SocketTimeoutException} if it is not completed within the given time.
+     *
+     * @param timeout the timeout in milliseconds.
+     * @return this future.
+     */
+    public MiniDNSFuture<V> setTimeout(final long timeout) {
+        synchronized (this) {
+            if (done) {
+                return this;
+            }
+            if (timeoutTask != null) {
+                timeoutTask.cancel();
+            }
+            timeoutTask = new TimerTask() {
+                @Override
+                public void run() {
+                    setException(new SocketTimeoutException("Timeout of " + timeout + "ms elapsed"));
+                }
+            };
+            TIMER.schedule(timeoutTask, timeout);
+        }
+        return this;
+    }
+
+    /**
+     * Cancel this future. Callbacks receive an {@link InterruptedIOException}.
+     *
+     * @param mayInterruptIfRunning ignored, operations are never interrupted.
+     * @return <code>true</code> if the future was cancelled, <code>false</code> if it was already completed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+        }
+        return setException(new InterruptedIOException("Future was cancelled"));
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized V get() throws InterruptedException, ExecutionException {
+        while (!done) {
+            wait();
+        }
+        return getResult();
+    }
+
+    @Override
+    public synchronized V get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getResult();
+    }
+
+    private V getResult() throws ExecutionException {
+        assert Thread.holdsLock(this);
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return result;
+    }
+
+    /**
+     * Wait for this future to complete and return the result.
+     *
+     * @return the result.
+     * @throws IOException if the future failed, timed out or was cancelled, or if the thread was interrupted.
+     */
+    public synchronized V getOrThrow() throws IOException {
+        while (!done) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                InterruptedIOException interruptedException = new InterruptedIOException();
+                interruptedException.initCause(e);
+                throw interruptedException;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return result;
+    }
+}
@@ -51,9 +51,19 @@ public class MultipleIoException extends IOException {
         if (ioExceptions == null || ioExceptions.isEmpty()) {
             return;
         }
+        throw toIOException(ioExceptions);
+    }
+
+    /**
+     * Combine the given exceptions into one exception.
+     *
+     * @param ioExceptions the exceptions, must not be empty.
+     * @return the only exception, or a {@link MultipleIoException} if there are several exceptions.
+     */
+    public static IOException toIOException(List<? extends IOException> ioExceptions) {
         if (ioExceptions.size() == 1) {
-            throw ioExceptions.get(0);
+            return ioExceptions.get(0);
         }
-        throw new MultipleIoException(ioExceptions);
+        return new MultipleIoException(ioExceptions);
     }
 }
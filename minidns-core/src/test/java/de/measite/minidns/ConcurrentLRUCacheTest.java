@@ -0,0 +1,208 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import static de.measite.minidns.DNSWorld.a;
+import static de.measite.minidns.DNSWorld.ns;
+import static de.measite.minidns.DNSWorld.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.measite.minidns.cache.ConcurrentLRUCache;
+
+public class ConcurrentLRUCacheTest {
+    private ConcurrentLRUCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new ConcurrentLRUCache(5);
+    }
+
+    @Test
+    public void testOutdatedCacheEntry() {
+        DNSMessage question = new Question("", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage(1));
+
+        assertNull(cache.get(question));
+        assertNull(cache.get(question));
+        assertEquals(1, cache.getExpireCount());
+        assertEquals(2, cache.getMissCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testOverfilledCache() {
+        DNSMessage question = new Question("", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage());
+        assertNotNull(cache.get(question));
+        for (int i = 1; i <= 5; i++) {
+            cache.put(new Question(Integer.toString(i), Record.TYPE.A).asQueryMessage(), createSampleMessage());
+        }
+
+        assertNull(cache.get(question));
+        assertEquals(5, cache.size());
+        assertEquals(0, cache.getExpireCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        for (int i = 1; i <= 5; i++) {
+            cache.put(new Question(Integer.toString(i), Record.TYPE.A).asQueryMessage(), createSampleMessage());
+        }
+        // Touch the oldest entry, so that the second one becomes the least recently used.
+        assertNotNull(cache.get(new Question("1", Record.TYPE.A).asQueryMessage()));
+        cache.put(new Question("6", Record.TYPE.A).asQueryMessage(), createSampleMessage());
+
+        assertNotNull(cache.get(new Question("1", Record.TYPE.A).asQueryMessage()));
+        assertNull(cache.get(new Question("2", Record.TYPE.A).asQueryMessage()));
+        assertNotNull(cache.get(new Question("6", Record.TYPE.A).asQueryMessage()));
+    }
+
+    @Test
+    public void testReplaceEntry() {
+        DNSMessage question = new Question("", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage());
+        DNSMessage replacement = createSampleMessage();
+        cache.put(question, replacement);
+
+        assertEquals(1, cache.size());
+        assertTrue(replacement == cache.get(question));
+    }
+
+    @Test
+    public void testClear() {
+        DNSMessage question = new Question("", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage());
+        assertNotNull(cache.get(question));
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getHitCount());
+        assertNull(cache.get(question));
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testPrefetch() {
+        DNSMessage question = new Question("", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage(System.currentTimeMillis() - 55000, 60));
+        assertFalse(cache.needsPrefetch(question.asCacheKey()));
+
+        cache.setPrefetch(10, 2);
+        assertNotNull(cache.get(question));
+        // Not requested often enough yet.
+        assertFalse(cache.needsPrefetch(question.asCacheKey()));
+        assertNotNull(cache.get(question));
+        assertTrue(cache.needsPrefetch(question.asCacheKey()));
+        // Only reported once.
+        assertFalse(cache.needsPrefetch(question.asCacheKey()));
+
+        DNSMessage fresh = new Question("fresh", Record.TYPE.A).asQueryMessage();
+        cache.put(fresh, createSampleMessage(System.currentTimeMillis(), 60));
+        assertNotNull(cache.get(fresh));
+        assertNotNull(cache.get(fresh));
+        assertFalse(cache.needsPrefetch(fresh.asCacheKey()));
+    }
+
+    @Test
+    public void testPrefetchMetrics() {
+        cache.setPrefetch(10, 1);
+        DNSMessage hit = new Question("hit", Record.TYPE.A).asQueryMessage();
+        DNSMessage wasted = new Question("wasted", Record.TYPE.A).asQueryMessage();
+        for (DNSMessage question : new DNSMessage[] { hit, wasted }) {
+            cache.put(question, createSampleMessage(System.currentTimeMillis() - 55000, 60));
+            assertNotNull(cache.get(question));
+            assertTrue(cache.needsPrefetch(question.asCacheKey()));
+            cache.put(question, createSampleMessage(System.currentTimeMillis() - 55000, 60));
+        }
+
+        assertNotNull(cache.get(hit));
+        assertNotNull(cache.get(hit));
+        assertEquals(1, cache.getPrefetchHitCount());
+        assertEquals(0, cache.getWastedPrefetchCount());
+
+        // The prefetched response of the second entry is replaced without being requested.
+        cache.put(wasted, createSampleMessage());
+        assertEquals(1, cache.getPrefetchHitCount());
+        assertEquals(1, cache.getWastedPrefetchCount());
+    }
+
+    @Test
+    public void testConcurrentAccess() throws InterruptedException {
+        final int threadCount = 8;
+        final int operations = 10000;
+        final ConcurrentLRUCache cache = new ConcurrentLRUCache(64);
+        final DNSMessage[] questions = new DNSMessage[128];
+        for (int i = 0; i < questions.length; i++) {
+            questions[i] = new Question(i + ".example", Record.TYPE.A).asQueryMessage();
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        List<Thread> threads = new ArrayList<>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < operations; i++) {
+                            DNSMessage question = questions[(i * 31 + seed) % questions.length];
+                            if (cache.get(question) == null) {
+                                cache.put(question, createSampleMessage());
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertEquals(threadCount * operations, cache.getHitCount() + cache.getMissCount());
+        // A last uncontended write drains all pending buffers.
+        cache.put(questions[0], createSampleMessage());
+        assertTrue(cache.size() <= 64);
+    }
+
+    private static DNSMessage createSampleMessage() {
+        return createSampleMessage(System.currentTimeMillis());
+    }
+
+    private static DNSMessage createSampleMessage(long receiveTimestamp) {
+        return createSampleMessage(receiveTimestamp, 3600);
+    }
+
+    private static DNSMessage createSampleMessage(long receiveTimestamp, long ttl) {
+        DNSMessage.Builder message = DNSMessage.builder();
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.addAnswer(record("", ttl, ns("a.root-servers.net")));
+        message.addAdditionalResourceRecords(record("a.root-servers.net", a("127.0.0.1")));
+        return message.build();
+    }
+}
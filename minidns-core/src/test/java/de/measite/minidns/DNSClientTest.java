@@ -11,6 +11,7 @@
 package de.measite.minidns;
 
 import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.cache.ConcurrentLRUCache;
 import de.measite.minidns.cache.LRUCache;
 import de.measite.minidns.dnsserverlookup.AbstractDNSServerLookupMechanism;
 import de.measite.minidns.dnsserverlookup.AndroidUsingExec;
@@ -19,19 +20,30 @@ import de.measite.minidns.dnsserverlookup.DNSServerLookupMechanism;
 import de.measite.minidns.dnsserverlookup.HardcodedDNSServerAddresses;
 import de.measite.minidns.record.A;
 import de.measite.minidns.source.DNSDataSource;
+import de.measite.minidns.source.MultiplexedNetworkDataSource;
+import de.measite.minidns.util.MiniDNSFuture;
 
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static de.measite.minidns.DNSWorld.a;
 import static de.measite.minidns.DNSWorld.applyStubRecords;
 import static de.measite.minidns.DNSWorld.record;
+import static de.measite.minidns.DNSWorld.soa;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
@@ -88,6 +100,61 @@ public class DNSClientTest {
         assertNull(response);
     }
 
+    @Test
+    public void testInfrastructureCache() throws IOException {
+        DNSClient client = new DNSClient(new LRUCache(0));
+        applyStubRecords(client, record("www.example.com", a("127.0.0.1")));
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        client.query(new Question("www.example.com", TYPE.A), server);
+        assertTrue(client.getInfrastructureCache().getSrtt(server) >= 0);
+        assertEquals(0, client.getInfrastructureCache().getFailureCount(server));
+
+        client.setDataSource(new DNSDataSource() {
+            @Override
+            public DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException {
+                throw new IOException();
+            }
+        });
+        try {
+            client.query(new Question("www.example.com", TYPE.A), server);
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(1, client.getInfrastructureCache().getFailureCount(server));
+    }
+
+    @Test
+    public void testNegativeCaching() throws IOException {
+        class NxDomainSource extends DNSDataSource {
+            int queries = 0;
+
+            @Override
+            public DNSMessage query(DNSMessage message, InetAddress address, int port) {
+                queries++;
+                DNSMessage.Builder response = message.asBuilder()
+                        .setQrFlag(true)
+                        .setResponseCode(DNSMessage.RESPONSE_CODE.NX_DOMAIN)
+                        .setReceiveTimestamp(System.currentTimeMillis());
+                response.addNameserverRecords(record("example.com", 3600,
+                        soa("ns.example.com", "hostmaster.example.com", 1, 3600, 600, 86400, 300)));
+                return response.build();
+            }
+        }
+        NxDomainSource source = new NxDomainSource();
+        LRUCache cache = new LRUCache(16);
+        DNSClient client = new DNSClient(cache);
+        client.setDataSource(source);
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+
+        DNSMessage response = client.query(new Question("nx.example.com", TYPE.A), server);
+        assertEquals(DNSMessage.RESPONSE_CODE.NX_DOMAIN, response.responseCode);
+        response = client.query(new Question("nx.example.com", TYPE.A), server);
+        assertEquals(DNSMessage.RESPONSE_CODE.NX_DOMAIN, response.responseCode);
+        assertEquals(1, source.queries);
+        assertEquals(1, cache.getNegativeHitCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
     @Test
     public void testReturnNullSource() throws IOException {
         class NullSource extends DNSDataSource {
@@ -106,4 +173,393 @@ public class DNSClientTest {
         assertNull(message);
         assertTrue(source.queried);
     }
+
+    /**
+     * A data source which blocks every query until it is released.
+     */
+    private static class BlockingSource extends DNSDataSource {
+        final AtomicInteger queries = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile boolean fail;
+
+        @Override
+        public DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException {
+            queries.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (fail) {
+                throw new IOException("Upstream failure");
+            }
+            return message.asBuilder()
+                    .setQrFlag(true)
+                    .setRecursionAvailable(true)
+                    .setReceiveTimestamp(System.currentTimeMillis())
+                    .addAnswer(record("www.example.com", a("127.0.0.1")))
+                    .build();
+        }
+    }
+
+    private static List<Throwable> queryConcurrently(final DNSClient client, int threadCount, BlockingSource source)
+            throws InterruptedException {
+        final List<Throwable> results = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        DNSMessage response = client.query("www.example.com", TYPE.A);
+                        assertEquals(1, response.answerSection.size());
+                        results.add(null);
+                    } catch (Throwable t) {
+                        results.add(t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (int i = 0; i < 500 && client.getCoalescedQueryCount() < threadCount - 1; i++) {
+            Thread.sleep(10);
+        }
+        source.release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return results;
+    }
+
+    @Test
+    public void testQueryCoalescing() throws InterruptedException {
+        DNSClient client = new DNSClient(new LRUCache(0));
+        BlockingSource source = new BlockingSource();
+        client.setDataSource(source);
+
+        List<Throwable> results = queryConcurrently(client, 16, source);
+        assertEquals(Collections.nCopies(16, null), results);
+        assertEquals(1, source.queries.get());
+        assertEquals(1, client.getUpstreamQueryCount());
+        assertEquals(15, client.getCoalescedQueryCount());
+    }
+
+    @Test
+    public void testQueryCoalescingFailure() throws InterruptedException {
+        DNSClient client = new DNSClient(new LRUCache(0));
+        BlockingSource source = new BlockingSource();
+        source.fail = true;
+        client.setDataSource(source);
+
+        List<Throwable> results = queryConcurrently(client, 4, source);
+        assertEquals(4, results.size());
+        for (Throwable result : results) {
+            assertTrue(result instanceof IOException);
+        }
+        assertEquals(3, client.getCoalescedQueryCount());
+    }
+
+    /**
+     * A data source which answers queries once the test completes their futures.
+     */
+    private static class AsyncSource extends DNSDataSource {
+        final List<DNSMessage> queries = Collections.synchronizedList(new ArrayList<DNSMessage>());
+        final List<InetAddress> addresses = Collections.synchronizedList(new ArrayList<InetAddress>());
+        final List<MiniDNSFuture<DNSMessage>> futures = Collections.synchronizedList(new ArrayList<MiniDNSFuture<DNSMessage>>());
+
+        @Override
+        public DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException {
+            return queryAsync(message, address, port).getOrThrow();
+        }
+
+        @Override
+        public boolean isAsynchronous() {
+            return true;
+        }
+
+        @Override
+        public MiniDNSFuture<DNSMessage> queryAsync(DNSMessage message, InetAddress address, int port) {
+            MiniDNSFuture<DNSMessage> future = new MiniDNSFuture<>();
+            queries.add(message);
+            addresses.add(address);
+            futures.add(future);
+            return future;
+        }
+
+        void answer(int index) {
+            futures.get(index).setResult(queries.get(index).asBuilder()
+                    .setQrFlag(true)
+                    .setRecursionAvailable(true)
+                    .setReceiveTimestamp(System.currentTimeMillis())
+                    .addAnswer(record("www.example.com", a("127.0.0.1")))
+                    .build());
+        }
+
+        void awaitQueries(int count) throws InterruptedException {
+            for (int i = 0; i < 500 && futures.size() < count; i++) {
+                Thread.sleep(10);
+            }
+            assertEquals(count, futures.size());
+        }
+    }
+
+    @Test
+    public void testServeStale() throws Exception {
+        ConcurrentLRUCache cache = new ConcurrentLRUCache(16);
+        cache.setStaleWindow(3600);
+        AsyncSource source = new AsyncSource();
+        DNSClient client = new DNSClient(cache);
+        client.setDataSource(source);
+        client.setClientResponseTimeout(50);
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        DNSMessage query = client.getQueryFor(new Question("www.example.com", TYPE.A));
+
+        DNSMessage.Builder expired = query.asBuilder()
+                .setQrFlag(true)
+                .setReceiveTimestamp(System.currentTimeMillis() - 120000)
+                .addAnswer(record("www.example.com", 60, a("127.0.0.2")));
+        cache.put(query, expired.build());
+        assertNull(cache.get(query));
+
+        // The upstream server fails.
+        MiniDNSFuture<DNSMessage> future = client.queryAsync(query, server, 53);
+        source.futures.get(0).setException(new IOException());
+        assertEquals(StaleDNSCache.STALE_TTL, future.getOrThrow().answerSection.get(0).ttl);
+        assertEquals(1, client.getStaleResponseCount());
+
+        // The upstream server does not answer in time.
+        DNSMessage response = client.queryAsync(query, server, 53).getOrThrow();
+        assertEquals(StaleDNSCache.STALE_TTL, response.answerSection.get(0).ttl);
+        assertEquals(2, client.getStaleResponseCount());
+
+        // The late response refreshes the cache.
+        source.answer(1);
+        response = client.queryAsync(query, server, 53).getOrThrow();
+        assertArrayEquals(new byte[] {127, 0, 0, 1}, ((A) response.answerSection.get(0).payloadData).getIp());
+        assertEquals(2, source.futures.size());
+        assertEquals(2, cache.getStaleHitCount());
+    }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        ConcurrentLRUCache cache = new ConcurrentLRUCache(16);
+        cache.setPrefetch(10, 1);
+        AsyncSource source = new AsyncSource();
+        DNSClient client = new DNSClient(cache);
+        client.setDataSource(source);
+        InetAddress server = InetAddress.getByName("192.0.2.1");
+        DNSMessage query = client.getQueryFor(new Question("www.example.com", TYPE.A));
+
+        DNSMessage.Builder expiring = query.asBuilder()
+                .setQrFlag(true)
+                .setReceiveTimestamp(System.currentTimeMillis() - 55000)
+                .addAnswer(record("www.example.com", 60, a("127.0.0.2")));
+        cache.put(query, expiring.build());
+
+        // The cached response is returned right away, while it is refreshed in the background.
+        DNSMessage response = client.queryAsync(query, server, 53).getOrThrow();
+        assertArrayEquals(new byte[] {127, 0, 0, 2}, ((A) response.answerSection.get(0).payloadData).getIp());
+        source.awaitQueries(1);
+        assertEquals(1, client.getPrefetchCount());
+
+        source.answer(0);
+        for (int i = 0; i < 500 && cache.getPrefetchHitCount() == 0; i++) {
+            response = client.queryAsync(query, server, 53).getOrThrow();
+            Thread.sleep(10);
+        }
+        assertArrayEquals(new byte[] {127, 0, 0, 1}, ((A) response.answerSection.get(0).payloadData).getIp());
+        assertEquals(1, source.futures.size());
+        assertEquals(1, client.getPrefetchCount());
+        assertEquals(0, client.getDroppedPrefetchCount());
+    }
+
+    /**
+     * A client which asks three fixed servers with an asynchronous data source.
+     */
+    private static DNSClient newServerClient(DNSDataSource source) {
+        DNSClient client = new DNSClient(new LRUCache(0)) {
+            @Override
+            protected List<InetAddress> getDnsServers(List<IOException> ioExceptions) {
+                try {
+                    return Arrays.asList(InetAddress.getByName("192.0.2.1"), InetAddress.getByName("192.0.2.2"),
+                            InetAddress.getByName("192.0.2.3"));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        client.setDataSource(source);
+        client.setInfrastructureCache(null);
+        return client;
+    }
+
+    @Test
+    public void testHedgedQuery() throws Exception {
+        AsyncSource source = new AsyncSource();
+        DNSClient client = newServerClient(source);
+        client.setQueryStrategy(DNSClient.QueryStrategy.HEDGED);
+        client.setHedgeDelay(50);
+
+        MiniDNSFuture<DNSMessage> future = client.queryAsync(new Question("www.example.com", TYPE.A));
+        assertEquals(1, source.futures.size());
+        source.awaitQueries(2);
+        assertEquals(InetAddress.getByName("192.0.2.2"), source.addresses.get(1));
+        source.answer(1);
+        assertEquals(1, future.getOrThrow().answerSection.size());
+        assertEquals(1, client.getHedgedQueryCount());
+
+        // The third server is not asked once the query is answered.
+        Thread.sleep(100);
+        assertEquals(2, source.futures.size());
+    }
+
+    @Test
+    public void testHedgedQueryWithMultiplexedDataSource() throws Exception {
+        // The first server never answers, the second one does.
+        final DatagramSocket silentServer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    DatagramPacket packet = new DatagramPacket(new byte[512], 512);
+                    server.receive(packet);
+                    DNSMessage query = new DNSMessage(Arrays.copyOf(packet.getData(), packet.getLength()));
+                    DNSMessage response = query.asBuilder()
+                            .setQrFlag(true)
+                            .setRecursionAvailable(true)
+                            .addAnswer(record("www.example.com", a("127.0.0.1")))
+                            .build();
+                    server.send(response.asDatagram(packet.getAddress(), packet.getPort()));
+                } catch (IOException e) {
+                    // Server socket was closed.
+                }
+            }
+        };
+        serverThread.start();
+        final MultiplexedNetworkDataSource multiplexed = new MultiplexedNetworkDataSource(1);
+        final InetAddress silentAddress = InetAddress.getByName("192.0.2.1");
+        // Maps the fixed server addresses of the client to the local servers.
+        DNSDataSource source = new DNSDataSource() {
+            @Override
+            public DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException {
+                return queryAsync(message, address, port).getOrThrow();
+            }
+
+            @Override
+            public MiniDNSFuture<DNSMessage> queryAsync(DNSMessage message, InetAddress address, int port) {
+                DatagramSocket target = address.equals(silentAddress) ? silentServer : server;
+                return multiplexed.queryAsync(message, target.getLocalAddress(), target.getLocalPort());
+            }
+
+            @Override
+            public boolean isAsynchronous() {
+                return multiplexed.isAsynchronous();
+            }
+        };
+        try {
+            DNSClient client = newServerClient(source);
+            client.setQueryStrategy(DNSClient.QueryStrategy.HEDGED);
+            client.setHedgeDelay(50);
+
+            long start = System.nanoTime();
+            DNSMessage response = client.queryAsync(new Question("www.example.com", TYPE.A)).getOrThrow();
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertArrayEquals(new byte[] {127, 0, 0, 1}, ((A) response.answerSection.get(0).payloadData).getIp());
+            assertEquals(1, client.getHedgedQueryCount());
+            // Answered by the hedge long before the first query times out.
+            assertTrue(elapsed < multiplexed.getTimeout());
+        } finally {
+            multiplexed.close();
+            silentServer.close();
+            server.close();
+            serverThread.join();
+        }
+    }
+
+    @Test
+    public void testHedgedQueryFailover() throws Exception {
+        AsyncSource source = new AsyncSource();
+        DNSClient client = newServerClient(source);
+        client.setQueryStrategy(DNSClient.QueryStrategy.HEDGED);
+        client.setHedgeDelay(10000);
+
+        MiniDNSFuture<DNSMessage> future = client.queryAsync(new Question("www.example.com", TYPE.A));
+        source.futures.get(0).setException(new IOException());
+        assertEquals(2, source.futures.size());
+        source.answer(1);
+        assertEquals(1, future.getOrThrow().answerSection.size());
+        assertEquals(0, client.getHedgedQueryCount());
+    }
+
+    @Test
+    public void testRaceQuery() throws IOException {
+        AsyncSource source = new AsyncSource();
+        DNSClient client = newServerClient(source);
+        client.setQueryStrategy(DNSClient.QueryStrategy.RACE);
+        client.setRaceWidth(3);
+
+        MiniDNSFuture<DNSMessage> future = client.queryAsync(new Question("www.example.com", TYPE.A));
+        assertEquals(3, source.futures.size());
+        source.answer(2);
+        assertEquals(1, future.getOrThrow().answerSection.size());
+        assertEquals(2, client.getHedgedQueryCount());
+    }
+
+    @Test
+    public void testHedgeBudget() throws IOException {
+        AsyncSource source = new AsyncSource();
+        DNSClient client = newServerClient(source);
+        client.setQueryStrategy(DNSClient.QueryStrategy.RACE);
+        client.setRaceWidth(3);
+        client.setHedgeBudget(0);
+
+        // The initial budget allows ten additional queries.
+        for (int i = 0; i < 6; i++) {
+            int sent = source.futures.size();
+            MiniDNSFuture<DNSMessage> future = client.queryAsync(new Question("www" + i + ".example.com", TYPE.A));
+            source.answer(sent);
+            future.getOrThrow();
+        }
+        assertEquals(10, client.getHedgedQueryCount());
+        assertEquals(16, source.futures.size());
+    }
+
+    @Test
+    public void testQueryAsync() throws IOException {
+        DNSClient client = new DNSClient(new LRUCache(0));
+        AsyncSource source = new AsyncSource();
+        client.setDataSource(source);
+
+        Question question = new Question("www.example.com", TYPE.A);
+        MiniDNSFuture<DNSMessage> first = client.queryAsync(question);
+        MiniDNSFuture<DNSMessage> second = client.queryAsync(question);
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals(1, source.futures.size());
+
+        source.futures.get(0).setResult(source.queries.get(0).asBuilder()
+                .setQrFlag(true)
+                .setRecursionAvailable(true)
+                .addAnswer(record("www.example.com", a("127.0.0.1")))
+                .build());
+        assertEquals(1, first.getOrThrow().answerSection.size());
+        assertEquals(1, second.getOrThrow().answerSection.size());
+        assertEquals(1, client.getCoalescedQueryCount());
+    }
+
+    @Test
+    public void testQueryAsyncWithBlockingDataSource() throws Exception {
+        BlockingSource source = new BlockingSource();
+        DNSClient client = newServerClient(source);
+
+        // The calling thread returns while the data source still blocks.
+        MiniDNSFuture<DNSMessage> future = client.queryAsync(new Question("www.example.com", TYPE.A));
+        assertFalse(future.isDone());
+
+        source.release.countDown();
+        assertEquals(1, future.getOrThrow().answerSection.size());
+        assertEquals(1, source.queries.get());
+    }
 }
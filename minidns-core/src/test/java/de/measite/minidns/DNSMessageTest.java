@@ -33,7 +33,10 @@ import de.measite.minidns.util.Base32;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -48,15 +51,18 @@ import static de.measite.minidns.DNSWorld.a;
 import static de.measite.minidns.DNSWorld.aaaa;
 import static de.measite.minidns.DNSWorld.ns;
 import static de.measite.minidns.DNSWorld.record;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DNSMessageTest {
 
 
-    DNSMessage getMessageFromResource(final String resourceFileName)
+    byte[] getBytesFromResource(final String resourceFileName)
         throws Exception {
         InputStream inputStream =
             getClass().getResourceAsStream(resourceFileName);
@@ -67,11 +73,18 @@ public class DNSMessageTest {
             readBytes = inputStream.read())
             outputStream.write(readBytes);
 
-        DNSMessage result = new DNSMessage(outputStream.toByteArray());
+        byte[] result = outputStream.toByteArray();
 
         inputStream.close();
         outputStream.close();
 
+        return result;
+    }
+
+    DNSMessage getMessageFromResource(final String resourceFileName)
+        throws Exception {
+        DNSMessage result = new DNSMessage(getBytesFromResource(resourceFileName));
+
         assertNotNull(result);
 
         return result;
@@ -206,7 +219,7 @@ public class DNSMessageTest {
             assertEquals(Record.CLASS.IN, answer.clazz);
             assertEquals(TYPE.NS, answer.type);
             assertEquals(112028, answer.ttl);
-            assertTrue(((NS) answer.payloadData).name.ace.endsWith(".gtld-servers.net"));
+            assertTrue(((NS) answer.payloadData).name.asAce().endsWith(".gtld-servers.net"));
         }
         List<Record> arr = m.additionalSection;
         assertEquals(1, arr.size());
@@ -338,7 +351,7 @@ public class DNSMessageTest {
                 assertEquals(1, nsec3.flags);
                 assertEquals(0, nsec3.iterations);
                 assertEquals(0, nsec3.salt.length);
-                switch (record.name.ace) {
+                switch (record.name.asAce()) {
                     case "CK0POJMG874LJREF7EFN8430QVIT8BSM.com":
                         assertCsEquals("CK0QFMDQRCSRU0651QLVA1JQB21IF7UR", Base32.encodeToString(nsec3.nextHashed));
                         assertArrayContentEquals(new TYPE[]{TYPE.NS, TYPE.SOA, TYPE.RRSIG, TYPE.DNSKEY, TYPE.NSEC3PARAM}, nsec3.types);
@@ -536,4 +549,282 @@ public class DNSMessageTest {
         message.getEdnsBuilder().setUdpPayloadSize(512);
         assertNotNull(message.build().asTerminalOutput());
     }
+
+    @Test
+    public void testParseFromDirectByteBuffer() throws Exception {
+        String[] resources = new String[] { "sun-a", "google-aaaa", "gmail-mx", "gpn-srv", "codinghorror-txt",
+                "oracle-soa", "com-ns", "root-dnskey", "com-ds-rrsig", "example-nsec", "com-nsec3" };
+        for (String resource : resources) {
+            byte[] data = getBytesFromResource(resource);
+            // Place the message at a non-zero position of a direct buffer, like a datagram received into a shared buffer.
+            ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 7);
+            buffer.position(3);
+            buffer.put(data);
+            buffer.position(3);
+            buffer.limit(3 + data.length);
+
+            DNSMessage m = DNSMessage.parse(buffer);
+            assertEquals(3, buffer.position());
+
+            DNSMessage expected = new DNSMessage(data);
+            assertEquals(expected, m);
+            assertEquals(expected.questions, m.questions);
+            assertEquals(expected.answerSection, m.answerSection);
+            assertEquals(expected.authoritySection, m.authoritySection);
+            assertEquals(expected.additionalSection, m.additionalSection);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseTruncatedMessage() throws Exception {
+        byte[] data = getBytesFromResource("com-ns");
+        DNSMessage.parse(ByteBuffer.wrap(data, 0, data.length - 5));
+    }
+
+    @Test
+    public void testParseLazily() throws Exception {
+        String[] resources = new String[] { "sun-a", "google-aaaa", "gmail-mx", "gpn-srv", "codinghorror-txt",
+                "oracle-soa", "com-ns", "root-dnskey", "com-ds-rrsig", "example-nsec", "com-nsec3" };
+        for (String resource : resources) {
+            byte[] data = getBytesFromResource(resource);
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            DNSMessage m = DNSMessage.parseLazily(buffer);
+            assertEquals(0, buffer.position());
+            // The message must not be backed by the callers buffer.
+            Arrays.fill(data, (byte) 0);
+
+            DNSMessage expected = new DNSMessage(getBytesFromResource(resource));
+            assertEquals(expected.getOptPseudoRecord(), m.getOptPseudoRecord());
+            assertEquals(expected.answerSection, m.answerSection);
+            assertEquals(expected.authoritySection, m.authoritySection);
+            assertEquals(expected.additionalSection, m.additionalSection);
+            assertEquals(expected, m);
+            assertArrayEquals(expected.toArray(), m.toArray());
+        }
+    }
+
+    @Test
+    public void testParseLazilyReturnsSameRecordInstance() throws Exception {
+        DNSMessage m = DNSMessage.parseLazily(ByteBuffer.wrap(getBytesFromResource("com-ns")));
+        assertSame(m.answerSection.get(3), m.answerSection.get(3));
+    }
+
+    @Test(expected = IOException.class)
+    public void testParseLazilyTruncatedMessage() throws Exception {
+        byte[] data = getBytesFromResource("com-ns");
+        DNSMessage.parseLazily(ByteBuffer.wrap(data, 0, data.length - 5));
+    }
+
+    @Test
+    public void testParseMalformedRdlength() throws Exception {
+        TYPE[] types = new TYPE[] { TYPE.DS, TYPE.DLV, TYPE.DNSKEY, TYPE.TLSA, TYPE.RRSIG, TYPE.NSEC, TYPE.NSEC3 };
+        for (TYPE type : types) {
+            // One answer record with an empty rdata, followed by padding so that reading the fixed fields of the
+            // payload does not run past the end of the message.
+            ByteBuffer buffer = ByteBuffer.allocate(12 + 11 + 64);
+            buffer.putShort((short) 0x1234).putShort((short) 0x8180);
+            buffer.putShort((short) 0).putShort((short) 1).putShort((short) 0).putShort((short) 0);
+            buffer.put((byte) 0).putShort((short) type.getValue()).putShort((short) 1).putInt(3600).putShort((short) 0);
+            byte[] data = buffer.array();
+            try {
+                new DNSMessage(data);
+                fail("Expected IOException for " + type);
+            } catch (IOException e) {
+                // Expected.
+            }
+            try {
+                DNSMessage.parse(ByteBuffer.wrap(data));
+                fail("Expected IOException for " + type);
+            } catch (IOException e) {
+                // Expected.
+            }
+        }
+    }
+
+    @Test
+    public void testNameCompression() throws Exception {
+        String[] resources = new String[] { "sun-a", "google-aaaa", "gmail-mx", "gpn-srv", "codinghorror-txt",
+                "oracle-soa", "com-ns", "root-dnskey", "com-ds-rrsig", "example-nsec", "com-nsec3" };
+        for (String resource : resources) {
+            DNSMessage m = getMessageFromResource(resource);
+            byte[] compressed = m.toArray();
+            byte[] uncompressed = m.toArray(false);
+            assertTrue(compressed.length <= uncompressed.length);
+
+            DNSMessage fromCompressed = new DNSMessage(compressed);
+            DNSMessage fromUncompressed = new DNSMessage(uncompressed);
+            assertEquals(fromUncompressed.answerSection, fromCompressed.answerSection);
+            assertEquals(fromUncompressed.authoritySection, fromCompressed.authoritySection);
+            assertEquals(fromUncompressed.additionalSection, fromCompressed.additionalSection);
+            assertEquals(m, fromCompressed);
+        }
+    }
+
+    @Test
+    public void testNameCompressionOfRdataNames() throws Exception {
+        DNSMessage m = getMessageFromResource("com-ns");
+        byte[] compressed = m.toArray();
+        // 13 NS records "com. IN NS x.gtld-servers.net.", with only "com" and "gtld-servers.net" written once.
+        assertTrue(compressed.length < m.toArray(false).length - 13 * 17);
+        // The server compressed the response as well, we should not be worse.
+        assertTrue(compressed.length <= getBytesFromResource("com-ns").length);
+    }
+
+    @Test
+    public void testSrvTargetIsNotCompressed() throws Exception {
+        DNSMessage.Builder mb = DNSMessage.builder();
+        mb.addQuestion(new Question("_xmpp-client._tcp.example.org", TYPE.SRV));
+        mb.addAnswer(record("_xmpp-client._tcp.example.org", new SRV(0, 0, 5222, "xmpp.example.org")));
+        DNSMessage m = mb.build();
+        byte[] compressed = m.toArray();
+        byte[] target = DNSName.from("xmpp.example.org").getBytes();
+        assertTrue(indexOf(compressed, target) > 0);
+        assertEquals(m, new DNSMessage(compressed));
+    }
+
+    @Test
+    public void testWriteToByteBuffer() throws Exception {
+        String[] resources = new String[] { "sun-a", "gmail-mx", "oracle-soa", "com-ns", "com-ds-rrsig", "com-nsec3" };
+        for (String resource : resources) {
+            DNSMessage m = getMessageFromResource(resource);
+            for (boolean compress : new boolean[] { true, false }) {
+                byte[] expected = m.toArray(compress);
+                assertEquals(expected.length, m.size(compress));
+
+                ByteBuffer buffer = ByteBuffer.allocateDirect(expected.length + 8);
+                buffer.position(3);
+                m.writeTo(buffer, compress);
+                assertEquals(3 + expected.length, buffer.position());
+
+                buffer.flip().position(3);
+                byte[] written = new byte[buffer.remaining()];
+                buffer.get(written);
+                assertArrayEquals(expected, written);
+            }
+        }
+    }
+
+    @Test
+    public void testWriteToByteBufferWithoutSerializing() throws Exception {
+        String[] resources = new String[] { "gmail-mx", "oracle-soa", "com-ns" };
+        for (String resource : resources) {
+            byte[] expected = getMessageFromResource(resource).toArray();
+            // A fresh message, which was not serialized before, is compressed straight into the buffer.
+            DNSMessage m = getMessageFromResource(resource);
+            ByteBuffer buffer = ByteBuffer.allocateDirect(m.size(false) + 8);
+            buffer.position(5);
+            m.writeTo(buffer);
+
+            buffer.flip().position(5);
+            byte[] written = new byte[buffer.remaining()];
+            buffer.get(written);
+            assertArrayEquals(expected, written);
+            assertEquals(m, new DNSMessage(written));
+        }
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void testWriteToByteBufferTooSmall() throws Exception {
+        DNSMessage m = getMessageFromResource("sun-a");
+        m.writeTo(ByteBuffer.allocate(m.size(false) - 1), false);
+    }
+
+    private static int indexOf(byte[] data, byte[] subArray) {
+        outer:
+        for (int i = 0; i <= data.length - subArray.length; i++) {
+            for (int j = 0; j < subArray.length; j++) {
+                if (data[i + j] != subArray[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    @Test
+    public void testVisit() throws Exception {
+        String[] resources = new String[] { "sun-a", "google-aaaa", "gmail-mx", "gpn-srv", "codinghorror-txt",
+                "oracle-soa", "com-ns", "root-dnskey", "com-ds-rrsig", "example-nsec", "com-nsec3" };
+        for (String resource : resources) {
+            final DNSMessage expected = getMessageFromResource(resource);
+            final List<Question> questions = new ArrayList<>();
+            final List<Record> answers = new ArrayList<>();
+            final List<Record> authorities = new ArrayList<>();
+            final List<Record> additionals = new ArrayList<>();
+            DNSMessage.visit(ByteBuffer.wrap(getBytesFromResource(resource)), new DNSMessageVisitor() {
+                @Override
+                public void onHeader(DNSMessage header) {
+                    assertEquals(expected.id, header.id);
+                    assertEquals(expected.responseCode, header.responseCode);
+                    assertEquals(expected.recursionDesired, header.recursionDesired);
+                }
+
+                @Override
+                public void onQuestion(Question question) {
+                    questions.add(question);
+                }
+
+                @Override
+                public boolean onRecord(DNSMessage.SECTION section, DNSName name, TYPE type, Record.CLASS clazz, long ttl,
+                        RawPayload payload) throws IOException {
+                    Record record = payload.toRecord();
+                    assertEquals(record.name, name);
+                    assertEquals(record.type, type);
+                    assertEquals(record.ttl, ttl);
+                    assertEquals(record.payloadData, payload.decode());
+                    switch (section) {
+                    case ANSWER:
+                        answers.add(record);
+                        break;
+                    case AUTHORITY:
+                        authorities.add(record);
+                        break;
+                    case ADDITIONAL:
+                        additionals.add(record);
+                        break;
+                    }
+                    return true;
+                }
+            });
+            assertEquals(expected.questions, questions);
+            assertEquals(expected.answerSection, answers);
+            assertEquals(expected.authoritySection, authorities);
+            assertEquals(expected.additionalSection, additionals);
+        }
+    }
+
+    @Test
+    public void testVisitRecordHandler() throws Exception {
+        final List<byte[]> addresses = new ArrayList<>();
+        DNSMessage.visit(ByteBuffer.wrap(getBytesFromResource("sun-a")), new RecordHandler() {
+            @Override
+            public boolean onRecord(DNSMessage.SECTION section, DNSName name, TYPE type, Record.CLASS clazz, long ttl,
+                    RawPayload payload) {
+                if (type == TYPE.A) {
+                    ByteBuffer slice = payload.slice();
+                    byte[] address = new byte[slice.remaining()];
+                    slice.get(address);
+                    addresses.add(address);
+                    // Only the first address is of interest.
+                    return false;
+                }
+                return true;
+            }
+        });
+        assertEquals(1, addresses.size());
+        assertArrayEquals(new byte[] {(byte) 156, (byte) 151, 59, 35}, addresses.get(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void testVisitTruncatedMessage() throws Exception {
+        byte[] data = getBytesFromResource("com-ns");
+        DNSMessage.visit(ByteBuffer.wrap(data, 0, data.length - 5), new RecordHandler() {
+            @Override
+            public boolean onRecord(DNSMessage.SECTION section, DNSName name, TYPE type, Record.CLASS clazz, long ttl,
+                    RawPayload payload) {
+                return true;
+            }
+        });
+    }
 }
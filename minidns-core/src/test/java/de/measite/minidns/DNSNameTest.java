@@ -13,10 +13,17 @@ package de.measite.minidns;
 import static de.measite.minidns.Assert.assertCsEquals;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.junit.Test;
 
@@ -46,6 +53,22 @@ public class DNSNameTest {
         assertCsEquals("example.com", DNSName.parse(new DataInputStream(new ByteArrayInputStream(test)), test));
     }
 
+    @Test
+    public void parseByteBufferTest() {
+        byte[] test = new byte[]{7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 3, 'w', 'w', 'w', (byte) 0xc0, 0};
+        ByteBuffer buffer = ByteBuffer.wrap(test);
+        assertCsEquals("example.com", DNSName.parse(buffer));
+        assertEquals(13, buffer.position());
+        assertCsEquals("www.example.com", DNSName.parse(buffer));
+        assertEquals(test.length, buffer.position());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void parseByteBufferCyclicTest() {
+        byte[] test = new byte[]{3, 'w', 'w', 'w', (byte) 0xc0, 0};
+        DNSName.parse(ByteBuffer.wrap(test));
+    }
+
     @Test
     public void equalsTest() {
         assertEquals(DNSName.from(""), DNSName.from("."));
@@ -80,4 +103,199 @@ public class DNSNameTest {
         DNSName expected = DNSName.from(leftString + '.' + rightString);
         assertEquals(expected, concated);
     }
+
+    @Test
+    public void caseInsensitiveTest() {
+        assertEquals(DNSName.from("example.com"), DNSName.from("ExAmple.COM"));
+        assertEquals(DNSName.from("example.com").hashCode(), DNSName.from("ExAmple.COM").hashCode());
+        byte[] test = new byte[]{7, 'E', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'C', 'O', 'M', 0};
+        DNSName parsed = DNSName.parse(ByteBuffer.wrap(test));
+        assertEquals(DNSName.from("example.com"), parsed);
+        assertCsEquals("example.com", parsed);
+    }
+
+    @Test
+    public void fromTest() {
+        assertEquals(DNSName.from("example.com"), DNSName.from("example.com."));
+        assertEquals(DNSName.from("example.com"), DNSName.from("example\u3002com"));
+        assertCsEquals("xn--dmin-moa0i.example", DNSName.from("dömäin.example").asAce());
+        assertEquals("dömäin.example", DNSName.from("dömäin.example").asIdn());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromEmptyLabelTest() {
+        DNSName.from("example..com");
+    }
+
+    @Test
+    public void fromMaxLengthTest() {
+        DNSName name = DNSName.from(label(63) + '.' + label(63) + '.' + label(63) + '.' + label(61));
+        assertEquals(DNSName.MAX_NAME_LENGTH, name.getBytes().length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromTooLongTest() {
+        DNSName.from(label(63) + '.' + label(63) + '.' + label(63) + '.' + label(62));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void fromTooLongLabelTest() {
+        DNSName.from(label(64) + ".com");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void concatTooLongTest() {
+        DNSName.from(DNSName.from(label(63) + '.' + label(63)), DNSName.from(label(63) + '.' + label(62)));
+    }
+
+    @Test
+    public void parseTooLongTest() throws IOException {
+        // Four labels of 63 octets are 257 octets on the wire, the last two are reached through a pointer.
+        ByteBuffer buffer = ByteBuffer.allocate(2 * 64 + 1 + 2 * 64 + 2);
+        buffer.put(wireLabel(63)).put(wireLabel(63)).put((byte) 0);
+        int pointer = buffer.position();
+        buffer.put(wireLabel(63)).put(wireLabel(63)).put((byte) 0xc0).put((byte) 0);
+        byte[] test = buffer.array();
+
+        try {
+            DNSName.parse((ByteBuffer) ByteBuffer.wrap(test).position(pointer));
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        try {
+            DNSName.parse((ByteBuffer) ByteBuffer.wrap(test).position(pointer), new DNSName.OffsetTable());
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(test, pointer, test.length - pointer));
+        try {
+            DNSName.parse(dis, test);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void parseExtendedLabelTypeTest() {
+        byte[] test = new byte[]{0x41, 3, 'c', 'o', 'm', 0};
+        DNSName.parse(ByteBuffer.wrap(test));
+    }
+
+    @Test
+    public void isChildOfTest() {
+        DNSName name = DNSName.from("www.example.com");
+        assertTrue(name.isChildOf(DNSName.from("www.example.com")));
+        assertTrue(name.isChildOf(DNSName.from("example.com")));
+        assertTrue(name.isChildOf(DNSName.from("com")));
+        assertTrue(name.isChildOf(DNSName.EMPTY));
+        assertFalse(name.isChildOf(DNSName.from("ample.com")));
+        assertFalse(name.isChildOf(DNSName.from("foo.www.example.com")));
+        assertTrue(name.isDirectChildOf(DNSName.from("example.com")));
+        assertFalse(name.isDirectChildOf(DNSName.from("com")));
+    }
+
+    @Test
+    public void getParentTest() {
+        assertEquals(DNSName.from("example.com"), DNSName.from("www.example.com").getParent());
+        assertEquals(DNSName.EMPTY, DNSName.from("com").getParent());
+        assertEquals(DNSName.EMPTY, DNSName.EMPTY.getParent());
+        assertEquals(3, DNSName.from("www.example.com").getLabelCount());
+        assertEquals(0, DNSName.EMPTY.getLabelCount());
+    }
+
+    @Test
+    public void hostpartAndDomainpartTest() {
+        DNSName name = DNSName.from("www.example.com");
+        assertEquals("www", name.getHostpart());
+        assertEquals("example.com", name.getDomainpart());
+        assertEquals("com", DNSName.from("com").getHostpart());
+        assertEquals("", DNSName.from("com").getDomainpart());
+    }
+
+    @Test
+    public void compareToTest() {
+        String[] names = new String[] { "", "a", "a-b", "a.b", "ab", "b", "example.com", "example-1.com", "www.example.com",
+                "www.example.co" };
+        for (String first : names) {
+            for (String second : names) {
+                int expected = Integer.signum(first.compareTo(second));
+                int actual = Integer.signum(DNSName.from(first).compareTo(DNSName.from(second)));
+                assertEquals(first + " <=> " + second, expected, actual);
+            }
+        }
+    }
+
+    @Test
+    public void internTest() {
+        assertFalse(DNSName.isInterning());
+        DNSName.setInterning(true);
+        try {
+            byte[] test = new byte[]{3, 'w', 'w', 'w', 7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0};
+            DNSName parsed = DNSName.parse(ByteBuffer.wrap(test));
+            assertSame(parsed, DNSName.from("www.example.com"));
+            assertSame(parsed.getParent(), DNSName.from("example.com"));
+            assertSame(parsed.stripToLabels(1), DNSName.from("com"));
+            assertSame(DNSName.EMPTY, DNSName.from("."));
+        } finally {
+            DNSName.setInterning(false);
+        }
+        assertNotSame(DNSName.from("example.com"), DNSName.from("example.com"));
+    }
+
+    @Test
+    public void parseWithOffsetTableTest() {
+        byte[] test = new byte[]{7, 'e', 'x', 'a', 'm', 'p', 'l', 'e', 3, 'c', 'o', 'm', 0, 3, 'w', 'w', 'w', (byte) 0xc0, 0,
+                3, 'f', 't', 'p', (byte) 0xc0, 0, (byte) 0xc0, 8};
+        ByteBuffer buffer = ByteBuffer.wrap(test);
+        DNSName.OffsetTable names = new DNSName.OffsetTable();
+        DNSName example = DNSName.parse(buffer, names);
+        assertEquals(13, buffer.position());
+        DNSName www = DNSName.parse(buffer, names);
+        assertEquals(19, buffer.position());
+        DNSName ftp = DNSName.parse(buffer, names);
+        assertEquals(25, buffer.position());
+        DNSName com = DNSName.parse(buffer, names);
+        assertEquals(test.length, buffer.position());
+
+        assertCsEquals("www.example.com", www);
+        assertCsEquals("ftp.example.com", ftp);
+        assertCsEquals("com", com);
+        assertSame(example, www.getParent());
+        assertSame(example, ftp.getParent());
+        assertSame(com, example.getParent());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void parseWithOffsetTableCyclicTest() {
+        byte[] test = new byte[]{3, 'w', 'w', 'w', (byte) 0xc0, 0};
+        DNSName.parse(ByteBuffer.wrap(test), new DNSName.OffsetTable());
+    }
+
+    @Test
+    public void offsetTableGrowTest() {
+        DNSName.OffsetTable names = new DNSName.OffsetTable();
+        for (int i = 0; i < 1000; i++) {
+            names.put(i * 7, DNSName.from("n" + i));
+        }
+        assertEquals(1000, names.size());
+        for (int i = 0; i < 1000; i++) {
+            assertCsEquals("n" + i, names.get(i * 7));
+        }
+    }
+
+    private static String label(int length) {
+        char[] label = new char[length];
+        Arrays.fill(label, 'a');
+        return new String(label);
+    }
+
+    private static byte[] wireLabel(int length) {
+        byte[] label = new byte[length + 1];
+        Arrays.fill(label, (byte) 'a');
+        label[0] = (byte) length;
+        return label;
+    }
 }
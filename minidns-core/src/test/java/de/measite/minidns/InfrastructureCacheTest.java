@@ -0,0 +1,102 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class InfrastructureCacheTest {
+
+    private long now;
+    private InfrastructureCache cache;
+    private InetAddress fast;
+    private InetAddress slow;
+    private InetAddress unknown;
+
+    @Before
+    public void setUp() throws UnknownHostException {
+        cache = new InfrastructureCache() {
+            @Override
+            long currentTimeMillis() {
+                return now;
+            }
+        };
+        cache.setDecayHalfLife(1000);
+        fast = InetAddress.getByName("192.0.2.1");
+        slow = InetAddress.getByName("192.0.2.2");
+        unknown = InetAddress.getByName("192.0.2.3");
+    }
+
+    @Test
+    public void testSmoothedRtt() {
+        cache.recordResponse(fast, 100);
+        assertEquals(100, cache.getSrtt(fast));
+        assertEquals(50, cache.getRttVariance(fast));
+        cache.recordResponse(fast, 20);
+        assertEquals(90, cache.getSrtt(fast));
+        assertEquals(58, cache.getRttVariance(fast));
+        assertEquals(-1, cache.getSrtt(unknown));
+    }
+
+    @Test
+    public void testOrder() {
+        cache.recordResponse(slow, 200);
+        cache.recordResponse(fast, 10);
+        List<InetAddress> ordered = cache.order(Arrays.asList(slow, fast, unknown));
+        assertEquals(Arrays.asList(unknown, fast, slow), ordered);
+    }
+
+    @Test
+    public void testFailures() {
+        cache.recordResponse(fast, 10);
+        cache.recordResponse(slow, 200);
+        cache.recordFailure(fast);
+        assertEquals(1, cache.getFailureCount(fast));
+        assertEquals(1000, cache.getSrtt(fast));
+        cache.recordFailure(fast);
+        assertEquals(2000, cache.getSrtt(fast));
+        assertEquals(Arrays.asList(slow, fast), cache.order(Arrays.asList(fast, slow)));
+
+        cache.recordResponse(fast, 10);
+        assertEquals(0, cache.getFailureCount(fast));
+    }
+
+    @Test
+    public void testDecay() {
+        cache.recordFailure(slow);
+        cache.recordResponse(fast, 100);
+        assertEquals(Arrays.asList(fast, slow), cache.order(Arrays.asList(slow, fast)));
+
+        // While the fast server keeps answering, the failed server recovers and is probed again.
+        for (int i = 0; i < 50; i++) {
+            now += 100;
+            cache.recordResponse(fast, 100);
+        }
+        assertEquals(31, cache.getSrtt(slow));
+        assertEquals(Arrays.asList(slow, fast), cache.order(Arrays.asList(fast, slow)));
+    }
+
+    @Test
+    public void testCapacity() {
+        InfrastructureCache small = new InfrastructureCache(1);
+        small.recordResponse(fast, 10);
+        small.recordResponse(slow, 10);
+        assertEquals(-1, small.getSrtt(fast));
+        assertEquals(10, small.getSrtt(slow));
+    }
+}
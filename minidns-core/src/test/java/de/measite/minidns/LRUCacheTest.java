@@ -15,9 +15,12 @@ import org.junit.Test;
 
 import de.measite.minidns.cache.LRUCache;
 import static de.measite.minidns.DNSWorld.a;
+import static de.measite.minidns.DNSWorld.cname;
 import static de.measite.minidns.DNSWorld.ns;
 import static de.measite.minidns.DNSWorld.record;
+import static de.measite.minidns.DNSWorld.soa;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 
@@ -60,6 +63,95 @@ public class LRUCacheTest {
         assertEquals(1, lruCache.getHitCount());
     }
 
+    @Test
+    public void testCacheKey() {
+        Question q = new Question("example.org", Record.TYPE.A);
+        DNSMessage.Builder query = q.asMessageBuilder().setId(1).setRecursionDesired(true);
+        query.getEdnsBuilder().setUdpPayloadSize(1024);
+        DNSMessage.Builder otherQuery = q.asMessageBuilder().setId(2).setRecursionDesired(true);
+        otherQuery.getEdnsBuilder().setUdpPayloadSize(4096);
+        DNSMessage.Builder dnssecQuery = q.asMessageBuilder().setId(1).setRecursionDesired(true);
+        dnssecQuery.getEdnsBuilder().setUdpPayloadSize(1024).setDnssecOk(true);
+
+        // The message id and the EDNS payload size do not influence the response.
+        assertEquals(query.build().asCacheKey(), otherQuery.build().asCacheKey());
+        assertEquals(query.build().asCacheKey().hashCode(), otherQuery.build().asCacheKey().hashCode());
+        assertNotEquals(query.build().asCacheKey(), dnssecQuery.build().asCacheKey());
+        assertNotEquals(query.build().asCacheKey(), q.asMessageBuilder().setId(1).build().asCacheKey());
+
+        lruCache.put(query.build(), createSampleMessage());
+        assertNotNull(lruCache.get(otherQuery.build()));
+        assertNotNull(lruCache.get(new CacheKey(q, true, false, false)));
+        assertNull(lruCache.get(dnssecQuery.build()));
+    }
+
+    @Test
+    public void testNegativeCacheEntry() {
+        DNSMessage question = new Question("example.org", Record.TYPE.AAAA).asQueryMessage();
+        DNSMessage.Builder noData = DNSMessage.builder().setReceiveTimestamp(System.currentTimeMillis() - 10000);
+        noData.addNameserverRecords(record("example.org", 3600, soa("ns.example.org", "hostmaster.example.org", 1, 3600, 600, 86400, 60)));
+        lruCache.put(question, noData.build());
+        assertNotNull(lruCache.get(question));
+        assertEquals(1, lruCache.getNegativeHitCount());
+        assertEquals(0, lruCache.getHitCount());
+
+        // The negative TTL is the minimum of the SOA TTL and the SOA minimum field, capped by the maximum.
+        lruCache.setMaxNegativeTTL(5);
+        assertNull(lruCache.get(question));
+        assertEquals(1, lruCache.getExpireCount());
+
+        // Negative responses without SOA are not cached.
+        lruCache.put(question, DNSMessage.builder().setReceiveTimestamp(System.currentTimeMillis() - 1000).build());
+        assertNull(lruCache.get(question));
+    }
+
+    @Test
+    public void testCnameChainNegativeCacheEntry() {
+        Question q = new Question("www.example.org", Record.TYPE.AAAA);
+        DNSMessage question = q.asQueryMessage();
+        DNSMessage.Builder noData = DNSMessage.builder()
+                .setQuestions(q)
+                .setReceiveTimestamp(System.currentTimeMillis() - 10000);
+        noData.addAnswer(record("www.example.org", 3600, cname("host.example.org")));
+        noData.addNameserverRecords(record("example.org", 3600, soa("ns.example.org", "hostmaster.example.org", 1, 3600, 600, 86400, 60)));
+        lruCache.put(question, noData.build());
+        assertNotNull(lruCache.get(question));
+        assertEquals(1, lruCache.getNegativeHitCount());
+
+        // The end of the CNAME chain has no AAAA records, so the response expires with the negative TTL.
+        lruCache.setMaxNegativeTTL(5);
+        assertNull(lruCache.get(question));
+
+        q = new Question("www.example.org", Record.TYPE.A);
+        question = q.asQueryMessage();
+        DNSMessage.Builder answer = DNSMessage.builder()
+                .setQuestions(q)
+                .setReceiveTimestamp(System.currentTimeMillis() - 10000);
+        answer.addAnswer(record("www.example.org", 3600, cname("host.example.org")));
+        answer.addAnswer(record("host.example.org", 3600, a("127.0.0.1")));
+        lruCache.put(question, answer.build());
+        assertNotNull(lruCache.get(question));
+        assertEquals(1, lruCache.getHitCount());
+    }
+
+    @Test
+    public void testStaleCacheEntry() {
+        DNSMessage question = new Question("", Record.TYPE.A).asQueryMessage();
+        lruCache.put(question, createSampleMessage(System.currentTimeMillis() - 3600 * 1000 - 60000));
+        assertNull(lruCache.getStale(question.asCacheKey()));
+
+        lruCache.setStaleWindow(3600);
+        lruCache.put(question, createSampleMessage(System.currentTimeMillis() - 3600 * 1000 - 60000));
+        assertNull(lruCache.get(question));
+        DNSMessage stale = lruCache.getStale(question.asCacheKey());
+        assertNotNull(stale);
+        assertEquals(StaleDNSCache.STALE_TTL, stale.answerSection.get(0).ttl);
+        assertEquals(1, lruCache.getStaleHitCount());
+
+        lruCache.setStaleWindow(30);
+        assertNull(lruCache.getStale(question.asCacheKey()));
+    }
+
     private static DNSMessage createSampleMessage() {
         return createSampleMessage(System.currentTimeMillis());
     }
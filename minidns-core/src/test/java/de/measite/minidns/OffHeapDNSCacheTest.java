@@ -0,0 +1,156 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import static de.measite.minidns.DNSWorld.a;
+import static de.measite.minidns.DNSWorld.record;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.measite.minidns.cache.OffHeapDNSCache;
+import de.measite.minidns.record.A;
+
+public class OffHeapDNSCacheTest {
+    private OffHeapDNSCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new OffHeapDNSCache(4096, 1024);
+    }
+
+    @Test
+    public void testCacheEntry() {
+        DNSMessage question = new Question("www.example.com", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage("www.example.com", System.currentTimeMillis() - 10000, 3600));
+
+        DNSMessage response = cache.get(question);
+        assertNotNull(response);
+        Record answer = response.answerSection.get(0);
+        assertArrayEquals(new byte[] {127, 0, 0, 1}, ((A) answer.payloadData).getIp());
+        assertTrue(answer.ttl <= 3590);
+        assertTrue(answer.ttl >= 3580);
+        assertNull(cache.get(new Question("www.example.com", Record.TYPE.AAAA).asQueryMessage()));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testWireFormat() throws Exception {
+        DNSMessage question = new Question("www.example.com", Record.TYPE.A).asQueryMessage();
+        DNSMessage message = createSampleMessage("www.example.com", System.currentTimeMillis(), 3600);
+        cache.put(question, message);
+
+        assertArrayEquals(message.toArray(), cache.getWireFormat(question.asCacheKey()));
+    }
+
+    @Test
+    public void testOutdatedCacheEntry() {
+        DNSMessage question = new Question("www.example.com", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage("www.example.com", System.currentTimeMillis() - 10000, 1));
+        assertNull(cache.get(question));
+        assertEquals(0, cache.size());
+
+        cache.setMaxTTL(1);
+        cache.put(question, createSampleMessage("www.example.com", System.currentTimeMillis() - 2000, 3600));
+        assertNull(cache.get(question));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testReplaceEntry() {
+        DNSMessage question = new Question("www.example.com", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage("www.example.com", System.currentTimeMillis(), 3600));
+        cache.put(question, createSampleMessage("www.example.com", System.currentTimeMillis(), 60));
+
+        assertEquals(1, cache.size());
+        assertEquals(60, cache.get(question).answerSection.get(0).ttl);
+    }
+
+    @Test
+    public void testCapacityInBytes() {
+        for (int i = 0; i < 200; i++) {
+            String name = i + ".example.com";
+            cache.put(new Question(name, Record.TYPE.A).asQueryMessage(),
+                    createSampleMessage(name, System.currentTimeMillis(), 3600));
+        }
+
+        assertTrue(cache.getUsedBytes() <= cache.getCapacity());
+        assertTrue(cache.getEvictionCount() > 0);
+        assertEquals(200, cache.size() + cache.getEvictionCount());
+        assertNotNull(cache.get(new Question("199.example.com", Record.TYPE.A).asQueryMessage()));
+        assertNull(cache.get(new Question("0.example.com", Record.TYPE.A).asQueryMessage()));
+    }
+
+    @Test
+    public void testExpiringSlabIsEvictedFirst() {
+        long now = System.currentTimeMillis();
+        cache.put(new Question("a.example.com", Record.TYPE.A).asQueryMessage(),
+                createSampleMessage("a.example.com", now, 3600));
+        // Use slabs which hold exactly one entry.
+        int entrySize = (int) cache.getUsedBytes();
+        cache = new OffHeapDNSCache(4 * entrySize, entrySize);
+        for (String name : new String[] { "a", "b", "c", "d", "e" }) {
+            name += ".example.com";
+            cache.put(new Question(name, Record.TYPE.A).asQueryMessage(),
+                    createSampleMessage(name, now, name.startsWith("b") ? 60 : 3600));
+        }
+
+        assertNotNull(cache.get(new Question("a.example.com", Record.TYPE.A).asQueryMessage()));
+        assertNull(cache.get(new Question("b.example.com", Record.TYPE.A).asQueryMessage()));
+        assertNotNull(cache.get(new Question("e.example.com", Record.TYPE.A).asQueryMessage()));
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testIndexGrowth() {
+        cache = new OffHeapDNSCache(1024 * 1024, 64 * 1024);
+        for (int i = 0; i < 5000; i++) {
+            String name = i + ".example.com";
+            cache.put(new Question(name, Record.TYPE.A).asQueryMessage(),
+                    createSampleMessage(name, System.currentTimeMillis(), 3600));
+        }
+
+        assertEquals(5000, cache.size());
+        for (int i = 0; i < 5000; i++) {
+            assertNotNull(cache.get(new Question(i + ".example.com", Record.TYPE.A).asQueryMessage()));
+        }
+    }
+
+    @Test
+    public void testClear() {
+        DNSMessage question = new Question("www.example.com", Record.TYPE.A).asQueryMessage();
+        cache.put(question, createSampleMessage("www.example.com", System.currentTimeMillis(), 3600));
+        cache.clear();
+
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getUsedBytes());
+        assertNull(cache.get(question));
+        cache.put(question, createSampleMessage("www.example.com", System.currentTimeMillis(), 3600));
+        assertNotNull(cache.get(question));
+    }
+
+    private static DNSMessage createSampleMessage(String name, long receiveTimestamp, long ttl) {
+        DNSMessage.Builder message = DNSMessage.builder();
+        message.setQrFlag(true);
+        message.addQuestion(new Question(name, Record.TYPE.A));
+        message.setReceiveTimestamp(receiveTimestamp);
+        message.addAnswer(record(name, ttl, a("127.0.0.1")));
+        return message.build();
+    }
+}
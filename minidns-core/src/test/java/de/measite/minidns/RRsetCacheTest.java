@@ -0,0 +1,220 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns;
+
+import static de.measite.minidns.DNSWorld.a;
+import static de.measite.minidns.DNSWorld.cname;
+import static de.measite.minidns.DNSWorld.ns;
+import static de.measite.minidns.DNSWorld.record;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.cache.RRsetCache;
+import de.measite.minidns.record.A;
+import de.measite.minidns.record.CNAME;
+import de.measite.minidns.record.SOA;
+
+public class RRsetCacheTest {
+    private RRsetCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        cache = new RRsetCache(16);
+    }
+
+    @Test
+    public void testGlueAnswersDirectQuery() {
+        DNSMessage.Builder response = response(true);
+        response.addAnswer(record("example.com", 3600, ns("ns1.example.com")));
+        response.addAdditionalResourceRecords(record("ns1.example.com", 3600, a("192.0.2.1")));
+        response.addAdditionalResourceRecords(record("ns.example.net", 3600, a("192.0.2.2")));
+        cache.put(query("example.com", TYPE.NS), response.build());
+
+        DNSMessage answer = cache.get(query("ns1.example.com", TYPE.A));
+        assertNotNull(answer);
+        assertEquals(1, answer.answerSection.size());
+        assertEquals(a("192.0.2.1"), answer.answerSection.get(0).payloadData);
+        assertEquals(new Question("ns1.example.com", TYPE.A), answer.getQuestion());
+
+        // Out of zone glue is not trusted.
+        assertNull(cache.get(query("ns.example.net", TYPE.A)));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testTtlIsDecremented() {
+        DNSMessage.Builder response = response(false);
+        response.setReceiveTimestamp(System.currentTimeMillis() - 10000);
+        response.addAnswer(record("example.com", 300, a("192.0.2.1")));
+        cache.put(query("example.com", TYPE.A), response.build());
+
+        DNSMessage answer = cache.get(query("example.com", TYPE.A));
+        long ttl = answer.answerSection.get(0).ttl;
+        assertTrue("Unexpected ttl " + ttl, ttl >= 289 && ttl <= 290);
+    }
+
+    @Test
+    public void testExpiredRRset() {
+        DNSMessage.Builder response = response(false);
+        response.setReceiveTimestamp(System.currentTimeMillis() - 2000);
+        response.addAnswer(record("example.com", 1, a("192.0.2.1")));
+        cache.put(query("example.com", TYPE.A), response.build());
+
+        assertNull(cache.get(query("example.com", TYPE.A)));
+        assertEquals(1, cache.getExpireCount());
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testCredibility() {
+        DNSMessage.Builder authoritative = response(true);
+        authoritative.addAnswer(record("www.example.com", 3600, a("192.0.2.1")));
+        cache.put(query("www.example.com", TYPE.A), authoritative.build());
+
+        // Less credible glue must not replace the authoritative answer.
+        DNSMessage.Builder referral = response(false);
+        referral.addNameserverRecords(record("example.com", 3600, ns("www.example.com")));
+        referral.addAdditionalResourceRecords(record("www.example.com", 3600, a("192.0.2.2")));
+        cache.put(query("example.com", TYPE.NS), referral.build());
+        assertEquals(a("192.0.2.1"), cache.get(query("www.example.com", TYPE.A)).answerSection.get(0).payloadData);
+
+        DNSMessage.Builder newAuthoritative = response(true);
+        newAuthoritative.addAnswer(record("www.example.com", 3600, a("192.0.2.3")));
+        cache.put(query("www.example.com", TYPE.A), newAuthoritative.build());
+        assertEquals(a("192.0.2.3"), cache.get(query("www.example.com", TYPE.A)).answerSection.get(0).payloadData);
+    }
+
+    @Test
+    public void testCnameChain() {
+        DNSMessage.Builder response = response(false);
+        response.addAnswer(record("www.example.com", 3600, cname("host.example.com")));
+        response.addAnswer(record("host.example.com", 3600, a("192.0.2.1")));
+        cache.put(query("www.example.com", TYPE.A), response.build());
+
+        DNSMessage answer = cache.get(query("www.example.com", TYPE.A));
+        assertEquals(2, answer.answerSection.size());
+        assertEquals(DNSName.from("host.example.com"), ((CNAME) answer.answerSection.get(0).payloadData).name);
+        assertEquals(a("192.0.2.1"), answer.answerSection.get(1).payloadData);
+
+        // The records of the chain are shared with direct queries.
+        assertEquals(1, cache.get(query("host.example.com", TYPE.A)).answerSection.size());
+        assertEquals(2, cache.size());
+
+        assertNull(cache.get(query("www.example.com", TYPE.AAAA)));
+    }
+
+    @Test
+    public void testDnssecOkIsSeparated() {
+        DNSMessage.Builder response = response(false);
+        response.addAnswer(record("example.com", 3600, a("192.0.2.1")));
+        DNSMessage.Builder dnssecQuery = new Question("example.com", TYPE.A).asMessageBuilder().setRecursionDesired(true);
+        dnssecQuery.getEdnsBuilder().setUdpPayloadSize(1232).setDnssecOk();
+        cache.put(dnssecQuery.build(), response.build());
+
+        assertNull(cache.get(query("example.com", TYPE.A)));
+        A a = (A) cache.get(dnssecQuery.build()).answerSection.get(0).payloadData;
+        assertEquals(a("192.0.2.1"), a);
+    }
+
+    @Test
+    public void testNxDomainIsCachedPerName() {
+        DNSMessage.Builder response = response(true).setResponseCode(DNSMessage.RESPONSE_CODE.NX_DOMAIN);
+        response.addNameserverRecords(record("example.com", 3600, soa()));
+        cache.put(query("nx.example.com", TYPE.A), response.build());
+
+        DNSMessage answer = cache.get(query("nx.example.com", TYPE.AAAA));
+        assertEquals(DNSMessage.RESPONSE_CODE.NX_DOMAIN, answer.responseCode);
+        assertEquals(TYPE.SOA, answer.authoritySection.get(0).type);
+        // The negative TTL is the SOA minimum.
+        assertTrue(answer.authoritySection.get(0).ttl <= 300);
+        assertEquals(1, cache.getNegativeHitCount());
+        assertEquals(0, cache.getHitCount());
+
+        // The name comes into existence.
+        DNSMessage.Builder positive = response(true);
+        positive.addAnswer(record("nx.example.com", 3600, a("192.0.2.1")));
+        cache.put(query("nx.example.com", TYPE.A), positive.build());
+        assertEquals(DNSMessage.RESPONSE_CODE.NO_ERROR, cache.get(query("nx.example.com", TYPE.A)).responseCode);
+        assertNull(cache.get(query("nx.example.com", TYPE.AAAA)));
+    }
+
+    @Test
+    public void testNoDataIsCachedPerType() {
+        DNSMessage.Builder response = response(true);
+        response.addAnswer(record("www.example.com", 3600, cname("host.example.com")));
+        response.addNameserverRecords(record("example.com", 3600, soa()));
+        cache.put(query("www.example.com", TYPE.AAAA), response.build());
+
+        DNSMessage answer = cache.get(query("www.example.com", TYPE.AAAA));
+        assertEquals(DNSMessage.RESPONSE_CODE.NO_ERROR, answer.responseCode);
+        assertEquals(1, answer.answerSection.size());
+        assertEquals(1, answer.authoritySection.size());
+        // NODATA is cached for the end of the CNAME chain.
+        assertNotNull(cache.get(query("host.example.com", TYPE.AAAA)));
+        assertNull(cache.get(query("host.example.com", TYPE.A)));
+        assertEquals(2, cache.getNegativeHitCount());
+    }
+
+    @Test
+    public void testNegativeTtl() {
+        cache.setMaxNegativeTTL(1);
+        DNSMessage.Builder response = response(true).setResponseCode(DNSMessage.RESPONSE_CODE.NX_DOMAIN);
+        response.setReceiveTimestamp(System.currentTimeMillis() - 2000);
+        response.addNameserverRecords(record("example.com", 3600, soa()));
+        cache.put(query("nx.example.com", TYPE.A), response.build());
+        assertNull(cache.get(query("nx.example.com", TYPE.A)));
+
+        // Negative responses without SOA are not cached.
+        cache.put(query("nx.example.com", TYPE.A), response(true).setResponseCode(DNSMessage.RESPONSE_CODE.NX_DOMAIN).build());
+        assertNull(cache.get(query("nx.example.com", TYPE.A)));
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testServeStale() {
+        cache.setStaleWindow(3600);
+        DNSMessage.Builder response = response(false);
+        response.setReceiveTimestamp(System.currentTimeMillis() - 120000);
+        response.addAnswer(record("www.example.com", 60, cname("host.example.com")));
+        response.addAnswer(record("host.example.com", 3600, a("192.0.2.1")));
+        cache.put(query("www.example.com", TYPE.A), response.build());
+
+        assertNull(cache.get(query("www.example.com", TYPE.A)));
+        DNSMessage stale = cache.getStale(query("www.example.com", TYPE.A).asCacheKey());
+        assertEquals(StaleDNSCache.STALE_TTL, stale.answerSection.get(0).ttl);
+        // The target of the CNAME is still fresh.
+        assertTrue(stale.answerSection.get(1).ttl > StaleDNSCache.STALE_TTL);
+        assertEquals(1, cache.getStaleHitCount());
+        assertEquals(0, cache.getHitCount());
+    }
+
+    private static SOA soa() {
+        return DNSWorld.soa("ns.example.com", "hostmaster.example.com", 1, 3600, 600, 86400, 300);
+    }
+
+    private static DNSMessage query(String name, TYPE type) {
+        return new Question(name, type).asMessageBuilder().setRecursionDesired(true).build();
+    }
+
+    private static DNSMessage.Builder response(boolean authoritative) {
+        return DNSMessage.builder()
+                .setQrFlag(true)
+                .setAuthoritativeAnswer(authoritative)
+                .setReceiveTimestamp(System.currentTimeMillis());
+    }
+}
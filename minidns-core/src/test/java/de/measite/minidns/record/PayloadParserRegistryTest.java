@@ -0,0 +1,127 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.record;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.DNSName;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+
+public class PayloadParserRegistryTest {
+
+    /**
+     * A minimal SSHFP payload as defined in RFC 4255.
+     */
+    private static class SSHFP extends Data {
+        private final byte algorithm;
+        private final byte fingerprintType;
+        private final byte[] fingerprint;
+
+        SSHFP(byte algorithm, byte fingerprintType, byte[] fingerprint) {
+            this.algorithm = algorithm;
+            this.fingerprintType = fingerprintType;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public TYPE getType() {
+            return TYPE.SSHFP;
+        }
+
+        @Override
+        protected void serialize(DataOutputStream dos) throws IOException {
+            dos.writeByte(algorithm);
+            dos.writeByte(fingerprintType);
+            dos.write(fingerprint);
+        }
+    }
+
+    private static final PayloadParser<SSHFP> SSHFP_PARSER = new PayloadParser<SSHFP>() {
+        @Override
+        public SSHFP parse(ByteBuffer buffer, int length, DNSName.OffsetTable names) {
+            byte algorithm = buffer.get();
+            byte fingerprintType = buffer.get();
+            byte[] fingerprint = new byte[length - 2];
+            buffer.get(fingerprint);
+            return new SSHFP(algorithm, fingerprintType, fingerprint);
+        }
+    };
+
+    @Test
+    public void testCustomParser() throws Exception {
+        byte[] fingerprint = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20 };
+        DNSMessage message = new Question("example.org", TYPE.SSHFP).asMessageBuilder()
+                .addAnswer(new Record("example.org", TYPE.SSHFP, CLASS.IN, 3600, new SSHFP((byte) 1, (byte) 1, fingerprint), false))
+                .build();
+        byte[] bytes = message.toArray();
+
+        // Without a registered parser the payload is unknown.
+        assertNull(PayloadParserRegistry.get(TYPE.SSHFP.getValue()));
+        assertTrue(new DNSMessage(bytes).answerSection.get(0).payloadData instanceof UNKNOWN);
+
+        PayloadParserRegistry.register(TYPE.SSHFP, SSHFP_PARSER);
+        try {
+            assertSame(SSHFP_PARSER, PayloadParserRegistry.get(TYPE.SSHFP.getValue()));
+            Data payload = new DNSMessage(bytes).answerSection.get(0).payloadData;
+            assertTrue(payload instanceof SSHFP);
+            SSHFP sshfp = (SSHFP) payload;
+            assertEquals(1, sshfp.algorithm);
+            assertEquals(1, sshfp.fingerprintType);
+            assertArrayEquals(fingerprint, sshfp.fingerprint);
+        } finally {
+            PayloadParserRegistry.register(TYPE.SSHFP, null);
+        }
+        assertNull(PayloadParserRegistry.get(TYPE.SSHFP.getValue()));
+    }
+
+    @Test
+    public void testBuiltinParsers() {
+        for (TYPE type : TYPE.values()) {
+            if (type.getDataClass() != null) {
+                assertTrue(type.toString(), PayloadParserRegistry.get(type.getValue()) != null);
+            }
+        }
+        assertNull(PayloadParserRegistry.get(-1));
+        assertNull(PayloadParserRegistry.get(0x10000));
+    }
+
+    @Test
+    public void testTypeLookup() {
+        for (TYPE type : TYPE.values()) {
+            if (type != TYPE.UNKNOWN) {
+                assertSame(type, TYPE.getType(type.getValue()));
+            }
+        }
+        assertSame(TYPE.UNKNOWN, TYPE.getType(0));
+        assertSame(TYPE.UNKNOWN, TYPE.getType(1000));
+        assertSame(TYPE.UNKNOWN, TYPE.getType(32770));
+        assertSame(TYPE.UNKNOWN, TYPE.getType(65535));
+        assertSame(CLASS.IN, CLASS.getClass(1));
+        assertNull(CLASS.getClass(2));
+        assertNull(CLASS.getClass(4096));
+        assertSame(DNSMessage.RESPONSE_CODE.BADCOOKIE, DNSMessage.RESPONSE_CODE.getResponseCode(23));
+        assertNull(DNSMessage.RESPONSE_CODE.getResponseCode(24));
+    }
+}
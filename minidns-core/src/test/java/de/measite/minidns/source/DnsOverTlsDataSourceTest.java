@@ -0,0 +1,189 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.A;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests against a local DNS over TLS server with the self-signed certificate for dns.example and 127.0.0.1 in
+ * dot-test.jks. The certificate in dot-test-othername.jks additionally lists an SRVName, which is an otherName, as its
+ * first subject alternative name.
+ */
+public class DnsOverTlsDataSourceTest {
+
+    private SSLServerSocket server;
+    private Thread serverThread;
+    private final List<byte[]> sessionIds = Collections.synchronizedList(new ArrayList<byte[]>());
+    private DnsOverTlsDataSource dataSource;
+
+    private static SSLContext createContext(String keyStoreName) throws IOException, GeneralSecurityException {
+        char[] password = "minidns".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = DnsOverTlsDataSourceTest.class.getResourceAsStream(keyStoreName)) {
+            keyStore.load(in, password);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLSv1.2");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        startServer("dot-test.jks");
+    }
+
+    private void startServer(String keyStoreName) throws Exception {
+        server = (SSLServerSocket) createContext(keyStoreName).getServerSocketFactory()
+                .createServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final SSLSocket socket = (SSLSocket) server.accept();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // Server socket was closed.
+                }
+            }
+        };
+        serverThread.start();
+
+        dataSource = new DnsOverTlsDataSource(createContext(keyStoreName).getSocketFactory());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataSource.close();
+        server.close();
+        serverThread.join();
+    }
+
+    private void serve(SSLSocket socket) {
+        try {
+            socket.startHandshake();
+            sessionIds.add(socket.getSession().getId());
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            while (true) {
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                DNSMessage query = new DNSMessage(data);
+                Question question = query.getQuestion();
+                byte[] response = query.asBuilder()
+                        .setQrFlag(true)
+                        .addAnswer(new Record(question.name, TYPE.A, CLASS.IN, 300, new A(10, 0, 0, 1), false))
+                        .build()
+                        .toArray();
+                out.writeShort(response.length);
+                out.write(response);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Connection was closed.
+        }
+    }
+
+    private DNSMessage query() throws IOException {
+        DNSMessage query = DNSMessage.builder().setId(42).addQuestion(new Question("example.org", TYPE.A)).build();
+        DNSMessage response = dataSource.query(query, server.getInetAddress(), server.getLocalPort());
+        assertEquals(42, response.id);
+        assertEquals(new A(10, 0, 0, 1), response.answerSection.get(0).payloadData);
+        return response;
+    }
+
+    @Test
+    public void queryByAddressTest() throws IOException {
+        query();
+        query();
+        assertEquals(1, sessionIds.size());
+    }
+
+    @Test
+    public void queryByAuthenticationNameTest() throws IOException {
+        dataSource.setAuthenticationName("dns.example");
+        query();
+    }
+
+    @Test(expected = SSLPeerUnverifiedException.class)
+    public void wrongAuthenticationNameTest() throws IOException {
+        dataSource.setAuthenticationName("other.example");
+        query();
+    }
+
+    @Test
+    public void queryByAddressWithOtherNameTest() throws Exception {
+        tearDown();
+        startServer("dot-test-othername.jks");
+        query();
+    }
+
+    @Test
+    public void queryByAuthenticationNameWithOtherNameTest() throws Exception {
+        tearDown();
+        startServer("dot-test-othername.jks");
+        dataSource.setAuthenticationName("dns.example");
+        query();
+    }
+
+    @Test
+    public void sessionResumptionTest() throws Exception {
+        dataSource.getConnectionPool().setIdleTimeout(50);
+        query();
+        for (int i = 0; i < 100 && dataSource.getConnectionPool().getConnectionCount(server.getInetAddress(),
+                server.getLocalPort()) > 0; i++) {
+            Thread.sleep(10);
+        }
+        query();
+        assertEquals(2, sessionIds.size());
+        // The second connection resumed the session of the first connection.
+        assertArrayEquals(sessionIds.get(0), sessionIds.get(1));
+    }
+}
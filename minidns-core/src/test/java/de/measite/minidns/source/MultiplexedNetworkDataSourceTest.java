@@ -0,0 +1,242 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.A;
+import de.measite.minidns.util.MiniDNSFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MultiplexedNetworkDataSourceTest {
+
+    private DatagramSocket server;
+    private DatagramSocket spoofer;
+    private Thread serverThread;
+    private volatile boolean spoof;
+    private final AtomicInteger dropped = new AtomicInteger();
+    private MultiplexedNetworkDataSource dataSource;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        spoofer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[512];
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        server.receive(packet);
+                        if (dropped.get() > 0 && dropped.getAndDecrement() > 0) {
+                            continue;
+                        }
+                        DNSMessage query = DNSMessage.parse(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+                        respond(query, packet);
+                    }
+                } catch (SocketException e) {
+                    // Server socket was closed.
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        serverThread.start();
+        dataSource = new MultiplexedNetworkDataSource(2);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        dataSource.close();
+        server.close();
+        spoofer.close();
+        serverThread.join();
+    }
+
+    private void respond(DNSMessage query, DatagramPacket packet) throws IOException {
+        Question question = query.getQuestion();
+        int host = Integer.parseInt(question.name.getHostpart().substring(4));
+        Record answer = new Record(question.name, TYPE.A, CLASS.IN, 300, new A(10, 0, host >> 8, host & 0xff), false);
+        DNSMessage response = query.asBuilder().setQrFlag(true).addAnswer(answer).build();
+        InetAddress address = packet.getAddress();
+        int port = packet.getPort();
+
+        if (spoof) {
+            // A response with the wrong ID, a response for another question and a response from another port.
+            server.send(response.asBuilder().setId(query.id ^ 1).build().asDatagram(address, port));
+            DNSMessage otherQuestion = response.asBuilder()
+                    .setQuestion(new Question("host" + (host + 1) + ".example.org", TYPE.A))
+                    .build();
+            server.send(otherQuestion.asDatagram(address, port));
+            spoofer.send(response.asDatagram(address, port));
+            server.send(new DatagramPacket(new byte[] { 1, 2, 3 }, 3, address, port));
+        }
+        server.send(response.asDatagram(address, port));
+    }
+
+    private DNSMessage query(int host, int id) throws IOException {
+        DNSMessage query = DNSMessage.builder()
+                .setId(id)
+                .setRecursionDesired(true)
+                .addQuestion(new Question("host" + host + ".example.org", TYPE.A))
+                .build();
+        DNSMessage response = dataSource.query(query, server.getLocalAddress(), server.getLocalPort());
+        assertEquals(id, response.id);
+        assertEquals(query.getQuestion(), response.getQuestion());
+        assertEquals(new A(10, 0, host >> 8, host & 0xff), response.answerSection.get(0).payloadData);
+        return response;
+    }
+
+    @Test
+    public void queryTest() throws IOException {
+        query(1, 4711);
+        query(2, 4712);
+    }
+
+    @Test
+    public void spoofedDatagramsAreDroppedTest() throws IOException {
+        spoof = true;
+        query(3, 1000);
+    }
+
+    @Test
+    public void concurrentQueriesWithSameIdTest() throws Exception {
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            final int host = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 8; j++) {
+                            query(host * 8 + j, 42);
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void asyncQueriesTest() throws IOException {
+        List<MiniDNSFuture<DNSMessage>> futures = new ArrayList<>();
+        for (int host = 0; host < 128; host++) {
+            DNSMessage query = DNSMessage.builder()
+                    .setId(42)
+                    .addQuestion(new Question("host" + host + ".example.org", TYPE.A))
+                    .build();
+            futures.add(dataSource.queryAsync(query, server.getLocalAddress(), server.getLocalPort()));
+        }
+        for (int host = 0; host < futures.size(); host++) {
+            DNSMessage response = futures.get(host).getOrThrow();
+            assertEquals(42, response.id);
+            assertEquals(new A(10, 0, host >> 8, host & 0xff), response.answerSection.get(0).payloadData);
+        }
+    }
+
+    @Test
+    public void throwingCallbackTest() throws IOException {
+        DNSMessage query = DNSMessage.builder().addQuestion(new Question("host6.example.org", TYPE.A)).build();
+        final MiniDNSFuture<DNSMessage> completed = new MiniDNSFuture<>();
+        dataSource.queryAsync(query, server.getLocalAddress(), server.getLocalPort())
+                .addCallback(new MiniDNSFuture.Callback<DNSMessage>() {
+                    @Override
+                    public void onResult(DNSMessage result) {
+                        completed.setResult(result);
+                        throw new IllegalStateException();
+                    }
+
+                    @Override
+                    public void onException(IOException exception) {
+                        completed.setException(exception);
+                    }
+                });
+        completed.getOrThrow();
+
+        // The event loop survived the callback.
+        query(7, 4714);
+    }
+
+    @Test
+    public void asyncCancelTest() throws IOException {
+        DNSMessage query = DNSMessage.builder().addQuestion(new Question("example.org", TYPE.A)).build();
+        MiniDNSFuture<DNSMessage> future = dataSource.queryAsync(query, spoofer.getLocalAddress(), spoofer.getLocalPort());
+        assertTrue(future.cancel(false));
+        assertTrue(future.isCancelled());
+        try {
+            future.getOrThrow();
+            fail();
+        } catch (InterruptedIOException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void asyncRetransmissionTest() throws IOException {
+        dataSource.setInitialRto(100);
+        dropped.set(2);
+        long start = System.nanoTime();
+        query(5, 4713);
+        // Retransmitted after 100 and 300ms.
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 300 && elapsed < 2000);
+        assertEquals(-1, dataSource.getInfrastructureCache().getRto(server.getLocalAddress()));
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void asyncTimeoutTest() throws IOException {
+        dataSource.setTimeout(100);
+        DNSMessage query = DNSMessage.builder().addQuestion(new Question("example.org", TYPE.A)).build();
+        dataSource.queryUdpAsync(query, spoofer.getLocalAddress(), spoofer.getLocalPort()).getOrThrow();
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void timeoutTest() throws IOException {
+        dataSource.setTimeout(100);
+        DNSMessage query = DNSMessage.builder().addQuestion(new Question("example.org", TYPE.A)).build();
+        // Query the spoofer which never responds.
+        dataSource.queryUdp(query, spoofer.getLocalAddress(), spoofer.getLocalPort());
+    }
+}
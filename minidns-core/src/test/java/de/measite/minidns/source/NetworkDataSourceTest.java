@@ -11,14 +11,26 @@
 package de.measite.minidns.source;
 
 import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.A;
 import org.junit.Test;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class NetworkDataSourceTest {
 
@@ -47,4 +59,156 @@ public class NetworkDataSourceTest {
         assertNull(world.query(DNSMessage.builder().build(), null, 53));
         assertFalse(world.lastQueryUdp);
     }
+
+    @Test
+    public void tcpFallbackGetsTimeLeftTest() throws IOException {
+        class TestNetworkDataSource extends NetworkDataSource {
+            int tcpTimeout = -1;
+
+            @Override
+            protected DNSMessage queryUdp(DNSMessage message, InetAddress address, int port) throws IOException {
+                try {
+                    Thread.sleep(200);
+                } catch (InterruptedException e) {
+                    throw new AssertionError(e);
+                }
+                throw new SocketTimeoutException();
+            }
+
+            @Override
+            protected DNSMessage queryTcp(DNSMessage message, InetAddress address, int port, int timeout) throws IOException {
+                tcpTimeout = timeout;
+                return null;
+            }
+        }
+        TestNetworkDataSource dataSource = new TestNetworkDataSource();
+        dataSource.setTimeout(1000);
+        assertNull(dataSource.query(DNSMessage.builder().build(), null, 53));
+        assertTrue(dataSource.tcpTimeout > 0 && dataSource.tcpTimeout <= 800);
+
+        // Outside of query() the full timeout is used.
+        dataSource.queryTcp(DNSMessage.builder().build(), null, 53);
+        assertEquals(1000, dataSource.tcpTimeout);
+    }
+
+    @Test
+    public void udpQueryTest() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[512];
+                    for (int i = 0; i < 2; i++) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        server.receive(packet);
+                        DNSMessage query = DNSMessage.parse(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+                        DNSMessage response = query.asBuilder()
+                                .setQrFlag(true)
+                                .addAnswer(new Record(query.getQuestion().name, TYPE.A, CLASS.IN, 300, new A(127, 0, 0, i + 1), false))
+                                .build();
+                        server.send(response.asDatagram(packet.getAddress(), packet.getPort()));
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        serverThread.start();
+        try {
+            NetworkDataSource dataSource = new NetworkDataSource();
+            for (int i = 0; i < 2; i++) {
+                DNSMessage query = DNSMessage.builder()
+                        .setId(4711 + i)
+                        .addQuestion(new Question("example.org", TYPE.A))
+                        .build();
+                DNSMessage response = dataSource.query(query, server.getLocalAddress(), server.getLocalPort());
+                assertEquals(query.id, response.id);
+                assertEquals(query.getQuestion(), response.getQuestion());
+                assertEquals(new A(127, 0, 0, i + 1), response.answerSection.get(0).payloadData);
+            }
+        } finally {
+            serverThread.join();
+            server.close();
+        }
+    }
+
+    /**
+     * Start a UDP server which ignores the first datagrams and answers the following ones.
+     */
+    private static Thread startLossyServer(final DatagramSocket server, final int dropped, final int answered) {
+        Thread serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    byte[] buffer = new byte[512];
+                    for (int i = 0; i < dropped + answered; i++) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        server.receive(packet);
+                        if (i < dropped) {
+                            continue;
+                        }
+                        DNSMessage query = DNSMessage.parse(ByteBuffer.wrap(packet.getData(), 0, packet.getLength()));
+                        DNSMessage response = query.asBuilder().setQrFlag(true).build();
+                        server.send(response.asDatagram(packet.getAddress(), packet.getPort()));
+                    }
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        serverThread.start();
+        return serverThread;
+    }
+
+    @Test
+    public void udpRetransmissionTest() throws Exception {
+        DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+        Thread serverThread = startLossyServer(server, 1, 2);
+        try {
+            NetworkDataSource dataSource = new NetworkDataSource();
+            dataSource.setInitialRto(100);
+            DNSMessage query = DNSMessage.builder().setId(1).addQuestion(new Question("example.org", TYPE.A)).build();
+            long start = System.nanoTime();
+            assertEquals(1, dataSource.query(query, server.getLocalAddress(), server.getLocalPort()).id);
+            assertTrue(System.nanoTime() - start < 1000000000L);
+            // The round trip time of a retransmitted query is ambiguous and not recorded.
+            assertEquals(-1, dataSource.getInfrastructureCache().getRto(server.getLocalAddress()));
+
+            dataSource.query(query, server.getLocalAddress(), server.getLocalPort());
+            assertTrue(dataSource.getInfrastructureCache().getRto(server.getLocalAddress()) >= 0);
+        } finally {
+            serverThread.join();
+            server.close();
+        }
+    }
+
+    @Test
+    public void udpDeadlineTest() throws Exception {
+        final DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        server.setSoTimeout(5000);
+        Thread serverThread = startLossyServer(server, 3, 0);
+        try {
+            NetworkDataSource dataSource = new NetworkDataSource();
+            dataSource.setInitialRto(50);
+            dataSource.setTimeout(1000);
+            DNSMessage query = DNSMessage.builder().addQuestion(new Question("example.org", TYPE.A)).build();
+            long start = System.nanoTime();
+            try {
+                dataSource.queryUdp(query, server.getLocalAddress(), server.getLocalPort());
+                fail();
+            } catch (SocketTimeoutException e) {
+                // Expected.
+            }
+            // Three transmissions, waiting 50, 100 and 200ms.
+            long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue(elapsed >= 350 && elapsed < 1000);
+            assertEquals(1, dataSource.getInfrastructureCache().getFailureCount(server.getLocalAddress()));
+        } finally {
+            serverThread.join();
+            server.close();
+        }
+    }
 }
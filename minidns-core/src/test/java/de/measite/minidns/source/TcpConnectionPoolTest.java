@@ -0,0 +1,305 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.source;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.EDNS;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.edns.EDNSOption;
+import de.measite.minidns.edns.TcpKeepalive;
+import de.measite.minidns.record.A;
+import de.measite.minidns.record.OPT;
+import de.measite.minidns.util.MiniDNSFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TcpConnectionPoolTest {
+
+    private ServerSocket server;
+    private Thread serverThread;
+    private final AtomicInteger accepted = new AtomicInteger();
+    private final List<DNSMessage> received = Collections.synchronizedList(new ArrayList<DNSMessage>());
+
+    /**
+     * The number of queries the server collects before answering them in reverse order.
+     */
+    private volatile int batchSize = 1;
+
+    /**
+     * The keepalive timeout the server signals, or -1 to signal none.
+     */
+    private volatile int keepalive = -1;
+
+    /**
+     * Whether the server closes connections in the middle of a response.
+     */
+    private volatile boolean hangUp;
+
+    /**
+     * The time the server pauses in the middle of the length prefix of a response.
+     */
+    private volatile int stallMillis;
+
+    private TcpConnectionPool pool;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        serverThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        final Socket socket = server.accept();
+                        accepted.incrementAndGet();
+                        new Thread() {
+                            @Override
+                            public void run() {
+                                serve(socket);
+                            }
+                        }.start();
+                    }
+                } catch (IOException e) {
+                    // Server socket was closed.
+                }
+            }
+        };
+        serverThread.start();
+        pool = new TcpConnectionPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.close();
+        server.close();
+        serverThread.join();
+    }
+
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            List<DNSMessage> batch = new ArrayList<>();
+            while (true) {
+                byte[] data = new byte[in.readUnsignedShort()];
+                in.readFully(data);
+                DNSMessage query = new DNSMessage(data);
+                received.add(query);
+                if (hangUp) {
+                    // Announce a response but close the connection in the middle of it.
+                    out.writeShort(100);
+                    out.write(data, 0, 2);
+                    out.flush();
+                    socket.close();
+                    return;
+                }
+                batch.add(query);
+                if (batch.size() < batchSize) {
+                    continue;
+                }
+                Collections.reverse(batch);
+                for (DNSMessage message : batch) {
+                    byte[] response = respond(message).toArray();
+                    if (stallMillis > 0) {
+                        out.write(response.length >> 8);
+                        out.flush();
+                        Thread.sleep(stallMillis);
+                        out.write(response.length);
+                    } else {
+                        out.writeShort(response.length);
+                    }
+                    out.write(response);
+                }
+                out.flush();
+                batch.clear();
+            }
+        } catch (IOException | InterruptedException e) {
+            // Connection was closed.
+        }
+    }
+
+    private DNSMessage respond(DNSMessage query) {
+        Question question = query.getQuestion();
+        int host = Integer.parseInt(question.name.getHostpart().substring(4));
+        DNSMessage.Builder response = query.asBuilder()
+                .setQrFlag(true)
+                .addAnswer(new Record(question.name, TYPE.A, CLASS.IN, 300, new A(10, 0, 0, host), false));
+        if (keepalive >= 0) {
+            List<EDNSOption> options = Collections.<EDNSOption>singletonList(new TcpKeepalive(keepalive / 100));
+            response.setAdditionalResourceRecords(Collections.singletonList(
+                    new Record("", TYPE.OPT, 1232, 0, new OPT(options))));
+        }
+        return response.build();
+    }
+
+    private DNSMessage query(int host, int id) throws IOException {
+        DNSMessage.Builder query = DNSMessage.builder()
+                .setId(id)
+                .addQuestion(new Question("host" + host + ".example.org", TYPE.A));
+        query.getEdnsBuilder().setUdpPayloadSize(1232);
+        DNSMessage response = pool.query(query.build(), server.getInetAddress(), server.getLocalPort(), 5000);
+        assertEquals(id, response.id);
+        assertEquals(new A(10, 0, 0, host), response.answerSection.get(0).payloadData);
+        return response;
+    }
+
+    @Test
+    public void pipelinedOutOfOrderResponsesTest() throws Exception {
+        batchSize = 8;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < batchSize; i++) {
+            final int host = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        // All queries use the same ID, the pool has to rewrite them on the wire.
+                        query(host, 42);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(1, accepted.get());
+        assertEquals(1, pool.getConnectionCount(server.getInetAddress(), server.getLocalPort()));
+    }
+
+    @Test
+    public void connectionIsReusedTest() throws IOException {
+        for (int i = 0; i < 4; i++) {
+            query(i, i);
+        }
+        assertEquals(1, accepted.get());
+    }
+
+    @Test
+    public void tooManyQueriesInFlightTest() throws Exception {
+        // The server holds back the responses until it received four queries.
+        batchSize = 4;
+        pool.setMaxConnectionsPerServer(1);
+        pool.setMaxPipelinedQueries(2);
+        List<MiniDNSFuture<DNSMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            DNSMessage query = DNSMessage.builder()
+                    .setId(i)
+                    .addQuestion(new Question("host" + i + ".example.org", TYPE.A))
+                    .build();
+            futures.add(pool.queryAsync(query, server.getInetAddress(), server.getLocalPort(), 5000));
+        }
+        assertFalse(futures.get(0).isDone());
+        assertFalse(futures.get(1).isDone());
+        // The third query fails right away instead of being pipelined on the full connection.
+        assertTrue(futures.get(2).isDone());
+        try {
+            futures.get(2).getOrThrow();
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertEquals(1, pool.getConnectionCount(server.getInetAddress(), server.getLocalPort()));
+    }
+
+    @Test
+    public void keepaliveRequestTest() throws IOException {
+        query(1, 1);
+        EDNS edns = received.get(0).getEdns();
+        TcpKeepalive keepalive = edns.getEdnsOption(EDNS.OptionCode.TCP_KEEPALIVE);
+        assertNotNull(keepalive);
+        assertEquals(-1, keepalive.getTimeoutMillis());
+    }
+
+    @Test
+    public void keepaliveZeroClosesConnectionTest() throws Exception {
+        keepalive = 0;
+        query(1, 1);
+        for (int i = 0; i < 100 && pool.getConnectionCount(server.getInetAddress(), server.getLocalPort()) > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getConnectionCount(server.getInetAddress(), server.getLocalPort()));
+        query(2, 2);
+        assertEquals(2, accepted.get());
+    }
+
+    @Test
+    public void idleTimeoutClosesConnectionTest() throws Exception {
+        keepalive = 100;
+        query(1, 1);
+        for (int i = 0; i < 100 && pool.getConnectionCount(server.getInetAddress(), server.getLocalPort()) > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, pool.getConnectionCount(server.getInetAddress(), server.getLocalPort()));
+    }
+
+    @Test
+    public void timeoutWithinLengthPrefixTest() throws IOException {
+        // The reader times out between the two bytes of the length prefix, which must not break the framing.
+        pool.setIdleTimeout(50);
+        stallMillis = 200;
+        query(1, 1);
+    }
+
+    @Test
+    public void connectionClosedByServerTest() throws IOException {
+        hangUp = true;
+        long start = System.currentTimeMillis();
+        try {
+            query(1, 1);
+            fail();
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void networkDataSourceConnectionClosedByServerTest() throws IOException {
+        hangUp = true;
+        NetworkDataSource dataSource = new NetworkDataSource();
+        DNSMessage query = DNSMessage.builder().addQuestion(new Question("host1.example.org", TYPE.A)).build();
+        try {
+            dataSource.queryTcp(query, server.getInetAddress(), server.getLocalPort());
+            fail();
+        } catch (IOException e) {
+            // Expected, the connection was closed before the response was read.
+        }
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MiniDNSFutureTest {
+
+    private static class RecordingCallback implements MiniDNSFuture.Callback<String> {
+        private final List<Object> outcomes = new ArrayList<>();
+
+        @Override
+        public void onResult(String result) {
+            outcomes.add(result);
+        }
+
+        @Override
+        public void onException(IOException exception) {
+            outcomes.add(exception);
+        }
+    }
+
+    @Test
+    public void testResult() throws Exception {
+        MiniDNSFuture<String> future = new MiniDNSFuture<>();
+        RecordingCallback before = new RecordingCallback();
+        future.addCallback(before);
+        assertFalse(future.isDone());
+
+        assertTrue(future.setResult("result"));
+        assertFalse(future.setResult("other"));
+        assertFalse(future.setException(new IOException()));
+
+        RecordingCallback after = new RecordingCallback();
+        future.addCallback(after);
+        assertTrue(future.isDone());
+        assertEquals("result", future.get());
+        assertEquals("result", future.getOrThrow());
+        assertEquals(1, before.outcomes.size());
+        assertEquals("result", before.outcomes.get(0));
+        assertEquals(before.outcomes, after.outcomes);
+    }
+
+    @Test
+    public void testException() throws InterruptedException {
+        IOException exception = new IOException();
+        MiniDNSFuture<String> future = MiniDNSFuture.failed(exception);
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+        assertSame(exception, callback.outcomes.get(0));
+        try {
+            future.get();
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(exception, e.getCause());
+        }
+        try {
+            future.getOrThrow();
+            fail();
+        } catch (IOException e) {
+            assertSame(exception, e);
+        }
+    }
+
+    @Test
+    public void testCompleteWith() throws IOException {
+        MiniDNSFuture<String> source = new MiniDNSFuture<>();
+        MiniDNSFuture<String> first = new MiniDNSFuture<String>().completeWith(source);
+        MiniDNSFuture<String> second = new MiniDNSFuture<String>().completeWith(source);
+        assertTrue(first.cancel(false));
+        source.setResult("result");
+        assertTrue(first.isCancelled());
+        assertEquals("result", second.getOrThrow());
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void testTimeout() throws IOException {
+        MiniDNSFuture<String> future = new MiniDNSFuture<>();
+        future.setTimeout(50).getOrThrow();
+    }
+
+    @Test
+    public void testTimeoutAfterCompletion() throws Exception {
+        MiniDNSFuture<String> future = new MiniDNSFuture<>();
+        future.setTimeout(50);
+        future.setResult("result");
+        Thread.sleep(100);
+        assertEquals("result", future.getOrThrow());
+    }
+
+    private static class ThrowingCallback implements MiniDNSFuture.Callback<String> {
+        @Override
+        public void onResult(String result) {
+            throw new IllegalStateException();
+        }
+
+        @Override
+        public void onException(IOException exception) {
+            throw new IllegalStateException();
+        }
+    }
+
+    @Test
+    public void testThrowingCallback() throws Exception {
+        MiniDNSFuture<String> future = new MiniDNSFuture<>();
+        future.addCallback(new ThrowingCallback());
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+        assertTrue(future.setResult("result"));
+        assertEquals("result", callback.outcomes.get(0));
+        future.addCallback(new ThrowingCallback());
+
+        // A callback throwing on the timer thread must not cancel the timer shared by all futures.
+        MiniDNSFuture<String> timedOut = new MiniDNSFuture<>();
+        timedOut.addCallback(new ThrowingCallback());
+        try {
+            timedOut.setTimeout(10).getOrThrow();
+            fail();
+        } catch (SocketTimeoutException e) {
+            // Expected.
+        }
+        try {
+            new MiniDNSFuture<String>().setTimeout(10).getOrThrow();
+            fail();
+        } catch (SocketTimeoutException e) {
+            // Expected.
+        }
+    }
+
+    @Test
+    public void testCancel() throws Exception {
+        MiniDNSFuture<String> future = new MiniDNSFuture<>();
+        RecordingCallback callback = new RecordingCallback();
+        future.addCallback(callback);
+        assertTrue(future.cancel(true));
+        assertFalse(future.cancel(true));
+        assertTrue(future.isCancelled());
+        assertTrue(callback.outcomes.get(0) instanceof InterruptedIOException);
+        try {
+            future.get();
+            fail();
+        } catch (CancellationException e) {
+            // Expected.
+        }
+    }
+}
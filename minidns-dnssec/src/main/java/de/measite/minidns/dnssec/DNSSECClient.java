@@ -26,6 +26,7 @@ import de.measite.minidns.record.DNSKEY;
 import de.measite.minidns.record.DS;
 import de.measite.minidns.record.RRSIG;
 import de.measite.minidns.recursive.ReliableDNSClient;
+import de.measite.minidns.util.MiniDNSFuture;
 
 import java.io.IOException;
 import java.math.BigInteger;
@@ -38,6 +39,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class DNSSECClient extends ReliableDNSClient {
@@ -81,6 +83,23 @@ public class DNSSECClient extends ReliableDNSClient {
         return queryDnssec(q);
     }
 
+    /**
+     * Query and verify the response without blocking the calling thread. Resolution and verification are performed
+     * in the background, the future is completed with a {@link DNSSECMessage}.
+     *
+     * @param q The question to ask.
+     * @return The future verified response.
+     */
+    @Override
+    public MiniDNSFuture<DNSMessage> queryAsync(final Question q) {
+        return resolveInBackground(new Callable<DNSMessage>() {
+            @Override
+            public DNSMessage call() throws IOException {
+                return queryDnssec(q);
+            }
+        });
+    }
+
     public DNSSECMessage queryDnssec(CharSequence name, TYPE type) throws IOException {
         Question q = new Question(name, type, CLASS.IN);
         DNSMessage dnsMessage = super.query(q);
@@ -193,7 +212,7 @@ public class DNSSECClient extends ReliableDNSClient {
             result.addAll(sepReasons);
         }
         if (verifiedSignatures.sepSignatureRequired && !verifiedSignatures.sepSignaturePresent) {
-            result.add(new NoSecureEntryPointReason(q.name.ace));
+            result.add(new NoSecureEntryPointReason(q.name.asAce()));
         }
         if (!toBeVerified.isEmpty()) {
             if (toBeVerified.size() != answers.size()) {
@@ -316,7 +335,7 @@ public class DNSSECClient extends ReliableDNSClient {
                 result.sepSignatureRequired = true;
             }
 
-            if (!isParentOrSelf(sigRecord.name.ace, rrsig.signerName.ace)) {
+            if (!isParentOrSelf(sigRecord.name.asAce(), rrsig.signerName.asAce())) {
                 LOGGER.finer("Records at " + sigRecord.name + " are cross-signed with a key from " + rrsig.signerName);
             } else {
                 toBeVerified.removeAll(records);
@@ -352,7 +371,7 @@ public class DNSSECClient extends ReliableDNSClient {
             }
         } else if (q.type == TYPE.DS && rrsig.signerName.equals(q.name)) {
             // We should not probe for the self signed DS negative response, as it will be an endless loop.
-            result.add(new NoTrustAnchorReason(q.name.ace));
+            result.add(new NoTrustAnchorReason(q.name.asAce()));
             return result;
         } else {
             DNSSECMessage dnskeyRes = queryDnssec(rrsig.signerName, TYPE.DNSKEY);
@@ -441,7 +460,7 @@ public class DNSSECClient extends ReliableDNSClient {
                 unverifiedReasons = activeReasons;
             }
         } else {
-            unverifiedReasons.add(new NoTrustAnchorReason(sepRecord.name.ace));
+            unverifiedReasons.add(new NoTrustAnchorReason(sepRecord.name.asAce()));
         }
         return unverifiedReasons;
     }
@@ -15,11 +15,13 @@ import de.measite.minidns.DNSSECConstants.DigestAlgorithm;
 import de.measite.minidns.DNSSECConstants.SignatureAlgorithm;
 import de.measite.minidns.DNSName;
 import de.measite.minidns.DNSWorld;
+import de.measite.minidns.Question;
 import de.measite.minidns.Record;
 import de.measite.minidns.cache.LRUCache;
 import de.measite.minidns.record.A;
 import de.measite.minidns.record.DNSKEY;
 import de.measite.minidns.record.RRSIG;
+import de.measite.minidns.util.MiniDNSFuture;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -118,6 +120,12 @@ public class DNSSECClientTest {
         assertNotNull(message);
         assertTrue(message.authenticData);
         checkCorrectExampleMessage(message);
+
+        MiniDNSFuture<DNSMessage> future = client.queryAsync(new Question("example.com", Record.TYPE.A));
+        message = future.getOrThrow();
+        assertTrue(message instanceof DNSSECMessage);
+        assertTrue(message.authenticData);
+        checkCorrectExampleMessage(message);
     }
 
     @Test
@@ -94,7 +94,7 @@ public class DNSSECWorld extends DNSWorld {
 
     public static Record rrsigRecord(DNSKEY key, String signerName, PrivateKey privateKey, SignatureAlgorithm algorithm, Record... records) {
         Record.TYPE typeCovered = records[0].type;
-        String name = records[0].name.ace;
+        String name = records[0].name.asAce();
         int labels = name.isEmpty() ? 0 : name.split("\\.").length;
         long originalTtl = records[0].ttl;
         Date signatureExpiration = new Date(System.currentTimeMillis() + 14 * 24 * 60 * 60 * 1000);
@@ -354,7 +354,7 @@ public class DNSSECWorld extends DNSWorld {
                 if (record.type == Record.TYPE.NSEC)
                     nsecRecord = record;
             }
-            return address.equals(this.address) && Verifier.nsecMatches(request.getQuestion().name.ace, nsecRecord.name.ace, ((NSEC) nsecRecord.payloadData).next.ace);
+            return address.equals(this.address) && Verifier.nsecMatches(request.getQuestion().name.asAce(), nsecRecord.name.asAce(), ((NSEC) nsecRecord.payloadData).next.asAce());
         }
 
         @Override
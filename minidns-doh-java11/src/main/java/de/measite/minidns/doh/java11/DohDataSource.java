@@ -0,0 +1,296 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.doh.java11;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.source.DNSDataSource;
+import de.measite.minidns.util.MiniDNSFuture;
+
+/**
+ * A data source which sends all queries to a DNS over HTTPS server, as specified in RFC 8484.
+ * <p>
+ * All queries go to the URI template of the server, the server address and port passed to
+ * {@link #query(DNSMessage, InetAddress, int)} are ignored. With the default {@link HttpClient} the queries are sent
+ * as concurrent HTTP/2 streams over a shared connection, the number of concurrent streams is bounded by
+ * {@link #setMaxConcurrentStreams(int)}. {@link #queryAsync(DNSMessage, InetAddress, int)} sends the query with
+ * {@link HttpClient#sendAsync(HttpRequest, HttpResponse.BodyHandler)} and returns without waiting for the response, so
+ * this data source supports the hedged and racing query strategies.
+ * </p>
+ * <p>
+ * Queries are sent with the message ID 0, so that HTTP caches can serve the same response to different clients. If a
+ * response was served by an HTTP cache, the TTLs of its records are reduced by the age of the response as required by
+ * RFC 8484 § 5.1.
+ * </p>
+ */
+public class DohDataSource extends DNSDataSource {
+
+    public static final String MEDIA_TYPE = "application/dns-message";
+
+    public enum Method {
+        /**
+         * Send the query base64url encoded in the dns parameter of the URI, which allows caching by HTTP caches.
+         */
+        GET,
+
+        /**
+         * Send the query in the request body.
+         */
+        POST,
+    }
+
+    private final URI uri;
+
+    private final HttpClient httpClient;
+
+    private Method method = Method.GET;
+
+    private volatile Semaphore streams = new Semaphore(100);
+
+    private int maxConcurrentStreams = 100;
+
+    /**
+     * Create a new DNS over HTTPS data source using a HTTP/2 client.
+     *
+     * @param uri the URI of the server, without the dns parameter, e.g. <code>https://dns.example/dns-query</code>.
+     */
+    public DohDataSource(URI uri) {
+        this(uri, HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build());
+    }
+
+    /**
+     * Create a new DNS over HTTPS data source.
+     *
+     * @param uri the URI of the server, without the dns parameter, e.g. <code>https://dns.example/dns-query</code>.
+     * @param httpClient the HTTP client.
+     */
+    public DohDataSource(URI uri, HttpClient httpClient) {
+        this.uri = uri;
+        this.httpClient = httpClient;
+    }
+
+    public Method getMethod() {
+        return method;
+    }
+
+    public void setMethod(Method method) {
+        this.method = method;
+    }
+
+    public int getMaxConcurrentStreams() {
+        return maxConcurrentStreams;
+    }
+
+    /**
+     * Set the maximum number of queries in flight. Further queries wait, within their timeout, until a query in flight
+     * is answered.
+     *
+     * @param maxConcurrentStreams the maximum number of queries in flight.
+     */
+    public void setMaxConcurrentStreams(int maxConcurrentStreams) {
+        if (maxConcurrentStreams <= 0) {
+            throw new IllegalArgumentException("Max concurrent streams must be greater than zero");
+        }
+        this.maxConcurrentStreams = maxConcurrentStreams;
+        streams = new Semaphore(maxConcurrentStreams);
+    }
+
+    @Override
+    public DNSMessage query(DNSMessage message, InetAddress address, int port) throws IOException {
+        HttpRequest request = newRequest(message);
+        Semaphore streams = this.streams;
+        acquire(streams);
+        HttpResponse<byte[]> response;
+        try {
+            response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+        } catch (HttpTimeoutException e) {
+            throw toIOException(e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedException = new InterruptedIOException();
+            interruptedException.initCause(e);
+            throw interruptedException;
+        } finally {
+            streams.release();
+        }
+        return parseResponse(message, response);
+    }
+
+    /**
+     * Send the query asynchronously. The calling thread only waits, within the timeout, if the maximum number of
+     * queries is already in flight. The stream is released once the response was received.
+     */
+    @Override
+    public MiniDNSFuture<DNSMessage> queryAsync(final DNSMessage message, InetAddress address, int port) {
+        final Semaphore streams = this.streams;
+        HttpRequest request;
+        try {
+            request = newRequest(message);
+            acquire(streams);
+        } catch (IOException e) {
+            return MiniDNSFuture.failed(e);
+        }
+        final MiniDNSFuture<DNSMessage> future = new MiniDNSFuture<>();
+        try {
+            httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                    .whenComplete((response, throwable) -> {
+                        streams.release();
+                        if (throwable != null) {
+                            future.setException(toIOException(throwable));
+                            return;
+                        }
+                        try {
+                            future.setResult(parseResponse(message, response));
+                        } catch (IOException e) {
+                            future.setException(e);
+                        }
+                    });
+        } catch (RuntimeException e) {
+            streams.release();
+            throw e;
+        }
+        return future;
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    private HttpRequest newRequest(DNSMessage message) throws IOException {
+        byte[] query = message.toArray();
+        query[0] = 0;
+        query[1] = 0;
+
+        HttpRequest.Builder request = HttpRequest.newBuilder()
+                .timeout(Duration.ofMillis(timeout))
+                .header("Accept", MEDIA_TYPE);
+        switch (method) {
+        case GET:
+            String dns = Base64.getUrlEncoder().withoutPadding().encodeToString(query);
+            String separator = uri.getRawQuery() == null ? "?" : "&";
+            request.uri(URI.create(uri.toString() + separator + "dns=" + dns)).GET();
+            break;
+        case POST:
+            request.uri(uri)
+                    .header("Content-Type", MEDIA_TYPE)
+                    .POST(HttpRequest.BodyPublishers.ofByteArray(query));
+            break;
+        default:
+            throw new AssertionError(method);
+        }
+        return request.build();
+    }
+
+    private static DNSMessage parseResponse(DNSMessage message, HttpResponse<byte[]> response) throws IOException {
+        if (response.statusCode() != 200) {
+            throw new IOException("DNS over HTTPS server responded with status " + response.statusCode());
+        }
+        Optional<String> contentType = response.headers().firstValue("Content-Type");
+        if (!contentType.isPresent() || !contentType.get().startsWith(MEDIA_TYPE)) {
+            throw new IOException("DNS over HTTPS server responded with content type " + contentType.orElse(null));
+        }
+
+        byte[] data = response.body();
+        if (data.length < 12) {
+            throw new IOException("DNS over HTTPS response is too short");
+        }
+        data[0] = (byte) (message.id >> 8);
+        data[1] = (byte) message.id;
+        DNSMessage dnsMessage = DNSMessage.parse(ByteBuffer.wrap(data));
+
+        long age = response.headers().firstValueAsLong("Age").orElse(0);
+        if (age > 0) {
+            dnsMessage = reduceTtls(dnsMessage, age);
+        }
+        return dnsMessage;
+    }
+
+    private void acquire(Semaphore streams) throws IOException {
+        try {
+            if (!streams.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+                throw new SocketTimeoutException("No free stream within " + timeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            InterruptedIOException interruptedException = new InterruptedIOException();
+            interruptedException.initCause(e);
+            throw interruptedException;
+        }
+    }
+
+    private static IOException toIOException(Throwable throwable) {
+        if (throwable instanceof CompletionException && throwable.getCause() != null) {
+            throwable = throwable.getCause();
+        }
+        if (throwable instanceof HttpTimeoutException) {
+            SocketTimeoutException timeoutException = new SocketTimeoutException(throwable.getMessage());
+            timeoutException.initCause(throwable);
+            return timeoutException;
+        }
+        if (throwable instanceof IOException) {
+            return (IOException) throwable;
+        }
+        return new IOException(throwable);
+    }
+
+    /**
+     * Reduce the TTLs of all records of the given message by the age of the HTTP response, as the response was cached
+     * for that long.
+     *
+     * @param message the message.
+     * @param age the age in seconds.
+     * @return the message with reduced TTLs.
+     */
+    static DNSMessage reduceTtls(DNSMessage message, long age) {
+        return message.asBuilder()
+                .setAnswers(reduceTtls(message.answerSection, age))
+                .setNameserverRecords(reduceTtls(message.authoritySection, age))
+                .setAdditionalResourceRecords(reduceTtls(message.additionalSection, age))
+                .build();
+    }
+
+    private static List<Record> reduceTtls(List<Record> records, long age) {
+        List<Record> reduced = new ArrayList<>(records.size());
+        for (Record record : records) {
+            // The TTL of the OPT pseudo record carries flags.
+            if (record.type != TYPE.OPT) {
+                record = new Record(record.name, record.type, record.clazzValue, Math.max(0, record.ttl - age),
+                        record.payloadData);
+            }
+            reduced.add(record);
+        }
+        return reduced;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.doh.java11;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record.TYPE;
+
+/**
+ * Measures the query throughput of {@link DohDataSource} against the local {@link DohStandInServer}.
+ */
+public class DohBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int queriesPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        try (DohStandInServer server = new DohStandInServer()) {
+            for (DohDataSource.Method method : DohDataSource.Method.values()) {
+                DohDataSource dataSource = new DohDataSource(server.getUri());
+                dataSource.setMethod(method);
+                // Warm up the connection and the JIT.
+                run(dataSource, threads, queriesPerThread / 10);
+
+                long start = System.nanoTime();
+                run(dataSource, threads, queriesPerThread);
+                long duration = System.nanoTime() - start;
+                long queries = (long) threads * queriesPerThread;
+                // CHECKSTYLE:OFF
+                System.out.println(method + "\t" + queries * 1000000000L / duration + " queries/s");
+                // CHECKSTYLE:ON
+            }
+        }
+    }
+
+    private static void run(final DohDataSource dataSource, int threads, final int queries) throws Exception {
+        final DNSMessage query = DNSMessage.builder()
+                .setRecursionDesired(true)
+                .addQuestion(new Question("example.org", TYPE.A))
+                .build();
+        final AtomicReference<IOException> failure = new AtomicReference<>();
+        List<Thread> workers = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(() -> {
+                try {
+                    for (int j = 0; j < queries; j++) {
+                        dataSource.query(query, InetAddress.getLoopbackAddress(), 53);
+                    }
+                } catch (IOException e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+}
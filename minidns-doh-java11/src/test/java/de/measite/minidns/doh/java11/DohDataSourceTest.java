@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.doh.java11;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.A;
+import de.measite.minidns.util.MiniDNSFuture;
+
+public class DohDataSourceTest {
+
+    private DohStandInServer server;
+    private DohDataSource dataSource;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new DohStandInServer();
+        dataSource = new DohDataSource(server.getUri());
+    }
+
+    @After
+    public void tearDown() {
+        server.close();
+    }
+
+    private static DNSMessage newQuery(int id) {
+        return DNSMessage.builder()
+                .setId(id)
+                .setRecursionDesired(true)
+                .addQuestion(new Question("example.org", TYPE.A))
+                .build();
+    }
+
+    private static void assertResponse(DNSMessage query, DNSMessage response) {
+        assertEquals(query.id, response.id);
+        assertEquals(query.getQuestion(), response.getQuestion());
+        assertEquals(new A(10, 0, 0, 1), response.answerSection.get(0).payloadData);
+    }
+
+    private DNSMessage query(int id) throws IOException {
+        DNSMessage query = newQuery(id);
+        DNSMessage response = dataSource.query(query, InetAddress.getLoopbackAddress(), 53);
+        assertResponse(query, response);
+        return response;
+    }
+
+    @Test
+    public void getTest() throws IOException {
+        DNSMessage response = query(4711);
+        assertEquals(DohStandInServer.TTL, response.answerSection.get(0).ttl);
+    }
+
+    @Test
+    public void postTest() throws IOException {
+        dataSource.setMethod(DohDataSource.Method.POST);
+        query(4711);
+    }
+
+    @Test
+    public void ageReducesTtlTest() throws IOException {
+        server.setAge(100);
+        Record answer = query(1).answerSection.get(0);
+        assertEquals(DohStandInServer.TTL - 100, answer.ttl);
+
+        server.setAge(1000);
+        answer = query(1).answerSection.get(0);
+        assertEquals(0, answer.ttl);
+    }
+
+    @Test(expected = IOException.class)
+    public void errorStatusTest() throws IOException {
+        server.setStatus(500);
+        query(1);
+    }
+
+    @Test
+    public void concurrentStreamsAreBoundedTest() throws Exception {
+        dataSource.setMaxConcurrentStreams(2);
+        server.setDelay(50);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            final int id = i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        query(id);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertNull(failure.get());
+        assertEquals(8, server.getRequests());
+        assertTrue(server.getMaxConcurrentRequests() <= 2);
+    }
+
+    @Test
+    public void asyncQueryTest() throws IOException {
+        DNSMessage query = newQuery(4711);
+        MiniDNSFuture<DNSMessage> future = dataSource.queryAsync(query, InetAddress.getLoopbackAddress(), 53);
+        assertResponse(query, future.getOrThrow());
+    }
+
+    @Test(expected = IOException.class)
+    public void asyncErrorStatusTest() throws IOException {
+        server.setStatus(500);
+        dataSource.queryAsync(newQuery(1), InetAddress.getLoopbackAddress(), 53).getOrThrow();
+    }
+
+    @Test
+    public void asyncConcurrentStreamsAreBoundedTest() throws IOException {
+        dataSource.setMaxConcurrentStreams(2);
+        server.setDelay(50);
+        List<DNSMessage> queries = new ArrayList<>();
+        List<MiniDNSFuture<DNSMessage>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            DNSMessage query = newQuery(i);
+            queries.add(query);
+            futures.add(dataSource.queryAsync(query, InetAddress.getLoopbackAddress(), 53));
+        }
+        for (int i = 0; i < 8; i++) {
+            assertResponse(queries.get(i), futures.get(i).getOrThrow());
+        }
+        assertEquals(8, server.getRequests());
+        assertTrue(server.getMaxConcurrentRequests() <= 2);
+    }
+}
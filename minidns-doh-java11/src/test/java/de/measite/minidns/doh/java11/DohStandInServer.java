@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.doh.java11;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.CLASS;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.record.A;
+
+/**
+ * A local stand-in for a DNS over HTTPS server, which answers every A query with 10.0.0.1 and a TTL of 300 seconds.
+ */
+public class DohStandInServer implements AutoCloseable {
+
+    public static final long TTL = 300;
+
+    static {
+        // Write the response headers and body without waiting for the ACK of the client.
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+
+    private final AtomicInteger requests = new AtomicInteger();
+
+    private volatile long age;
+
+    private volatile int status = 200;
+
+    private volatile long delay;
+
+    public DohStandInServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/dns-query", this::handle);
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public URI getUri() {
+        InetSocketAddress address = server.getAddress();
+        return URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/dns-query");
+    }
+
+    /**
+     * Set the Age header of the responses, as an HTTP cache would.
+     *
+     * @param age the age in seconds.
+     */
+    public void setAge(long age) {
+        this.age = age;
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    /**
+     * Delay all responses, to have requests in flight concurrently.
+     *
+     * @param delay the delay in milliseconds.
+     */
+    public void setDelay(long delay) {
+        this.delay = delay;
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests.get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+        int concurrent = concurrentRequests.incrementAndGet();
+        maxConcurrentRequests.accumulateAndGet(concurrent, Math::max);
+        try {
+            byte[] query;
+            if ("GET".equals(exchange.getRequestMethod())) {
+                String dns = exchange.getRequestURI().getRawQuery().replaceFirst("^.*dns=", "");
+                query = Base64.getUrlDecoder().decode(dns);
+            } else {
+                try (InputStream in = exchange.getRequestBody()) {
+                    query = in.readAllBytes();
+                }
+            }
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            if (status != 200) {
+                exchange.sendResponseHeaders(status, -1);
+                return;
+            }
+            byte[] response = respond(new DNSMessage(query)).toArray();
+            exchange.getResponseHeaders().set("Content-Type", DohDataSource.MEDIA_TYPE);
+            exchange.getResponseHeaders().set("Cache-Control", "max-age=" + TTL);
+            if (age > 0) {
+                exchange.getResponseHeaders().set("Age", Long.toString(age));
+            }
+            exchange.sendResponseHeaders(200, response.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(response);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            concurrentRequests.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private static DNSMessage respond(DNSMessage query) {
+        Question question = query.getQuestion();
+        return query.asBuilder()
+                .setQrFlag(true)
+                .addAnswer(new Record(question.name, TYPE.A, CLASS.IN, TTL, new A(10, 0, 0, 1), false))
+                .build();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdown();
+    }
+}
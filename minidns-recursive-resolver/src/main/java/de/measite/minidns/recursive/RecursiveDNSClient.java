@@ -14,6 +14,7 @@ import de.measite.minidns.AbstractDNSClient;
 import de.measite.minidns.DNSCache;
 import de.measite.minidns.DNSMessage;
 import de.measite.minidns.DNSName;
+import de.measite.minidns.InfrastructureCache;
 import de.measite.minidns.Question;
 import de.measite.minidns.Record;
 import de.measite.minidns.Record.TYPE;
@@ -28,6 +29,7 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -105,30 +107,46 @@ public class RecursiveDNSClient extends AbstractDNSClient {
         return message;
     }
 
-    private InetAddress getRandomIpv4RootServer() {
-        return IPV4_ROOT_SERVERS[insecureRandom.nextInt(IPV4_ROOT_SERVERS.length)];
+    private InetAddress getIpv4RootServer() {
+        return selectRootServer(IPV4_ROOT_SERVERS);
     }
 
-    private InetAddress getRandomIpv6RootServer() {
-        return IPV6_ROOT_SERVERS[insecureRandom.nextInt(IPV6_ROOT_SERVERS.length)];
+    private InetAddress getIpv6RootServer() {
+        return selectRootServer(IPV6_ROOT_SERVERS);
+    }
+
+    /**
+     * Select the root server with the lowest round trip time. Root servers are shuffled first, so that the load is
+     * spread over the root servers as long as their round trip times are unknown.
+     *
+     * @param rootServers the root servers.
+     * @return the selected root server.
+     */
+    private InetAddress selectRootServer(InetAddress[] rootServers) {
+        if (infrastructureCache == null) {
+            return rootServers[insecureRandom.nextInt(rootServers.length)];
+        }
+        List<InetAddress> candidates = new ArrayList<>(Arrays.asList(rootServers));
+        Collections.shuffle(candidates, insecureRandom);
+        return orderServers(candidates).get(0);
     }
 
     private DNSMessage queryRecursive(RecursionState recursionState, DNSMessage q) throws IOException {
         InetAddress primaryTarget = null, secondaryTarget = null;
         switch (ipVersionSetting) {
         case v4only:
-            primaryTarget = getRandomIpv4RootServer();
+            primaryTarget = getIpv4RootServer();
             break;
         case v6only:
-            primaryTarget = getRandomIpv6RootServer();
+            primaryTarget = getIpv6RootServer();
             break;
         case v4v6:
-            primaryTarget = getRandomIpv4RootServer();
-            secondaryTarget = getRandomIpv6RootServer();
+            primaryTarget = getIpv4RootServer();
+            secondaryTarget = getIpv6RootServer();
             break;
         case v6v4:
-            primaryTarget = getRandomIpv6RootServer();
-            secondaryTarget = getRandomIpv4RootServer();
+            primaryTarget = getIpv6RootServer();
+            secondaryTarget = getIpv4RootServer();
             break;
         }
 
@@ -256,7 +274,7 @@ public class RecursiveDNSClient extends AbstractDNSClient {
             if (aMessage != null) {
                 for (Record answer : aMessage.answerSection) {
                     if (answer.isAnswer(question)) {
-                        InetAddress inetAddress = inetAddressFromRecord(name.ace, (A) answer.payloadData);
+                        InetAddress inetAddress = inetAddressFromRecord(name.asAce(), (A) answer.payloadData);
                         res.ipv4Addresses.add(inetAddress);
                     } else if (answer.type == TYPE.CNAME && answer.name.equals(name)) {
                         return resolveIpRecursive(recursionState, ((CNAME) answer.payloadData).name);
@@ -273,7 +291,7 @@ public class RecursiveDNSClient extends AbstractDNSClient {
             if (aMessage != null) {
                 for (Record answer : aMessage.answerSection) {
                     if (answer.isAnswer(question)) {
-                        InetAddress inetAddress = inetAddressFromRecord(name.ace, (AAAA) answer.payloadData);
+                        InetAddress inetAddress = inetAddressFromRecord(name.asAce(), (AAAA) answer.payloadData);
                         res.ipv6Addresses.add(inetAddress);
                     } else if (answer.type == TYPE.CNAME && answer.name.equals(name)) {
                         return resolveIpRecursive(recursionState, ((CNAME) answer.payloadData).name);
@@ -294,10 +312,10 @@ public class RecursiveDNSClient extends AbstractDNSClient {
             }
             switch (record.type) {
             case A:
-                res.ipv4Addresses.add(inetAddressFromRecord(name.ace, ((A) record.payloadData)));
+                res.ipv4Addresses.add(inetAddressFromRecord(name.asAce(), ((A) record.payloadData)));
                 break;
             case AAAA:
-                res.ipv6Addresses.add(inetAddressFromRecord(name.ace, ((AAAA) record.payloadData)));
+                res.ipv6Addresses.add(inetAddressFromRecord(name.asAce(), ((AAAA) record.payloadData)));
                 break;
             }
         }
@@ -407,14 +425,15 @@ public class RecursiveDNSClient extends AbstractDNSClient {
     }
 
     private IpResultSet.Builder newIpResultSetBuilder() {
-        return new IpResultSet.Builder(this.insecureRandom);
+        return new IpResultSet.Builder(this.insecureRandom, this.infrastructureCache);
     }
 
     private static class IpResultSet {
 
         final List<InetAddress> addresses;
 
-        private IpResultSet(List<InetAddress> ipv4Addresses, List<InetAddress> ipv6Addresses, Random random) {
+        private IpResultSet(List<InetAddress> ipv4Addresses, List<InetAddress> ipv6Addresses, Random random,
+                InfrastructureCache infrastructureCache) {
             int size;
             switch (ipVersionSetting) {
             case v4only:
@@ -435,12 +454,13 @@ public class RecursiveDNSClient extends AbstractDNSClient {
                 // glued.
                 addresses = Collections.emptyList();
             } else {
-                // Shuffle the addresses first, so that the load is better balanced.
+                // Shuffle the addresses first, so that the load is better balanced, then prefer the fastest servers.
                 switch (ipVersionSetting) {
                 case v4only:
                 case v4v6:
                 case v6v4:
                     Collections.shuffle(ipv4Addresses, random);
+                    ipv4Addresses = order(ipv4Addresses, infrastructureCache);
                     break;
                 default:
                     break;
@@ -450,6 +470,7 @@ public class RecursiveDNSClient extends AbstractDNSClient {
                 case v6v4:
                 case v6only:
                     Collections.shuffle(ipv6Addresses, random);
+                    ipv6Addresses = order(ipv6Addresses, infrastructureCache);
                     break;
                 default:
                     break;
@@ -479,17 +500,26 @@ public class RecursiveDNSClient extends AbstractDNSClient {
             }
         }
 
+        private static List<InetAddress> order(List<InetAddress> addresses, InfrastructureCache infrastructureCache) {
+            if (infrastructureCache == null) {
+                return addresses;
+            }
+            return infrastructureCache.order(addresses);
+        }
+
         private static class Builder {
             private final Random random;
+            private final InfrastructureCache infrastructureCache;
             private final List<InetAddress> ipv4Addresses = new ArrayList<>(8);
             private final List<InetAddress> ipv6Addresses = new ArrayList<>(8);
 
-            private Builder(Random random) {
+            private Builder(Random random, InfrastructureCache infrastructureCache) {
                 this.random = random;
+                this.infrastructureCache = infrastructureCache;
             }
 
             public IpResultSet build() {
-                return new IpResultSet(ipv4Addresses, ipv6Addresses, random);
+                return new IpResultSet(ipv4Addresses, ipv6Addresses, random, infrastructureCache);
             }
         }
     }
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.minidnsrepl;
+
+import static java.lang.System.out;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.measite.minidns.DNSCache;
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.cache.ConcurrentLRUCache;
+import de.measite.minidns.cache.LRUCache;
+import de.measite.minidns.record.A;
+
+/**
+ * Compares the lookup throughput of {@link LRUCache} and {@link ConcurrentLRUCache} with an increasing number of
+ * threads. Every thread looks up random names of a working set which fits into the cache, so almost all lookups are
+ * hits, which is the common case of a warm resolver cache.
+ */
+public class CacheBenchmark {
+
+    public static void main(String[] args) throws InterruptedException {
+        int maxThreads = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors() * 2;
+        long durationMillis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+
+        DNSMessage[] questions = new DNSMessage[1000];
+        DNSMessage.Builder answer = DNSMessage.builder().setReceiveTimestamp(System.currentTimeMillis());
+        answer.addAnswer(new Record("example.org", TYPE.A, Record.CLASS.IN, Integer.MAX_VALUE,
+                new A(127, 0, 0, 1), false));
+        for (int i = 0; i < questions.length; i++) {
+            questions[i] = new Question(i + ".example.org", TYPE.A).asQueryMessage();
+        }
+
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            DNSCache lruCache = new LRUCache(1024);
+            DNSCache concurrentCache = new ConcurrentLRUCache(1024);
+            for (DNSMessage question : questions) {
+                lruCache.put(question, answer.build());
+                concurrentCache.put(question, answer.build());
+            }
+            // CHECKSTYLE:OFF
+            out.println(benchmark("LRUCache", lruCache, questions, threads, durationMillis));
+            out.println(benchmark("ConcurrentLRUCache", concurrentCache, questions, threads, durationMillis));
+            // CHECKSTYLE:ON
+        }
+    }
+
+    public static StringBuilder benchmark(String name, final DNSCache cache, final DNSMessage[] questions,
+            int threadCount, long durationMillis) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicLong lookups = new AtomicLong();
+        final long[] deadline = new long[1];
+
+        List<Thread> threads = new ArrayList<>(threadCount);
+        for (int t = 0; t < threadCount; t++) {
+            final int seed = t * 7919 + 1;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    int random = seed;
+                    long count = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (System.nanoTime() < deadline[0]) {
+                        for (int i = 0; i < 1000; i++) {
+                            // Xorshift, cheap enough to not dominate the lookup.
+                            random ^= random << 13;
+                            random ^= random >>> 17;
+                            random ^= random << 5;
+                            cache.get(questions[(random & Integer.MAX_VALUE) % questions.length]);
+                        }
+                        count += 1000;
+                    }
+                    lookups.addAndGet(count);
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+
+        deadline[0] = System.nanoTime() + durationMillis * 1000000L;
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append('\t')
+                .append("threads: ").append(threadCount).append('\t')
+                .append("lookups/s: ").append(lookups.get() * 1000 / durationMillis);
+        return sb;
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015-2016 the original author or authors
+ *
+ * This software is licensed under the Apache License, Version 2.0,
+ * the GNU Lesser General Public License version 2 or later ("LGPL")
+ * and the WTFPL.
+ * You may choose either license to govern your use of this software only
+ * upon the condition that you accept all of the terms of either
+ * the Apache License 2.0, the LGPL 2.1+ or the WTFPL.
+ */
+package de.measite.minidns.minidnsrepl;
+
+import static java.lang.System.out;
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+import de.measite.minidns.DNSMessage;
+import de.measite.minidns.Question;
+import de.measite.minidns.Record.TYPE;
+import de.measite.minidns.source.DNSDataSource;
+import de.measite.minidns.source.DnsOverTlsDataSource;
+import de.measite.minidns.source.NetworkDataSource;
+import de.measite.minidns.source.TcpConnectionPool;
+
+/**
+ * Compares the per query overhead of DNS over TLS with plain DNS. The first query of a data source includes the
+ * connection setup, the following queries show the overhead once the connection is established.
+ */
+public class DnsOverTlsBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        InetAddress server = InetAddress.getByName(args.length > 0 ? args[0] : "1.1.1.1");
+        String authenticationName = args.length > 1 ? args[1] : "cloudflare-dns.com";
+        int queries = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+
+        NetworkDataSource udp = new NetworkDataSource();
+
+        NetworkDataSource tcp = new NetworkDataSource() {
+            @Override
+            protected DNSMessage queryUdp(DNSMessage message, InetAddress address, int port) throws IOException {
+                return queryTcp(message, address, port);
+            }
+        };
+
+        NetworkDataSource pooledTcp = new NetworkDataSource() {
+            @Override
+            protected DNSMessage queryUdp(DNSMessage message, InetAddress address, int port) throws IOException {
+                return queryTcp(message, address, port);
+            }
+        };
+        TcpConnectionPool pool = new TcpConnectionPool();
+        pooledTcp.setTcpConnectionPool(pool);
+
+        DnsOverTlsDataSource tls = new DnsOverTlsDataSource();
+        tls.setAuthenticationName(authenticationName);
+
+        try {
+            // CHECKSTYLE:OFF
+            out.println(benchmark("UDP", udp, server, queries));
+            out.println(benchmark("TCP", tcp, server, queries));
+            out.println(benchmark("TCP (pooled)", pooledTcp, server, queries));
+            out.println(benchmark("TLS (pooled)", tls, server, queries));
+            // CHECKSTYLE:ON
+        } finally {
+            pool.close();
+            tls.close();
+        }
+    }
+
+    public static StringBuilder benchmark(String name, DNSDataSource dataSource, InetAddress server, int queries)
+            throws IOException {
+        DNSMessage.Builder query = DNSMessage.builder()
+                .setRecursionDesired(true)
+                .addQuestion(new Question("example.org", TYPE.A));
+        query.getEdnsBuilder().setUdpPayloadSize(1232);
+
+        long start = System.nanoTime();
+        dataSource.query(query.setId(0).build(), server, 53);
+        long first = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 1; i <= queries; i++) {
+            dataSource.query(query.setId(i).build(), server, 53);
+        }
+        long following = (System.nanoTime() - start) / queries;
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(name).append('\t')
+                .append("first query: ").append(first / 1000).append("us").append('\t')
+                .append("following queries: ").append(following / 1000).append("us");
+        return sb;
+    }
+}
@@ -22,6 +22,8 @@ import de.measite.minidns.Record.TYPE;
 import de.measite.minidns.cache.ExtendedLRUCache;
 import de.measite.minidns.cache.FullLRUCache;
 import de.measite.minidns.cache.LRUCache;
+import de.measite.minidns.cache.OffHeapDNSCache;
+import de.measite.minidns.cache.RRsetCache;
 import de.measite.minidns.dnssec.DNSSECClient;
 import de.measite.minidns.source.DNSDataSource;
 import de.measite.minidns.source.NetworkDataSourceWithAccounting;
@@ -58,6 +60,16 @@ public class MiniDNSStats {
         // CHECKSTYLE:OFF
         out.println(gatherStatsFor(client, "With Full Cache", name, type));
         // CHECKSTYLE:ON
+
+        client = getClient(CacheConfig.rrset);
+        // CHECKSTYLE:OFF
+        out.println(gatherStatsFor(client, "With RRset Cache", name, type));
+        // CHECKSTYLE:ON
+
+        client = getClient(CacheConfig.offheap);
+        // CHECKSTYLE:OFF
+        out.println(gatherStatsFor(client, "With Off-Heap Cache", name, type));
+        // CHECKSTYLE:ON
     }
 
     public static StringBuilder gatherStatsFor(DNSSECClient client, String testName, String name, TYPE type) throws IOException {
@@ -86,6 +98,8 @@ public class MiniDNSStats {
         normal,
         extended,
         full,
+        rrset,
+        offheap,
         ;
     }
 
@@ -104,6 +118,12 @@ public class MiniDNSStats {
         case full:
             cache = new FullLRUCache(1024);
             break;
+        case rrset:
+            cache = new RRsetCache(4096);
+            break;
+        case offheap:
+            cache = new OffHeapDNSCache(16 * 1024 * 1024);
+            break;
         default:
             throw new IllegalStateException();
         }
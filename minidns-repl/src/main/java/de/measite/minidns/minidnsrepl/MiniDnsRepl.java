@@ -17,7 +17,7 @@ import de.measite.minidns.AbstractDNSClient;
 import de.measite.minidns.DNSClient;
 import de.measite.minidns.DNSMessage;
 import de.measite.minidns.Record.TYPE;
-import de.measite.minidns.cache.LRUCache;
+import de.measite.minidns.cache.ConcurrentLRUCache;
 import de.measite.minidns.dnssec.DNSSECClient;
 import de.measite.minidns.dnssec.DNSSECMessage;
 import de.measite.minidns.edns.NSID;
@@ -31,18 +31,18 @@ public class MiniDnsRepl {
     public static final DNSSECClient DNSSECCLIENT = new DNSSECClient();
 
     static {
-        LRUCache cache = null;
+        ConcurrentLRUCache cache = null;
         try {
             Field defaultCacheField = AbstractDNSClient.class.getDeclaredField("DEFAULT_CACHE");
             defaultCacheField.setAccessible(true);
-            cache = (LRUCache) defaultCacheField.get(null);
+            cache = (ConcurrentLRUCache) defaultCacheField.get(null);
         } catch (IllegalAccessException | NoSuchFieldException | SecurityException e) {
             throw new IllegalStateException(e);
         }
         DEFAULT_CACHE = cache;
     }
 
-    public static final LRUCache DEFAULT_CACHE;
+    public static final ConcurrentLRUCache DEFAULT_CACHE;
 
     public static void init() {
         // CHECKSTYLE:OFF